@@ -106,12 +106,49 @@ public @interface Persisting {
 	 * parameter is helpful when a row is quite often updated. Note that
 	 * activations are not aware of non-sent updates, (e.g. an
 	 * {@link PersistingElement#activate(String...)} will not see new values for
-	 * at least duration indicated by this parameter).
+	 * at least duration indicated by this parameter), unless
+	 * {@link #writeRetentionReadYourWrites()} is set. In case
+	 * {@link #writeRetentionAdaptive()} is set, this is the maximum time
+	 * updates are retained, and actual retention time is tuned by the store.
 	 * 
 	 * @see com.googlecode.n_orm.cache.write.WriteRetentionStore
 	 */
 	long writeRetentionMs() default 0;
 
+	/**
+	 * Whether the time updates are retained should be tuned according to the
+	 * rate at which rows are rewritten, using {@link #writeRetentionMs()} as
+	 * the latency budget, i.e. the maximum time between an update and the
+	 * moment it is sent to the data store. Ignored in case
+	 * {@link #writeRetentionMs()} is 0 or below. Classes with adaptive and
+	 * fixed retention time do not share the same retention store.
+	 * 
+	 * @see com.googlecode.n_orm.cache.write.WriteRetentionStore#getLatencyBudgetMs()
+	 */
+	boolean writeRetentionAdaptive() default false;
+
+	/**
+	 * Whether reads should see updates retained according to
+	 * {@link #writeRetentionMs()} before they are sent to the data store.
+	 * Ignored in case {@link #writeRetentionMs()} is 0 or below. Classes
+	 * with and without this mode do not share the same retention store.
+	 * 
+	 * @see com.googlecode.n_orm.cache.write.WriteRetentionStore#isReadYourWrites()
+	 */
+	boolean writeRetentionReadYourWrites() default false;
+
+	/**
+	 * The time rows for instances live in the data store after they were last
+	 * stored. In case this number is 0 or below, rows never expire. Expired
+	 * rows are no longer found, and are reclaimed by the store. Only supported
+	 * by the {@link com.googlecode.n_orm.memory.Memory} store for the
+	 * {@link #table()} of the class (and not for federated tables) ; ignored
+	 * with a warning by other stores.
+	 * 
+	 * @see com.googlecode.n_orm.memory.Memory#setTimeToLive(String, long)
+	 */
+	long timeToLiveMs() default 0;
+
 	/**
 	 * States whether key values should be stored in the property column family.
 	 * The normal case is that keys are encoded in identifier of the instances.
@@ -5,6 +5,7 @@ import java.lang.reflect.Field;
 import java.util.Collection;
 import java.util.Date;
 import java.util.List;
+import java.util.concurrent.Future;
 
 import com.googlecode.n_orm.PropertyManagement.PropertyFamily;
 import com.googlecode.n_orm.cf.ColumnFamily;
@@ -155,6 +156,14 @@ public interface PersistingElement extends Comparable<PersistingElement>, Serial
 	@Continuator
 	public void storeNoCache() throws DatabaseNotReachedException;
 	
+	/**
+	 * Stores this persisting element as {@link #store()} but without blocking the calling thread.
+	 * The request is run on the {@link com.googlecode.n_orm.storeapi.AsyncStoreAdapter#getExecutor() executor} of the {@link com.googlecode.n_orm.storeapi.AsyncStoreAdapter#getAdapter(Store) asynchronous adapter} for the {@link #getStore() store} of this element.
+	 * This element should not be changed until the returned future is done.
+	 * @return a future that is done once this element is stored ; a {@link DatabaseNotReachedException} is reported as the cause of the {@link java.util.concurrent.ExecutionException} thrown by {@link Future#get()}
+	 */
+	public Future<Void> storeAsync();
+	
 	/**
 	 * Deletes rows representing this persisting element in the store.
 	 * @see #store()
@@ -204,6 +213,13 @@ public interface PersistingElement extends Comparable<PersistingElement>, Serial
 	 */
 	@Continuator
 	public boolean existsInStore() throws DatabaseNotReachedException;
+	
+	/**
+	 * Checks whether this persisting element {@link #exists()} without blocking the calling thread.
+	 * Returned future is already done in case existence of this element is already known.
+	 * @see #storeAsync()
+	 */
+	public Future<Boolean> existsAsync();
 
 	/**
 	 * Retrieves information from the store and put it into this persisting element.
@@ -216,6 +232,14 @@ public interface PersistingElement extends Comparable<PersistingElement>, Serial
 	 */
 	public void activate(String... families) throws DatabaseNotReachedException;
 
+	/**
+	 * Retrieves information from the store as {@link #activate(String...)} but without blocking the calling thread.
+	 * Many elements can thus be activated at once, and only then joined.
+	 * This element should not be read or changed until the returned future is done.
+	 * @see #storeAsync()
+	 */
+	public Future<Void> activateAsync(String... families);
+
 	/**
 	 * Retrieves information that have not been activated yet from the store and put it into this persisting element.
 	 * Column families (the set of simple properties is considered as a column family) that have already been activated by whatever mean (e.g. {@link #activateColumnFamily(String, Object, Object)}) will not be activated.
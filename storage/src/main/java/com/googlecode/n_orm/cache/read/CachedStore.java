@@ -1,15 +1,18 @@
 package com.googlecode.n_orm.cache.read;
 
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.Set;
+import java.util.TreeMap;
 import java.util.TreeSet;
 
 import com.googlecode.n_orm.DatabaseNotReachedException;
 import com.googlecode.n_orm.cf.ColumnFamily;
+import com.googlecode.n_orm.storeapi.Constraint;
 import com.googlecode.n_orm.storeapi.DefaultColumnFamilyData;
 import com.googlecode.n_orm.storeapi.DelegatingStore;
 import com.googlecode.n_orm.storeapi.MetaInformation;
@@ -141,6 +144,33 @@ public class CachedStore extends DelegatingStore {
 		}
 	}
 
+	/**
+	 * invalidate the cached elements in the range before deleting them from the store ;
+	 * in case the cache is not a {@link TruncatableCache}, elements are deleted one after the other
+	 */
+	@Override
+	public void truncate(MetaInformation meta, String table, Constraint c)
+			throws DatabaseNotReachedException {
+		DatabaseNotReachedException tbt = null;
+		if (isCaching()) {
+			if (!(cache instanceof TruncatableCache)) {
+				Constraint.truncate(this, meta, table, c);
+				return;
+			}
+			try {
+				((TruncatableCache)cache).delete(meta, table, c);
+			} catch (CacheException e) {
+				tbt = new DatabaseNotReachedException(e);
+			}
+		}
+		
+		super.truncate(meta, table, c);
+		
+		if (tbt != null) {
+			throw tbt;
+		}
+	}
+
 	/**
 	 * check if an element exist in the cache
 	 */
@@ -247,4 +277,79 @@ public class CachedStore extends DelegatingStore {
 			throw new DatabaseNotReachedException(e);
 		}
 	}
+
+	/*
+	 * Rows for which all families are in the cache are answered from the
+	 * cache ; other rows are fetched from the actual store in a single request
+	 * for the union of their missing families.
+	 * 
+	 * @see
+	 * com.googlecode.n_orm.storeapi.DelegatingStore#get(com.googlecode.n_orm
+	 * .storeapi.MetaInformation, java.lang.String, java.util.Collection,
+	 * java.util.Set)
+	 */
+	public Map<String, ColumnFamilyData> get(MetaInformation meta,
+			String table, Collection<String> ids, Set<String> families)
+			throws DatabaseNotReachedException {
+		if (!isCaching()) {
+			return super.get(meta, table, ids, families);
+		}
+		
+		try {
+			Map<String, ColumnFamilyData> ret = new TreeMap<String, ColumnFamilyData>();
+			Map<String, ColumnFamilyData> partials = new HashMap<String, ColumnFamilyData>();
+			Set<String> missingIds = new TreeSet<String>();
+			Set<String> missingFamilies = new TreeSet<String>();
+			
+			for (String id : ids) {
+				DefaultColumnFamilyData cached = new DefaultColumnFamilyData();
+				for (String name : families) {
+					Map<String, byte[]> data = cache.getFamilyData(meta, table, id, name);
+					if (data != null) {
+						cached.put(name, data);
+					} else {
+						missingIds.add(id);
+						missingFamilies.add(name);
+					}
+				}
+				if (missingIds.contains(id)) {
+					if (!cached.isEmpty())
+						partials.put(id, cached);
+				} else {
+					ret.put(id, cached);
+				}
+			}
+			
+			if (!missingIds.isEmpty()) {
+				Map<String, ColumnFamilyData> dataStore = super.get(meta, table,
+						missingIds, missingFamilies);
+				
+				for (String id : missingIds) {
+					ColumnFamilyData partial = partials.get(id);
+					ColumnFamilyData stored = dataStore.get(id);
+					if (stored == null) {
+						if (partial != null)
+							ret.put(id, partial);
+						continue;
+					}
+					
+					DefaultColumnFamilyData row = new DefaultColumnFamilyData();
+					for (Entry<String, Map<String, byte[]>> cfd : stored.entrySet()) {
+						row.put(cfd.getKey(), cfd.getValue());
+						cache.insertFamilyData(meta, table, id, cfd.getKey(),
+								cfd.getValue());
+					}
+					if (partial != null) {
+						// Cached data is kept for families it already knows
+						row.putAll(partial);
+					}
+					ret.put(id, row);
+				}
+			}
+			
+			return ret;
+		} catch (CacheException e) {
+			throw new DatabaseNotReachedException(e);
+		}
+	}
 }
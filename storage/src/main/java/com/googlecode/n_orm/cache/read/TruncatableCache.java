@@ -0,0 +1,16 @@
+package com.googlecode.n_orm.cache.read;
+
+import com.googlecode.n_orm.storeapi.Constraint;
+import com.googlecode.n_orm.storeapi.MetaInformation;
+
+/**
+ * A cache able to invalidate a range of elements at once.
+ * A {@link CachedStore} over a cache that does not implement this interface
+ * truncates a range by deleting elements one after the other.
+ */
+public interface TruncatableCache extends ICache {
+	/**
+	 * delete all the elements in the cache whose key satisfies the constraint ; a null constraint means the whole table
+	 */
+	public void delete(MetaInformation meta, String table, Constraint c) throws CacheException;
+}
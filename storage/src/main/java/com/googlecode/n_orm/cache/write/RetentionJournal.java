@@ -0,0 +1,491 @@
+package com.googlecode.n_orm.cache.write;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+import com.googlecode.n_orm.storeapi.DefaultColumnFamilyData;
+import com.googlecode.n_orm.storeapi.Row.ColumnFamilyData;
+import com.googlecode.n_orm.storeapi.Store;
+
+/**
+ * An append-only journal where {@link WriteRetentionStore} logs writes it retains, so that they are not lost in case of a crash.
+ * Writes are appended to numbered segments, and are made durable by {@link #sync()} which performs a group commit:
+ * a single flush (and fsync if requested) makes durable all records appended so far, including those appended by other threads while waiting.<br>
+ * Once a retained request is sent, a delivery record is appended so that its writes are not replayed.
+ * A segment is removed as soon as it is not the current segment anymore, and all requests that started being logged in this or in a previous segment were delivered.<br>
+ * Each record is stored with its length and checksum so that a record partially written during a crash is detected and discarded.
+ * Meta information is not logged: replayed writes are sent with no meta information.
+ */
+class RetentionJournal {
+	private static final Logger logger = Logger.getLogger(RetentionJournal.class.getName());
+
+	private static final String SEGMENT_PREFIX = "journal-", SEGMENT_SUFFIX = ".log";
+
+	private static final byte DELETE = 0, UPDATE = 1, DELIVERED = 2;
+
+	/**
+	 * A write found in a journal.
+	 */
+	private static class Record {
+		private long sequence;
+		private byte kind;
+		private String table, id;
+		private ColumnFamilyData changed;
+		private Map<String, Set<String>> removed;
+		private Map<String, Map<String, Number>> increments;
+	}
+
+	private final File directory;
+	private final boolean syncWrites;
+	private final long maxSegmentBytes;
+
+	private final Object syncLock = new Object();
+	private FileOutputStream file = null;
+	private DataOutputStream out = null;
+	private long segment = -1;
+	private long segmentBytes = 0;
+	private long appended = 0, synced = 0;
+
+	/**
+	 * Number of requests that started being logged in a segment and that are not delivered yet
+	 */
+	private final TreeMap<Long, Integer> undelivered = new TreeMap<Long, Integer>();
+
+	/**
+	 * @param directory the directory where segments are stored ; created if necessary
+	 * @param syncWrites whether {@link #sync()} forces records to the disk ; otherwise records are only flushed to the operating system
+	 * @param maxSegmentBytes the size above which a new segment is started
+	 */
+	public RetentionJournal(File directory, boolean syncWrites, long maxSegmentBytes) throws IOException {
+		if (!directory.isDirectory() && !directory.mkdirs())
+			throw new IOException("Cannot create directory " + directory.getAbsolutePath());
+		this.directory = directory;
+		this.syncWrites = syncWrites;
+		this.maxSegmentBytes = maxSegmentBytes;
+	}
+
+	public File getDirectory() {
+		return directory;
+	}
+
+	private List<Long> listSegments() {
+		List<Long> ret = new ArrayList<Long>();
+		String[] files = this.directory.list();
+		if (files != null) {
+			for (String f : files) {
+				if (f.startsWith(SEGMENT_PREFIX) && f.endsWith(SEGMENT_SUFFIX)) {
+					try {
+						ret.add(Long.parseLong(f.substring(SEGMENT_PREFIX.length(), f.length() - SEGMENT_SUFFIX.length())));
+					} catch (NumberFormatException x) {
+					}
+				}
+			}
+		}
+		Collections.sort(ret);
+		return ret;
+	}
+
+	private File getSegmentFile(long segment) {
+		return new File(this.directory, String.format("%s%020d%s", SEGMENT_PREFIX, segment, SEGMENT_SUFFIX));
+	}
+
+	/**
+	 * The number of existing segments.
+	 */
+	public int getSegments() {
+		return this.listSegments().size();
+	}
+
+	/**
+	 * Sends to a store all writes found in existing segments that were not delivered, and then removes those segments.
+	 * Increments that were sent but whose delivery was not logged are sent again.
+	 * Must be called before {@link #open()}.
+	 * @return the number of replayed writes
+	 */
+	public int replay(Store store) throws IOException {
+		List<Long> segments = this.listSegments();
+
+		// Finding out which writes were delivered
+		final Map<String, Map<String, Long>> delivered = new HashMap<String, Map<String,Long>>();
+		for (Long s : segments) {
+			for (Record r : this.read(s)) {
+				if (r.kind == DELIVERED) {
+					Map<String, Long> tableDelivered = delivered.get(r.table);
+					if (tableDelivered == null) {
+						tableDelivered = new HashMap<String, Long>();
+						delivered.put(r.table, tableDelivered);
+					}
+					Long upTo = tableDelivered.get(r.id);
+					if (upTo == null || upTo < r.sequence)
+						tableDelivered.put(r.id, r.sequence);
+				}
+			}
+		}
+
+		// Sending other writes in the order they were logged
+		int ret = 0;
+		for (Long s : segments) {
+			for (Record r : this.read(s)) {
+				if (r.kind == DELIVERED)
+					continue;
+				Map<String, Long> tableDelivered = delivered.get(r.table);
+				Long upTo = tableDelivered == null ? null : tableDelivered.get(r.id);
+				if (upTo != null && r.sequence <= upTo)
+					continue;
+				if (r.kind == DELETE)
+					store.delete(null, r.table, r.id);
+				else
+					store.storeChanges(null, r.table, r.id, r.changed, r.removed, r.increments);
+				ret++;
+			}
+		}
+
+		for (Long s : segments) {
+			this.getSegmentFile(s).delete();
+		}
+		if (!segments.isEmpty())
+			this.segment = segments.get(segments.size()-1);
+		return ret;
+	}
+
+	/**
+	 * Reads all records from a segment.
+	 * In case the segment ends with a partially written or corrupted record, this record and the following are discarded.
+	 */
+	private List<Record> read(long segment) throws IOException {
+		final File f = this.getSegmentFile(segment);
+		List<Record> ret = new ArrayList<Record>();
+		long valid = 0;
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(f)));
+		try {
+			CRC32 crc = new CRC32();
+			while (true) {
+				int length;
+				try {
+					length = in.readInt();
+				} catch (EOFException x) {
+					break;
+				}
+				try {
+					long checksum = in.readLong();
+					if (length < 0 || length > f.length())
+						throw new IOException("Invalid record length " + length);
+					byte[] record = new byte[length];
+					in.readFully(record);
+					crc.reset();
+					crc.update(record);
+					if (crc.getValue() != checksum)
+						throw new IOException("Invalid checksum");
+					ret.add(decode(record));
+					valid += 4 + 8 + length;
+				} catch (IOException x) {
+					logger.log(Level.WARNING, "Discarding end of journal segment " + f.getAbsolutePath() + " from byte " + valid + ": " + x.getMessage());
+					break;
+				}
+			}
+		} finally {
+			in.close();
+		}
+		return ret;
+	}
+
+	/**
+	 * Starts appending records to a new segment.
+	 */
+	public void open() throws IOException {
+		synchronized (this.syncLock) {
+			synchronized (this) {
+				this.closeSegment();
+				this.segment++;
+				this.file = new FileOutputStream(this.getSegmentFile(this.segment), true);
+				this.out = new DataOutputStream(new BufferedOutputStream(this.file));
+				this.segmentBytes = 0;
+			}
+		}
+	}
+
+	private void closeSegment() throws IOException {
+		if (this.out == null)
+			return;
+		this.out.flush();
+		if (this.syncWrites)
+			this.file.getChannel().force(false);
+		this.out.close();
+		this.out = null;
+		this.file = null;
+		this.synced = this.appended;
+	}
+
+	/**
+	 * Closes current segment after having made all records durable.
+	 */
+	public void close() throws IOException {
+		synchronized (this.syncLock) {
+			synchronized (this) {
+				this.closeSegment();
+			}
+		}
+	}
+
+	/**
+	 * States that a request is about to be logged for the first time since it was last delivered.
+	 * @return the segment to be {@link #delivered(String, String, long, long) released} once the request is delivered
+	 */
+	public synchronized long acquire() {
+		Integer count = this.undelivered.get(this.segment);
+		this.undelivered.put(this.segment, count == null ? 1 : count + 1);
+		return this.segment;
+	}
+
+	/**
+	 * Releases a segment acquired by {@link #acquire()} with no delivery.
+	 */
+	public synchronized void release(long segment) {
+		Integer count = this.undelivered.get(segment);
+		assert count != null && count > 0;
+		if (count == 1)
+			this.undelivered.remove(segment);
+		else
+			this.undelivered.put(segment, count - 1);
+		this.removeDeliveredSegments();
+	}
+
+	private void removeDeliveredSegments() {
+		assert Thread.holdsLock(this);
+		long firstUndelivered = this.undelivered.isEmpty() ? this.segment : Math.min(this.segment, this.undelivered.firstKey());
+		for (Long s : this.listSegments()) {
+			if (s >= firstUndelivered)
+				break;
+			this.getSegmentFile(s).delete();
+		}
+	}
+
+	/**
+	 * Logs a delete.
+	 * Record is not durable until {@link #sync()} is called.
+	 * @return the sequence number for the record
+	 */
+	public long delete(String table, String id) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeByte(DELETE);
+		out.writeUTF(table);
+		out.writeUTF(id);
+		return this.append(bytes.toByteArray());
+	}
+
+	/**
+	 * Logs an update.
+	 * Record is not durable until {@link #sync()} is called.
+	 * @return the sequence number for the record
+	 */
+	public long update(String table, String id, ColumnFamilyData changed, Map<String, Set<String>> removed, Map<String, Map<String, Number>> increments) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeByte(UPDATE);
+		out.writeUTF(table);
+		out.writeUTF(id);
+		if (changed == null) {
+			out.writeInt(0);
+		} else {
+			out.writeInt(changed.size());
+			for (Entry<String, Map<String, byte[]>> family : changed.entrySet()) {
+				out.writeUTF(family.getKey());
+				out.writeInt(family.getValue().size());
+				for (Entry<String, byte[]> column : family.getValue().entrySet()) {
+					out.writeUTF(column.getKey());
+					byte[] value = column.getValue();
+					if (value == null) {
+						out.writeInt(-1);
+					} else {
+						out.writeInt(value.length);
+						out.write(value);
+					}
+				}
+			}
+		}
+		if (removed == null) {
+			out.writeInt(0);
+		} else {
+			out.writeInt(removed.size());
+			for (Entry<String, Set<String>> family : removed.entrySet()) {
+				out.writeUTF(family.getKey());
+				out.writeInt(family.getValue().size());
+				for (String column : family.getValue()) {
+					out.writeUTF(column);
+				}
+			}
+		}
+		if (increments == null) {
+			out.writeInt(0);
+		} else {
+			out.writeInt(increments.size());
+			for (Entry<String, Map<String, Number>> family : increments.entrySet()) {
+				out.writeUTF(family.getKey());
+				out.writeInt(family.getValue().size());
+				for (Entry<String, Number> column : family.getValue().entrySet()) {
+					out.writeUTF(column.getKey());
+					out.writeLong(column.getValue().longValue());
+				}
+			}
+		}
+		return this.append(bytes.toByteArray());
+	}
+
+	/**
+	 * Logs that all writes logged for a row up to a given sequence number were sent, and releases the segment
+	 * {@link #acquire() acquired} for them.
+	 * Record is not durable until {@link #sync()} is called: in case of a crash before, increments could be sent again.
+	 * @param upTo the last sequence number that was delivered for the row
+	 * @param segment the segment acquired for the delivered writes
+	 */
+	public void delivered(String table, String id, long upTo, long segment) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeByte(DELIVERED);
+		out.writeUTF(table);
+		out.writeUTF(id);
+		out.writeLong(upTo);
+		this.append(bytes.toByteArray());
+		this.release(segment);
+	}
+
+	private static Record decode(byte[] record) throws IOException {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+		Record ret = new Record();
+		ret.sequence = in.readLong();
+		ret.kind = in.readByte();
+		ret.table = in.readUTF();
+		ret.id = in.readUTF();
+		switch (ret.kind) {
+		case DELETE:
+			break;
+		case DELIVERED:
+			ret.sequence = in.readLong();
+			break;
+		case UPDATE:
+			ret.changed = new DefaultColumnFamilyData();
+			for (int f = in.readInt(); f > 0; --f) {
+				String family = in.readUTF();
+				Map<String, byte[]> values = new TreeMap<String, byte[]>();
+				for (int c = in.readInt(); c > 0; --c) {
+					String column = in.readUTF();
+					int length = in.readInt();
+					byte[] value = null;
+					if (length >= 0) {
+						value = new byte[length];
+						in.readFully(value);
+					}
+					values.put(column, value);
+				}
+				ret.changed.put(family, values);
+			}
+			ret.removed = new TreeMap<String, Set<String>>();
+			for (int f = in.readInt(); f > 0; --f) {
+				String family = in.readUTF();
+				Set<String> columns = new TreeSet<String>();
+				for (int c = in.readInt(); c > 0; --c) {
+					columns.add(in.readUTF());
+				}
+				ret.removed.put(family, columns);
+			}
+			ret.increments = new TreeMap<String, Map<String,Number>>();
+			for (int f = in.readInt(); f > 0; --f) {
+				String family = in.readUTF();
+				Map<String, Number> columns = new TreeMap<String, Number>();
+				for (int c = in.readInt(); c > 0; --c) {
+					String column = in.readUTF();
+					columns.put(column, in.readLong());
+				}
+				ret.increments.put(family, columns);
+			}
+			break;
+		default:
+			throw new IOException("Unknown journal record kind " + ret.kind);
+		}
+		return ret;
+	}
+
+	/**
+	 * Appends a record to the current segment, prefixed with its sequence number.
+	 */
+	private synchronized long append(byte[] record) throws IOException {
+		if (this.out == null)
+			throw new IOException("Journal in " + this.directory.getAbsolutePath() + " is closed");
+		long ret = ++this.appended;
+		CRC32 crc = new CRC32();
+		byte[] sequence = new byte[8];
+		for (int i = 0; i < 8; ++i) {
+			sequence[i] = (byte) (ret >>> (56 - 8*i));
+		}
+		crc.update(sequence);
+		crc.update(record);
+		this.out.writeInt(8 + record.length);
+		this.out.writeLong(crc.getValue());
+		this.out.write(sequence);
+		this.out.write(record);
+		this.segmentBytes += 4 + 8 + 8 + record.length;
+		return ret;
+	}
+
+	/**
+	 * Makes sure that all records appended so far are durable.
+	 * Threads waiting for a sync in progress do not need to sync again in case the sync they waited for included their records.
+	 * A new segment is started in case current segment is full.
+	 */
+	public void sync() throws IOException {
+		long sequence;
+		synchronized (this) {
+			sequence = this.appended;
+		}
+		synchronized (this.syncLock) {
+			if (this.synced < sequence) {
+				long target;
+				FileOutputStream f;
+				synchronized (this) {
+					if (this.out == null)
+						throw new IOException("Journal in " + this.directory.getAbsolutePath() + " is closed");
+					this.out.flush();
+					target = this.appended;
+					f = this.file;
+				}
+				//Appending can go on while forcing
+				if (this.syncWrites)
+					f.getChannel().force(false);
+				this.synced = target;
+			}
+			synchronized (this) {
+				if (this.out != null && this.segmentBytes >= this.maxSegmentBytes) {
+					this.open();
+					this.removeDeliveredSegments();
+				}
+			}
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "write-retention journal in " + this.directory.getAbsolutePath();
+	}
+}
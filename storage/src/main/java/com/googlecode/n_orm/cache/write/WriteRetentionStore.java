@@ -1,12 +1,19 @@
 package com.googlecode.n_orm.cache.write;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.NoSuchElementException;
 import java.util.Set;
 import java.util.TreeMap;
 import java.util.TreeSet;
@@ -15,8 +22,6 @@ import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ConcurrentNavigableMap;
 import java.util.concurrent.ConcurrentSkipListMap;
 import java.util.concurrent.ConcurrentSkipListSet;
-import java.util.concurrent.DelayQueue;
-import java.util.concurrent.Delayed;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.SynchronousQueue;
@@ -26,6 +31,8 @@ import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -37,12 +44,17 @@ import com.googlecode.n_orm.PersistingMixin;
 import com.googlecode.n_orm.StoreSelector;
 import com.googlecode.n_orm.Transient;
 import com.googlecode.n_orm.conversion.ConversionTools;
+import com.googlecode.n_orm.storeapi.CloseableKeyIterator;
+import com.googlecode.n_orm.storeapi.Constraint;
 import com.googlecode.n_orm.storeapi.DefaultColumnFamilyData;
 import com.googlecode.n_orm.storeapi.DelegatingStore;
 import com.googlecode.n_orm.storeapi.MetaInformation;
+import com.googlecode.n_orm.storeapi.Row;
+import com.googlecode.n_orm.storeapi.RowChanges;
 import com.googlecode.n_orm.storeapi.Store;
 import com.googlecode.n_orm.storeapi.Row.ColumnFamilyData;
 import com.googlecode.n_orm.utils.LongAdder;
+import com.googlecode.n_orm.utils.TimerWheel;
 
 /**
  * A {@link DelegatingStore} that retains all writes
@@ -58,10 +70,11 @@ import com.googlecode.n_orm.utils.LongAdder;
  * such that t2-t1 is less than the {@link #getWriteRetentionMs() retention time}, only one store request
  * is issued to the {@link #getActualStore() actual store}, after t1+{@link #getWriteRetentionMs() retention time}.</p>
  * <p>Reads (as {@link #get(MetaInformation, String, String, Set)}, {@link PersistingElement#activate(String...)})
- * do not explore data "retended" here. As a example, activating, changing, storing, and then
+ * do not explore data "retended" here by default. As a example, activating, changing, storing, and then
  * activating again a persisting element using this kind of store can re-activate it as it was before the change.
  * Same remark holds for testing an element of existence, counting element, or getting a list of elements
- * that match criteria.</p>
+ * that match criteria. Reads can be made aware of retained writes by getting the store using
+ * {@link #getWriteRetentionStore(long, Store, boolean, long)}, or using {@link Persisting#writeRetentionReadYourWrites()}.</p>
  * <p>This store can be deactivated ; in the latter case, it merely acts as a delegating store with no delay.
  * To en/de-activate, use {@link #setEnabledByDefault(boolean)}. A thread can anyway be authorized to activate for
  * itself (and only itself) any de-activated write retention store if calling before
@@ -72,9 +85,21 @@ import com.googlecode.n_orm.utils.LongAdder;
  * {@link #setCapureHitRatio(boolean)} to true, which is not the case by default as it introduces some overhead.
  * It is possible to enable and then disable addtional capture on a regular basis to get metrics samples.
  * In this latter case, older metrics can be {@link #resetCapureHitRatioMetrics() reseted}.</p>
+ * <p>Retained writes are lost in case of a crash, unless a {@link #setJournalDirectory(String) journal directory} is set.</p>
+ * <p>Retained requests are unbounded by default. Limits can be set on the {@link #setMaxPendingRequests(int) number of retained requests}
+ * and on their {@link #setMaxPendingBytes(long) estimated memory}, e.g. in case the actual store is slowed down.
+ * When a limit is reached, writes follow the {@link #setBackpressurePolicy(BackpressurePolicy) backpressure policy}.
+ * Current pressure can be supervised using {@link #getRetainedRequests()}, {@link #getPendingBytes()}, {@link #getPressure()}
+ * and {@link #getBackpressureEvents()}.</p>
+ * <p>Instead of a fixed retention time, a {@link #getLatencyBudgetMs() latency budget} can be given ; retention time is then
+ * {@link #getEffectiveWriteRetentionMs() tuned} between {@link #setMinWriteRetentionMs(long) bounds} according to observed
+ * intervals between rewrites of the same rows, so that as many writes as possible are merged within the budget.
+ * The ratio of merged writes is then given by {@link #getAdaptiveHitRatio()}.</p>
  * <p>This store can be activated using {@link Persisting#writeRetentionMs() the @Persisting annotation} on a class
  * or by setting the {@link StoreSelector#STORE_WRITE_RETENTION with-write-retention} property on the
- * storage.properties file.</p>
+ * storage.properties file. The {@link StoreSelector#STORE_WRITE_RETENTION_JOURNAL write-retention-journal}
+ * property sets the {@link #setJournalDirectory(String) journal directory} ; stores activated by the annotation
+ * use a sub-directory named after their retention time and modes.</p>
  */
 public class WriteRetentionStore extends DelegatingStore {
 	public static final Logger logger = Logger.getLogger(DelegatingStore.class.getName()); 
@@ -83,9 +108,19 @@ public class WriteRetentionStore extends DelegatingStore {
 	private static final byte[] NULL_VALUE = new byte[0];
 	
 	/**
-	 * Event queue
+	 * Duration in ms of a tick of the {@link Shard#wheel timer wheels} planning requests
 	 */
-	private static final DelayQueue<StoreRequest> writeQueue = new DelayQueue<StoreRequest>();
+	private static final long TICK_MS = 5;
+	
+	/**
+	 * Time in ms after which an idle {@link Shard#drain() drain worker} stops
+	 */
+	private static final long IDLE_MS = 3000;
+	
+	/**
+	 * Number of requests planned in {@link #shards}
+	 */
+	private static final AtomicLong plannedRequests = new AtomicLong();
 	
 	/**
 	 * Whether write retention should be enabled for a given thread
@@ -128,34 +163,178 @@ public class WriteRetentionStore extends DelegatingStore {
 	private static volatile boolean shutdown = false;
 
 	/**
-	 * Thread responsible for dequeue
+	 * Maximum global number of threads used for sending requests to store
+	 */
+	private static volatile int MAX_SENDER_THREADS = 20;
+	
+	/**
+	 * Number of batches being sent by {@link Shard#sender sender pools}
 	 */
-	private static final AtomicReference<EvictionThread> evictionThread = new AtomicReference<EvictionThread>();
+	private static int busySenders = 0;
 	
 	/**
-	 * Maximum global number of threads used for sending requests to store
+	 * Lock for {@link #busySenders}
 	 */
-	private static volatile int MAX_SENDER_THREADS = 20;
+	private static final ReentrantLock sendersLock = new ReentrantLock();
+	
+	/**
+	 * Signaled when {@link #busySenders} goes below {@link #MAX_SENDER_THREADS}
+	 */
+	private static final Condition senderAvailable = sendersLock.newCondition();
+	
+	/**
+	 * Maximum number of requests sent to a store in a single batch
+	 */
+	private static volatile int MAX_BATCH_SIZE = 500;
+	
+	/**
+	 * What to do with a write in case {@link #getMaxPendingRequests() pending requests}
+	 * or {@link #getMaxPendingBytes() pending bytes} are above their limit.
+	 * @see WriteRetentionStore#setBackpressurePolicy(BackpressurePolicy)
+	 */
+	public static enum BackpressurePolicy {
+		/**
+		 * The writer waits for pending requests to be sent until limits are no longer reached,
+		 * or fails with a {@link DatabaseNotReachedException} after {@link WriteRetentionStore#getBackpressureTimeoutMs() a timeout}.
+		 * A write that is merged with a request already retained for the same row does not wait.
+		 */
+		BLOCK,
+		/**
+		 * The write is retained, and then the writer sends requests retained by the most loaded stores
+		 * before they are due until limits are no longer reached ; in case all retained requests are
+		 * already being sent, the writer waits for them to be sent as with {@link #BLOCK}.
+		 */
+		FLUSH,
+		/**
+		 * The write is merged with requests retained for the same row (if any) and then sent right away by the writer.
+		 */
+		WRITE_THROUGH
+	};
+	
+	/**
+	 * Number of requests retained by all stores, be they being sent or not
+	 */
+	private static final AtomicLong retainedRequests = new AtomicLong();
+	
+	/**
+	 * Estimated memory used by retained requests
+	 */
+	private static final AtomicLong pendingBytes = new AtomicLong();
+	
+	/**
+	 * Maximum number of retained requests ; 0 if unbounded
+	 */
+	private static volatile int MAX_PENDING_REQUESTS = 0;
+	
+	/**
+	 * Maximum estimated memory used by retained requests ; 0 if unbounded
+	 */
+	private static volatile long MAX_PENDING_BYTES = 0;
+	
+	/**
+	 * What to do with writes when limits are reached
+	 */
+	private static volatile BackpressurePolicy BACKPRESSURE_POLICY = BackpressurePolicy.FLUSH;
+	
+	/**
+	 * Maximum time a writer is blocked with the {@link BackpressurePolicy#BLOCK} policy
+	 */
+	private static volatile long BACKPRESSURE_TIMEOUT_MS = 10000;
+	
+	/**
+	 * Number of writes that found limits reached
+	 */
+	private static final LongAdder backpressureEvents = new LongAdder();
+	
+	/**
+	 * Number of writers waiting for pending requests to be sent
+	 */
+	private static final AtomicLong blockedWriters = new AtomicLong();
+	
+	/**
+	 * Monitor on which {@link #blockedWriters blocked writers} wait
+	 */
+	private static final Object pressureMonitor = new Object();
+	
+	/**
+	 * Estimated memory for a value, in addition to the value itself
+	 */
+	private static final int VALUE_OVERHEAD = 48;
+	
+	/**
+	 * Estimated memory for a family or a column, in addition to its name
+	 */
+	private static final int ENTRY_OVERHEAD = 96;
+	
+	/**
+	 * Number of buckets for {@link #rewriteIntervals} ; bucket i counts intervals in [2^(i-1), 2^i[ ms
+	 */
+	private static final int INTERVAL_BUCKETS = 40;
+	
+	/**
+	 * Minimum number of writes during an adaptation period for {@link #adapt(long) adapting retention time}
+	 */
+	private static final int ADAPTATION_MIN_SAMPLES = 20;
+	
+	/**
+	 * Minimum duration in ms of an adaptation period
+	 */
+	private static final long ADAPTATION_MIN_PERIOD_MS = 100;
+	
+	/**
+	 * Size above which a new {@link RetentionJournal journal} segment is started
+	 */
+	private static final long JOURNAL_SEGMENT_BYTES = 4*1024*1024;
+	
+	/**
+	 * Planned requests, sharded according to their row ; must be initialized after sender settings
+	 */
+	private static final Shard[] shards;
+	
+	static {
+		shards = new Shard[Runtime.getRuntime().availableProcessors()];
+		for (int i = 0; i < shards.length; ++i) {
+			shards[i] = new Shard(i);
+		}
+	}
 	
 	/**
 	 * Known stores
 	 */
 	private static final Map<Integer, Collection<WriteRetentionStore>> knownStores = new HashMap<Integer, Collection<WriteRetentionStore>>();
 	
-	// One should find the same WriteRetentionStore given a write retention time and a target store
+	/**
+	 * Returns a {@link WriteRetentionStore} with s as {@link DelegatingStore#getActualStore() delegate}
+	 * that does not {@link #isReadYourWrites() merge retained writes} when reading
+	 * and with a fixed retention time.
+	 * @see #getWriteRetentionStore(long, Store, boolean, long)
+	 */
+	public static WriteRetentionStore getWriteRetentionStore(long writeRetentionMs, Store s) {
+		return getWriteRetentionStore(writeRetentionMs, s, false, 0);
+	}
+	
+	// One should find the same WriteRetentionStore given a write retention time, a read mode, a latency budget and a target store
 	/**
 	 * Returns a {@link WriteRetentionStore} with s as {@link DelegatingStore#getActualStore() delegate} ;
 	 * in case s is already a {@link WriteRetentionStore} with a different {@link #getWriteRetentionMs()},
+	 * a different {@link #isReadYourWrites() read mode} or a different {@link #getLatencyBudgetMs() latency budget},
 	 * returns another {@link WriteRetentionStore} with same {@link DelegatingStore#getActualStore() delegate}
 	 * as s.
 	 * @param writeRetentionMs time during which updates are retended to delegate store
 	 * @param s the actual store, or a {@link WriteRetentionStore} with delegating to the actual store
+	 * @param readYourWrites whether reads should {@link #isReadYourWrites() merge retained writes}
+	 * @param latencyBudgetMs the {@link #getLatencyBudgetMs() latency budget} in case retention time should be adaptive ; 0 for a fixed retention time
 	 * @throws IllegalArgumentException if s is a delegation chain that already contains a {@link WriteRetentionStore}
+	 *             or if latencyBudgetMs is negative
 	 */
-	public static WriteRetentionStore getWriteRetentionStore(long writeRetentionMs, Store s) {
+	public static WriteRetentionStore getWriteRetentionStore(long writeRetentionMs, Store s, boolean readYourWrites, long latencyBudgetMs) {
+		if (latencyBudgetMs < 0)
+			throw new IllegalArgumentException("Latency budget cannot be negative: " + latencyBudgetMs);
 		
 		if (s instanceof WriteRetentionStore) {
-			if (((WriteRetentionStore)s).getWriteRetentionMs() == writeRetentionMs)
+			if (((WriteRetentionStore)s).getWriteRetentionMs() == writeRetentionMs
+					&& ((WriteRetentionStore)s).isReadYourWrites() == readYourWrites
+					&& ((WriteRetentionStore)s).getLatencyBudgetMs() == latencyBudgetMs)
 				return (WriteRetentionStore) s;
 			
 			s = ((WriteRetentionStore)s).getActualStore();
@@ -171,7 +350,7 @@ public class WriteRetentionStore extends DelegatingStore {
 		
 		Collection<WriteRetentionStore> res;
 		// Return candidate if not exists
-		WriteRetentionStore ret = new WriteRetentionStore(writeRetentionMs, s);
+		WriteRetentionStore ret = new WriteRetentionStore(writeRetentionMs, s, readYourWrites, latencyBudgetMs);
 		int h = ret.hashCode();
 		
 		// Getting existing stores for this hash
@@ -232,6 +411,62 @@ public class WriteRetentionStore extends DelegatingStore {
 		if (maxSenderThreads <= 0)
 			throw new IllegalArgumentException();
 		MAX_SENDER_THREADS = maxSenderThreads;
+		for (Shard shard : shards) {
+			shard.sender.setMaximumPoolSize(maxSenderThreads);
+		}
+		sendersLock.lock();
+		try {
+			senderAvailable.signalAll();
+		} finally {
+			sendersLock.unlock();
+		}
+	}
+	
+	/**
+	 * Waits for less than {@link #getMaxSenderThreads()} batches to be sent ; {@link #releaseSender()} must absolutely be eventually called.
+	 */
+	private static void acquireSender() throws InterruptedException {
+		sendersLock.lock();
+		try {
+			while (busySenders >= getMaxSenderThreads()) {
+				senderAvailable.await();
+			}
+			busySenders++;
+		} finally {
+			sendersLock.unlock();
+		}
+	}
+	
+	/**
+	 * Declares a batch as sent.
+	 */
+	private static void releaseSender() {
+		sendersLock.lock();
+		try {
+			busySenders--;
+			senderAvailable.signal();
+		} finally {
+			sendersLock.unlock();
+		}
+	}
+
+	/**
+	 * Maximum number of requests that are due and sent to the same table of an
+	 * actual store in a single {@link com.googlecode.n_orm.storeapi.BatchStore#storeChanges(String, Collection) batch} ; default is 500.
+	 */
+	public static int getMaxBatchSize() {
+		assert MAX_BATCH_SIZE > 0;
+		return MAX_BATCH_SIZE;
+	}
+
+	/**
+	 * Maximum number of requests that are due and sent to the same table of an
+	 * actual store in a single {@link com.googlecode.n_orm.storeapi.BatchStore#storeChanges(String, Collection) batch}.
+	 */
+	public static void setMaxBatchSize(int maxBatchSize) {
+		if (maxBatchSize <= 0)
+			throw new IllegalArgumentException();
+		MAX_BATCH_SIZE = maxBatchSize;
 	}
 
 	// For test purpose
@@ -241,15 +476,204 @@ public class WriteRetentionStore extends DelegatingStore {
 	 * @see ThreadPoolExecutor#getActiveCount()
 	 */
 	public static int getActiveSenderThreads() {
-		EvictionThread et = evictionThread.get();
-		return et == null ? 0 : et.sender.getActiveCount();
+		int ret = 0;
+		for (Shard shard : shards) {
+			ret += shard.sender.getActiveCount();
+		}
+		return ret;
 	}
 
 	/**
 	 * The approximate number of pending write requests.
 	 */
 	public static int getPendingRequests() {
-		return writeQueue.size() + requestsBeingSending.intValue();
+		return plannedRequests.intValue() + requestsBeingSending.intValue();
+	}
+	
+	/**
+	 * Maximum global number of requests retained by write-retention stores ; 0 (the default) if unbounded.
+	 * Requests are counted per row and store, and until they are sent.
+	 * @see #setBackpressurePolicy(BackpressurePolicy)
+	 */
+	public static int getMaxPendingRequests() {
+		return MAX_PENDING_REQUESTS;
+	}
+
+	/**
+	 * Maximum global number of requests retained by write-retention stores ; 0 if unbounded.
+	 * @see #setBackpressurePolicy(BackpressurePolicy)
+	 */
+	public static void setMaxPendingRequests(int maxPendingRequests) {
+		if (maxPendingRequests < 0)
+			throw new IllegalArgumentException();
+		MAX_PENDING_REQUESTS = maxPendingRequests;
+		pressureChanged();
+	}
+
+	/**
+	 * Maximum global estimated memory (in bytes) used by requests retained by write-retention stores ; 0 (the default) if unbounded.
+	 * @see #getPendingBytes()
+	 * @see #setBackpressurePolicy(BackpressurePolicy)
+	 */
+	public static long getMaxPendingBytes() {
+		return MAX_PENDING_BYTES;
+	}
+
+	/**
+	 * Maximum global estimated memory (in bytes) used by requests retained by write-retention stores ; 0 if unbounded.
+	 * @see #getPendingBytes()
+	 * @see #setBackpressurePolicy(BackpressurePolicy)
+	 */
+	public static void setMaxPendingBytes(long maxPendingBytes) {
+		if (maxPendingBytes < 0)
+			throw new IllegalArgumentException();
+		MAX_PENDING_BYTES = maxPendingBytes;
+		pressureChanged();
+	}
+
+	/**
+	 * What happens to a write in case {@link #getMaxPendingRequests() pending requests}
+	 * or {@link #getMaxPendingBytes() pending bytes} reached their limit ; default is {@link BackpressurePolicy#FLUSH}.
+	 */
+	public static BackpressurePolicy getBackpressurePolicy() {
+		return BACKPRESSURE_POLICY;
+	}
+
+	/**
+	 * What happens to a write in case {@link #getMaxPendingRequests() pending requests}
+	 * or {@link #getMaxPendingBytes() pending bytes} reached their limit.
+	 */
+	public static void setBackpressurePolicy(BackpressurePolicy policy) {
+		if (policy == null)
+			throw new IllegalArgumentException();
+		BACKPRESSURE_POLICY = policy;
+		pressureChanged();
+	}
+
+	/**
+	 * Maximum time in ms a writer waits for limits to be released with the {@link BackpressurePolicy#BLOCK} policy ; default is 10000.
+	 */
+	public static long getBackpressureTimeoutMs() {
+		return BACKPRESSURE_TIMEOUT_MS;
+	}
+
+	/**
+	 * Maximum time in ms a writer waits for limits to be released with the {@link BackpressurePolicy#BLOCK} policy.
+	 */
+	public static void setBackpressureTimeoutMs(long backpressureTimeoutMs) {
+		if (backpressureTimeoutMs <= 0)
+			throw new IllegalArgumentException();
+		BACKPRESSURE_TIMEOUT_MS = backpressureTimeoutMs;
+	}
+
+	/**
+	 * The number of requests currently retained by write-retention stores, be they being sent or not.
+	 * @see #getMaxPendingRequests()
+	 */
+	public static long getRetainedRequests() {
+		return retainedRequests.get();
+	}
+
+	/**
+	 * The estimated memory (in bytes) used by requests currently retained by write-retention stores.
+	 * Overridden values are released as soon as they are overridden, and sent values once they are sent.
+	 * @see #getMaxPendingBytes()
+	 */
+	public static long getPendingBytes() {
+		return pendingBytes.get();
+	}
+
+	/**
+	 * How close retained requests are from their limits, as the highest ratio of
+	 * {@link #getRetainedRequests()} over {@link #getMaxPendingRequests()} and
+	 * {@link #getPendingBytes()} over {@link #getMaxPendingBytes()} ; 0 if unbounded.
+	 * A value of 1 or above means that writes are subject to the {@link #getBackpressurePolicy() backpressure policy}.
+	 */
+	public static double getPressure() {
+		int maxRequests = MAX_PENDING_REQUESTS;
+		long maxBytes = MAX_PENDING_BYTES;
+		double ret = 0;
+		if (maxRequests > 0)
+			ret = Math.max(ret, (double)getRetainedRequests() / (double)maxRequests);
+		if (maxBytes > 0)
+			ret = Math.max(ret, (double)getPendingBytes() / (double)maxBytes);
+		return ret;
+	}
+
+	/**
+	 * Number of writes that found pending requests or pending bytes at their limit.
+	 */
+	public static long getBackpressureEvents() {
+		return backpressureEvents.longValue();
+	}
+	
+	/**
+	 * Whether limits for pending requests or bytes are reached.
+	 */
+	private static boolean isUnderPressure() {
+		return isUnderPressure(0, 0);
+	}
+	
+	/**
+	 * Whether limits for pending requests or bytes would still be reached once given requests are sent.
+	 * @param releasedRequests the number of requests to be sent
+	 * @param releasedBytes the estimated memory used by requests to be sent
+	 */
+	private static boolean isUnderPressure(long releasedRequests, long releasedBytes) {
+		int maxRequests = MAX_PENDING_REQUESTS;
+		long maxBytes = MAX_PENDING_BYTES;
+		return (maxRequests > 0 && retainedRequests.get() - releasedRequests >= maxRequests)
+				|| (maxBytes > 0 && pendingBytes.get() - releasedBytes >= maxBytes);
+	}
+	
+	/**
+	 * Wakes up writers waiting for limits to be released.
+	 */
+	private static void pressureChanged() {
+		if (blockedWriters.get() > 0) {
+			synchronized (pressureMonitor) {
+				pressureMonitor.notifyAll();
+			}
+		}
+	}
+	
+	/**
+	 * Waits for limits to be released, or for the policy to change.
+	 * @param policy the policy that made the writer wait
+	 * @throws DatabaseNotReachedException in case limits are still reached after {@link #getBackpressureTimeoutMs()}
+	 */
+	private static void awaitPressureRelease(BackpressurePolicy policy) {
+		long deadline = System.currentTimeMillis() + getBackpressureTimeoutMs();
+		blockedWriters.incrementAndGet();
+		try {
+			synchronized (pressureMonitor) {
+				while (isUnderPressure() && getBackpressurePolicy() == policy) {
+					long wait = deadline - System.currentTimeMillis();
+					if (wait <= 0)
+						throw new DatabaseNotReachedException("write-retention limits still reached after " + getBackpressureTimeoutMs() + "ms: " + getRetainedRequests() + " pending requests, " + getPendingBytes() + " pending bytes");
+					pressureMonitor.wait(wait);
+				}
+			}
+		} catch (InterruptedException x) {
+			Thread.currentThread().interrupt();
+			throw new DatabaseNotReachedException("interrupted while waiting for write-retention limits to be released", x);
+		} finally {
+			blockedWriters.decrementAndGet();
+		}
+	}
+	
+	/**
+	 * Estimated memory for a retained value
+	 */
+	private static long valueBytes(Object value) {
+		return VALUE_OVERHEAD + (value instanceof byte[] ? ((byte[])value).length : 8);
+	}
+	
+	/**
+	 * Estimated memory for a retained family or column
+	 */
+	private static long entryBytes(String name) {
+		return ENTRY_OVERHEAD + 2*name.length();
 	}
 	
 	/**
@@ -400,7 +824,7 @@ public class WriteRetentionStore extends DelegatingStore {
 	 * Summarize requests for a given row in a given table. Thread-safely merges
 	 * with another request.
 	 */
-	private class StoreRequest implements Delayed {
+	private class StoreRequest {
 
 		/**
 		 * A merged datum is stored with a transaction index
@@ -467,10 +891,37 @@ public class WriteRetentionStore extends DelegatingStore {
 		 */
 		@Transient private volatile ConcurrentSkipListSet<Long> deletions = new ConcurrentSkipListSet<Long>();
 		
+		/**
+		 * Estimated memory used by {@link #elements}
+		 */
+		private final AtomicLong bytes = new AtomicLong();
+		
+		/**
+		 * Epoch date in ms of the last write merged into this request
+		 */
+		private volatile long lastWriteMs = System.currentTimeMillis();
+		
+		/**
+		 * The journal segment {@link RetentionJournal#acquire() acquired} for updates not sent yet ; -1 if none
+		 */
+		private final AtomicLong journalSegment = new AtomicLong(-1);
+		
+		/**
+		 * Sequence number of the last update logged to the journal and not sent yet ; -1 if none
+		 */
+		private final AtomicLong journaled = new AtomicLong(-1);
+		
 		private StoreRequest(RowInTable row) {
 			super();
 			this.row = row;
 		}
+		
+		/**
+		 * The store for which this request is retained
+		 */
+		private WriteRetentionStore getStore() {
+			return WriteRetentionStore.this;
+		}
 
 		/**
 		 * Starts an update ; {@link #doneUpdate()} must absolutely be
@@ -519,6 +970,7 @@ public class WriteRetentionStore extends DelegatingStore {
 		public void delete(MetaInformation meta) throws RequestIsOutException {
 			long transaction = this.startUpdate();
 			try {
+				this.log(true, null, null, null);
 				this.addMeta(meta);
 				
 				this.deletions.add(transaction);
@@ -527,7 +979,7 @@ public class WriteRetentionStore extends DelegatingStore {
 				this.deletions.headSet(transaction, false).clear();
 				for (Entry<String, ConcurrentMap<String, ConcurrentNavigableMap<Long, Object>>> fam : this.elements.entrySet()) {
 					for (Entry<String, ConcurrentNavigableMap<Long, Object>> col : fam.getValue().entrySet()) {
-						col.getValue().headMap(transaction, false).clear();
+						this.clearBefore(col.getValue(), transaction);
 					}
 				}
 			} finally {
@@ -548,6 +1000,7 @@ public class WriteRetentionStore extends DelegatingStore {
 
 			long transactionId = this.startUpdate();
 			try {
+				this.log(false, changed, removed, increments);
 				addMeta(meta);
 				
 				// Adding changes
@@ -566,9 +1019,10 @@ public class WriteRetentionStore extends DelegatingStore {
 									chval == null ? NULL_VALUE : chval);
 							// There must not have a previous put for the same transaction
 							assert old == null;		
+							this.addBytes(valueBytes(chval));
 							
 							// Cleaning up memory from overridden values
-							columnData.headMap(transactionId, false).clear();
+							this.clearBefore(columnData, transactionId);
 						}
 					}
 				}
@@ -588,6 +1042,7 @@ public class WriteRetentionStore extends DelegatingStore {
 									colIncrements.getValue());
 							// There must not have a previous put for the same transaction
 							assert old == null;
+							this.addBytes(valueBytes(colIncrements.getValue()));
 							
 							// NOT cleaning up memory as actual increment is the sum of all transactions
 						}
@@ -608,9 +1063,10 @@ public class WriteRetentionStore extends DelegatingStore {
 									DELETED_VALUE);
 							// There must not have a previous put for the same transaction
 							assert old == null;
+							this.addBytes(valueBytes(DELETED_VALUE));
 							
 							// Cleaning up memory from overridden values
-							columnData.headMap(transactionId, false).clear();
+							this.clearBefore(columnData, transactionId);
 						}
 					}
 				}
@@ -619,6 +1075,31 @@ public class WriteRetentionStore extends DelegatingStore {
 			}
 		}
 
+		/**
+		 * Logs an update to the {@link WriteRetentionStore#journal journal}, if any ; must be called within an update.
+		 * @param delete whether the update is a delete
+		 */
+		private void log(boolean delete, ColumnFamilyData changed,
+				Map<String, Set<String>> removed,
+				Map<String, Map<String, Number>> increments) {
+			RetentionJournal j = journal;
+			if (j == null)
+				return;
+			if (this.journalSegment.get() == -1) {
+				long segment = j.acquire();
+				if (!this.journalSegment.compareAndSet(-1, segment))
+					j.release(segment);
+			}
+			long sequence;
+			try {
+				sequence = delete ? j.delete(this.row.table, this.row.id) : j.update(this.row.table, this.row.id, changed, removed, increments);
+			} catch (IOException x) {
+				throw new DatabaseNotReachedException("Cannot log update for " + this.row + " to " + j, x);
+			}
+			long last;
+			while ((last = this.journaled.get()) < sequence && !this.journaled.compareAndSet(last, sequence));
+		}
+
 		/**
 		 * Merging meta information
 		 */
@@ -643,6 +1124,8 @@ public class WriteRetentionStore extends DelegatingStore {
 						.putIfAbsent(family, ret);
 				if (put != null)
 					ret = put;
+				else
+					this.addBytes(entryBytes(family));
 			}
 			return ret;
 		}
@@ -663,50 +1146,222 @@ public class WriteRetentionStore extends DelegatingStore {
 						.putIfAbsent(column, ret);
 				if (put != null)
 					ret = put;
+				else
+					this.addBytes(entryBytes(column));
 			}
 			return ret;
 		}
 		
-		@Override
-		public int compareTo(Delayed d) {
-			if (this == d)
-				return 0;
-			StoreRequest o = (StoreRequest) d;
-			long thisOut = this.outDateMs.get(), oOut = o.outDateMs.get();
-			if (thisOut == oOut) {
-				return this.row.compareTo(o.row);
-			} else if (thisOut < oOut)
-				return -1;
-			else // if (thisOut > oOut)
-				return 1;
+		/**
+		 * Accounts memory used by this request.
+		 */
+		private void addBytes(long bytes) {
+			this.bytes.addAndGet(bytes);
+			pendingBytes.addAndGet(bytes);
 		}
-
-		@Override
-		public long getDelay(TimeUnit unit) {
-			return unit.convert(this.outDateMs.get() - System.currentTimeMillis(),
-					TimeUnit.MILLISECONDS);
+		
+		/**
+		 * Removes values of a column that were overridden by a given transaction.
+		 */
+		private void clearBefore(ConcurrentNavigableMap<Long, Object> columnData, long transaction) {
+			long freed = 0;
+			for (Entry<Long, Object> overridden : columnData.headMap(transaction, false).entrySet()) {
+				// Checking removal so that a value concurrently removed is not released twice
+				if (columnData.remove(overridden.getKey(), overridden.getValue()))
+					freed += valueBytes(overridden.getValue());
+			}
+			if (freed != 0) {
+				this.addBytes(-freed);
+				pressureChanged();
+			}
 		}
-
+		
 		/**
-		 * Sending this request. Waits for current updates to be done.
+		 * The actual increment for a column, summing all retained increments.
+		 */
+		private long increment(ConcurrentNavigableMap<Long, Object> columnData) {
+			long sum = 0;
+			for (Entry<Long, Object> incr : columnData.entrySet()) {
+				Object val = incr.getValue();
+				try {
+					sum += ((Number) val).longValue();
+				} catch (ClassCastException x) {
+					// Just in case datum was updated (not incremented) meanwhile
+					// This is robustness code as it's not likely to happen
+					if (val == DELETED_VALUE)
+						sum = 0;
+					else // if (val instanceof byte[]) 
+						sum = ConversionTools.convert(Long.class, (byte[])val).longValue();
+				}
+			}
+			return sum;
+		}
+		
+		/**
+		 * Waits for this request not to be being sent anymore.
+		 */
+		private void awaitSent() {
+			if (!this.sending)
+				return;
+			synchronized (this) {
+				while (this.sending && !this.dead) {
+					try {
+						this.wait(100);
+					} catch (InterruptedException x) {
+						Thread.currentThread().interrupt();
+						throw new DatabaseNotReachedException(x);
+					}
+				}
+			}
+		}
+		
+		/**
+		 * Reads the row from the {@link WriteRetentionStore#getActualStore() actual store} and merges changes retained by this request.
+		 * In case this request is being sent, waits for it to be sent as sent changes might not be visible from the actual store yet.
 		 * 
-		 * @param sender
-		 *            the executor for sending the request
-		 * @param counter
-		 *            a counter to be decremented when the request is sent
-		 * @param flushing
-		 *            whether this send is a normal operation of a flush operation
+		 * @param families
+		 *            the families to be read ; null to only check whether the row exists
+		 * @return null in case the row does not exist ; the values for the families otherwise (empty if families is null)
+		 * @throws RequestIsOutException
+		 *             in case this request was sent meanwhile ; the actual store should be read instead
 		 */
-		public void send(ExecutorService sender, final boolean flushing) {
-			// Not sending this request before delay is expired unless we flush
-			assert flushing || this.outDateMs.get() <= System.currentTimeMillis();
-			long lastTransactionTmp;
-			Long lastSentTransaction;
-			long outDateTmp;
-			// A copy of the elements, deletes and meta to be sent now
+		private ColumnFamilyData read(MetaInformation meta, Set<String> families) throws RequestIsOutException {
+			this.awaitSent();
+			
+			// No send can start while reading
+			this.sendLock.readLock().lock();
+			try {
+				if (this.dead || this.sending)
+					throw new RequestIsOutException();
+				
+				ColumnFamilyData ret = new DefaultColumnFamilyData();
+				Long lastDeletion = this.deletions.isEmpty() ? null : this.deletions.last();
+				if (lastDeletion != null) {
+					// Actual row is to be deleted ; row exists only if stored afterwards
+					if (this.transactionDistributor.get() <= lastDeletion)
+						return null;
+				} else if (families != null) {
+					ColumnFamilyData actual = getActualStore().get(meta, this.row.table, this.row.id, families);
+					if (actual != null) {
+						for (Entry<String, Map<String, byte[]>> fam : actual.entrySet()) {
+							ret.put(fam.getKey(), fam.getValue() == null ? new TreeMap<String, byte[]>() : new TreeMap<String, byte[]>(fam.getValue()));
+						}
+					}
+				}
+				if (families == null)
+					return ret;
+				
+				for (String family : families) {
+					ConcurrentMap<String, ConcurrentNavigableMap<Long, Object>> famData = this.elements.get(family);
+					if (famData == null)
+						continue;
+					Map<String, byte[]> values = ret.get(family);
+					for (Entry<String, ConcurrentNavigableMap<Long, Object>> colData : famData.entrySet()) {
+						Entry<Long, Object> lastEntry = colData.getValue().lastEntry();
+						// Considering only those values after last deletion
+						if (lastEntry == null || (lastDeletion != null && lastEntry.getKey() < lastDeletion))
+							continue;
+						if (values == null) {
+							values = new TreeMap<String, byte[]>();
+							ret.put(family, values);
+						}
+						Object latest = lastEntry.getValue();
+						if (latest == DELETED_VALUE) {
+							values.remove(colData.getKey());
+						} else if (latest instanceof byte[]) {
+							values.put(colData.getKey(), (byte[]) latest);
+						} else {
+							byte[] old = values.get(colData.getKey());
+							long sum = old == null ? 0 : ConversionTools.convert(Long.class, old).longValue();
+							values.put(colData.getKey(), ConversionTools.convert(sum + this.increment(colData.getValue())));
+						}
+					}
+				}
+				return ret;
+			} finally {
+				this.sendLock.readLock().unlock();
+			}
+		}
+		
+		/**
+		 * How counting the row in the {@link WriteRetentionStore#getActualStore() actual store} differs from counting it
+		 * once changes retained by this request are merged.
+		 * The actual store is read only once, and no send can start meanwhile.
+		 * 
+		 * @return 1 in case the row only exists once merged, -1 in case it only exists in the actual store, 0 otherwise
+		 * @throws RequestIsOutException
+		 *             in case this request was sent meanwhile ; the actual store should be read instead
+		 */
+		private int countDelta(MetaInformation meta) throws RequestIsOutException {
+			this.awaitSent();
+			
+			// No send can start while reading
+			this.sendLock.readLock().lock();
+			try {
+				if (this.dead || this.sending)
+					throw new RequestIsOutException();
+				
+				Long lastDeletion = this.deletions.isEmpty() ? null : this.deletions.last();
+				boolean exists = lastDeletion == null || this.transactionDistributor.get() > lastDeletion;
+				if (exists == getActualStore().exists(meta, this.row.table, this.row.id))
+					return 0;
+				return exists ? 1 : -1;
+			} finally {
+				this.sendLock.readLock().unlock();
+			}
+		}
+		
+		/**
+		 * Sending this request. Waits for current updates to be done.
+		 * 
+		 * @param sender
+		 *            the executor for sending the request ; null to send it
+		 *            from the current thread
+		 * @param flushing
+		 *            whether this send is a normal operation of a flush operation
+		 */
+		public void send(ExecutorService sender, final boolean flushing) {
+			final Sending sending = this.prepareSending(flushing);
+			
+			if (sending == null)
+				return;
+			
+			Runnable action = new Runnable() {
+
+				@Override
+				public void run() {
+					sending.sendAlone();
+				}
+			};
+			
+			if (sender == null)
+				action.run();
+			else {
+				sender.submit(action);
+			}
+		}
+
+		/**
+		 * Prepares this request to be sent. Waits for current updates to be done.
+		 * Once prepared, the returned {@link Sending} must absolutely be either
+		 * {@link Sending#sendAlone() sent alone} or
+		 * {@link WriteRetentionStore#sendBatch(String, List) sent in a batch}.
+		 * 
+		 * @param flushing
+		 *            whether this send is a normal operation of a flush operation
+		 * @return the data to be sent ; null in case there is nothing to send
+		 */
+		private Sending prepareSending(final boolean flushing) {
+			// Not sending this request before delay is expired unless we flush
+			assert flushing || this.outDateMs.get() <= System.currentTimeMillis();
+			long lastTransactionTmp;
+			Long lastSentTransaction;
+			long outDateTmp;
+			// A copy of the elements, deletes and meta to be sent now
 			ConcurrentMap<String, ConcurrentMap<String, ConcurrentNavigableMap<Long, Object>>> elements;
 			ConcurrentSkipListSet<Long> deletions;
 			MetaInformation metaTmp;
+			long sentBytesTmp, journalSegmentTmp, journaledTmp;
 			this.sendLock.writeLock().lock();
 			try {
 				// This code cannot be executed concurrently with an update or another send start/stop
@@ -737,7 +1392,7 @@ public class WriteRetentionStore extends DelegatingStore {
 							assert this.lastSentTransaction == null ? this.transactionDistributor.get() == Long.MIN_VALUE : this.lastSentTransaction == this.transactionDistributor.get();
 						}
 					}
-					return;
+					return null;
 				}
 				
 				// As from this line, there MUST be a send request
@@ -754,6 +1409,9 @@ public class WriteRetentionStore extends DelegatingStore {
 				deletions = this.deletions;
 				this.deletions = new ConcurrentSkipListSet<Long>();
 				metaTmp = this.meta.getAndSet(null);
+				sentBytesTmp = this.bytes.getAndSet(0);
+				journalSegmentTmp = this.journalSegment.getAndSet(-1);
+				journaledTmp = this.journaled.getAndSet(-1);
 				requestsBeingSending.incrementAndGet();
 				
 			} finally {
@@ -762,9 +1420,10 @@ public class WriteRetentionStore extends DelegatingStore {
 			final MetaInformation meta = metaTmp;
 			final long lastTransaction = lastTransactionTmp;
 			final long outDate = outDateTmp;
+			final long sentBytes = sentBytesTmp;
+			final long journalSegment = journalSegmentTmp;
+			final long journaled = journaledTmp;
 
-			// The action to be ran for sending this request
-			Runnable action;				
 			try {
 				
 				// As from this line, we are not considering transactions later than lastTransaction
@@ -823,22 +1482,7 @@ public class WriteRetentionStore extends DelegatingStore {
 							} else {
 								assert latest instanceof Number;
 								// Column should be incremented
-								// Summing all values to know the actual increment
-								long sum = 0;
-								for (Entry<Long, Object> incr : colData.getValue()
-										.entrySet()) {
-									Object val = incr.getValue();
-									try {
-										sum += ((Number) val).longValue();
-									} catch (ClassCastException x) {
-										// Just in case datum was updated (not incremented) meanwhile
-										// This is robustness code as it's not likely to happen
-										if (val == DELETED_VALUE)
-											sum = 0;
-										else // if (val instanceof byte[]) 
-											sum = ConversionTools.convert(Long.class, (byte[])val).longValue();
-									}
-								}
+								long sum = increment(colData.getValue());
 	
 								Map<String, Number> incCols = increments
 										.get(famData.getKey());
@@ -855,90 +1499,143 @@ public class WriteRetentionStore extends DelegatingStore {
 				assert lastDeletion == null || lastTransaction >= lastDeletion;
 				assert lastTransaction >= lastStore;
 				
-				// Sending using the executor
 				// Checking whether it's a store or a delete
-				if (lastDeletion == null || lastDeletion < lastStore) {
-					
-					// A delete resets all columns ;
-					// cannot simulate that just using a store
-					final boolean shouldDelete = lastDeletion != null;
-					
-					action = new Runnable() {
-	
-						@Override
-						public void run() {
-							try {
-								try {
-									if (!flushing && outDate != -1) {
-										requestsLatencySamples.increment();
-										long delay = System.currentTimeMillis()-outDate;
-										assert delay > 0;
-										requestsCumulativeLatency.add(delay);
-									}
-								} finally {
-								
-									// Deleting all cells if necessary
-									if (shouldDelete)
-										getActualStore().delete(meta, row.table, row.id);
-									
-									getActualStore().storeChanges(meta, row.table, row.id,
-											changes, removed, increments);
-								}
-								
-							} catch (RuntimeException x) {
-								logger.log(Level.WARNING, "Catched problem while updating " + StoreRequest.this + " ; some data might have been lost: " + x.getMessage(), x);
-								throw x;
-							} finally {
-								requestSent(flushing, lastTransaction);
-							}
-						}
-					};
-				} else {
-					action = new Runnable() {
-	
-						@Override
-						public void run() {
-							try {
-								try {
-									if (!flushing && outDate != -1) {
-										requestsLatencySamples.increment();
-										long delay = System.currentTimeMillis()-outDate;
-										assert delay > 0;
-										requestsCumulativeLatency.add(delay);
-									}
-								} finally {
-								
-									getActualStore().delete(meta, row.table, row.id);
-								}
-							} catch (RuntimeException x) {
-								logger.log(Level.WARNING, "Catched problem while deleting " + StoreRequest.this + " ; some data might have been be lost: " + x.getMessage(), x);
-								throw x;
-							} finally {
-								requestSent(flushing, lastTransaction);
-							}
-						}
-					};
-				}
+				// A delete resets all columns ;
+				// cannot simulate that just using a store
+				boolean shouldStore = lastDeletion == null || lastDeletion < lastStore;
+				boolean shouldDelete = lastDeletion != null;
+				
+				return new Sending(meta, flushing, lastTransaction, outDate, sentBytes, journalSegment, journaled, shouldDelete, shouldStore ? new RowChanges(meta, row.id, changes, removed, increments) : null);
 			
 			} catch (Throwable r) {
 				requestsBeingSending.decrementAndGet();
+				pendingBytes.addAndGet(-sentBytes);
 				throw r instanceof RuntimeException ? (RuntimeException)r : new RuntimeException(r);
 			}
+		}
+		
+		/**
+		 * The state of a {@link StoreRequest} being sent.
+		 */
+		private class Sending {
+			private final MetaInformation meta;
+			private final boolean flushing;
+			private final long lastTransaction;
+			private final long outDate;
+			private final long sentBytes;
+			private final long journalSegment;
+			private final long journaled;
+			private final boolean shouldDelete;
+			/**
+			 * Changes to be sent ; null if element should only be deleted
+			 */
+			private final RowChanges changes;
+			/**
+			 * Whether sending to the actual store failed
+			 */
+			private volatile boolean failed = false;
+			/**
+			 * Whether latency of this request was already sampled, e.g. before a batch it was part of failed
+			 */
+			private boolean latencyCaptured = false;
 			
-			if (sender == null)
-				action.run();
-			else {
-				sender.submit(action);
+			private Sending(MetaInformation meta, boolean flushing,
+					long lastTransaction, long outDate, long sentBytes,
+					long journalSegment, long journaled, boolean shouldDelete,
+					RowChanges changes) {
+				this.meta = meta;
+				this.flushing = flushing;
+				this.lastTransaction = lastTransaction;
+				this.outDate = outDate;
+				this.sentBytes = sentBytes;
+				this.journalSegment = journalSegment;
+				this.journaled = journaled;
+				this.shouldDelete = shouldDelete;
+				this.changes = changes;
+			}
+			
+			private StoreRequest getRequest() {
+				return StoreRequest.this;
+			}
+			
+			private void captureLatency() {
+				if (!flushing && outDate != -1 && !latencyCaptured) {
+					latencyCaptured = true;
+					requestsLatencySamples.increment();
+					long delay = System.currentTimeMillis()-outDate;
+					assert delay >= 0;
+					requestsCumulativeLatency.add(delay);
+				}
+			}
+			
+			/**
+			 * Sends this request on its own to the actual store.
+			 */
+			private void sendAlone() {
+				try {
+					try {
+						this.captureLatency();
+					} finally {
+						
+						// Deleting all cells if necessary
+						if (shouldDelete)
+							getActualStore().delete(meta, row.table, row.id);
+						
+						if (changes != null)
+							getActualStore().storeChanges(meta, row.table, row.id,
+									changes.getChanged(), changes.getRemoved(), changes.getIncrements());
+					}
+					
+				} catch (RuntimeException x) {
+					this.failed = true;
+					logger.log(Level.WARNING, "Catched problem while " + (changes == null ? "deleting " : "updating ") + StoreRequest.this + " ; some data might have been lost: " + x.getMessage(), x);
+					throw x;
+				} finally {
+					try {
+						this.logDelivery();
+						syncJournal();
+					} finally {
+						this.done();
+					}
+				}
+			}
+			
+			/**
+			 * Logs updates as delivered to the {@link WriteRetentionStore#journal journal} unless sending failed,
+			 * so that failed updates are replayed when the journal is open again.
+			 * Logged delivery is not durable until the journal is {@link WriteRetentionStore#syncJournal() synced}.
+			 */
+			private void logDelivery() {
+				RetentionJournal j = journal;
+				if (j == null || this.journalSegment == -1 || this.failed)
+					return;
+				try {
+					j.delivered(row.table, row.id, this.journaled, this.journalSegment);
+				} catch (IOException x) {
+					logger.log(Level.WARNING, "Problem while logging delivery of " + StoreRequest.this + " to " + j + " ; updates might be sent again: " + x.getMessage(), x);
+				}
+			}
+			
+			/**
+			 * Declares this request as sent.
+			 */
+			private void done() {
+				if (!flushing && outDate != -1 && getStore().isAdaptive()) {
+					getStore().sendLatency.add(System.currentTimeMillis() - outDate);
+					getStore().sendLatencySamples.increment();
+				}
+				requestSent(flushing, lastTransaction, sentBytes);
 			}
 		}
 		
 		/**
 		 * Called once request was actually sent
 		 * @param lastTransactionBeforeSending the sent transaction
-		 * @param expectedOutDate time at which request was planned ; null in case of a flush
+		 * @param sentBytes estimated memory used by sent data
 		 */
-		private void requestSent(boolean afterFlush, long lastTransactionBeforeSending) {
-			long rbs = requestsBeingSending.decrementAndGet();
+		private void requestSent(boolean afterFlush, long lastTransactionBeforeSending, long sentBytes) {
+			requestsBeingSending.decrementAndGet();
+			pendingBytes.addAndGet(-sentBytes);
 			if (captureHitRatio)
 				requestsOut.increment();
 			assert this.lastSentTransaction == lastTransactionBeforeSending;
@@ -946,6 +1643,10 @@ public class WriteRetentionStore extends DelegatingStore {
 			this.sendLock.writeLock().lock();
 			try {
 				this.sending = false;
+				synchronized (this) {
+					// Readers waiting for this request to be sent
+					this.notifyAll();
+				}
 
 				// No update can happen when executing this section
 				if (this.transactionDistributor.get() > this.lastSentTransaction) {
@@ -970,12 +1671,21 @@ public class WriteRetentionStore extends DelegatingStore {
 				
 			} finally {
 				this.sendLock.writeLock().unlock();
-				EvictionThread et = evictionThread.get();
-				if (et != null && et.waiting && rbs < getMaxSenderThreads())
-					synchronized(et) {
-						if (et.waiting && rbs < getMaxSenderThreads())
-							et.notify();
-					}
+			}
+			pressureChanged();
+		}
+		
+		/**
+		 * Indexes this request by table unless it was already closed.
+		 */
+		private void index() {
+			// No close can happen while indexing
+			this.sendLock.readLock().lock();
+			try {
+				if (!this.dead)
+					getWritesByIds(this.row.table).put(this.row.id, this);
+			} finally {
+				this.sendLock.readLock().unlock();
 			}
 		}
 		
@@ -988,6 +1698,8 @@ public class WriteRetentionStore extends DelegatingStore {
 			StoreRequest s = writesByRows.remove(this.row);
 			// This request was THE only request for its row
 			assert this == s;
+			getWritesByIds(this.row.table).remove(this.row.id, this);
+			retainedRequests.decrementAndGet();
 			logger.fine(this.toString() + " sent on " + new Date(System.currentTimeMillis()) + " and not replanned");
 		}
 
@@ -999,37 +1711,12 @@ public class WriteRetentionStore extends DelegatingStore {
 			if (this.dead)
 				throw new RequestIsOutException();
 
-			long nextExecutionDate = WriteRetentionStore.this.writeRetentionMs + System.currentTimeMillis();
+			long nextExecutionDate = WriteRetentionStore.this.getEffectiveWriteRetentionMs() + System.currentTimeMillis();
 			
-			// Placing this request in the to-do list
-			boolean shouldSubmit = this.outDateMs.compareAndSet(-1, nextExecutionDate);
-			if (shouldSubmit) {
-				writeQueue.put(this);
-			} else {
-				// Request should already be planned
-				// Checking this only in case of assertion as it's costly
-				assert writeQueue.contains(this);
+			// Placing this request in the to-do list unless it is already planned
+			if (this.outDateMs.compareAndSet(-1, nextExecutionDate)) {
+				shards[(this.row.hashCode() & Integer.MAX_VALUE) % shards.length].plan(this, nextExecutionDate);
 			}
-			
-			// Enforcing that an eviction thread is running
-			boolean done;
-			do {
-				EvictionThread et;
-				
-				while ((et = evictionThread.get()) == null || !et.running) {
-					// No thread found, creating one
-					EvictionThread newEt = new EvictionThread();
-					if (evictionThread.compareAndSet(null, newEt)) {
-						et = newEt;
-						et.start();
-					}
-				}
-				
-				done = et.running;
-			} while (!done && !this.dead);
-			// Not necessary to continue if this request is already out...
-			
-			assert evictionThread.get() != null || writeQueue.isEmpty();
 		}
 		
 		@Override
@@ -1049,100 +1736,186 @@ public class WriteRetentionStore extends DelegatingStore {
 	}
 
 	/**
-	 * Code for the thread responsible for reading {@link WriteRetentionStore#writeQueue the queue} and
-	 * {@link StoreRequest#send(ExecutorService, LongAdder) sending requests}. Only one thread should 
-	 * live. A shutdown hook sends all pending requests.
+	 * A shard of planned requests, responsible for sending requests of rows whose hash matches the shard.
+	 * Requests are planned in a {@link TimerWheel timer wheel}, so that planning a request
+	 * only locks its shard. A drain worker regularly takes requests that are due and sends them
+	 * in batches grouped by store and table using a sender pool for the shard.
+	 * The drain worker stops once the shard has been empty for some time, and is started again
+	 * when a request is planned.
+	 * The global number of batches being sent by all shards is limited by {@link WriteRetentionStore#getMaxSenderThreads()}.
 	 */
-	private static class EvictionThread extends Thread {
-		private final ThreadPoolExecutor sender = new ThreadPoolExecutor(1, Integer.MAX_VALUE,
-                5L, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(), new ThreadFactory() {
-			
-			@Override
-			public Thread newThread(Runnable r) {
-				int cps = sender.getCorePoolSize();
-				assert cps <= WriteRetentionStore.getMaxSenderThreads() :
-					"Too many sender threads running (found " + cps + " instead of " + WriteRetentionStore.getMaxSenderThreads() + ')';
-				
-				Thread ret = new Thread(r, "n-orm write cache sender #" + cps);
-				ret.setDaemon(false);
+	private static class Shard {
+		private final int index;
+		
+		/**
+		 * Planned requests ; access must be synchronized on this shard
+		 */
+		private final TimerWheel<StoreRequest> wheel = new TimerWheel<StoreRequest>(TICK_MS, System.currentTimeMillis());
+		
+		/**
+		 * The thread taking requests that are due out of {@link #wheel} ; null if not started
+		 */
+		private Thread drainer = null;
+		
+		private final ThreadPoolExecutor sender;
+		
+		private Shard(int index) {
+			this.index = index;
+			this.sender = new ThreadPoolExecutor(0, getMaxSenderThreads(),
+	                5L, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(), new ThreadFactory() {
+				private final AtomicLong created = new AtomicLong();
 				
-				return ret;
-			}
-		});
-
-		private volatile boolean alreadyStarted = false;
-		private volatile boolean running = true;
-		private volatile boolean waiting = true;
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread ret = new Thread(r, "n-orm write cache sender #" + Shard.this.index + '-' + created.incrementAndGet());
+					ret.setDaemon(false);
+					
+					return ret;
+				}
+			}, new ThreadPoolExecutor.CallerRunsPolicy());
+		}
 		
-		private EvictionThread() {
-			super("n-orm write cache eviction thread");
-			this.setDaemon(true);
-			this.setPriority(Thread.MAX_PRIORITY);
+		/**
+		 * Plans a request ; starts the drain worker if necessary.
+		 */
+		private synchronized void plan(StoreRequest request, long outDate) {
+			if (this.wheel.size() == 0)
+				// Drain worker might be idle
+				this.notify();
+			this.wheel.schedule(request, outDate);
+			plannedRequests.incrementAndGet();
+			if (this.drainer == null) {
+				this.drainer = new Thread("n-orm write cache drain worker #" + this.index) {
+					@Override
+					public void run() {
+						drain();
+					}
+				};
+				this.drainer.setDaemon(true);
+				this.drainer.start();
+			}
 		}
-
-		@Override
-		public synchronized void start() {
-			if (this.alreadyStarted)
-				return;
-			this.alreadyStarted = true;
-			super.start();
+		
+		/**
+		 * Takes requests that are due, or waits for requests to be due.
+		 * @return requests that are due ; null in case the drain worker should stop
+		 */
+		private synchronized List<StoreRequest> takeDue() throws InterruptedException {
+			long idleSince = System.currentTimeMillis();
+			while (true) {
+				long now = System.currentTimeMillis();
+				// Wheel might return requests up to a tick before they are due
+				List<StoreRequest> ret = this.wheel.advance(now - TICK_MS + 1);
+				if (!ret.isEmpty()) {
+					// Requests in preparation of sending are marked before they are unplanned so that a "0" is
+					// a bit less likely to be a false 0
+					requestsBeingSending.addAndGet(ret.size());
+					plannedRequests.addAndGet(-ret.size());
+					return ret;
+				}
+				if (this.wheel.size() > 0) {
+					idleSince = now;
+					this.wait(TICK_MS);
+				} else if (now - idleSince >= IDLE_MS) {
+					this.drainer = null;
+					return null;
+				} else {
+					this.wait(IDLE_MS);
+				}
+			}
 		}
-
-		@Override
-		public void run() {
-			// While this thread is the "official" eviction thread
-			while (evictionThread.get() == this) {
-				StoreRequest r = null;
+		
+		/**
+		 * Code for the drain worker.
+		 */
+		private void drain() {
+			while (true) {
+				List<StoreRequest> due;
 				try {
-					while (requestsBeingSending.get() >= getMaxSenderThreads()) {
-						synchronized(this) {
-							if (requestsBeingSending.get() >= getMaxSenderThreads()) {
-								this.waiting = true;
-								this.wait(100);
-								this.waiting = false;
-							}
-						}
+					due = this.takeDue();
+				} catch (InterruptedException e) {
+					synchronized (this) {
+						if (this.drainer == Thread.currentThread())
+							this.drainer = null;
 					}
-					
-					r = writeQueue.poll(3, TimeUnit.SECONDS);
-					
-					if (r == null) {
-						if (writeQueue.isEmpty() && requestsBeingSending.get() == 0 && writeQueue.isEmpty()) {
-							// Preparing this thread to stop and stating a new one should be started
-							evictionThread.compareAndSet(this, null);
-							if (!writeQueue.isEmpty() || requestsBeingSending.get() != 0)
-								evictionThread.compareAndSet(null, this);
-						}
-					} else {
-					
-						// Requests in preparation of sending are marked twice so that a "0" is
-						// a bit less likely to be a false 0
-						requestsBeingSending.incrementAndGet();
-						r.send(this.sender, false);
-						requestsBeingSending.decrementAndGet();
+					break;
+				}
+				if (due == null)
+					break;
+				
+				try {
+					for (int i = 0; i < due.size(); i += getMaxBatchSize()) {
+						this.send(due.subList(i, Math.min(due.size(), i + getMaxBatchSize())));
 					}
-					
 				} catch (InterruptedException e) {
-					break;
+					logger.log(Level.SEVERE, "Interrupted while sending requests out of write cache ; some requests might be lost");
 				} catch (Throwable e) {
-					if (r == null) {
-						logger.log(Level.WARNING, "Problem waiting for request out of write cache: " + e.getMessage(), e);
-					} else {
-						logger.log(Level.SEVERE, "Problem while sending request out of write cache ; request " + r + " lost: " + e.getMessage(), e);
-					}
+					logger.log(Level.SEVERE, "Problem while sending requests out of write cache ; some requests might be lost: " + e.getMessage(), e);
+				} finally {
+					requestsBeingSending.addAndGet(-due.size());
+				}
+			}
+		}
+
+		/**
+		 * Sends requests grouping them by store and table.
+		 */
+		private void send(List<StoreRequest> requests) throws InterruptedException {
+			Map<WriteRetentionStore, Map<String, List<StoreRequest.Sending>>> batches = new HashMap<WriteRetentionStore, Map<String,List<StoreRequest.Sending>>>();
+			for (StoreRequest r : requests) {
+				StoreRequest.Sending sending;
+				try {
+					sending = r.prepareSending(false);
+				} catch (Throwable e) {
+					logger.log(Level.SEVERE, "Problem while sending request out of write cache ; request " + r + " lost: " + e.getMessage(), e);
+					continue;
+				}
+				if (sending == null)
+					continue;
+				
+				WriteRetentionStore store = r.getStore();
+				Map<String, List<StoreRequest.Sending>> storeBatches = batches.get(store);
+				if (storeBatches == null) {
+					storeBatches = new TreeMap<String, List<StoreRequest.Sending>>();
+					batches.put(store, storeBatches);
 				}
+				List<StoreRequest.Sending> batch = storeBatches.get(r.row.table);
+				if (batch == null) {
+					batch = new LinkedList<StoreRequest.Sending>();
+					storeBatches.put(r.row.table, batch);
+				}
+				batch.add(sending);
 			}
 			
-			// Stopping
-			this.running = false;
-			this.sender.shutdown();
-			try {
-				this.sender.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
-			} catch (InterruptedException e) {
-				logger.log(Level.SEVERE, "Problem while shutting down n-orm write retention cache: " + e.getMessage(), e);
+			for (Entry<WriteRetentionStore, Map<String, List<StoreRequest.Sending>>> storeBatches : batches.entrySet()) {
+				final WriteRetentionStore store = storeBatches.getKey();
+				for (final Entry<String, List<StoreRequest.Sending>> batch : storeBatches.getValue().entrySet()) {
+					try {
+						acquireSender();
+					} catch (InterruptedException x) {
+						// Prepared requests must be sent anyway
+						store.sendBatch(batch.getKey(), batch.getValue());
+						throw x;
+					}
+					try {
+						this.sender.execute(new Runnable() {
+	
+							@Override
+							public void run() {
+								try {
+									store.sendBatch(batch.getKey(), batch.getValue());
+								} finally {
+									releaseSender();
+								}
+							}
+						});
+					} catch (RuntimeException x) {
+						releaseSender();
+						throw x;
+					}
+				}
 			}
 		}
-
 	}
 
 	private abstract static class Operation {
@@ -1160,6 +1933,12 @@ public class WriteRetentionStore extends DelegatingStore {
 	@Transient
 	private final ConcurrentMap<RowInTable, StoreRequest> writesByRows = new ConcurrentHashMap<RowInTable, StoreRequest>();
 	
+	/**
+	 * Index for requests according to the table, and then to the identifier of the row in ascending order
+	 */
+	@Transient
+	private final ConcurrentMap<String, ConcurrentSkipListMap<String, StoreRequest>> writesByTables = new ConcurrentHashMap<String, ConcurrentSkipListMap<String, StoreRequest>>();
+	
 	/**
 	 * Whether this store was already started
 	 */
@@ -1175,9 +1954,80 @@ public class WriteRetentionStore extends DelegatingStore {
 	 */
 	private boolean enabledByDefault = true;
 	
-	private WriteRetentionStore(long writeRetentionMs, Store s) {
+	/**
+	 * Whether reads merge retained writes
+	 */
+	private final boolean readYourWrites;
+	
+	/**
+	 * Directory where retained writes are logged ; null if not logged
+	 */
+	private String journalDirectory = null;
+	
+	/**
+	 * Whether logged writes are forced to the disk
+	 */
+	private boolean journalSyncWrites = true;
+	
+	/**
+	 * Where retained writes are logged ; null if not logged or not started
+	 */
+	private volatile RetentionJournal journal = null;
+	
+	/**
+	 * Maximum time in ms between a write and the moment it is sent ; 0 if retention time is not adaptive
+	 */
+	private final long latencyBudgetMs;
+	
+	/**
+	 * Bounds for adaptive retention time
+	 */
+	private volatile long minWriteRetentionMs = 1, maxWriteRetentionMs = Long.MAX_VALUE;
+	
+	/**
+	 * Retention time currently applied to new requests
+	 */
+	private volatile long effectiveWriteRetentionMs;
+	
+	/**
+	 * Epoch date in ms at which {@link #effectiveWriteRetentionMs} is to be adapted
+	 */
+	private final AtomicLong nextAdaptationMs = new AtomicLong();
+	
+	/**
+	 * Writes during current adaptation period
+	 */
+	private final LongAdder writes = new LongAdder();
+	
+	/**
+	 * Distribution of intervals between two writes merged in the same request during current adaptation period
+	 */
+	private final LongAdder[] rewriteIntervals = new LongAdder[INTERVAL_BUCKETS];
+	
+	/**
+	 * Cumulative time in ms between the time requests should have been sent and the time they were sent during current adaptation period
+	 */
+	private final LongAdder sendLatency = new LongAdder();
+	
+	/**
+	 * Number of latencies accumulated into {@link #sendLatency}
+	 */
+	private final LongAdder sendLatencySamples = new LongAdder();
+	
+	/**
+	 * Ratio of writes merged into an existing request during last adaptation period
+	 */
+	private volatile double adaptiveHitRatio = Double.NaN;
+	
+	private WriteRetentionStore(long writeRetentionMs, Store s, boolean readYourWrites, long latencyBudgetMs) {
 		super(s);
 		this.writeRetentionMs = writeRetentionMs;
+		this.readYourWrites = readYourWrites;
+		this.latencyBudgetMs = latencyBudgetMs;
+		this.effectiveWriteRetentionMs = latencyBudgetMs == 0 ? writeRetentionMs : Math.max(this.minWriteRetentionMs, Math.min(writeRetentionMs, this.getMaxAdaptiveWriteRetentionMs(0)));
+		for (int i = 0; i < INTERVAL_BUCKETS; ++i) {
+			this.rewriteIntervals[i] = new LongAdder();
+		}
 	}
 
 	/**
@@ -1193,24 +2043,255 @@ public class WriteRetentionStore extends DelegatingStore {
 	}
 
 	/**
-	 * Whether write retention is enabled by default for thread that did not call {@link #setEnabledForCurrentThread(boolean)}.
+	 * The time in ms during which new updates are retained.
+	 * Equals {@link #getWriteRetentionMs()} unless retention time is {@link #getLatencyBudgetMs() adaptive}.
 	 */
-	public boolean isEnabledByDefault() {
-		return this.enabledByDefault;
+	public long getEffectiveWriteRetentionMs() {
+		return this.effectiveWriteRetentionMs;
 	}
 
-
 	/**
-	 * Whether write retention is enabled by default for thread that did not call {@link #setEnabledForCurrentThread(boolean)}.
+	 * Maximum time in ms between a write and the moment it is sent to the {@link #getActualStore() actual store}
+	 * in case retention time is adaptive ; 0 if retention time is always {@link #getWriteRetentionMs()}.
+	 * An adaptive store records intervals between writes merged in the same request, and the ratio of merged writes.
+	 * Regularly, retention time is increased in case no write was merged, or a significant part of merged writes
+	 * happened in the last half of the retention time, as more writes would then be merged using a longer retention time ;
+	 * retention time is decreased in case most merged writes happened well within the retention time, as writes would
+	 * be merged as well using a shorter retention time.
+	 * Retention time is always between {@link #getMinWriteRetentionMs()} and {@link #getMaxWriteRetentionMs()},
+	 * and is such that the average time between the time requests should be sent and the time they are sent
+	 * stays within the budget.
+	 * <p>The budget is set when the store is {@link #getWriteRetentionStore(long, Store, boolean, long) obtained},
+	 * so that classes with a fixed retention time do not share a store with classes with an adaptive one.</p>
+	 * @see Persisting#writeRetentionAdaptive()
+	 */
+	public long getLatencyBudgetMs() {
+		return this.latencyBudgetMs;
+	}
+
+	/**
+	 * Minimum retention time in ms in case retention time is {@link #getLatencyBudgetMs() adaptive} ; default is 1.
+	 */
+	public long getMinWriteRetentionMs() {
+		return this.minWriteRetentionMs;
+	}
+
+	/**
+	 * Minimum retention time in ms in case retention time is {@link #getLatencyBudgetMs() adaptive}.
+	 */
+	public void setMinWriteRetentionMs(long minWriteRetentionMs) {
+		if (minWriteRetentionMs <= 0 || minWriteRetentionMs > this.maxWriteRetentionMs)
+			throw new IllegalArgumentException();
+		this.minWriteRetentionMs = minWriteRetentionMs;
+	}
+
+	/**
+	 * Maximum retention time in ms in case retention time is {@link #getLatencyBudgetMs() adaptive} ; default is only bounded by the latency budget.
+	 */
+	public long getMaxWriteRetentionMs() {
+		return this.maxWriteRetentionMs;
+	}
+
+	/**
+	 * Maximum retention time in ms in case retention time is {@link #getLatencyBudgetMs() adaptive}.
+	 */
+	public void setMaxWriteRetentionMs(long maxWriteRetentionMs) {
+		if (maxWriteRetentionMs < this.minWriteRetentionMs)
+			throw new IllegalArgumentException();
+		this.maxWriteRetentionMs = maxWriteRetentionMs;
+	}
+
+	/**
+	 * The ratio of writes that were merged with a retained request during the last adaptation period
+	 * in case retention time is {@link #getLatencyBudgetMs() adaptive} ; NaN if not known yet.
+	 */
+	public double getAdaptiveHitRatio() {
+		return this.adaptiveHitRatio;
+	}
+	
+	private boolean isAdaptive() {
+		return this.latencyBudgetMs > 0;
+	}
+	
+	/**
+	 * Maximum retention time according to {@link #getMaxWriteRetentionMs()} and the latency budget.
+	 * @param sendLatencyMs observed average time in ms between the time requests should be sent and the time they are sent
+	 */
+	private long getMaxAdaptiveWriteRetentionMs(long sendLatencyMs) {
+		return Math.max(this.minWriteRetentionMs, Math.min(this.maxWriteRetentionMs, this.latencyBudgetMs - sendLatencyMs));
+	}
+	
+	/**
+	 * Records a write for adapting retention time.
+	 * @param req the request the write was merged into
+	 * @param merged whether req already existed
+	 * @param now current epoch date in ms
+	 */
+	private void recordWrite(StoreRequest req, boolean merged, long now) {
+		this.writes.increment();
+		if (merged) {
+			long interval = Math.max(0, now - req.lastWriteMs);
+			int bucket = Math.min(INTERVAL_BUCKETS - 1, 64 - Long.numberOfLeadingZeros(interval));
+			this.rewriteIntervals[bucket].increment();
+		}
+		req.lastWriteMs = now;
+		
+		long next = this.nextAdaptationMs.get();
+		if (next == 0) {
+			this.nextAdaptationMs.compareAndSet(0, now + Math.max(ADAPTATION_MIN_PERIOD_MS, 2*this.effectiveWriteRetentionMs));
+		} else if (now >= next && this.nextAdaptationMs.compareAndSet(next, Long.MAX_VALUE)) {
+			// Only one thread adapts at a time
+			try {
+				this.adapt(now);
+			} finally {
+				this.nextAdaptationMs.set(now + Math.max(ADAPTATION_MIN_PERIOD_MS, 2*this.effectiveWriteRetentionMs));
+			}
+		}
+	}
+	
+	/**
+	 * Adapts retention time according to writes recorded since last adaptation.
+	 */
+	private void adapt(long now) {
+		long writes = this.writes.sum();
+		if (writes < ADAPTATION_MIN_SAMPLES)
+			return;
+		long[] intervals = new long[INTERVAL_BUCKETS];
+		long merged = 0;
+		for (int i = 0; i < INTERVAL_BUCKETS; ++i) {
+			intervals[i] = this.rewriteIntervals[i].sumThenReset();
+			merged += intervals[i];
+		}
+		this.writes.reset();
+		long latencySamples = this.sendLatencySamples.sumThenReset();
+		long latency = this.sendLatency.sumThenReset();
+		long sendLatencyMs = latencySamples == 0 ? 0 : latency / latencySamples;
+		this.adaptiveHitRatio = Math.min(1.0, (double)merged / (double)writes);
+		
+		long current = this.effectiveWriteRetentionMs;
+		long max = this.getMaxAdaptiveWriteRetentionMs(sendLatencyMs), min = this.minWriteRetentionMs;
+		long next;
+		if (merged == 0) {
+			// Rewrites, if any, happen after retention time
+			next = current * 2;
+		} else {
+			// Merged writes in the last half of retention time, and 95th percentile of intervals
+			long edge = 0, cumulated = 0, p95 = -1;
+			for (int i = 0; i < INTERVAL_BUCKETS; ++i) {
+				long lower = i == 0 ? 0 : 1L << (i - 1), upper = i == 0 ? 1 : 1L << i;
+				if (lower >= current / 2)
+					edge += intervals[i];
+				cumulated += intervals[i];
+				if (p95 < 0 && cumulated * 100 >= merged * 95)
+					p95 = upper;
+			}
+			if (edge * 10 >= merged) {
+				// More rewrites are likely to happen right after retention time
+				next = current * 2;
+			} else if (p95 * 2 < current) {
+				// Retention time is longer than necessary
+				next = p95 * 2;
+			} else {
+				next = current;
+			}
+		}
+		next = Math.max(min, Math.min(max, next));
+		if (next != current) {
+			logger.fine("Adapting retention time of " + this + " from " + current + "ms to " + next + "ms (hit ratio " + this.adaptiveHitRatio + ", send latency " + sendLatencyMs + "ms)");
+			this.effectiveWriteRetentionMs = next;
+		}
+	}
+
+	/**
+	 * Whether write retention is enabled by default for thread that did not call {@link #setEnabledForCurrentThread(boolean)}.
+	 */
+	public boolean isEnabledByDefault() {
+		return this.enabledByDefault;
+	}
+
+
+	/**
+	 * Whether write retention is enabled by default for thread that did not call {@link #setEnabledForCurrentThread(boolean)}.
 	 */
 	public void setEnabledByDefault(boolean enabled) {
 		this.enabledByDefault = enabled;
 	}
 
+	/**
+	 * Whether reads merge writes retained by this store with data from the {@link #getActualStore() actual store}.
+	 * In this mode, reading a row with retained writes returns values, deletions and increments as if they were already sent,
+	 * and scans and counts take into account rows with retained writes.
+	 * Reading a row being sent waits for it to be sent, and reading a row with retained writes blocks sending it
+	 * while the actual store is read.
+	 * Scans and counts only consider retained rows in the scanned range.
+	 * <p>This mode is set when the store is {@link #getWriteRetentionStore(long, Store, boolean, long) obtained},
+	 * so that classes that do not require it do not share a store with classes that do.</p>
+	 * @see Persisting#writeRetentionReadYourWrites()
+	 */
+	public boolean isReadYourWrites() {
+		return readYourWrites;
+	}
+
+	/**
+	 * The directory where retained writes are logged so that they survive a crash ; null (the default) if retained writes are not logged.
+	 */
+	public synchronized String getJournalDirectory() {
+		return journalDirectory;
+	}
+
+	/**
+	 * Sets the directory where retained writes are logged so that they survive a crash.
+	 * When this store is {@link #start() started}, writes found in this directory that were not sent are sent to the {@link #getActualStore() actual store}.
+	 * Each write is logged and made durable (performing group commit) before it returns ;
+	 * logged writes are discarded once they are sent.
+	 * Meta information is not logged. Increments that were sent right before a crash might be sent again.
+	 * <p>As write-retention stores are shared by classes using the same retention time and actual store,
+	 * this directory must not be used by another write-retention store.</p>
+	 * @throws IllegalStateException in case this store is already started with another journal directory
+	 */
+	public synchronized void setJournalDirectory(String journalDirectory) {
+		File current = this.journalDirectory == null ? null : new File(this.journalDirectory).getAbsoluteFile();
+		File requested = journalDirectory == null ? null : new File(journalDirectory).getAbsoluteFile();
+		if (this.started.get() && (current == null ? requested != null : !current.equals(requested)))
+			throw new IllegalStateException(this + " is already started with journal directory " + this.journalDirectory);
+		this.journalDirectory = journalDirectory;
+	}
+
+	/**
+	 * Whether logged writes are forced to the disk before returning in case this store has a {@link #setJournalDirectory(String) journal} ; default is true.
+	 * Otherwise, writes are only written to the operating system, which is faster, but may lose last writes in case of a system crash.
+	 */
+	public synchronized boolean isJournalSyncWrites() {
+		return journalSyncWrites;
+	}
+
+	/**
+	 * Only considered before this store is {@link #start() started}.
+	 */
+	public synchronized void setJournalSyncWrites(boolean journalSyncWrites) {
+		this.journalSyncWrites = journalSyncWrites;
+	}
+
+	/**
+	 * Starts the actual store, and then replays the {@link #setJournalDirectory(String) journal}, if any.
+	 */
 	@Override
-	public void start() throws DatabaseNotReachedException {
+	public synchronized void start() throws DatabaseNotReachedException {
 		if (started.compareAndSet(false, true)) {
 			super.start();
+			if (this.journalDirectory != null) {
+				try {
+					RetentionJournal j = new RetentionJournal(new File(this.journalDirectory), this.journalSyncWrites, JOURNAL_SEGMENT_BYTES);
+					int replayed = j.replay(this.getActualStore());
+					if (replayed > 0)
+						logger.info("Replayed " + replayed + " writes from " + j);
+					j.open();
+					this.journal = j;
+				} catch (IOException x) {
+					started.set(false);
+					throw new DatabaseNotReachedException("Cannot open write-retention journal in " + this.journalDirectory, x);
+				}
+			}
 		}
 	}
 	
@@ -1247,6 +2328,34 @@ public class WriteRetentionStore extends DelegatingStore {
 		});
 	}
 
+	/**
+	 * Drops planned writes for elements in the range and deletes them from the actual store right away.
+	 * Requests that are being sent at the time of the call for elements in the range are waited for
+	 * so that they are not stored after the range is truncated.
+	 */
+	@Override
+	public void truncate(final MetaInformation meta, String table, Constraint c)
+			throws DatabaseNotReachedException {
+		if (isRetending()) {
+			List<StoreRequest> truncated = new ArrayList<StoreRequest>();
+			for (Entry<String, StoreRequest> row : this.getRetainedRows(table, c).entrySet()) {
+				truncated.add(row.getValue());
+				this.runLater(table, row.getKey(), new Operation() {
+
+					@Override
+					public void run(StoreRequest req) throws RequestIsOutException {
+						req.delete(meta);
+					}
+				});
+			}
+			for (StoreRequest req : truncated) {
+				req.awaitSent();
+			}
+		}
+		
+		super.truncate(meta, table, c);
+	}
+
 	@Override
 	public void storeChanges(final MetaInformation meta, String table,
 			String id, final ColumnFamilyData changed,
@@ -1268,6 +2377,486 @@ public class WriteRetentionStore extends DelegatingStore {
 		});
 	}
 
+	@Override
+	public void storeChanges(String table, Collection<RowChanges> rows)
+			throws DatabaseNotReachedException {
+		if (!isRetending()) {
+			super.storeChanges(table, rows);
+			return;
+		}
+		
+		for (RowChanges row : rows) {
+			this.storeChanges(row.getMeta(), table, row.getId(), row.getChanged(), row.getRemoved(), row.getIncrements());
+		}
+	}
+	
+	/**
+	 * Loads rows directly to the actual store ; planned requests for a loaded row are sent before the row is loaded.
+	 */
+	@Override
+	public void load(final String table, final Iterator<RowChanges> rows)
+			throws DatabaseNotReachedException {
+		if (!isRetending() || this.writesByRows.isEmpty()) {
+			super.load(table, rows);
+			return;
+		}
+		
+		super.load(table, new Iterator<RowChanges>() {
+
+			@Override
+			public boolean hasNext() {
+				return rows.hasNext();
+			}
+
+			@Override
+			public RowChanges next() {
+				RowChanges ret = rows.next();
+				flush(table, ret.getId());
+				return ret;
+			}
+
+			@Override
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		});
+	}
+	
+	/**
+	 * Whether reads should consider retained writes.
+	 */
+	private boolean isMerging() {
+		return this.readYourWrites && !this.writesByRows.isEmpty();
+	}
+	
+	/**
+	 * Reads a row merging writes retained for it.
+	 * @param families the families to be read ; null to only check whether the row exists
+	 * @return null in case the row does not exist ; the values for the families otherwise (empty if families is null)
+	 * @see StoreRequest#read(MetaInformation, Set)
+	 */
+	private ColumnFamilyData read(MetaInformation meta, String table, String id, Set<String> families) {
+		RowInTable row = new RowInTable(table, id);
+		while (true) {
+			StoreRequest req = this.writesByRows.get(row);
+			if (req == null) {
+				if (families != null)
+					return this.getActualStore().get(meta, table, id, families);
+				return this.getActualStore().exists(meta, table, id) ? new DefaultColumnFamilyData() : null;
+			}
+			try {
+				return req.read(meta, families);
+			} catch (RequestIsOutException x) {
+				// Request was sent meanwhile
+			}
+			// retrying eventually
+			Thread.yield();
+		}
+	}
+	
+	/**
+	 * Requests for rows of a table, indexed by the identifier of the row.
+	 */
+	private ConcurrentSkipListMap<String, StoreRequest> getWritesByIds(String table) {
+		ConcurrentSkipListMap<String, StoreRequest> ret = this.writesByTables.get(table);
+		if (ret == null) {
+			ret = new ConcurrentSkipListMap<String, StoreRequest>();
+			ConcurrentSkipListMap<String, StoreRequest> tmp = this.writesByTables.putIfAbsent(table, ret);
+			if (tmp != null)
+				ret = tmp;
+		}
+		return ret;
+	}
+	
+	/**
+	 * Requests for rows of a table in the given range, indexed by the identifier of the row in ascending order.
+	 * The returned map is a view that reflects requests planned or sent afterwards.
+	 */
+	private ConcurrentNavigableMap<String, StoreRequest> getRetainedRows(String table, Constraint c) {
+		ConcurrentNavigableMap<String, StoreRequest> ret = this.getWritesByIds(table);
+		String start = c == null ? null : c.getStartKey(), end = c == null ? null : c.getEndKey();
+		if (start != null)
+			ret = ret.tailMap(start, true);
+		if (end != null)
+			ret = ret.headMap(end, true);
+		return ret;
+	}
+	
+	@Override
+	public boolean exists(MetaInformation meta, String table, String row)
+			throws DatabaseNotReachedException {
+		if (!this.isMerging())
+			return super.exists(meta, table, row);
+		return this.read(meta, table, row, null) != null;
+	}
+
+	@Override
+	public boolean exists(MetaInformation meta, String table, String row,
+			String family) throws DatabaseNotReachedException {
+		if (!this.isMerging())
+			return super.exists(meta, table, row, family);
+		ColumnFamilyData data = this.read(meta, table, row, Collections.singleton(family));
+		Map<String, byte[]> values = data == null ? null : data.get(family);
+		return values != null && !values.isEmpty();
+	}
+
+	@Override
+	public byte[] get(MetaInformation meta, String table, String row,
+			String family, String key) throws DatabaseNotReachedException {
+		if (!this.isMerging())
+			return super.get(meta, table, row, family, key);
+		ColumnFamilyData data = this.read(meta, table, row, Collections.singleton(family));
+		Map<String, byte[]> values = data == null ? null : data.get(family);
+		return values == null ? null : values.get(key);
+	}
+
+	@Override
+	public Map<String, byte[]> get(MetaInformation meta, String table,
+			String id, String family) throws DatabaseNotReachedException {
+		if (!this.isMerging())
+			return super.get(meta, table, id, family);
+		ColumnFamilyData data = this.read(meta, table, id, Collections.singleton(family));
+		return data == null ? null : data.get(family);
+	}
+
+	@Override
+	public Map<String, byte[]> get(MetaInformation meta, String table,
+			String id, String family, Constraint c)
+			throws DatabaseNotReachedException {
+		if (!this.isMerging())
+			return super.get(meta, table, id, family, c);
+		Map<String, byte[]> values = this.get(meta, table, id, family);
+		if (values == null || c == null)
+			return values;
+		Map<String, byte[]> ret = new TreeMap<String, byte[]>();
+		for (Entry<String, byte[]> value : values.entrySet()) {
+			if ((c.getStartKey() == null || value.getKey().compareTo(c.getStartKey()) >= 0)
+					&& (c.getEndKey() == null || value.getKey().compareTo(c.getEndKey()) <= 0))
+				ret.put(value.getKey(), value.getValue());
+		}
+		return ret;
+	}
+
+	@Override
+	public ColumnFamilyData get(MetaInformation meta, String table, String id,
+			Set<String> families) throws DatabaseNotReachedException {
+		if (!this.isMerging())
+			return super.get(meta, table, id, families);
+		return this.read(meta, table, id, families);
+	}
+
+	@Override
+	public Map<String, ColumnFamilyData> get(MetaInformation meta,
+			String table, Collection<String> ids, Set<String> families)
+			throws DatabaseNotReachedException {
+		if (!this.isMerging())
+			return super.get(meta, table, ids, families);
+		Map<String, ColumnFamilyData> ret = new TreeMap<String, ColumnFamilyData>(super.get(meta, table, ids, families));
+		for (String id : ids) {
+			if (!this.writesByRows.containsKey(new RowInTable(table, id)))
+				continue;
+			ColumnFamilyData data = this.read(meta, table, id, families);
+			if (data == null)
+				ret.remove(id);
+			else
+				ret.put(id, data);
+		}
+		return ret;
+	}
+
+	@Override
+	public CloseableKeyIterator get(MetaInformation meta, String table,
+			Constraint c, int limit, Set<String> families)
+			throws DatabaseNotReachedException {
+		return this.get(meta, table, c, limit, families, false);
+	}
+
+	@Override
+	public CloseableKeyIterator get(MetaInformation meta, String table,
+			Constraint c, int limit, Set<String> families, boolean descending)
+			throws DatabaseNotReachedException {
+		if (!this.isMerging())
+			return super.get(meta, table, c, limit, families, descending);
+		ConcurrentNavigableMap<String, StoreRequest> retained = this.getRetainedRows(table, c);
+		if (retained.isEmpty())
+			return super.get(meta, table, c, limit, families, descending);
+		CloseableKeyIterator actual = super.get(meta, table, c, limit, families, descending);
+		return new MergingIterator(meta, table, c, families, actual, limit, descending ? retained.descendingKeySet().iterator() : retained.keySet().iterator(), limit, descending);
+	}
+
+	@Override
+	public long count(MetaInformation meta, String table, Constraint c)
+			throws DatabaseNotReachedException {
+		if (!this.isMerging())
+			return super.count(meta, table, c);
+		long ret = super.count(meta, table, c);
+		for (StoreRequest req : this.getRetainedRows(table, c).values()) {
+			try {
+				ret += req.countDelta(meta);
+			} catch (RequestIsOutException x) {
+				// Request was sent meanwhile ; row is considered as in the actual store
+			}
+		}
+		return ret;
+	}
+	
+	/**
+	 * A row read merging retained writes.
+	 */
+	private static class MergedRow implements Row {
+		private final String key;
+		private final ColumnFamilyData values;
+		
+		private MergedRow(String key, ColumnFamilyData values) {
+			this.key = key;
+			this.values = values;
+		}
+
+		@Override
+		public String getKey() {
+			return this.key;
+		}
+
+		@Override
+		public ColumnFamilyData getValues() {
+			return this.values;
+		}
+	}
+	
+	/**
+	 * Merges rows from the actual store with rows with retained writes, in key order.
+	 * Rows with retained writes are {@link WriteRetentionStore#read(MetaInformation, String, String, Set) read again} as they are reached.
+	 * As rows with retained writes can hide rows from the actual store, more rows are asked to the actual store
+	 * in case all asked rows were read and more are needed.
+	 */
+	private class MergingIterator implements CloseableKeyIterator {
+		private final MetaInformation meta;
+		private final String table;
+		private final Constraint c;
+		private final Set<String> families;
+		private CloseableKeyIterator actual;
+		/**
+		 * The number of rows asked to the actual store, and read from it so far, for the {@link #actual} iterator.
+		 */
+		private int asked, read = 0;
+		/**
+		 * The key of the last row read from the actual store.
+		 */
+		private String lastActual = null;
+		private final Iterator<String> retained;
+		private final boolean descending;
+		private int remaining;
+		private Row nextActual = null;
+		private String nextRetained = null;
+		private Row next = null;
+		
+		private MergingIterator(MetaInformation meta, String table, Constraint c, Set<String> families,
+				CloseableKeyIterator actual, int asked, Iterator<String> retained, int limit, boolean descending) {
+			this.meta = meta;
+			this.table = table;
+			this.c = c;
+			this.families = families;
+			this.actual = actual;
+			this.asked = asked;
+			this.retained = retained;
+			this.remaining = limit;
+			this.descending = descending;
+		}
+		
+		/**
+		 * Reads the next row from the actual store, asking for more rows in case all asked rows were read.
+		 * @return null if no more row is found
+		 */
+		private Row nextActual() {
+			if (!this.actual.hasNext()) {
+				if (this.read < this.asked || this.lastActual == null)
+					return null;
+				// Asking for rows after the last one, which is found again
+				this.actual.close();
+				Constraint next = this.descending
+						? new Constraint(this.c == null ? null : this.c.getStartKey(), this.lastActual)
+						: new Constraint(this.lastActual, this.c == null ? null : this.c.getEndKey());
+				this.asked = (int)Math.min(Integer.MAX_VALUE, (long)this.remaining + 1);
+				this.read = 0;
+				this.actual = WriteRetentionStore.super.get(this.meta, this.table, next, this.asked, this.families, this.descending);
+				if (this.actual.hasNext()) {
+					this.read++;
+					Row r = this.actual.next();
+					if (!r.getKey().equals(this.lastActual)) {
+						this.lastActual = r.getKey();
+						return r;
+					}
+				}
+				if (!this.actual.hasNext())
+					return null;
+			}
+			this.read++;
+			Row ret = this.actual.next();
+			this.lastActual = ret.getKey();
+			return ret;
+		}
+		
+		private Row findNext() {
+			while (true) {
+				if (this.nextActual == null)
+					this.nextActual = this.nextActual();
+				if (this.nextRetained == null && this.retained.hasNext())
+					this.nextRetained = this.retained.next();
+				if (this.nextRetained == null) {
+					Row ret = this.nextActual;
+					this.nextActual = null;
+					return ret;
+				}
+				int cmp = this.nextActual == null ? -1 : this.nextRetained.compareTo(this.nextActual.getKey()) * (this.descending ? -1 : 1);
+				if (cmp > 0) {
+					Row ret = this.nextActual;
+					this.nextActual = null;
+					return ret;
+				}
+				if (cmp == 0)
+					this.nextActual = null;
+				String id = this.nextRetained;
+				this.nextRetained = null;
+				ColumnFamilyData data = read(this.meta, this.table, id, this.families);
+				if (data != null)
+					return new MergedRow(id, data);
+			}
+		}
+
+		@Override
+		public boolean hasNext() {
+			if (this.next == null && this.remaining > 0) {
+				this.next = this.findNext();
+				if (this.next != null)
+					this.remaining--;
+			}
+			return this.next != null;
+		}
+
+		@Override
+		public Row next() {
+			if (!this.hasNext())
+				throw new NoSuchElementException();
+			Row ret = this.next;
+			this.next = null;
+			return ret;
+		}
+
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public void close() {
+			this.actual.close();
+		}
+	}
+	
+	/**
+	 * Sends prepared requests for the same table to the actual store.
+	 * Deletions are sent one by one, and then all changes are sent in a single request.
+	 * In case the batch fails, requests are {@link StoreRequest.Sending#sendAlone() sent alone}
+	 * so that a single faulty row does not make the other ones lost ;
+	 * requests with increments are not sent again once the batch reached the actual store as they might have been applied already.
+	 * All requests are eventually declared as sent.
+	 */
+	private void sendBatch(String table, List<StoreRequest.Sending> requests) {
+		if (requests.size() == 1) {
+			requests.get(0).sendAlone();
+			return;
+		}
+		
+		boolean changesSent = false;
+		try {
+			List<RowChanges> changes = new ArrayList<RowChanges>(requests.size());
+			for (StoreRequest.Sending req : requests) {
+				if (req.changes != null)
+					changes.add(req.changes);
+			}
+			
+			// Deletions must happen before changes are stored
+			for (StoreRequest.Sending req : requests) {
+				try {
+					req.captureLatency();
+				} finally {
+					if (req.shouldDelete)
+						this.getActualStore().delete(req.meta, table, req.getRequest().row.id);
+				}
+			}
+			
+			if (!changes.isEmpty()) {
+				changesSent = true;
+				super.storeChanges(table, changes);
+			}
+			
+		} catch (RuntimeException x) {
+			logger.log(Level.WARNING, "Catched problem while sending " + requests.size() + " write-cached requests for table " + table + " at once ; sending them one by one: " + x.getMessage(), x);
+			this.sendAlone(requests, changesSent);
+			return;
+		}
+		
+		this.sent(requests);
+	}
+	
+	/**
+	 * Sends requests of a failed batch one by one.
+	 * @param changesSent whether the changes of the batch were sent to the actual store
+	 * @throws RuntimeException the first problem met while sending a request ; other requests are sent anyway
+	 */
+	private void sendAlone(List<StoreRequest.Sending> requests, boolean changesSent) {
+		RuntimeException problem = null;
+		List<StoreRequest.Sending> dropped = new ArrayList<StoreRequest.Sending>();
+		for (StoreRequest.Sending req : requests) {
+			if (changesSent && req.changes != null && req.changes.getIncrements() != null && !req.changes.getIncrements().isEmpty()) {
+				req.failed = true;
+				logger.warning("Not sending " + req.getRequest() + " again as its increments might have been stored by the failed batch");
+				dropped.add(req);
+				continue;
+			}
+			try {
+				req.sendAlone();
+			} catch (RuntimeException x) {
+				if (problem == null)
+					problem = x;
+			}
+		}
+		this.sent(dropped);
+		if (problem != null)
+			throw problem;
+	}
+	
+	/**
+	 * Declares requests that were not {@link StoreRequest.Sending#sendAlone() sent alone} as sent.
+	 */
+	private void sent(List<StoreRequest.Sending> requests) {
+		for (StoreRequest.Sending req : requests) {
+			req.logDelivery();
+		}
+		syncJournal();
+		for (StoreRequest.Sending req : requests) {
+			try {
+				req.done();
+			} catch (RuntimeException x) {
+				logger.log(Level.SEVERE, "Problem while releasing " + req.getRequest() + ": " + x.getMessage(), x);
+			}
+		}
+	}
+
+	/**
+	 * Makes writes and deliveries logged to the {@link #journal} durable, if any.
+	 */
+	private void syncJournal() {
+		RetentionJournal j = this.journal;
+		if (j == null)
+			return;
+		try {
+			j.sync();
+		} catch (IOException x) {
+			logger.log(Level.WARNING, "Problem while syncing " + j + ": " + x.getMessage(), x);
+		}
+	}
+
 	/**
 	 * Whether this store is actually retending writes.
 	 * It will return true if JVM is not in a shutdown process and if store is
@@ -1293,11 +2882,24 @@ public class WriteRetentionStore extends DelegatingStore {
 		if (captureHitRatio)
 			requestsIn.increment();
 		RowInTable element = new RowInTable(table, id);
+		BackpressurePolicy pressure = null;
+		if (isUnderPressure()) {
+			backpressureEvents.increment();
+			pressure = getBackpressurePolicy();
+			if (BackpressurePolicy.BLOCK.equals(pressure)) {
+				// No need to wait in case the write is merged with a retained request
+				StoreRequest retained = writesByRows.get(element);
+				if (retained == null || retained.dead)
+					awaitPressureRelease(pressure);
+			}
+		}
 		while(true) {
 			StoreRequest req = new StoreRequest(element);
 			StoreRequest tmp = writesByRows.putIfAbsent(element, req);
 			try {
 				if (tmp == null) {
+					retainedRequests.incrementAndGet();
+					req.index();
 					// req was added ; should also be put in the delay queue
 					req.plan();
 					logger.fine("Request planned for " + table + ':' + id + " on " + System.currentTimeMillis() + " by " + req);
@@ -1306,6 +2908,8 @@ public class WriteRetentionStore extends DelegatingStore {
 					req = tmp;
 				}
 				r.run(req);
+				if (this.isAdaptive())
+					this.recordWrite(req, tmp != null, System.currentTimeMillis());
 				// Request is planned and merged ; leaving the infinite loop
 				break;
 			} catch (RequestIsOutException x) {
@@ -1314,6 +2918,92 @@ public class WriteRetentionStore extends DelegatingStore {
 			// retrying eventually
 			Thread.yield();
 		}
+		
+		RetentionJournal j = this.journal;
+		if (j != null) {
+			try {
+				j.sync();
+			} catch (IOException x) {
+				throw new DatabaseNotReachedException("Cannot make update for " + element + " durable in " + j, x);
+			}
+		}
+		
+		if (BackpressurePolicy.WRITE_THROUGH.equals(pressure)) {
+			this.flush(table, id);
+		} else if (BackpressurePolicy.FLUSH.equals(pressure)) {
+			flushUnderPressure();
+		}
+	}
+	
+	/**
+	 * Sends requests retained by write-retention stores before they are due until limits are released,
+	 * starting with stores retaining the most requests, as limits apply to all stores.
+	 * At most {@link #getMaxBatchSize()} requests are sent, {@link #sendBatch(String, List) in batches} per table.
+	 * In case no request could be sent as all of them are already being sent, waits for limits to be released.
+	 */
+	private static void flushUnderPressure() {
+		final Map<WriteRetentionStore, Integer> loads = new HashMap<WriteRetentionStore, Integer>();
+		synchronized(knownStores) {
+			for (Collection<WriteRetentionStore> stores : knownStores.values()) {
+				synchronized(stores) {
+					for (WriteRetentionStore store : stores) {
+						int load = store.writesByRows.size();
+						if (load > 0)
+							loads.put(store, load);
+					}
+				}
+			}
+		}
+		List<WriteRetentionStore> stores = new ArrayList<WriteRetentionStore>(loads.keySet());
+		Collections.sort(stores, new Comparator<WriteRetentionStore>() {
+
+			@Override
+			public int compare(WriteRetentionStore o1, WriteRetentionStore o2) {
+				return loads.get(o2).compareTo(loads.get(o1));
+			}
+		});
+		
+		int sent = 0;
+		for (WriteRetentionStore store : stores) {
+			if (!isUnderPressure() || sent >= getMaxBatchSize())
+				return;
+			Map<String, List<StoreRequest.Sending>> batches = new TreeMap<String, List<StoreRequest.Sending>>();
+			long releasedRequests = 0, releasedBytes = 0;
+			for (StoreRequest req : store.writesByRows.values()) {
+				if (!isUnderPressure(releasedRequests, releasedBytes) || sent >= getMaxBatchSize())
+					break;
+				if (req.dead || req.sending)
+					continue;
+				StoreRequest.Sending sending = req.prepareSending(true);
+				if (sending == null)
+					continue;
+				List<StoreRequest.Sending> batch = batches.get(req.row.table);
+				if (batch == null) {
+					batch = new LinkedList<StoreRequest.Sending>();
+					batches.put(req.row.table, batch);
+				}
+				batch.add(sending);
+				releasedRequests++;
+				releasedBytes += sending.sentBytes;
+				sent++;
+			}
+			for (Entry<String, List<StoreRequest.Sending>> batch : batches.entrySet()) {
+				try {
+					store.sendBatch(batch.getKey(), batch.getValue());
+				} catch (RuntimeException x) {
+					// Already logged ; the write is retained anyway
+				}
+			}
+		}
+		
+		if (sent == 0) {
+			try {
+				awaitPressureRelease(BackpressurePolicy.FLUSH);
+			} catch (DatabaseNotReachedException x) {
+				// The write is already retained
+				logger.log(Level.WARNING, x.getMessage(), x);
+			}
+		}
 	}
 
 	@Override
@@ -1323,6 +3013,9 @@ public class WriteRetentionStore extends DelegatingStore {
 		result = prime * result + this.getActualStore().hashCode();
 		result = prime * result
 				+ (int) (writeRetentionMs ^ (writeRetentionMs >>> 32));
+		result = prime * result + (readYourWrites ? 1231 : 1237);
+		result = prime * result
+				+ (int) (latencyBudgetMs ^ (latencyBudgetMs >>> 32));
 		return result;
 	}
 
@@ -1337,6 +3030,10 @@ public class WriteRetentionStore extends DelegatingStore {
 		WriteRetentionStore other = (WriteRetentionStore) obj;
 		if (writeRetentionMs != other.writeRetentionMs)
 			return false;
+		if (readYourWrites != other.readYourWrites)
+			return false;
+		if (latencyBudgetMs != other.latencyBudgetMs)
+			return false;
 		if (!this.getActualStore().equals(other.getActualStore()))
 			return false;
 		return true;
@@ -0,0 +1,96 @@
+package com.googlecode.n_orm.memory;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * A set of strings that can tell for sure that a string is not part of the set, and may be wrong when telling a string is part of the set.
+ * With {@link #BITS_PER_KEY} bits per string, about 1% of the strings that are not part of the set are reported as part of the set.
+ */
+class BloomFilter {
+	static final int BITS_PER_KEY = 10;
+	private static final int HASHES = 7;
+
+	/**
+	 * A 64 bits hash for a string ; two independent 32 bits hashes are taken from it.
+	 */
+	static long hash(String key) {
+		long h = 0xcbf29ce484222325L;
+		for (int i = 0; i < key.length(); ++i) {
+			h ^= key.charAt(i);
+			h *= 0x100000001b3L;
+		}
+		//Final mix so that all bits depend on all characters
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+
+	private final long[] bits;
+	private final int hashes;
+
+	private BloomFilter(long[] bits, int hashes) {
+		this.bits = bits;
+		this.hashes = hashes;
+	}
+
+	/**
+	 * Creates a filter for the given strings.
+	 * @param hashes the {@link #hash(String) hashes} of the strings
+	 * @param count the number of hashes to be considered
+	 */
+	static BloomFilter create(long[] hashes, int count) {
+		long size = Math.max(64, (long)count * BITS_PER_KEY);
+		BloomFilter ret = new BloomFilter(new long[(int)Math.min(Integer.MAX_VALUE, (size + 63) / 64)], HASHES);
+		for (int i = 0; i < count; ++i) {
+			ret.add(hashes[i]);
+		}
+		return ret;
+	}
+
+	static BloomFilter read(DataInput in) throws IOException {
+		int hashes = in.readInt();
+		long[] bits = new long[in.readInt()];
+		for (int i = 0; i < bits.length; ++i) {
+			bits[i] = in.readLong();
+		}
+		return new BloomFilter(bits, hashes);
+	}
+
+	void write(DataOutput out) throws IOException {
+		out.writeInt(this.hashes);
+		out.writeInt(this.bits.length);
+		for (long l : this.bits) {
+			out.writeLong(l);
+		}
+	}
+
+	private long bit(long hash, int i) {
+		int h1 = (int)hash, h2 = (int)(hash >>> 32);
+		long combined = (h1 + (long)i * h2) & Long.MAX_VALUE;
+		return combined % ((long)this.bits.length * 64);
+	}
+
+	private void add(long hash) {
+		for (int i = 0; i < this.hashes; ++i) {
+			long b = this.bit(hash, i);
+			this.bits[(int)(b >>> 6)] |= 1L << b;
+		}
+	}
+
+	/**
+	 * Whether the string with the given {@link #hash(String) hash} may be part of the set.
+	 */
+	boolean mightContain(long hash) {
+		for (int i = 0; i < this.hashes; ++i) {
+			long b = this.bit(hash, i);
+			if ((this.bits[(int)(b >>> 6)] & (1L << b)) == 0)
+				return false;
+		}
+		return true;
+	}
+}
@@ -0,0 +1,52 @@
+package com.googlecode.n_orm.memory;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A bounded pool of canonical strings, so that equal family names and qualifiers used by many rows of a table share a single instance.
+ * Once the pool holds its maximum number of entries, unknown strings are returned as is: tables with unbounded qualifiers
+ * (e.g. keys of a map stored as a column family) do not make the pool grow forever.<br>
+ * This class is thread-safe.
+ */
+class Dictionary {
+	private final ConcurrentMap<String, String> entries = new ConcurrentHashMap<String, String>();
+	private final AtomicInteger size = new AtomicInteger();
+	private final int maxSize;
+
+	/**
+	 * @param maxSize the maximum number of canonical strings in this pool
+	 */
+	public Dictionary(int maxSize) {
+		if (maxSize < 0)
+			throw new IllegalArgumentException("Dictionary size must be positive ; got " + maxSize);
+		this.maxSize = maxSize;
+	}
+
+	/**
+	 * The number of canonical strings in this pool.
+	 */
+	public int size() {
+		return this.size.get();
+	}
+
+	/**
+	 * The canonical instance equal to s.
+	 * @return s in case it is not known yet and this pool is full
+	 */
+	public String intern(String s) {
+		String ret = this.entries.get(s);
+		if (ret != null)
+			return ret;
+		if (this.size.incrementAndGet() > this.maxSize) {
+			this.size.decrementAndGet();
+			return s;
+		}
+		ret = this.entries.putIfAbsent(s, s);
+		if (ret == null)
+			return s;
+		this.size.decrementAndGet();
+		return ret;
+	}
+}
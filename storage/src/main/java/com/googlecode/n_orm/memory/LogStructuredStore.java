@@ -0,0 +1,1312 @@
+package com.googlecode.n_orm.memory;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.NavigableMap;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.googlecode.n_orm.DatabaseNotReachedException;
+import com.googlecode.n_orm.EmptyCloseableIterator;
+import com.googlecode.n_orm.conversion.ConversionTools;
+import com.googlecode.n_orm.storeapi.BatchSimpleStore;
+import com.googlecode.n_orm.storeapi.CloseableKeyIterator;
+import com.googlecode.n_orm.storeapi.Constraint;
+import com.googlecode.n_orm.storeapi.DefaultColumnFamilyData;
+import com.googlecode.n_orm.storeapi.MultiGetSimpleStore;
+import com.googlecode.n_orm.storeapi.ReverseScanSimpleStore;
+import com.googlecode.n_orm.storeapi.RowChanges;
+import com.googlecode.n_orm.storeapi.Row.ColumnFamilyData;
+
+/**
+ * A store persisting data into a local {@link #setDirectory(String) directory} as a log-structured merge tree,
+ * well suited for embedded deployments where data do not fit in the heap.<br>
+ * Changes are appended to a {@link WriteAheadLog} and applied to an in-memory sorted table, the memtable.
+ * Once the memtable exceeds {@link #getMemtableSize()} bytes, it is written in the background as an immutable {@link SortedSegment} per table, and the log is truncated.
+ * Reads merge the memtable with segments from the newest to the oldest ; segments are memory-mapped and come with a block index and a bloom filter
+ * so that reading a row needs at most one block per segment, and usually none for segments that do not hold the row.
+ * Once a table has {@link #getCompactionThreshold()} segments, they are merged in the background into a single one, dropping deleted and overwritten cells.<br>
+ * This store is declared in a store.properties file such as:
+ * <pre>
+ * class=com.googlecode.n_orm.memory.LogStructuredStore
+ * directory=/var/lib/myapp/data
+ * </pre>
+ * Increments are applied by reading the current value ; segments thus only hold absolute values.
+ * This store is thread-safe.
+ */
+public class LogStructuredStore implements MultiGetSimpleStore, BatchSimpleStore, ReverseScanSimpleStore {
+	private static final Logger logger = Logger.getLogger(LogStructuredStore.class.getName());
+
+	/**
+	 * Kinds of cells.
+	 * Header cells (with no family) tell whether a row exists, and whether cells for this row from older generations are hidden because the row was deleted.
+	 */
+	static final byte PUT = 1, DELETE = 2, ROW = 3, ROW_DELETED = 4, ROW_RECREATED = 5;
+
+	private static final String SEGMENT_PREFIX = "seg-", SEGMENT_SUFFIX = ".sst", TEMPORARY_SUFFIX = ".tmp";
+
+	private static final ExecutorService Flusher = Executors.newSingleThreadExecutor(new ThreadFactory() {
+
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread ret = new Thread(r, "n-orm lsm flush");
+			ret.setDaemon(true);
+			return ret;
+		}
+	});
+
+	private static final ExecutorService Compactor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread ret = new Thread(r, "n-orm lsm compaction");
+			ret.setDaemon(true);
+			return ret;
+		}
+	});
+
+	private static boolean isHeader(byte kind) {
+		return kind >= ROW;
+	}
+
+	private static boolean hidesOlder(byte kind) {
+		return kind == ROW_DELETED || kind == ROW_RECREATED;
+	}
+
+	/**
+	 * The key for a cell.
+	 * Keys are sorted according to row, then family, then qualifier, a null family or qualifier coming first.
+	 * Header cells have neither family nor qualifier ; keys with a family and no qualifier are only used as bounds.
+	 */
+	static final class Key implements Comparable<Key> {
+		final String row, family, qualifier;
+
+		Key(String row, String family, String qualifier) {
+			this.row = row;
+			this.family = family;
+			this.qualifier = qualifier;
+		}
+
+		/**
+		 * The smallest key greater than any key for the given row.
+		 */
+		static Key afterRow(String row) {
+			return new Key(row + '\0', null, null);
+		}
+
+		private static int compare(String a, String b) {
+			if (a == b)
+				return 0;
+			if (a == null)
+				return -1;
+			if (b == null)
+				return 1;
+			return a.compareTo(b);
+		}
+
+		@Override
+		public int compareTo(Key o) {
+			int ret = this.row.compareTo(o.row);
+			if (ret != 0)
+				return ret;
+			ret = compare(this.family, o.family);
+			if (ret != 0)
+				return ret;
+			return compare(this.qualifier, o.qualifier);
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			return obj instanceof Key && this.compareTo((Key)obj) == 0;
+		}
+
+		@Override
+		public int hashCode() {
+			int ret = this.row.hashCode();
+			if (this.family != null)
+				ret = 31 * ret + this.family.hashCode();
+			if (this.qualifier != null)
+				ret = 31 * ret + this.qualifier.hashCode();
+			return ret;
+		}
+
+		@Override
+		public String toString() {
+			return this.family == null ? this.row : this.row + '/' + this.family + ':' + this.qualifier;
+		}
+	}
+
+	/**
+	 * A value, a deletion or a row header.
+	 */
+	static final class Cell {
+		final Key key;
+		final byte kind;
+		/**
+		 * Only set for {@link LogStructuredStore#PUT} cells.
+		 */
+		final byte[] value;
+
+		Cell(Key key, byte kind, byte[] value) {
+			this.key = key;
+			this.kind = kind;
+			this.value = value;
+		}
+
+		/**
+		 * An estimation of the heap used by this cell in a memtable.
+		 */
+		int getSize() {
+			int ret = 96 + 2 * this.key.row.length();
+			if (this.key.family != null)
+				ret += 2 * (this.key.family.length() + this.key.qualifier.length());
+			if (this.value != null)
+				ret += this.value.length;
+			return ret;
+		}
+	}
+
+	/**
+	 * Cells not yet written to segments.
+	 * A memtable has the same generation as the {@link WriteAheadLog} segment where its changes are logged.
+	 */
+	private static class Memtable {
+		private final long generation;
+		private final ConcurrentMap<String, ConcurrentNavigableMap<Key, Cell>> tables = new ConcurrentHashMap<String, ConcurrentNavigableMap<Key, Cell>>();
+		private final AtomicLong size = new AtomicLong();
+
+		public Memtable(long generation) {
+			this.generation = generation;
+		}
+
+		public ConcurrentNavigableMap<Key, Cell> getTable(String table, boolean createIfNecessary) {
+			ConcurrentNavigableMap<Key, Cell> ret = this.tables.get(table);
+			if (ret == null && createIfNecessary) {
+				ret = new ConcurrentSkipListMap<Key, Cell>();
+				ConcurrentNavigableMap<Key, Cell> existing = this.tables.putIfAbsent(table, ret);
+				if (existing != null)
+					ret = existing;
+			}
+			return ret;
+		}
+
+		/**
+		 * Applies changes to a row ; must be called holding the lock for the row.
+		 */
+		public void apply(String table, List<Cell> cells) {
+			ConcurrentNavigableMap<Key, Cell> t = this.getTable(table, true);
+			for (Cell c : cells) {
+				if (c.kind == ROW_DELETED) {
+					//Older cells from this memtable are not necessary anymore
+					t.subMap(c.key, true, Key.afterRow(c.key.row), false).clear();
+				} else if (c.kind == ROW) {
+					Cell header = t.get(c.key);
+					if (header != null && header.kind == ROW)
+						continue;
+					if (header != null && hidesOlder(header.kind))
+						c = new Cell(c.key, ROW_RECREATED, null);
+				}
+				t.put(c.key, c);
+				this.size.addAndGet(c.getSize());
+			}
+		}
+	}
+
+	/**
+	 * Where to read from.
+	 * Replaced as a whole each time the memtable is switched or segments are written or compacted.
+	 */
+	private static class State {
+		private final Memtable active;
+		/**
+		 * The memtable being written to segments ; null if none.
+		 */
+		private final Memtable flushing;
+		/**
+		 * Segments for each table, from the newest to the oldest.
+		 */
+		private final Map<String, List<SortedSegment>> segments;
+
+		public State(Memtable active, Memtable flushing, Map<String, List<SortedSegment>> segments) {
+			this.active = active;
+			this.flushing = flushing;
+			this.segments = segments;
+		}
+	}
+
+	/**
+	 * A row as read from all sources.
+	 */
+	private static class MergedRow {
+		private final String key;
+		private boolean exists = false;
+		private final Map<String, Map<String, byte[]>> families = new TreeMap<String, Map<String, byte[]>>();
+
+		public MergedRow(String key) {
+			this.key = key;
+		}
+
+		public ColumnFamilyData getValues(Set<String> families) {
+			ColumnFamilyData ret = new DefaultColumnFamilyData();
+			if (families != null) {
+				for (String family : families) {
+					Map<String, byte[]> values = this.families.get(family);
+					if (values != null)
+						ret.put(family, values);
+				}
+			}
+			return ret;
+		}
+	}
+
+	/**
+	 * Merges cells from sources into rows.
+	 * Sources are ordered from the newest to the oldest ; a cell is hidden by a cell with the same key from a newer source,
+	 * and by a header from a newer source hiding older cells.
+	 */
+	private static class RowMerger implements Iterator<MergedRow> {
+		private static class Head {
+			private final Iterator<Cell> source;
+			private final int rank;
+			private Cell cell;
+
+			public Head(Iterator<Cell> source, int rank) {
+				this.source = source;
+				this.rank = rank;
+			}
+		}
+
+		private final PriorityQueue<Head> heads;
+
+		public RowMerger(List<Iterator<Cell>> sources, final boolean descending) {
+			this.heads = new PriorityQueue<Head>(Math.max(1, sources.size()), new Comparator<Head>() {
+
+				@Override
+				public int compare(Head h1, Head h2) {
+					int ret = h1.cell.key.row.compareTo(h2.cell.key.row);
+					if (ret != 0)
+						return descending ? -ret : ret;
+					return h1.rank - h2.rank;
+				}
+			});
+			int rank = 0;
+			for (Iterator<Cell> source : sources) {
+				Head h = new Head(source, rank++);
+				if (source.hasNext()) {
+					h.cell = source.next();
+					this.heads.add(h);
+				}
+			}
+		}
+
+		@Override
+		public boolean hasNext() {
+			return !this.heads.isEmpty();
+		}
+
+		@Override
+		public MergedRow next() {
+			if (this.heads.isEmpty())
+				throw new NoSuchElementException();
+			String row = this.heads.peek().cell.key.row;
+			MergedRow ret = new MergedRow(row);
+
+			int hiddenFrom = Integer.MAX_VALUE, headerRank = Integer.MAX_VALUE;
+			byte header = 0;
+			List<Head> ranks = new ArrayList<Head>();
+			List<Cell> cells = new ArrayList<Cell>();
+			while (!this.heads.isEmpty() && this.heads.peek().cell.key.row.equals(row)) {
+				Head h = this.heads.poll();
+				do {
+					Cell c = h.cell;
+					if (isHeader(c.kind)) {
+						if (h.rank < headerRank) {
+							headerRank = h.rank;
+							header = c.kind;
+						}
+						if (hidesOlder(c.kind))
+							hiddenFrom = Math.min(hiddenFrom, h.rank);
+					} else {
+						ranks.add(h);
+						cells.add(c);
+					}
+					h.cell = h.source.hasNext() ? h.source.next() : null;
+				} while (h.cell != null && h.cell.key.row.equals(row));
+				if (h.cell != null)
+					this.heads.add(h);
+			}
+			ret.exists = header == ROW || header == ROW_RECREATED;
+
+			Map<Key, Integer> bestRanks = new HashMap<Key, Integer>();
+			Map<Key, Cell> best = new TreeMap<Key, Cell>();
+			for (int i = 0; i < cells.size(); ++i) {
+				int rank = ranks.get(i).rank;
+				Cell c = cells.get(i);
+				if (rank > hiddenFrom)
+					continue;
+				Integer r = bestRanks.get(c.key);
+				if (r == null || rank < r) {
+					bestRanks.put(c.key, rank);
+					best.put(c.key, c);
+				}
+			}
+			for (Cell c : best.values()) {
+				if (c.kind != PUT)
+					continue;
+				Map<String, byte[]> family = ret.families.get(c.key.family);
+				if (family == null) {
+					family = new TreeMap<String, byte[]>();
+					ret.families.put(c.key.family, family);
+				}
+				family.put(c.key.qualifier, c.value);
+			}
+			return ret;
+		}
+
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+	}
+
+	/**
+	 * Iterates over cells from several iterators, one after the other.
+	 */
+	private static class ConcatenatingIterator implements Iterator<Cell> {
+		private final Iterator<Iterator<Cell>> iterators;
+		private Iterator<Cell> current = Collections.<Cell>emptyList().iterator();
+
+		public ConcatenatingIterator(List<Iterator<Cell>> iterators) {
+			this.iterators = iterators.iterator();
+		}
+
+		@Override
+		public boolean hasNext() {
+			while (!this.current.hasNext() && this.iterators.hasNext()) {
+				this.current = this.iterators.next();
+			}
+			return this.current.hasNext();
+		}
+
+		@Override
+		public Cell next() {
+			if (!this.hasNext())
+				throw new NoSuchElementException();
+			return this.current.next();
+		}
+
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+	}
+
+	private volatile String directory = null;
+	private volatile boolean syncWrites = true;
+	private volatile long memtableSize = 16 * 1024 * 1024;
+	private volatile int compactionThreshold = 4;
+
+	/**
+	 * Null until this store is {@link #start() started}.
+	 */
+	private volatile State state = null;
+	private volatile WriteAheadLog log = null;
+
+	/**
+	 * Guards changes to {@link #state} ; notified each time a flush ends.
+	 */
+	private final Object stateLock = new Object();
+
+	/**
+	 * Held in read mode while changing the memtable, and in write mode while switching the memtable.
+	 */
+	private final ReentrantReadWriteLock memtableLock = new ReentrantReadWriteLock();
+
+	/**
+	 * Locks making sure that changes to a row are applied in the same order as they are logged.
+	 */
+	private final Object[] rowLocks = new Object[64];
+
+	private final Object compactionLock = new Object();
+	private final Set<String> compacting = Collections.synchronizedSet(new HashSet<String>());
+	private volatile IOException flushFailure = null;
+
+	public LogStructuredStore() {
+		for (int i = 0; i < this.rowLocks.length; ++i) {
+			this.rowLocks[i] = new Object();
+		}
+	}
+
+	/**
+	 * The directory where data are stored.
+	 */
+	public String getDirectory() {
+		return directory;
+	}
+
+	/**
+	 * Sets the directory where data are stored ; data found in this directory are read when this store is {@link #start() started}.
+	 * @throws IllegalStateException in case this store is already started on another directory
+	 */
+	public synchronized void setDirectory(String directory) {
+		if (this.state != null && !new File(directory).getAbsoluteFile().equals(new File(this.directory).getAbsoluteFile()))
+			throw new IllegalStateException(this + " is already started");
+		this.directory = directory;
+	}
+
+	/**
+	 * Whether changes are forced to the disk before returning ; default is true.
+	 * Changes performed concurrently are forced at once (group commit).
+	 * Otherwise, changes are only written to the operating system, which is faster, but may lose last changes in case of a system crash.
+	 */
+	public boolean isSyncWrites() {
+		return syncWrites;
+	}
+
+	/**
+	 * Only considered before this store is {@link #start() started}.
+	 */
+	public void setSyncWrites(boolean syncWrites) {
+		this.syncWrites = syncWrites;
+	}
+
+	/**
+	 * The estimated number of bytes in the memtable above which it is written to segments ; default is 16MB.
+	 * Writers are blocked in case the memtable reaches twice this size while the previous one is still being written,
+	 * and are rejected before their changes are logged in case writing the previous one failed.
+	 */
+	public long getMemtableSize() {
+		return memtableSize;
+	}
+
+	/**
+	 * @throws IllegalArgumentException in case size is not strictly positive
+	 */
+	public void setMemtableSize(long memtableSize) {
+		if (memtableSize <= 0)
+			throw new IllegalArgumentException("Memtable size must be strictly positive ; got " + memtableSize);
+		this.memtableSize = memtableSize;
+	}
+
+	/**
+	 * The number of segments for a table from which they are merged ; default is 4.
+	 */
+	public int getCompactionThreshold() {
+		return compactionThreshold;
+	}
+
+	/**
+	 * @throws IllegalArgumentException in case threshold is lower than 2
+	 */
+	public void setCompactionThreshold(int compactionThreshold) {
+		if (compactionThreshold < 2)
+			throw new IllegalArgumentException("Compaction threshold must be at least 2 ; got " + compactionThreshold);
+		this.compactionThreshold = compactionThreshold;
+	}
+
+	/**
+	 * The number of segments currently holding data for the given table.
+	 */
+	public int getSegments(String table) {
+		List<SortedSegment> ret = this.getState().segments.get(table);
+		return ret == null ? 0 : ret.size();
+	}
+
+	private State getState() {
+		State ret = this.state;
+		if (ret == null)
+			throw new DatabaseNotReachedException(this + " is not started");
+		return ret;
+	}
+
+	private File getTableDirectory(String table) {
+		try {
+			return new File(new File(this.directory, "tables"), URLEncoder.encode(table, "UTF-8").replace("*", "%2A"));
+		} catch (UnsupportedEncodingException x) {
+			throw new IllegalStateException(x);
+		}
+	}
+
+	private static File getSegmentFile(File tableDirectory, long minGeneration, long maxGeneration) {
+		return new File(tableDirectory, String.format("%s%020d-%020d%s", SEGMENT_PREFIX, maxGeneration, minGeneration, SEGMENT_SUFFIX));
+	}
+
+	/**
+	 * Reads segments and replays the log from the {@link #getDirectory() directory}, if not already done.
+	 * @throws DatabaseNotReachedException in case no directory was set or data cannot be read
+	 */
+	@Override
+	public synchronized void start() throws DatabaseNotReachedException {
+		if (this.state != null)
+			return;
+		if (this.directory == null)
+			throw new DatabaseNotReachedException("No directory set for " + this);
+		try {
+			this.recover(new File(this.directory));
+		} catch (IOException x) {
+			throw new DatabaseNotReachedException(x);
+		}
+	}
+
+	private void recover(File dir) throws IOException {
+		Map<String, List<SortedSegment>> segments = new TreeMap<String, List<SortedSegment>>();
+		long generation = 0;
+		File[] tables = new File(dir, "tables").listFiles();
+		if (tables != null) {
+			for (File t : tables) {
+				if (!t.isDirectory())
+					continue;
+				List<SortedSegment> found = this.openSegments(t);
+				if (found.isEmpty())
+					continue;
+				generation = Math.max(generation, found.get(0).getMaxGeneration());
+				segments.put(URLDecoder.decode(t.getName(), "UTF-8"), Collections.unmodifiableList(found));
+			}
+		}
+
+		WriteAheadLog l = new WriteAheadLog(new File(dir, "log"), this.syncWrites);
+		List<Long> logged = l.getSegmentsFrom(0);
+		if (!logged.isEmpty())
+			generation = Math.max(generation, logged.get(logged.size() - 1));
+		final Memtable m = new Memtable(generation + 1);
+		for (long s : logged) {
+			l.replay(s, new WriteAheadLog.RecordHandler() {
+
+				@Override
+				public void handle(byte[] record) throws IOException {
+					DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+					String table = Memory.readString(in);
+					String row = Memory.readString(in);
+					int count = in.readInt();
+					List<Cell> cells = new ArrayList<Cell>(count);
+					for (int i = 0; i < count; ++i) {
+						byte kind = in.readByte();
+						if (isHeader(kind)) {
+							cells.add(new Cell(new Key(row, null, null), kind, null));
+						} else {
+							Key key = new Key(row, Memory.readString(in), Memory.readString(in));
+							cells.add(new Cell(key, kind, kind == PUT ? Memory.readBytes(in) : null));
+						}
+					}
+					m.apply(table, cells);
+				}
+			});
+		}
+		l.open(m.generation);
+		this.log = l;
+		this.state = new State(m, null, segments);
+	}
+
+	/**
+	 * Opens segments for a table, from the newest to the oldest.
+	 * Segments replaced by a compaction that could not remove them are removed.
+	 */
+	private List<SortedSegment> openSegments(File tableDirectory) throws IOException {
+		List<long[]> found = new ArrayList<long[]>();
+		File[] files = tableDirectory.listFiles();
+		if (files != null) {
+			for (File f : files) {
+				String name = f.getName();
+				if (name.endsWith(TEMPORARY_SUFFIX)) {
+					f.delete();
+				} else if (name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX)) {
+					String[] generations = name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()).split("-");
+					try {
+						found.add(new long[] {Long.parseLong(generations[0]), Long.parseLong(generations[1])});
+					} catch (RuntimeException x) {
+						logger.warning("Ignoring unexpected file " + f.getAbsolutePath());
+					}
+				}
+			}
+		}
+		//Newest first, and widest first for the same newest generation
+		Collections.sort(found, new Comparator<long[]>() {
+
+			@Override
+			public int compare(long[] o1, long[] o2) {
+				if (o1[0] != o2[0])
+					return o1[0] > o2[0] ? -1 : 1;
+				return o1[1] == o2[1] ? 0 : (o1[1] < o2[1] ? -1 : 1);
+			}
+		});
+		List<SortedSegment> ret = new ArrayList<SortedSegment>();
+		long lowest = Long.MAX_VALUE;
+		for (long[] generations : found) {
+			File f = getSegmentFile(tableDirectory, generations[1], generations[0]);
+			if (generations[0] >= lowest) {
+				f.delete();
+			} else {
+				ret.add(new SortedSegment(f, generations[1], generations[0]));
+				lowest = generations[1];
+			}
+		}
+		return ret;
+	}
+
+	/**
+	 * Stops this store.
+	 * Running flushes and compactions are waited for ; changes not yet written to segments remain in the log,
+	 * and are read again when a store is started on the same directory.
+	 */
+	public synchronized void close() throws DatabaseNotReachedException {
+		if (this.state == null)
+			return;
+		synchronized (this.stateLock) {
+			while (this.state.flushing != null && this.flushFailure == null) {
+				try {
+					this.stateLock.wait();
+				} catch (InterruptedException x) {
+					throw new DatabaseNotReachedException(x);
+				}
+			}
+		}
+		synchronized (this.compactionLock) {
+			this.memtableLock.writeLock().lock();
+			try {
+				this.log.close();
+			} catch (IOException x) {
+				throw new DatabaseNotReachedException(x);
+			} finally {
+				this.state = null;
+				this.log = null;
+				this.memtableLock.writeLock().unlock();
+			}
+		}
+	}
+
+	/**
+	 * Writes the memtable to segments, so that the log can be truncated.
+	 */
+	public void flush() throws DatabaseNotReachedException {
+		Memtable toFlush;
+		synchronized (this.stateLock) {
+			this.getState();
+			while (this.state.flushing != null && this.flushFailure == null) {
+				try {
+					this.stateLock.wait();
+				} catch (InterruptedException x) {
+					throw new DatabaseNotReachedException(x);
+				}
+			}
+			if (this.state.flushing != null) {
+				//Retrying a failed flush
+				toFlush = this.state.flushing;
+			} else if (this.state.active.size.get() == 0) {
+				return;
+			} else {
+				toFlush = this.switchMemtable();
+			}
+		}
+		this.flush(toFlush);
+		Throwable failure = this.flushFailure;
+		if (failure != null)
+			throw new DatabaseNotReachedException(failure);
+	}
+
+	/**
+	 * Blocks a writer, before its changes are logged, while the memtable is twice as large as expected and the previous one is still being written.
+	 * @throws DatabaseNotReachedException in case writing the previous memtable failed ; changes are then neither logged nor applied
+	 */
+	private void awaitFlush() {
+		if (this.getState().active.size.get() < 2 * this.memtableSize)
+			return;
+		synchronized (this.stateLock) {
+			while (this.state != null && this.state.flushing != null && this.state.active.size.get() >= 2 * this.memtableSize) {
+				if (this.flushFailure != null)
+					throw new DatabaseNotReachedException("Could not write memtable for " + this, this.flushFailure);
+				try {
+					this.stateLock.wait();
+				} catch (InterruptedException x) {
+					throw new DatabaseNotReachedException(x);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Starts writing the memtable to segments in case it is large enough.
+	 * Called once changes are applied, so that problems are only logged.
+	 */
+	private void flushInBackground() {
+		if (this.state.active.size.get() < this.memtableSize)
+			return;
+		final Memtable toFlush;
+		synchronized (this.stateLock) {
+			if (this.state == null || this.state.flushing != null || this.state.active.size.get() < this.memtableSize)
+				return;
+			try {
+				toFlush = this.switchMemtable();
+			} catch (DatabaseNotReachedException x) {
+				logger.log(Level.WARNING, "Could not start writing memtable for " + this + ": " + x.getMessage(), x);
+				return;
+			}
+		}
+		Flusher.submit(new Runnable() {
+
+			@Override
+			public void run() {
+				flush(toFlush);
+			}
+		});
+	}
+
+	/**
+	 * Makes a new memtable active, and returns the previous one ; must be called holding {@link #stateLock}.
+	 */
+	private Memtable switchMemtable() {
+		assert Thread.holdsLock(this.stateLock);
+		this.memtableLock.writeLock().lock();
+		try {
+			State s = this.state;
+			long generation = this.log.rotate();
+			assert generation == s.active.generation + 1;
+			this.state = new State(new Memtable(generation), s.active, s.segments);
+			return s.active;
+		} catch (IOException x) {
+			throw new DatabaseNotReachedException(x);
+		} finally {
+			this.memtableLock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Writes a memtable to segments, and removes its log.
+	 * Failures are recorded to {@link #flushFailure} ; the memtable is then kept until next {@link #flush()}.
+	 */
+	private void flush(Memtable m) {
+		Map<String, SortedSegment> written = new TreeMap<String, SortedSegment>();
+		try {
+			for (Entry<String, ConcurrentNavigableMap<Key, Cell>> t : m.tables.entrySet()) {
+				if (!t.getValue().isEmpty())
+					written.put(t.getKey(), this.writeSegment(t.getKey(), m.generation, m.generation, t.getValue().values().iterator()));
+			}
+			//Changes are now in segments
+			this.log.removeSegmentsBefore(m.generation + 1);
+		} catch (IOException x) {
+			logger.log(Level.WARNING, "Could not write memtable " + m.generation + " for " + this + ": " + x.getMessage(), x);
+			synchronized (this.stateLock) {
+				this.flushFailure = x;
+				this.stateLock.notifyAll();
+			}
+			return;
+		}
+
+		List<String> toCompact = new ArrayList<String>();
+		synchronized (this.stateLock) {
+			State s = this.state;
+			Map<String, List<SortedSegment>> segments = new TreeMap<String, List<SortedSegment>>(s.segments);
+			for (Entry<String, SortedSegment> w : written.entrySet()) {
+				List<SortedSegment> l = new ArrayList<SortedSegment>();
+				l.add(w.getValue());
+				List<SortedSegment> older = segments.get(w.getKey());
+				if (older != null)
+					l.addAll(older);
+				segments.put(w.getKey(), Collections.unmodifiableList(l));
+				if (l.size() >= this.compactionThreshold)
+					toCompact.add(w.getKey());
+			}
+			this.state = new State(s.active, null, segments);
+			this.flushFailure = null;
+			this.stateLock.notifyAll();
+		}
+		for (String table : toCompact) {
+			this.compactInBackground(table);
+		}
+	}
+
+	private SortedSegment writeSegment(String table, long minGeneration, long maxGeneration, Iterator<Cell> cells) throws IOException {
+		File dir = this.getTableDirectory(table);
+		if (!dir.isDirectory() && !dir.mkdirs())
+			throw new IOException("Cannot create directory " + dir.getAbsolutePath());
+		File f = getSegmentFile(dir, minGeneration, maxGeneration);
+		File tmp = new File(dir, f.getName() + TEMPORARY_SUFFIX);
+		boolean done = false;
+		try {
+			SortedSegment.write(tmp, cells);
+			if (!tmp.renameTo(f))
+				throw new IOException("Cannot rename " + tmp.getAbsolutePath() + " to " + f.getAbsolutePath());
+			done = true;
+		} finally {
+			if (!done)
+				tmp.delete();
+		}
+		return new SortedSegment(f, minGeneration, maxGeneration);
+	}
+
+	private void compactInBackground(final String table) {
+		if (!this.compacting.add(table))
+			return;
+		Compactor.submit(new Runnable() {
+
+			@Override
+			public void run() {
+				boolean compacted = false;
+				try {
+					if (state != null) {
+						compact(table);
+						compacted = true;
+					}
+				} catch (RuntimeException x) {
+					logger.log(Level.WARNING, "Could not compact table " + table + " for " + LogStructuredStore.this + ": " + x.getMessage(), x);
+				} finally {
+					compacting.remove(table);
+				}
+				//Memtables flushed while compacting did not schedule a compaction
+				State s = state;
+				if (compacted && s != null) {
+					List<SortedSegment> segments = s.segments.get(table);
+					if (segments != null && segments.size() >= compactionThreshold)
+						compactInBackground(table);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Merges all segments for all tables.
+	 * @see #compact(String)
+	 */
+	public void compact() throws DatabaseNotReachedException {
+		for (String table : this.getState().segments.keySet()) {
+			this.compact(table);
+		}
+	}
+
+	/**
+	 * Merges all segments for a table into a single one, dropping deleted and overwritten cells.
+	 */
+	public void compact(String table) throws DatabaseNotReachedException {
+		synchronized (this.compactionLock) {
+			List<SortedSegment> inputs = this.getState().segments.get(table);
+			if (inputs == null || inputs.isEmpty())
+				return;
+			List<Iterator<Cell>> sources = new ArrayList<Iterator<Cell>>(inputs.size());
+			for (SortedSegment s : inputs) {
+				sources.add(s.iterator(null, null, false));
+			}
+			final RowMerger rows = new RowMerger(sources, false);
+			Iterator<Cell> live = new Iterator<Cell>() {
+				private final List<Cell> row = new ArrayList<Cell>();
+				private int pos = 0;
+
+				@Override
+				public boolean hasNext() {
+					while (this.pos == this.row.size() && rows.hasNext()) {
+						this.row.clear();
+						this.pos = 0;
+						MergedRow r = rows.next();
+						if (!r.exists)
+							continue;
+						//Oldest data: nothing to hide anymore
+						this.row.add(new Cell(new Key(r.key, null, null), ROW, null));
+						for (Entry<String, Map<String, byte[]>> family : r.families.entrySet()) {
+							for (Entry<String, byte[]> value : family.getValue().entrySet()) {
+								this.row.add(new Cell(new Key(r.key, family.getKey(), value.getKey()), PUT, value.getValue()));
+							}
+						}
+					}
+					return this.pos < this.row.size();
+				}
+
+				@Override
+				public Cell next() {
+					if (!this.hasNext())
+						throw new NoSuchElementException();
+					return this.row.get(this.pos++);
+				}
+
+				@Override
+				public void remove() {
+					throw new UnsupportedOperationException();
+				}
+			};
+
+			//Written even if empty so that inputs are known to be replaced in case they cannot be removed
+			SortedSegment output;
+			try {
+				output = this.writeSegment(table, inputs.get(inputs.size() - 1).getMinGeneration(), inputs.get(0).getMaxGeneration(), live);
+			} catch (IOException x) {
+				throw new DatabaseNotReachedException(x);
+			}
+
+			synchronized (this.stateLock) {
+				State s = this.getState();
+				List<SortedSegment> l = new ArrayList<SortedSegment>(s.segments.get(table));
+				l.removeAll(inputs);
+				l.add(output);
+				Map<String, List<SortedSegment>> segments = new TreeMap<String, List<SortedSegment>>(s.segments);
+				segments.put(table, Collections.unmodifiableList(l));
+				this.state = new State(s.active, s.flushing, segments);
+			}
+			for (SortedSegment s : inputs) {
+				s.delete();
+			}
+		}
+	}
+
+	/**
+	 * Iterators over cells from all sources, from the newest to the oldest.
+	 * @param ranges consecutive pairs of keys for the first (included) and the last (excluded) key to be read ; null means no bound ; a single pair is supported when descending
+	 * @param row in case ranges are within a single row, so that segments that do not hold this row are skipped ; null otherwise
+	 */
+	private List<Iterator<Cell>> getSources(State s, String table, Key[] ranges, boolean descending, String row) {
+		List<Iterator<Cell>> ret = new ArrayList<Iterator<Cell>>();
+		for (Memtable m : new Memtable[] {s.active, s.flushing}) {
+			NavigableMap<Key, Cell> t = m == null ? null : m.getTable(table, false);
+			if (t == null)
+				continue;
+			List<Iterator<Cell>> iterators = new ArrayList<Iterator<Cell>>(ranges.length / 2);
+			for (int i = 0; i < ranges.length; i += 2) {
+				Key from = ranges[i], to = ranges[i+1];
+				NavigableMap<Key, Cell> range;
+				if (from != null && to != null)
+					range = from.compareTo(to) < 0 ? t.subMap(from, true, to, false) : new TreeMap<Key, Cell>();
+				else if (from != null)
+					range = t.tailMap(from, true);
+				else if (to != null)
+					range = t.headMap(to, false);
+				else
+					range = t;
+				iterators.add((descending ? range.descendingMap() : range).values().iterator());
+			}
+			ret.add(new ConcatenatingIterator(iterators));
+		}
+		List<SortedSegment> segments = s.segments.get(table);
+		if (segments != null) {
+			for (SortedSegment segment : segments) {
+				if (row != null && !segment.mightContainRow(row))
+					continue;
+				List<Iterator<Cell>> iterators = new ArrayList<Iterator<Cell>>(ranges.length / 2);
+				for (int i = 0; i < ranges.length; i += 2) {
+					iterators.add(segment.iterator(ranges[i], ranges[i+1], descending));
+				}
+				ret.add(new ConcatenatingIterator(iterators));
+			}
+		}
+		return ret;
+	}
+
+	/**
+	 * Reads an existing row.
+	 * @param from the first key to be read (included) ; the header of the row is always read
+	 * @param to the last key to be read (excluded)
+	 * @return null if the row does not exist
+	 */
+	private MergedRow readRow(String table, String id, Key from, Key to) {
+		Key[] ranges = new Key[] {new Key(id, null, null), new Key(id, "", null), from, to};
+		RowMerger rows = new RowMerger(this.getSources(this.getState(), table, ranges, false, id), false);
+		MergedRow ret = rows.hasNext() ? rows.next() : null;
+		return ret != null && ret.exists ? ret : null;
+	}
+
+	/**
+	 * Reads values for a family in an existing row.
+	 * @param c the qualifiers to be read ; null for all qualifiers
+	 * @return null if the row does not exist
+	 */
+	private MergedRow readFamily(String table, String id, String family, Constraint c) {
+		String from = c == null ? null : c.getStartKey(), to = c == null ? null : c.getEndKey();
+		return this.readRow(table, id, new Key(id, family, from), to == null ? new Key(id, family + '\0', null) : new Key(id, family, to + '\0'));
+	}
+
+	private byte[] read(String table, String id, String family, String qualifier) {
+		MergedRow r = this.readFamily(table, id, family, new Constraint(qualifier, qualifier));
+		Map<String, byte[]> values = r == null ? null : r.families.get(family);
+		return values == null ? null : values.get(qualifier);
+	}
+
+	@Override
+	public boolean hasTable(String tableName) throws DatabaseNotReachedException {
+		State s = this.getState();
+		return s.segments.containsKey(tableName)
+				|| s.active.getTable(tableName, false) != null
+				|| (s.flushing != null && s.flushing.getTable(tableName, false) != null);
+	}
+
+	@Override
+	public boolean exists(String table, String row) throws DatabaseNotReachedException {
+		//Only reading the header
+		Key end = new Key(row, "", null);
+		return this.readRow(table, row, end, end) != null;
+	}
+
+	@Override
+	public boolean exists(String table, String row, String family) throws DatabaseNotReachedException {
+		MergedRow r = this.readFamily(table, row, family, null);
+		return r != null && r.families.containsKey(family);
+	}
+
+	@Override
+	public byte[] get(String table, String row, String family, String key) throws DatabaseNotReachedException {
+		return this.read(table, row, family, key);
+	}
+
+	/**
+	 * @return values for the family ; null if the row does not exist
+	 */
+	@Override
+	public Map<String, byte[]> get(String table, String id, String family) throws DatabaseNotReachedException {
+		return this.get(table, id, family, (Constraint)null);
+	}
+
+	/**
+	 * @return values for the family within the constraint ; null if the row does not exist
+	 */
+	@Override
+	public Map<String, byte[]> get(String table, String id, String family, Constraint c) throws DatabaseNotReachedException {
+		MergedRow r = this.readFamily(table, id, family, c);
+		if (r == null)
+			return null;
+		Map<String, byte[]> ret = r.families.get(family);
+		return ret == null ? new TreeMap<String, byte[]>() : ret;
+	}
+
+	@Override
+	public ColumnFamilyData get(String table, String id, Set<String> families) throws DatabaseNotReachedException {
+		MergedRow r = this.readRow(table, id, new Key(id, "", null), Key.afterRow(id));
+		return r == null ? null : r.getValues(families);
+	}
+
+	@Override
+	public Map<String, ColumnFamilyData> get(String table, Collection<String> ids, Set<String> families) throws DatabaseNotReachedException {
+		Map<String, ColumnFamilyData> ret = new TreeMap<String, ColumnFamilyData>();
+		for (String id : ids) {
+			ColumnFamilyData data = this.get(table, id, families);
+			if (data != null)
+				ret.put(id, data);
+		}
+		return ret;
+	}
+
+	private Object getRowLock(String table, String id) {
+		return this.rowLocks[((31 * table.hashCode() + id.hashCode()) & Integer.MAX_VALUE) % this.rowLocks.length];
+	}
+
+	/**
+	 * Logs and applies changes to a row.
+	 * @return the sequence number of the log record, to be synced
+	 */
+	private long apply(String table, String id, List<Cell> cells) {
+		ByteArrayOutputStream record = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(record);
+		try {
+			Memory.writeString(out, table);
+			Memory.writeString(out, id);
+			out.writeInt(cells.size());
+			for (Cell c : cells) {
+				out.writeByte(c.kind);
+				if (!isHeader(c.kind)) {
+					Memory.writeString(out, c.key.family);
+					Memory.writeString(out, c.key.qualifier);
+					if (c.kind == PUT)
+						Memory.writeBytes(out, c.value);
+				}
+			}
+			long ret = this.log.append(record.toByteArray());
+			this.state.active.apply(table, cells);
+			return ret;
+		} catch (IOException x) {
+			throw new DatabaseNotReachedException(x);
+		}
+	}
+
+	private long logChanges(String table, String id,
+			ColumnFamilyData changed,
+			Map<String, Set<String>> removed,
+			Map<String, Map<String, Number>> increments) {
+		this.getState();
+		this.memtableLock.readLock().lock();
+		try {
+			synchronized (this.getRowLock(table, id)) {
+				List<Cell> cells = new ArrayList<Cell>();
+				cells.add(new Cell(new Key(id, null, null), ROW, null));
+				if (changed != null)
+					for (Entry<String, Map<String, byte[]>> family : changed.entrySet()) {
+						for (Entry<String, byte[]> value : family.getValue().entrySet()) {
+							byte[] v = value.getValue() == null ? new byte[0] : value.getValue();
+							cells.add(new Cell(new Key(id, family.getKey(), value.getKey()), PUT, v));
+						}
+					}
+				if (removed != null)
+					for (Entry<String, Set<String>> family : removed.entrySet()) {
+						for (String qualifier : family.getValue()) {
+							cells.add(new Cell(new Key(id, family.getKey(), qualifier), DELETE, null));
+						}
+					}
+				if (increments != null)
+					for (Entry<String, Map<String, Number>> family : increments.entrySet()) {
+						for (Entry<String, Number> increment : family.getValue().entrySet()) {
+							byte[] current = this.read(table, id, family.getKey(), increment.getKey());
+							long value = current == null ? 0 : ConversionTools.convert(Long.class, current);
+							value += increment.getValue().longValue();
+							cells.add(new Cell(new Key(id, family.getKey(), increment.getKey()), PUT, ConversionTools.convert(value)));
+						}
+					}
+				return this.apply(table, id, cells);
+			}
+		} finally {
+			this.memtableLock.readLock().unlock();
+		}
+	}
+
+	private void sync(long sequence) {
+		try {
+			this.log.sync(sequence);
+		} catch (IOException x) {
+			throw new DatabaseNotReachedException(x);
+		}
+		this.flushInBackground();
+	}
+
+	@Override
+	public void storeChanges(String table, String id, ColumnFamilyData changed, Map<String, Set<String>> removed, Map<String, Map<String, Number>> increments) throws DatabaseNotReachedException {
+		this.awaitFlush();
+		this.sync(this.logChanges(table, id, changed, removed, increments));
+	}
+
+	@Override
+	public void storeChanges(String table, Collection<RowChanges> rows) throws DatabaseNotReachedException {
+		this.awaitFlush();
+		//Changes are made durable at once
+		long sequence = 0;
+		for (RowChanges row : rows) {
+			sequence = Math.max(sequence, this.logChanges(table, row.getId(), row.getChanged(), row.getRemoved(), row.getIncrements()));
+		}
+		this.sync(sequence);
+	}
+
+	@Override
+	public void delete(String table, String id) throws DatabaseNotReachedException {
+		long sequence;
+		this.awaitFlush();
+		this.memtableLock.readLock().lock();
+		try {
+			synchronized (this.getRowLock(table, id)) {
+				sequence = this.apply(table, id, Collections.singletonList(new Cell(new Key(id, null, null), ROW_DELETED, null)));
+			}
+		} finally {
+			this.memtableLock.readLock().unlock();
+		}
+		this.sync(sequence);
+	}
+
+	/**
+	 * Counts rows by scanning them.
+	 */
+	@Override
+	public long count(String table, Constraint c) throws DatabaseNotReachedException {
+		Iterator<MergedRow> rows = this.scan(table, c, false);
+		long ret = 0;
+		while (rows.hasNext()) {
+			if (rows.next().exists)
+				ret++;
+		}
+		return ret;
+	}
+
+	private Iterator<MergedRow> scan(String table, Constraint c, boolean descending) {
+		String start = c == null ? null : c.getStartKey(), end = c == null ? null : c.getEndKey();
+		if (start != null && end != null && start.compareTo(end) > 0)
+			return Collections.<MergedRow>emptyList().iterator();
+		Key[] range = new Key[] {start == null ? null : new Key(start, null, null), end == null ? null : Key.afterRow(end)};
+		return new RowMerger(this.getSources(this.getState(), table, range, descending, null), descending);
+	}
+
+	@Override
+	public CloseableKeyIterator get(String table, Constraint c, int limit, Set<String> families) throws DatabaseNotReachedException {
+		return this.get(table, c, limit, families, false);
+	}
+
+	/**
+	 * Rows matching constraint sorted according to their key.
+	 * Segments are read lazily as rows are iterated.
+	 */
+	@Override
+	public CloseableKeyIterator get(String table, Constraint c, final int limit, Set<String> families, boolean descending) throws DatabaseNotReachedException {
+		if (!this.hasTable(table))
+			return new EmptyCloseableIterator();
+		final Iterator<MergedRow> rows = this.scan(table, c, descending);
+		final Set<String> projection = families == null ? null : new TreeSet<String>(families);
+		return new CloseableKeyIterator() {
+			private int count = 0;
+			private MergedRow next = null;
+
+			@Override
+			public boolean hasNext() {
+				while (this.next == null && this.count < limit && rows.hasNext()) {
+					MergedRow r = rows.next();
+					if (r.exists)
+						this.next = r;
+				}
+				return this.next != null;
+			}
+
+			@Override
+			public com.googlecode.n_orm.storeapi.Row next() {
+				if (!this.hasNext())
+					throw new NoSuchElementException();
+				final MergedRow r = this.next;
+				this.next = null;
+				this.count++;
+				final ColumnFamilyData values = r.getValues(projection);
+				return new com.googlecode.n_orm.storeapi.Row() {
+
+					@Override
+					public String getKey() {
+						return r.key;
+					}
+
+					@Override
+					public ColumnFamilyData getValues() {
+						return values;
+					}
+				};
+			}
+
+			@Override
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+
+			@Override
+			public void close() {
+			}
+		};
+	}
+
+	@Override
+	public String toString() {
+		return "log-structured store in " + this.directory;
+	}
+}
@@ -1,41 +1,107 @@
 package com.googlecode.n_orm.memory;
 
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.nio.charset.Charset;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.NoSuchElementException;
+import java.util.HashMap;
 import java.util.NavigableMap;
+import java.util.Queue;
+import java.util.Random;
 import java.util.Set;
+import java.util.SortedSet;
 import java.util.TreeMap;
+import java.util.TreeSet;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ConcurrentSkipListMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
+import com.googlecode.n_orm.Callback;
 import com.googlecode.n_orm.DatabaseNotReachedException;
 import com.googlecode.n_orm.EmptyCloseableIterator;
+import com.googlecode.n_orm.PersistingElement;
+import com.googlecode.n_orm.Process;
+import com.googlecode.n_orm.ProcessException;
+import com.googlecode.n_orm.StorageManagement;
 import com.googlecode.n_orm.Transient;
 import com.googlecode.n_orm.conversion.ConversionTools;
 import com.googlecode.n_orm.memory.Memory.Table.Row;
 import com.googlecode.n_orm.memory.Memory.Table.Row.ColumnFamily;
 import com.googlecode.n_orm.memory.Memory.Table.Row.ColumnFamily.ByteValue;
+import com.googlecode.n_orm.memory.Memory.Table.Row.ColumnFamily.IncrementingValue;
 import com.googlecode.n_orm.memory.Memory.Table.Row.ColumnFamily.Value;
+import com.googlecode.n_orm.storeapi.ActionnableSimpleStore;
+import com.googlecode.n_orm.storeapi.BatchSimpleStore;
+import com.googlecode.n_orm.storeapi.BulkLoadSimpleStore;
 import com.googlecode.n_orm.storeapi.CloseableKeyIterator;
 import com.googlecode.n_orm.storeapi.Constraint;
 import com.googlecode.n_orm.storeapi.DefaultColumnFamilyData;
+import com.googlecode.n_orm.storeapi.MetaInformation;
+import com.googlecode.n_orm.storeapi.MultiGetSimpleStore;
+import com.googlecode.n_orm.storeapi.ReverseScanSimpleStore;
 import com.googlecode.n_orm.storeapi.Row.ColumnFamilyData;
-import com.googlecode.n_orm.storeapi.SimpleStore;
+import com.googlecode.n_orm.storeapi.RowChanges;
+import com.googlecode.n_orm.storeapi.TruncatableSimpleStore;
+import com.googlecode.n_orm.utils.OrderStatisticSet;
+import com.googlecode.n_orm.utils.TimerWheel;
 
 /**
  * Reference implementation for a store based on {@link ConcurrentSkipListMap}.
  * This store entirely resides into memory, and is only available for the current JVM.
  * It is well suited for testing.
  * This store is thread-safe.
- * This store does not supports mixing incrementing and absolute values.
+ * This store does not supports mixing incrementing and absolute values.<br>
+ * This store can optionally survive restarts in case a {@link #setPersistenceDirectory(String) persistence directory} is set before it is {@link #start() started}
+ * (e.g. using a <code>persistenceDirectory</code> property in the store.properties file).
+ * In this mode, each {@link #storeChanges(String, String, ColumnFamilyData, Map, Map) change}, {@link #delete(String, String) deletion} or {@link #reset()} is appended to a write-ahead log
+ * before returning, and the whole store is regularly written as a {@link #snapshot() snapshot} so that the log can be truncated.
+ * On start, latest snapshot is loaded and the log written after it is replayed.<br>
+ * Rows of a table can be set to {@link #setTimeToLive(String, long) expire} some time after they were last changed ;
+ * expired rows are reclaimed in the background using a {@link TimerWheel}.<br>
+ * The memory used by rows can be bounded by a {@link #setCapacity(long) capacity} ; cold rows are then evicted,
+ * either dropped or spilled to an {@link #setOverflowDirectory(String) overflow directory}.
  */
-public class Memory implements SimpleStore {
+public class Memory implements ActionnableSimpleStore, MultiGetSimpleStore, BatchSimpleStore, ReverseScanSimpleStore, TruncatableSimpleStore, BulkLoadSimpleStore {
+	/**
+	 * The number of stripes counting changes being applied (a power of 2), and the distance between two stripes.
+	 * Declared before {@link #INSTANCE} as it is needed to build a store.
+	 */
+	private static final int WRITERS_STRIPES = Integer.highestOneBit(4 * Runtime.getRuntime().availableProcessors() - 1), WRITERS_PADDING = 8;
+	
 	public static final Memory INSTANCE = new Memory();
 	
 	/**
@@ -72,9 +138,10 @@ public class Memory implements SimpleStore {
 		
 		/**
 		 * The actual map owning elements.
+		 * Volatile as a {@link Row} drops its map when {@link Row#spill() spilled}.
 		 */
 		@Transient //Only here to avoid AspectJ weaving
-		protected ConcurrentMap<String, T> map;
+		protected volatile ConcurrentMap<String, T> map;
 		
 		/**
 		 * @param sorted whether this map needs to be sorted according to keys natural order
@@ -83,6 +150,28 @@ public class Memory implements SimpleStore {
 			this.map = sorted ?  new ConcurrentSkipListMap<String,T>() : new ConcurrentHashMap<String, T>();
 		}
 		
+		/**
+		 * Creates an unsorted map expected to hold only a few elements.
+		 * @param expectedSize the expected number of elements
+		 */
+		protected LazyMap(int expectedSize) {
+			this.map = new ConcurrentHashMap<String, T>(expectedSize, 0.75f, 1);
+		}
+		
+		/**
+		 * @param map the actual map owning elements
+		 */
+		protected LazyMap(ConcurrentMap<String, T> map) {
+			this.map = map;
+		}
+		
+		/**
+		 * The map owning elements, as used by methods of this class.
+		 */
+		protected ConcurrentMap<String, T> map() {
+			return this.map;
+		}
+		
 		/**
 		 * The actual map casted to NavigableMap.
 		 * Can throw an exception if this map was not declared as sorted.
@@ -98,6 +187,14 @@ public class Memory implements SimpleStore {
 		 * @return the created element that is not in this map yet
 		 */
 		protected abstract T newElement(String key);
+		
+		/**
+		 * Called by {@link #get(String)} before a new element is created, so that the map can store a canonical instance of the key.
+		 * @return key itself by default
+		 */
+		protected String intern(String key) {
+			return key;
+		}
 
 		/**
 		 * Whether this key is known by this map
@@ -106,7 +203,7 @@ public class Memory implements SimpleStore {
 		public boolean contains(String key) {
 			if (key == null)
 				throw new NullPointerException();
-			return map.containsKey(key);
+			return this.map().containsKey(key);
 		}
 
 		/**
@@ -120,8 +217,9 @@ public class Memory implements SimpleStore {
 				throw new NullPointerException();
 			T ret = this.getNoCreate(key);
 			if (ret == null) {
+				key = this.intern(key);
 				T newT = this.newElement(key);
-				T oldT = this.map.putIfAbsent(key, newT);
+				T oldT = this.map().putIfAbsent(key, newT);
 				ret = oldT == null ? newT : oldT;
 			}
 			return ret;
@@ -135,7 +233,7 @@ public class Memory implements SimpleStore {
 		protected T getNoCreate(String key) {
 			if (key == null)
 				throw new NullPointerException();
-			return map.get(key);
+			return this.map().get(key);
 		}
 
 		/**
@@ -148,7 +246,7 @@ public class Memory implements SimpleStore {
 				throw new NullPointerException();
 			if (value == null)
 				throw new NullPointerException();
-			return map.put(key, value);
+			return this.map().put(key, value);
 		}
 
 
@@ -160,7 +258,7 @@ public class Memory implements SimpleStore {
 		public  T remove(String key) {
 			if (key == null)
 				throw new NullPointerException();
-			return map.remove(key);
+			return this.map().remove(key);
 		}
 
 
@@ -171,14 +269,14 @@ public class Memory implements SimpleStore {
 		public void removeAll(Set<String> keys) {
 			if (keys == null)
 				throw new NullPointerException();
-			map.keySet().removeAll(keys);
+			this.map().keySet().removeAll(keys);
 		}
 
 		/**
 		 * Vacuums this map.
 		 */
 		public void clear() {
-			this.map.clear();
+			this.map().clear();
 		}
 	}
 
@@ -192,11 +290,223 @@ public class Memory implements SimpleStore {
 	 */
 	private static final byte[] NULL_VALUE = new byte[0];
 	
-	private static final ExecutorService ColumnRemover = Executors.newSingleThreadExecutor();
+	/**
+	 * Updaters avoid allocating an {@link AtomicBoolean} for each column family.
+	 */
+	private static final AtomicIntegerFieldUpdater<ColumnFamily> TombstonedUpdater = AtomicIntegerFieldUpdater.newUpdater(ColumnFamily.class, "tombstoned");
+	private static final AtomicIntegerFieldUpdater<ColumnFamily> VersionedUpdater = AtomicIntegerFieldUpdater.newUpdater(ColumnFamily.class, "versioned");
+	private static final AtomicLongFieldUpdater<Row> BytesUpdater = AtomicLongFieldUpdater.newUpdater(Row.class, "bytes");
+	
+	/**
+	 * Estimated number of bytes used by a {@link Row}, a {@link ColumnFamily} and a {@link Value} in addition to their key and value.
+	 * @see Memory#getUsedBytes()
+	 */
+	private static final long ROW_BYTES = 160, FAMILY_BYTES = 128, CELL_BYTES = 80;
+	
+	private static long rowBytes(String key) {
+		return ROW_BYTES + 2 * key.length();
+	}
+	
+	private static long familyBytes(String name) {
+		return FAMILY_BYTES + 2 * name.length();
+	}
+	
+	/**
+	 * @param value the value of the cell ; a {@link Memory#DELETED_VALUE deleted} value is not counted
+	 */
+	private static long cellBytes(String qualifier, byte[] value) {
+		return value == DELETED_VALUE ? 0 : CELL_BYTES + 2 * qualifier.length() + value.length;
+	}
+	
+	private static long incrementBytes(String qualifier) {
+		return CELL_BYTES + 2 * qualifier.length() + 8;
+	}
+	
+	/**
+	 * A past version of a value, only kept while an open {@link ReadSnapshot} may read it.
+	 */
+	private static final class Version {
+		private final long transaction;
+		/**
+		 * {@link #DELETED_VALUE} in case value was deleted
+		 */
+		private final byte[] value;
+		private Version previous;
+		
+		public Version(long transaction, byte[] value, Version previous) {
+			this.transaction = transaction;
+			this.value = value;
+			this.previous = previous;
+		}
+	}
+	
+	/**
+	 * Finds the value visible from a snapshot.
+	 * @return the value from the latest version not newer than the snapshot ; {@link #DELETED_VALUE} if no such version
+	 */
+	private static byte[] getVersion(long snapshot, long transaction, byte[] current, Version previous) {
+		if (transaction <= snapshot)
+			return current;
+		for (Version v = previous; v != null; v = v.previous) {
+			if (v.transaction <= snapshot)
+				return v.value;
+		}
+		return DELETED_VALUE;
+	}
+	
+	/**
+	 * Removes past versions that cannot be read from any open snapshot.
+	 * @param oldestSnapshot the version of the oldest open snapshot ; {@link Long#MAX_VALUE} if none
+	 * @return the past versions to be kept
+	 */
+	private static Version pruneVersions(long oldestSnapshot, long transaction, Version previous) {
+		if (oldestSnapshot == Long.MAX_VALUE || transaction <= oldestSnapshot)
+			return null;
+		for (Version v = previous; v != null; v = v.previous) {
+			if (v.transaction <= oldestSnapshot) {
+				v.previous = null;
+				break;
+			}
+		}
+		return previous;
+	}
+	
+	private static final Logger logger = Logger.getLogger(Memory.class.getName());
+	
+	private static final ExecutorService Snapshotter = Executors.newSingleThreadExecutor(new ThreadFactory() {
+		
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread ret = new Thread(r, "n-orm memory snapshot");
+			ret.setDaemon(true);
+			return ret;
+		}
+	});
+	
+	private static final ScheduledExecutorService Reclaimer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+		
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread ret = new Thread(r, "n-orm memory expiry");
+			ret.setDaemon(true);
+			return ret;
+		}
+	});
+	
+	/**
+	 * Threads running {@link #process(MetaInformation, String, Constraint, Set, Class, Process, Callback) processes} ; one per available processor.
+	 */
+	private static final ExecutorService Processor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+		
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread ret = new Thread(r, "n-orm memory process");
+			ret.setDaemon(true);
+			return ret;
+		}
+	});
+	
+	/**
+	 * Evicts rows in the background once rows read back from the overflow file exceed the capacity of their store.
+	 */
+	private static final ExecutorService Evictor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+		
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread ret = new Thread(r, "n-orm memory eviction");
+			ret.setDaemon(true);
+			return ret;
+		}
+	});
+	
+	/**
+	 * The number of evictable rows sampled to find a row to be evicted, and the number of consecutive samplings that can fail to evict a row before eviction gives up.
+	 * A sampling draws at most EVICTION_SAMPLES * EVICTION_ATTEMPTS rows, as most rows can already be spilled.
+	 */
+	private static final int EVICTION_SAMPLES = 5, EVICTION_ATTEMPTS = 16;
+	
+	/**
+	 * Transaction of rows built by a {@link Memory#load(String, Iterator) bulk load} and not added to their table yet.
+	 */
+	private static final long UNBORN = Long.MAX_VALUE;
+	
+	/**
+	 * The number of rows a {@link Memory#load(String, Iterator) bulk load} builds before adding them to their table.
+	 */
+	private static final int LOAD_BATCH = 1000;
+	
+	/**
+	 * The number of changed keys a table waits for before a writer adds them to its key index.
+	 */
+	private static final int PENDING_KEYS = 4096;
+	
+	/**
+	 * The number of key ranges a process is split into ; more ranges than threads balance ranges that take longer to process.
+	 */
+	private static final int PROCESS_RANGES = 4 * Runtime.getRuntime().availableProcessors();
+	
+	/**
+	 * Duration of a tick of the {@link TimerWheel} for expiring rows, and period between two reclamations of expired rows, in milliseconds.
+	 */
+	private static final long EXPIRY_TICK = 100, RECLAIM_PERIOD = 1000;
+	
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	
+	/**
+	 * Kinds of records in the {@link WriteAheadLog}.
+	 */
+	private static final byte STORE_RECORD = 1, DELETE_RECORD = 2, RESET_RECORD = 3, TRUNCATE_RECORD = 4;
+	
+	/**
+	 * Kinds of values in a snapshot.
+	 */
+	private static final byte END_OF_VALUES = 0, BYTE_VALUE = 1, INCREMENTING_VALUE = 2;
+	
+	private static final int SNAPSHOT_VERSION = 1;
+	
+	static void writeString(DataOutput out, String s) throws IOException {
+		byte[] bytes = s.getBytes(UTF8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+	
+	static String readString(DataInput in) throws IOException {
+		byte[] bytes = new byte[in.readInt()];
+		in.readFully(bytes);
+		return new String(bytes, UTF8);
+	}
+	
+	static void writeNullableString(DataOutput out, String s) throws IOException {
+		out.writeBoolean(s != null);
+		if (s != null)
+			writeString(out, s);
+	}
+	
+	static String readNullableString(DataInput in) throws IOException {
+		return in.readBoolean() ? readString(in) : null;
+	}
+	
+	static void writeBytes(DataOutput out, byte[] bytes) throws IOException {
+		if (bytes == null) {
+			out.writeInt(-1);
+		} else {
+			out.writeInt(bytes.length);
+			out.write(bytes);
+		}
+	}
+	
+	static byte[] readBytes(DataInput in) throws IOException {
+		int length = in.readInt();
+		if (length < 0)
+			return null;
+		byte[] ret = new byte[length];
+		in.readFully(ret);
+		return ret;
+	}
 	
 	/**
 	 * An map to store rows within tables.
-	 * Rows are indexed according to their keys.
+	 * Rows are indexed according to their keys using the {@link Memory#getTableIndex() table index} set when the table was created.
 	 * Rows are sorted within a table according to their key value so that range search can be fast.
 	 */
 	public class Table extends LazyMap<Table.Row> {
@@ -206,8 +516,37 @@ public class Memory implements SimpleStore {
 		 */
 		public final String name;
 		
+		/**
+		 * Keys for live rows in this table, able to count rows in a range in logarithmic time.
+		 * Writers do not maintain this index : they append keys of the rows they add or delete to {@link #pendingKeys},
+		 * which are {@link #syncKeys() synchronized} with {@link #map} by batches or before the index is read.
+		 */
+		private final OrderStatisticSet<String> keys = new OrderStatisticSet<String>();
+		
+		private final ReentrantReadWriteLock keysLock = new ReentrantReadWriteLock();
+		
+		/**
+		 * Keys of rows added to or deleted from {@link #map} and not synchronized with {@link #keys} yet.
+		 * A key must be appended once {@link #map} changed.
+		 */
+		private final Queue<String> pendingKeys = new ConcurrentLinkedQueue<String>();
+		
+		private final AtomicInteger pendingCount = new AtomicInteger();
+		
+		/**
+		 * The number of truncations of this table that were ordered so far ; only incremented holding the write lock of {@link Memory#logLock}.
+		 * @see Row#truncations
+		 */
+		private volatile int truncations = 0;
+		
+		/**
+		 * Canonical family names and qualifiers shared by rows of this table.
+		 * @see Memory#setDictionarySize(int)
+		 */
+		private final Dictionary names = new Dictionary(Memory.this.dictionarySize);
+		
 		public Table(String name) {
-			super(true);
+			super(Memory.this.tableIndex == TableIndex.PREFIX_TREE ? new PrefixTreeMap<Row>() : new ConcurrentSkipListMap<String, Row>());
 			this.name = name;
 		}
 
@@ -219,311 +558,2581 @@ public class Memory implements SimpleStore {
 		}
 		
 		/**
-		 * Creates an {@link Iterator} over the {@link Row}s owned by this table starting from row with the given qualifier.
-		 * @param fromKeyIncl the qualifier of the first row ; if a row with this qualifier does not exist, takes the row with the lowest key greater than fromKeyIncl
-		 * @see Memory#subMap(NavigableMap, String, String)
+		 * Records that the row with the given key was added to or deleted from this table.
+		 * The writer that reaches {@link Memory#PENDING_KEYS} pending keys synchronizes the index, unless another thread is using it.
 		 */
-		public Iterator<Row> getRowIterator(String fromKeyIncl) {
-			return subMap(this.getNavigableMap(), fromKeyIncl, null).values().iterator();
+		private void changed(String key) {
+			this.pendingKeys.add(key);
+			if (this.pendingCount.incrementAndGet() >= PENDING_KEYS && this.keysLock.writeLock().tryLock()) {
+				try {
+					this.syncKeys();
+				} finally {
+					this.keysLock.writeLock().unlock();
+				}
+			}
 		}
 		
 		/**
-		 * A row owning a set of Column families.
-		 * Column families are created lazily as soon as they are requested by {@link #get(String)}.
+		 * Synchronizes {@link #keys} with {@link #map} for pending keys ; must be called holding the write lock of {@link #keysLock}.
+		 * A key is indexed if and only if its row is in the table and not deleted, whatever the order changes were recorded.
 		 */
-		public class Row extends LazyMap<Row.ColumnFamily> implements com.googlecode.n_orm.storeapi.Row {
-			/**
-			 * The identifier for this row
-			 */
-			public final String key;
-			
-			/**
-			 * The next transaction number.
-			 * Should increment over time.
-			 */
-			private AtomicLong nextTransactionId = new AtomicLong(Long.MIN_VALUE);
-			
-			public Row(String key) {
-				super(false);
-				this.key = key;
-			}
-
-			/**
-			 * Creates a column family according to its name.
-			 */
-			@Override
-			protected ColumnFamily newElement(String name) {
-				return new ColumnFamily(name);
-			}
-
-			/**
-			 * The key for this row.
-			 */
-			@Override
-			public String getKey() {
-				return key;
+		private void syncKeys() {
+			String key;
+			while ((key = this.pendingKeys.poll()) != null) {
+				this.pendingCount.decrementAndGet();
+				Row r = this.map.get(key);
+				if (r != null && !r.isDeleted())
+					this.keys.add(key);
+				else
+					this.keys.remove(key);
 			}
-
-			@Override
-			public ColumnFamilyData getValues() {
-				ColumnFamilyData ret = new DefaultColumnFamilyData();
-				for (Entry<String, ColumnFamily> element : map.entrySet()) {
-					ret.put(element.getKey(), element.getValue().getValues(null, null));
+		}
+		
+		/**
+		 * Takes the read lock of {@link #keysLock} once pending keys are {@link #syncKeys() synchronized}.
+		 */
+		private void lockKeys() {
+			if (!this.pendingKeys.isEmpty()) {
+				keysLock.writeLock().lock();
+				try {
+					this.syncKeys();
+					//Downgrading so that changes made up to now are seen
+					keysLock.readLock().lock();
+				} finally {
+					keysLock.writeLock().unlock();
 				}
+			} else {
+				keysLock.readLock().lock();
+			}
+		}
+		
+		@Override
+		public Row get(String key) {
+			Row ret = this.getNoCreate(key);
+			if (ret != null)
 				return ret;
+			ret = super.get(key);
+			this.changed(key);
+			return ret;
+		}
+		
+		/**
+		 * Returns the current row with the given key.
+		 * In case the row was deleted while kept for an open {@link ReadSnapshot}, a new row replaces it.
+		 * @param transaction the transaction that is about to change the row
+		 */
+		public Row getLive(String key, long transaction) {
+			while (true) {
+				Row ret = this.getNoCreate(key);
+				if (ret == null) {
+					Row created = new Row(key, transaction, null);
+					ret = this.map.putIfAbsent(key, created);
+					if (ret == null) {
+						this.changed(key);
+						return created;
+					}
+				}
+				synchronized (ret) {
+					if (ret.detached)
+						continue;
+					if (!ret.isDeleted())
+						return ret;
+				}
+				Row reborn = new Row(key, transaction, ret);
+				if (this.map.replace(key, ret, reborn)) {
+					this.changed(key);
+					reborn.registerVersioned();
+					return reborn;
+				}
 			}
-			
-			public long createTransaction() {
-				return this.nextTransactionId.incrementAndGet();
+		}
+		
+		/**
+		 * Marks a row as deleted, keeping it for open {@link ReadSnapshot}s.
+		 * @param transaction the deleting transaction
+		 */
+		private void kill(String key, long transaction) {
+			Row r = this.map.get(key);
+			if (r == null)
+				return;
+			synchronized (r) {
+				if (r.isDeleted())
+					return;
+				r.deletedAt = transaction;
 			}
-
-			/**
-			 * A column family owning values.
-			 * Values are sorted according to their qualifier so that rage search can be fast.
-			 */
-			public class ColumnFamily extends LazyMap<ColumnFamily.Value<?>> {
-				/**
-				 * The name for this column family
-				 */
-				public final String name;
-				
-				public ColumnFamily(String name) {
-					super(true);
-					this.name = name;
+			this.changed(key);
+			r.release();
+			r.registerVersioned();
+			//In case last snapshot was closed meanwhile
+			if (Memory.this.newestSnapshot == Long.MIN_VALUE)
+				Memory.this.collectVersions();
+		}
+		
+		/**
+		 * Removes a deleted row in case no open {@link ReadSnapshot} can read it anymore.
+		 */
+		private void removeDead(Row r) {
+			synchronized (r) {
+				if (r.detached || !r.isDeleted() || Memory.this.isVisible(r.bornAt, r.deletedAt))
+					return;
+				if (this.map.remove(r.key, r))
+					r.detach();
+			}
+		}
+		
+		/**
+		 * Deletes an expired row ; a deleted row is kept for open {@link ReadSnapshot}s.
+		 * @param transaction the deleting transaction
+		 * @return whether the row was deleted
+		 */
+		private boolean reclaim(Row r, long transaction) {
+			synchronized (r) {
+				if (r.detached || r.isDeleted() || !r.isExpired())
+					return false;
+				if (Memory.this.newestSnapshot == Long.MIN_VALUE) {
+					if (!this.map.remove(r.key, r))
+						return false;
+					r.detach();
+				} else {
+					r.deletedAt = transaction;
+					r.release();
 				}
-
-				/**
-				 * Creates a byte value
-				 */
-				@Override
-				protected Value<?> newElement(String qualifier) {
-					return new ByteValue(qualifier);
+			}
+			this.changed(r.key);
+			if (r.isDeleted())
+				r.registerVersioned();
+			return true;
+		}
+		
+		/**
+		 * Orders a new truncation of this table ; must be called holding the write lock of {@link Memory#logLock}
+		 * so that rows written by changes logged after the truncation are not deleted by the truncation.
+		 * @return the truncation to be passed to {@link #truncate(String, String, int)}
+		 */
+		private int orderTruncation() {
+			assert Memory.this.logLock.isWriteLockedByCurrentThread();
+			return ++this.truncations;
+		}
+		
+		/**
+		 * Deletes all rows whose key is included between fromKeyIncl and toKeyIncl and that were last written before the truncation was {@link #orderTruncation() ordered} ;
+		 * deleted rows are kept for open {@link ReadSnapshot}s.
+		 * Rows are unlinked from the index in a single pass, each under its row lock as for a {@link Memory#delete(String, String) deletion},
+		 * and the key index is cut in logarithmic time.
+		 * @param fromKeyIncl the lowest key ; null means no lower bound
+		 * @param toKeyIncl the highest key ; null means no higher bound
+		 * @param truncation the truncation as returned by {@link #orderTruncation()}
+		 */
+		private void truncate(String fromKeyIncl, String toKeyIncl, int truncation) {
+			List<Row> killed = new ArrayList<Row>();
+			List<String> kept = new ArrayList<String>();
+			//Keys are not synchronized meanwhile : rows added in range during the pass are indexed again afterwards
+			keysLock.writeLock().lock();
+			try {
+				Iterator<Row> rows = this.getRowIterator(fromKeyIncl, toKeyIncl, false);
+				while (rows.hasNext()) {
+					Row r = rows.next();
+					synchronized (Memory.this.rowLock(this.name, r.key)) {
+						//Snapshots are not opened while a row is deleted
+						long transaction = Memory.this.beginChange();
+						try {
+							synchronized (r) {
+								if (r.detached || r.isDeleted())
+									continue;
+								if (r.truncations >= truncation) {
+									//Written after the truncation was ordered
+									kept.add(r.key);
+								} else if (Memory.this.newestSnapshot == Long.MIN_VALUE) {
+									rows.remove();
+									r.detach();
+								} else {
+									r.deletedAt = transaction;
+									r.release();
+									killed.add(r);
+								}
+							}
+						} finally {
+							Memory.this.endChange();
+						}
+					}
 				}
-
-				/**
-				 * Increments the value at the given key.
-				 * @param qualifier the qualifier of the incremented value
-				 * @param increment the non-null increment to be applied
-				 */
-				public void incr(String qualifier, Number increment) {
-					assert increment.longValue() != 0 : "Received a 0 increment for table" + Table.this.name + ", row " + Row.this.key + ", family " + this.name + ", qualifier " + key; 
-					IncrementingValue newVal = new IncrementingValue(qualifier, increment.longValue());
-					Value<?> oldVal = this.map.putIfAbsent(qualifier, newVal);
-					if (oldVal == null)
-						return;
-					else if (! (oldVal instanceof IncrementingValue))
-						throw new IllegalStateException("Cannot increment a byte array value (value for " + qualifier + " in family " + this.name + " fro row " + Row.this.key + " in table " + Table.this.name + " is already set a non incrementing way");
-					((IncrementingValue)oldVal).increment(increment.longValue());
+				this.keys.removeRange(fromKeyIncl, toKeyIncl);
+				for (String key : kept) {
+					this.keys.add(key);
 				}
-				
-				/**
-				 * The set of values in this column family mapped according to their qualifier.
-				 * Qualifiers must be included between fromQualifierIncl and toQualifierIcl
-				 */
-				public Map<String, byte[]> getValues(String fromQualifierIncl, String toQualifierIcl) {
-					Map<String, byte[]> ret = new TreeMap<String,byte[]>();
-					for (Entry<String, Value<?>> element : subMap(this.getNavigableMap(), fromQualifierIncl, toQualifierIcl).entrySet()) {
-						byte[] val = element.getValue().getBytes();
-						if (val != DELETED_VALUE)
-							ret.put(element.getKey(), val);
+			} finally {
+				keysLock.writeLock().unlock();
+			}
+			if (!killed.isEmpty()) {
+				for (Row r : killed) {
+					r.registerVersioned();
+				}
+				//In case last snapshot was closed meanwhile
+				if (Memory.this.newestSnapshot == Long.MIN_VALUE)
+					Memory.this.collectVersions();
+			}
+		}
+		
+		/**
+		 * Removes a row to bound the memory used by this store ; must be called while the row is {@link Row#isEvictable() evictable}.
+		 * @return whether the row was removed
+		 */
+		private boolean evict(Row r) {
+			synchronized (r) {
+				if (r.detached || r.isDeleted() || !this.map.remove(r.key, r))
+					return false;
+				r.detach();
+			}
+			this.changed(r.key);
+			return true;
+		}
+		
+		/**
+		 * A row of this table picked at random ; null if this table has no row, or if the picked row was removed meanwhile.
+		 */
+		private Row sample(Random random) {
+			this.lockKeys();
+			try {
+				int size = this.keys.size();
+				return size == 0 ? null : this.map.get(this.keys.select(random.nextInt(size)));
+			} finally {
+				keysLock.readLock().unlock();
+			}
+		}
+		
+		/**
+		 * Makes this table own a row built apart by a {@link Memory#load(String, Iterator) bulk load}, unless a row with the same key exists.
+		 * @param r a row created with {@link Memory#UNBORN}
+		 * @param transaction the transaction creating the row
+		 * @return whether the row was added
+		 */
+		private boolean publish(Row r, long transaction) {
+			r.bornAt = transaction;
+			return this.map.putIfAbsent(r.key, r) == null;
+		}
+		
+		/**
+		 * Adds keys of rows {@link #publish(Row, long) published} by a bulk load to the index.
+		 * @param keys keys in strictly ascending order
+		 */
+		private void published(List<String> keys) {
+			List<String> live = new ArrayList<String>(keys.size());
+			keysLock.writeLock().lock();
+			try {
+				this.syncKeys();
+				//Rows deleted since they were published already recorded their key
+				for (String key : keys) {
+					Row r = this.map.get(key);
+					if (r != null && !r.isDeleted())
+						live.add(key);
+				}
+				try {
+					//Sorted keys after all indexed keys are added in linear time
+					this.keys.addAllSorted(live);
+				} catch (IllegalArgumentException x) {
+					for (String key : live) {
+						this.keys.add(key);
 					}
+				}
+			} finally {
+				keysLock.writeLock().unlock();
+			}
+		}
+		
+		@Override
+		public Row put(String key, Row value) {
+			Row ret = super.put(key, value);
+			this.changed(key);
+			return ret;
+		}
+		
+		@Override
+		public Row remove(String key) {
+			Row ret = super.remove(key);
+			if (ret != null) {
+				this.changed(key);
+				ret.detach();
+			}
+			return ret;
+		}
+		
+		@Override
+		public void removeAll(Set<String> ids) {
+			if (ids == null)
+				throw new NullPointerException();
+			for (String key : ids) {
+				this.remove(key);
+			}
+		}
+		
+		@Override
+		public void clear() {
+			keysLock.writeLock().lock();
+			try {
+				for (Row r : this.map.values()) {
+					r.detach();
+				}
+				super.clear();
+				this.keys.clear();
+				this.syncKeys();
+			} finally {
+				keysLock.writeLock().unlock();
+			}
+		}
+		
+		/**
+		 * The number of rows in this table whose key is included between fromKeyIncl and toKeyIncl.
+		 * Takes a logarithmic time according to the number of rows in this table.
+		 * @param fromKeyIncl the lowest key ; null means no lower bound
+		 * @param toKeyIncl the highest key ; null means no higher bound
+		 */
+		public long count(String fromKeyIncl, String toKeyIncl) {
+			this.lockKeys();
+			try {
+				return this.keys.count(fromKeyIncl, toKeyIncl);
+			} finally {
+				keysLock.readLock().unlock();
+			}
+		}
+		
+		/**
+		 * The number of rows among the given ones that belong to this table, whose key is included between fromKeyIncl and toKeyIncl,
+		 * and that expired but were not reclaimed yet.
+		 */
+		private long countExpired(Collection<Row> rows, String fromKeyIncl, String toKeyIncl) {
+			long now = System.currentTimeMillis(), ret = 0;
+			for (Row r : rows) {
+				if (r.getTable() != this
+						|| (fromKeyIncl != null && r.getKey().compareTo(fromKeyIncl) < 0)
+						|| (toKeyIncl != null && r.getKey().compareTo(toKeyIncl) > 0))
+					continue;
+				synchronized (r) {
+					if (!r.detached && !r.isDeleted() && r.isExpired(now))
+						ret++;
+				}
+			}
+			return ret;
+		}
+		
+		/**
+		 * Splits rows whose key is included between fromKeyIncl and toKeyIncl into ranges holding about the same number of rows.
+		 * Takes a logarithmic time for each range.
+		 * @param ranges the maximum number of ranges
+		 * @return the lowest key of each range in ascending order, the first one being fromKeyIncl ; empty if no row is in range
+		 */
+		public List<String> split(String fromKeyIncl, String toKeyIncl, int ranges) {
+			this.lockKeys();
+			try {
+				List<String> ret = new ArrayList<String>(ranges);
+				int count = this.keys.count(fromKeyIncl, toKeyIncl);
+				if (count == 0)
 					return ret;
+				int first = fromKeyIncl == null ? 0 : this.keys.rank(fromKeyIncl, false);
+				ranges = Math.min(ranges, count);
+				ret.add(fromKeyIncl);
+				for (int i = 1; i < ranges; ++i) {
+					ret.add(this.keys.select(first + (int)((long)count * i / ranges)));
 				}
-				
-				@Override
-				public final Value<?> remove(String key) {
-					throw new IllegalStateException("Cannot remove a column without a transaction number");
+				return ret;
+			} finally {
+				keysLock.readLock().unlock();
+			}
+		}
+		
+		/**
+		 * Creates an {@link Iterator} over the {@link Row}s owned by this table starting from row with the given qualifier.
+		 * @param fromKeyIncl the qualifier of the first row ; if a row with this qualifier does not exist, takes the row with the lowest key greater than fromKeyIncl
+		 * @see Memory#subMap(NavigableMap, String, String)
+		 */
+		@SuppressWarnings("unchecked")
+		public Iterator<Row> getRowIterator(String fromKeyIncl) {
+			if (this.map instanceof PrefixTreeMap)
+				return ((PrefixTreeMap<Row>)this.map).values(fromKeyIncl, null, false);
+			return subMap(this.getNavigableMap(), fromKeyIncl, null).values().iterator();
+		}
+		
+		/**
+		 * Creates an {@link Iterator} over the {@link Row}s owned by this table whose key is included between fromKeyIncl and toKeyIncl.
+		 * @param fromKeyIncl the lowest key ; null means no lower bound
+		 * @param toKeyIncl the highest key ; null means no higher bound
+		 * @param descending whether rows are iterated from the highest key to the lowest one
+		 * @see Memory#subMap(NavigableMap, String, String)
+		 */
+		@SuppressWarnings("unchecked")
+		public Iterator<Row> getRowIterator(String fromKeyIncl, String toKeyIncl, boolean descending) {
+			if (fromKeyIncl != null && toKeyIncl != null && fromKeyIncl.compareTo(toKeyIncl) > 0)
+				return Collections.<Row>emptyList().iterator();
+			if (this.map instanceof PrefixTreeMap)
+				return ((PrefixTreeMap<Row>)this.map).values(fromKeyIncl, toKeyIncl, descending);
+			NavigableMap<String, Row> rows = subMap(this.getNavigableMap(), fromKeyIncl, toKeyIncl);
+			return (descending ? rows.descendingMap() : rows).values().iterator();
+		}
+		
+		/**
+		 * A row owning a set of Column families.
+		 * Column families are created lazily as soon as they are requested by {@link #get(String)}.
+		 */
+		public class Row extends LazyMap<Row.ColumnFamily> implements com.googlecode.n_orm.storeapi.Row {
+			/**
+			 * The identifier for this row
+			 */
+			public final String key;
+			
+			/**
+			 * The transaction that created this row ; {@link Memory#UNBORN} while the row is built by a {@link Memory#load(String, Iterator) bulk load}.
+			 * Only set before the row is added to its table.
+			 */
+			private long bornAt;
+			
+			/**
+			 * The transaction that deleted this row ; {@link Long#MAX_VALUE} if not deleted.
+			 * A deleted row is only kept in its table for open {@link ReadSnapshot}s.
+			 */
+			private volatile long deletedAt = Long.MAX_VALUE;
+			
+			/**
+			 * The deleted row this row replaced, kept for open {@link ReadSnapshot}s.
+			 */
+			private volatile Row previousIncarnation;
+			
+			/**
+			 * The time in milliseconds at which this row expires ; {@link Long#MAX_VALUE} if it never expires.
+			 * @see Memory#setTimeToLive(String, long)
+			 */
+			private volatile long expiresAt = Long.MAX_VALUE;
+			
+			/**
+			 * The number of {@link Table#truncations truncations} of its table ordered before this row was created or last written ;
+			 * a truncation only deletes rows it was ordered after.
+			 */
+			private volatile int truncations;
+			
+			/**
+			 * Whether this row was removed from its table.
+			 */
+			private boolean detached = false;
+			
+			/**
+			 * Whether this row is scheduled in the {@link Memory#expiries expiry wheel}.
+			 */
+			private boolean scheduled = false;
+			
+			/**
+			 * Whether this row is registered for version collection.
+			 */
+			private boolean versioned = false;
+			
+			/**
+			 * The estimated number of bytes used by this row ; 0 until first written, and once deleted.
+			 * @see Memory#getUsedBytes()
+			 */
+			protected volatile long bytes = 0;
+			
+			/**
+			 * When this row was last read or written, in units of 16 milliseconds ; only maintained while {@link Memory#getCapacity() capacity} is bounded.
+			 */
+			private volatile int accessedAt = 0;
+			
+			/**
+			 * The offset of the record of this row in the {@link Memory#overflow overflow file} while this row is {@link #spill() spilled} ; -1 otherwise.
+			 * A spilled row has no {@link #map}.
+			 */
+			private long spilledAt = -1;
+			
+			public Row(String key) {
+				this(key, Long.MIN_VALUE, null);
+			}
+			
+			private Row(String key, long bornAt, Row previousIncarnation) {
+				super(4);
+				this.key = key;
+				this.bornAt = bornAt;
+				this.previousIncarnation = previousIncarnation;
+				this.truncations = Table.this.truncations;
+			}
+			
+			private Table getTable() {
+				return Table.this;
+			}
+			
+			/**
+			 * Whether this row was deleted.
+			 */
+			public boolean isDeleted() {
+				return this.deletedAt != Long.MAX_VALUE;
+			}
+			
+			/**
+			 * Whether this row reached the end of its time to live.
+			 * An expired row is considered as deleted even though it was not reclaimed yet.
+			 */
+			public boolean isExpired() {
+				return this.isExpired(System.currentTimeMillis());
+			}
+			
+			/**
+			 * Whether this row reached the end of its time to live at the given time in milliseconds.
+			 */
+			private boolean isExpired(long at) {
+				long e = this.expiresAt;
+				return e != Long.MAX_VALUE && e <= at;
+			}
+			
+			/**
+			 * Postpones the expiration of this row.
+			 * @param expiresAt the new expiration time in milliseconds
+			 * @return false in case this row cannot be written anymore as it expired or was removed
+			 */
+			private boolean touch(long expiresAt) {
+				synchronized (this) {
+					if (this.detached || this.isDeleted() || this.isExpired())
+						return false;
+					this.expiresAt = expiresAt;
+					if (this.scheduled)
+						return true;
+					this.scheduled = true;
 				}
-
-				@Override
-				public final void removeAll(Set<String> keys) {
-					throw new IllegalStateException("Cannot remove a column without a transaction number");
+				Memory.this.scheduleExpiry(this, expiresAt);
+				return true;
+			}
+			
+			/**
+			 * Reclaims this row in case it expired, or schedules it again in case its expiration was postponed.
+			 */
+			private void expire() {
+				synchronized (this) {
+					long e = this.expiresAt;
+					if (!this.detached && !this.isDeleted() && e > System.currentTimeMillis()) {
+						Memory.this.scheduleExpiry(this, e);
+						return;
+					}
+					this.scheduled = false;
 				}
-
-				public abstract class Value<T> {
-					/**
-					 * The qualifier for this value
-					 */
-					public final String qualifier;
-					
-					/**
-					 * Creates a value that cannot be incremented
-					 */
-					public Value(String qualifier) {
-						this.qualifier = qualifier;
+				Memory.this.reclaim(Table.this, this);
+			}
+			
+			/**
+			 * The incarnation of this row that can be read from a snapshot ; null if row did not exist.
+			 */
+			private Row getVersion(long snapshot) {
+				Row r = this;
+				while (r != null && r.bornAt > snapshot)
+					r = r.previousIncarnation;
+				return r != null && r.deletedAt > snapshot ? r : null;
+			}
+			
+			private void registerVersioned() {
+				synchronized (this) {
+					if (this.versioned)
+						return;
+					this.versioned = true;
+				}
+				Memory.this.versionedRows.add(this);
+			}
+			
+			/**
+			 * Forgets previous incarnations and removes this row if deleted, in case no open snapshot can read them.
+			 * @return whether this row still needs to be collected later
+			 */
+			private boolean collectVersions() {
+				boolean dead;
+				synchronized (this) {
+					Row last = this;
+					Row p = this.previousIncarnation;
+					while (p != null) {
+						Row next = p.previousIncarnation;
+						if (Memory.this.isVisible(p.bornAt, p.deletedAt)) {
+							last.previousIncarnation = p;
+							last = p;
+						}
+						p = next;
 					}
-					
-					/**
-					 * The byte array representation for this value.
-					 */
-					public abstract byte[] getBytes();
+					last.previousIncarnation = null;
+					dead = this.isDeleted();
 				}
-				
-				public class ByteValue extends Value<byte[]> {
-					
-					/**
-					 * The actual value for this value.
-					 * Stored in a map according to transaction ids.
-					 * Last entry holds the actual value.
-					 */
-					protected NavigableMap<Long /* last change */, byte[]> value = new ConcurrentSkipListMap<Long, byte[]>();
-					
-					protected ReentrantReadWriteLock deletionLock = new ReentrantReadWriteLock();
+				if (dead)
+					Table.this.removeDead(this);
+				synchronized (this) {
+					this.versioned = this.previousIncarnation != null || (dead && !this.detached);
+					return this.versioned;
+				}
+			}
 
-					public ByteValue(String qualifier) {
-						super(qualifier);
-						this.value.put(Long.MIN_VALUE, DELETED_VALUE);
-					}
-					
-					public byte[] getValue() {
-						Entry<Long, byte[]> lastEntry = this.value.lastEntry();
-						if (lastEntry == null)
-							return DELETED_VALUE;
-						byte[] ret = lastEntry.getValue();
-						return ret == null ? NULL_VALUE : ret;
-					}
-					
-					public void setValue(byte[] value, long transaction) {
-						if (value == null) value = NULL_VALUE;
-						deletionLock.readLock().lock();
+			/**
+			 * Creates a column family according to its name.
+			 */
+			@Override
+			protected ColumnFamily newElement(String name) {
+				return new ColumnFamily(name);
+			}
+			
+			@Override
+			protected String intern(String name) {
+				return Table.this.names.intern(name);
+			}
+			
+			/**
+			 * Reads column families back from the overflow file in case this row was spilled.
+			 */
+			@Override
+			protected ConcurrentMap<String, ColumnFamily> map() {
+				ConcurrentMap<String, ColumnFamily> ret = this.map;
+				return ret == null ? this.unspill() : ret;
+			}
+			
+			/**
+			 * Records that this row was read or written, so that the coldest rows are evicted first.
+			 * The clock is coarse so that hot rows are seldom written.
+			 */
+			private void access() {
+				if (Memory.this.capacity <= 0)
+					return;
+				int now = (int)(System.currentTimeMillis() >> 4);
+				if (this.accessedAt != now)
+					this.accessedAt = now;
+			}
+			
+			/**
+			 * Whether this row can be {@link Memory#evict(Table, Row) evicted}.
+			 * While a {@link ReadSnapshot} is open, only rows created after the newest open snapshot can be evicted,
+			 * as no open snapshot can see them nor their past versions.
+			 */
+			private boolean isEvictable() {
+				if (this.map == null || this.detached || this.isDeleted())
+					return false;
+				long newest = Memory.this.newestSnapshot;
+				return newest == Long.MIN_VALUE || (this.bornAt > newest && this.previousIncarnation == null);
+			}
+			
+			/**
+			 * Accounts for a change of the data held by this row ; the row itself is accounted for when first written.
+			 * @param delta the estimated number of bytes added to this row, or removed if negative
+			 */
+			private void addBytes(long delta) {
+				if (BytesUpdater.getAndAdd(this, delta) == 0) {
+					long b = rowBytes(this.key);
+					BytesUpdater.addAndGet(this, b);
+					delta += b;
+				}
+				if (delta != 0)
+					Memory.this.usedBytes.addAndGet(delta);
+				if (this.detached || this.isDeleted())
+					this.release();
+			}
+			
+			/**
+			 * Stops accounting for this row as it was deleted.
+			 */
+			private void release() {
+				long b = BytesUpdater.getAndSet(this, 0);
+				if (b != 0)
+					Memory.this.usedBytes.addAndGet(-b);
+			}
+			
+			/**
+			 * States that this row was removed from its table.
+			 */
+			private void detach() {
+				synchronized (this) {
+					this.detached = true;
+					if (this.map == null) {
+						this.map = new ConcurrentHashMap<String, ColumnFamily>(1, 0.75f, 1);
 						try {
-							if (this.value.isEmpty()) {
-								// We've been deleted by a checkRemove ; retrying operation
-								ByteValue newVal = (ByteValue)ColumnFamily.this.get(this.qualifier);
-								assert newVal != this;
-								newVal.setValue(value, transaction);
-							} else {
-								this.value.put(transaction, value);
-							}
+							Memory.this.overflow.free(this.spilledAt);
+						} catch (IOException x) {
+							throw new DatabaseNotReachedException(x);
 						} finally {
-							deletionLock.readLock().unlock();
+							this.spilledAt = -1;
 						}
-						this.value.pollFirstEntry();
+					}
+				}
+				this.release();
+			}
+			
+			/**
+			 * Writes column families to the {@link Memory#overflow overflow file} and forgets them until they are read again.
+			 * Must be called holding the lock for this row while this row is {@link #isEvictable() evictable},
+			 * so that no change is applied meanwhile and past versions are not needed.
+			 * @return whether this row was spilled
+			 */
+			private boolean spill() throws IOException {
+				long freed;
+				synchronized (this) {
+					ConcurrentMap<String, ColumnFamily> m = this.map;
+					freed = this.bytes - rowBytes(this.key);
+					if (m == null || this.detached || this.isDeleted() || freed <= 0)
+						return false;
+					ByteArrayOutputStream record = new ByteArrayOutputStream();
+					Memory.writeFamilies(new DataOutputStream(record), m.values());
+					this.spilledAt = Memory.this.getOverflow().append(record.toByteArray());
+					this.map = null;
+				}
+				this.addBytes(-freed);
+				return true;
+			}
+			
+			private ConcurrentMap<String, ColumnFamily> unspill() {
+				ConcurrentMap<String, ColumnFamily> ret;
+				long read;
+				synchronized (this) {
+					ret = this.map;
+					if (ret != null)
+						return ret;
+					ret = new ConcurrentHashMap<String, ColumnFamily>(4, 0.75f, 1);
+					try {
+						OverflowFile o = Memory.this.overflow;
+						DataInputStream in = new DataInputStream(new ByteArrayInputStream(o.read(this.spilledAt)));
+						//Values are older than any open snapshot that can see this row
+						read = Memory.this.readFamilies(in, this, ret, Long.MIN_VALUE);
+						o.free(this.spilledAt);
+					} catch (IOException x) {
+						throw new DatabaseNotReachedException(x);
+					}
+					this.spilledAt = -1;
+					this.map = ret;
+				}
+				this.addBytes(read);
+				Memory.this.enforceCapacityInBackground();
+				return ret;
+			}
+			
+			/**
+			 * Writes column families as they were when a snapshot was taken, as done by {@link Memory#writeFamilies(DataOutput, Collection, long)},
+			 * without reading them back in case this row is spilled.
+			 */
+			private void writeFamilies(DataOutput out, long snapshot) throws IOException {
+				ConcurrentMap<String, ColumnFamily> m;
+				synchronized (this) {
+					m = this.map;
+					if (m == null) {
+						//Spilled values are older than any open snapshot
+						out.write(Memory.this.overflow.read(this.spilledAt));
+						return;
+					}
+				}
+				Memory.writeFamilies(out, m.values(), snapshot);
+			}
+
+			/**
+			 * The key for this row.
+			 */
+			@Override
+			public String getKey() {
+				return key;
+			}
+
+			@Override
+			public ColumnFamilyData getValues() {
+				ColumnFamilyData ret = new DefaultColumnFamilyData();
+				for (Entry<String, ColumnFamily> element : this.map().entrySet()) {
+					ret.put(element.getKey(), element.getValue().getValues(null, null));
+				}
+				return ret;
+			}
+			
+			/**
+			 * The transaction number for changes applied now, not visible from {@link ReadSnapshot}s open up to now.
+			 */
+			public long createTransaction() {
+				return Memory.this.epoch;
+			}
+
+			/**
+			 * A column family owning values.
+			 * Values are sorted according to their qualifier so that rage search can be fast.
+			 */
+			public class ColumnFamily extends LazyMap<ColumnFamily.Value<?>> implements TombstoneCompactor.Compactable {
+				/**
+				 * The name for this column family
+				 */
+				public final String name;
+				
+				/**
+				 * 1 in case this column family is registered to the {@link TombstoneCompactor} ; 0 otherwise.
+				 */
+				protected volatile int tombstoned = 0;
+				
+				/**
+				 * 1 in case this column family holds past versions for open {@link ReadSnapshot}s ; 0 otherwise.
+				 */
+				protected volatile int versioned = 0;
+				
+				public ColumnFamily(String name) {
+					super(true);
+					this.name = name;
+				}
+				
+				/**
+				 * Registers this column family to the {@link TombstoneCompactor} unless already done.
+				 */
+				private void registerTombstone() {
+					if (TombstonedUpdater.compareAndSet(this, 0, 1))
+						TombstoneCompactor.register(this);
+				}
+				
+				private void registerVersioned() {
+					if (VersionedUpdater.compareAndSet(this, 0, 1))
+						Memory.this.versionedFamilies.add(this);
+				}
+				
+				/**
+				 * Forgets past versions that cannot be read from any open snapshot anymore.
+				 * @return whether some past versions are still kept
+				 */
+				private boolean collectVersions() {
+					this.versioned = 0;
+					boolean ret = false;
+					long oldest = Memory.this.oldestSnapshot;
+					for (Value<?> val : this.map.values()) {
+						ret |= val.pruneVersions(oldest);
+					}
+					if (ret)
+						this.registerVersioned();
+					else
+						this.registerTombstone();
+					return ret;
+				}
+				
+				/**
+				 * Removes deleted values from this column family.
+				 */
+				@Override
+				public long compact() {
+					//Values deleted from now on will register again
+					this.tombstoned = 0;
+					long ret = 0;
+					for (Value<?> val : this.map.values()) {
+						if (val instanceof ByteValue && ((ByteValue)val).checkRemove())
+							ret++;
+					}
+					return ret;
+				}
+
+				/**
+				 * Creates a byte value
+				 */
+				@Override
+				protected Value<?> newElement(String qualifier) {
+					return new ByteValue(qualifier);
+				}
+				
+				@Override
+				protected String intern(String qualifier) {
+					return Table.this.names.intern(qualifier);
+				}
+
+				/**
+				 * Increments the value at the given key.
+				 * @param qualifier the qualifier of the incremented value
+				 * @param increment the non-null increment to be applied
+				 * @param transaction the transaction performing the increment
+				 */
+				public void incr(String qualifier, Number increment, long transaction) {
+					assert increment.longValue() != 0 : "Received a 0 increment for table" + Table.this.name + ", row " + Row.this.key + ", family " + this.name + ", qualifier " + key; 
+					Value<?> oldVal = this.map.get(qualifier);
+					if (oldVal == null) {
+						IncrementingValue newVal = new IncrementingValue(this.intern(qualifier), increment.longValue(), transaction);
+						oldVal = this.map.putIfAbsent(newVal.qualifier, newVal);
+						if (oldVal == null)
+							return;
+					}
+					if (! (oldVal instanceof IncrementingValue))
+						throw new IllegalStateException("Cannot increment a byte array value (value for " + qualifier + " in family " + this.name + " fro row " + Row.this.key + " in table " + Table.this.name + " is already set a non incrementing way");
+					((IncrementingValue)oldVal).increment(increment.longValue(), transaction);
+				}
+				
+				/**
+				 * The set of values in this column family mapped according to their qualifier.
+				 * Qualifiers must be included between fromQualifierIncl and toQualifierIcl
+				 */
+				public Map<String, byte[]> getValues(String fromQualifierIncl, String toQualifierIcl) {
+					Map<String, byte[]> ret = new TreeMap<String,byte[]>();
+					for (Entry<String, Value<?>> element : subMap(this.getNavigableMap(), fromQualifierIncl, toQualifierIcl).entrySet()) {
+						byte[] val = element.getValue().getBytes();
+						if (val != DELETED_VALUE)
+							ret.put(element.getKey(), val);
+					}
+					return ret;
+				}
+				
+				/**
+				 * The set of values in this column family as they were when a snapshot was taken.
+				 * @see #getValues(String, String)
+				 */
+				public Map<String, byte[]> getValues(long snapshot, String fromQualifierIncl, String toQualifierIcl) {
+					Map<String, byte[]> ret = new TreeMap<String,byte[]>();
+					for (Entry<String, Value<?>> element : subMap(this.getNavigableMap(), fromQualifierIncl, toQualifierIcl).entrySet()) {
+						byte[] val = element.getValue().getBytes(snapshot);
+						if (val != DELETED_VALUE)
+							ret.put(element.getKey(), val);
+					}
+					return ret;
+				}
+				
+				@Override
+				public final Value<?> remove(String key) {
+					throw new IllegalStateException("Cannot remove a column without a transaction number");
+				}
+
+				@Override
+				public final void removeAll(Set<String> keys) {
+					throw new IllegalStateException("Cannot remove a column without a transaction number");
+				}
+
+				public abstract class Value<T> {
+					/**
+					 * The qualifier for this value
+					 */
+					public final String qualifier;
+					
+					/**
+					 * Creates a value that cannot be incremented
+					 */
+					public Value(String qualifier) {
+						this.qualifier = qualifier;
+					}
+					
+					/**
+					 * The byte array representation for this value.
+					 */
+					public abstract byte[] getBytes();
+					
+					/**
+					 * The byte array representation for this value as it was when a snapshot was taken.
+					 * @return {@link Memory#DELETED_VALUE} in case value did not exist
+					 */
+					public abstract byte[] getBytes(long snapshot);
+					
+					/**
+					 * Forgets past versions that cannot be read from any open snapshot.
+					 * @return whether some past versions are still kept
+					 */
+					abstract boolean pruneVersions(long oldestSnapshot);
+				}
+				
+				/**
+				 * A value that only keeps its latest version, i.e. the one set by the greatest transaction.
+				 * Changes are serialized using the monitor of the value, which costs no memory until contended.
+				 */
+				public class ByteValue extends Value<byte[]> {
+					
+					/**
+					 * The actual value for this value, as set by {@link #transaction}.
+					 * {@link Memory#DELETED_VALUE} in case value is deleted ; null in case value was removed from its column family.
+					 */
+					private volatile byte[] value = DELETED_VALUE;
+					
+					/**
+					 * The transaction that set {@link #value}.
+					 */
+					private long transaction = Long.MIN_VALUE;
+					
+					/**
+					 * Past values that open {@link ReadSnapshot}s may read ; usually null.
+					 */
+					private Version previous = null;
+
+					public ByteValue(String qualifier) {
+						super(qualifier);
+					}
+					
+					public byte[] getValue() {
+						byte[] ret = this.value;
+						return ret == null ? DELETED_VALUE : ret;
+					}
+					
+					public void setValue(byte[] value, long transaction) {
+						if (value == null) value = NULL_VALUE;
+						boolean removed;
+						synchronized (this) {
+							removed = this.value == null;
+							if (!removed && transaction >= this.transaction) {
+								if (transaction > this.transaction && Memory.this.newestSnapshot >= this.transaction
+										&& (this.value != DELETED_VALUE || this.previous != null)) {
+									//Some open snapshot might need current value
+									this.previous = new Version(this.transaction, this.value, this.previous);
+									ColumnFamily.this.registerVersioned();
+								}
+								this.value = value;
+								this.transaction = transaction;
+							}
+						}
+						if (removed) {
+							// We've been deleted by a checkRemove ; retrying operation
+							ByteValue newVal = (ByteValue)ColumnFamily.this.get(this.qualifier);
+							assert newVal != this;
+							newVal.setValue(value, transaction);
+							return;
+						}
+						
+						if (this.getValue() == DELETED_VALUE) {
+							// Deleting this column with the next sweep
+							registerTombstone();
+						}
+					}
+
+					/**
+					 * Removes this value from its column family in case it is deleted.
+					 * @return whether this value was removed
+					 */
+					private boolean checkRemove() {
+						// Should we remove this column ?
+						if (this.value == DELETED_VALUE) {
+							// Value is a delete so it deserves to be lock-checked
+							synchronized (this) {
+								if (this.value == DELETED_VALUE && this.previous == null) {
+									ColumnFamily.this.map.remove(this.qualifier, this);
+									this.value = null;
+									return true;
+								}
+							}
+						}
+						return false;
+					}
+
+					@Override
+					public byte[] getBytes() {
+						return this.getValue();
+					}
+					
+					@Override
+					public synchronized byte[] getBytes(long snapshot) {
+						byte[] ret = Memory.getVersion(snapshot, this.transaction, this.value, this.previous);
+						return ret == null ? DELETED_VALUE : ret;
+					}
+					
+					@Override
+					synchronized boolean pruneVersions(long oldestSnapshot) {
+						this.previous = Memory.pruneVersions(oldestSnapshot, this.transaction, this.previous);
+						return this.previous != null;
+					}
+				}
+				
+				public class IncrementingValue extends Value<Long> {
+					
+					/**
+					 * The actual value for this value
+					 */
+					protected volatile long value;
+					
+					/**
+					 * The last transaction that changed {@link #value}.
+					 */
+					private long transaction;
+					
+					/**
+					 * Past values that open {@link ReadSnapshot}s may read ; usually null.
+					 */
+					private Version previous = null;
+
+					public IncrementingValue(String qualifier, Long value) {
+						this(qualifier, value, Long.MIN_VALUE);
+					}
+
+					public IncrementingValue(String qualifier, Long value, long transaction) {
+						super(qualifier);
+						this.value = value;
+						this.transaction = transaction;
+					}
+					
+					public long getValue() {
+						return this.value;
+					}
+					
+					/**
+					 * Atomically increments this value.
+					 * @param increment can be negatve or positive
+					 * @param transaction the transaction performing the increment
+					 */
+					public synchronized void increment(long increment, long transaction) {
+						if (transaction > this.transaction && Memory.this.newestSnapshot >= this.transaction) {
+							//Some open snapshot might need current value
+							this.previous = new Version(this.transaction, ConversionTools.convert(this.value), this.previous);
+							ColumnFamily.this.registerVersioned();
+						}
+						this.value += increment;
+						this.transaction = Math.max(this.transaction, transaction);
+					}
+					
+					@Override
+					public byte[] getBytes() {
+						return ConversionTools.convert(this.value);
+					}
+					
+					@Override
+					public synchronized byte[] getBytes(long snapshot) {
+						if (this.transaction <= snapshot)
+							return this.getBytes();
+						return Memory.getVersion(snapshot, this.transaction, null, this.previous);
+					}
+					
+					@Override
+					synchronized boolean pruneVersions(long oldestSnapshot) {
+						this.previous = Memory.pruneVersions(oldestSnapshot, this.transaction, this.previous);
+						return this.previous != null;
+					}
+				}
+			}
+
+		}
+		
+	}
+	
+	/**
+	 * A row returned by a scan, only exposing requested column families.
+	 * Column families are only decoded from the in-memory row the first time they are read.
+	 * As such, values reflect changes applied to the row between the time it was returned and the time they are read,
+	 * including changes made long after the scan returned the row in case rows are {@link com.googlecode.n_orm.storeapi.PrefetchingKeyIterator prefetched}.
+	 * @see Memory#get(String, Constraint, int, Set)
+	 */
+	private static class ScannedRow implements com.googlecode.n_orm.storeapi.Row {
+		private final Row row;
+		private final Set<String> families;
+		private ColumnFamilyData values = null;
+		
+		/**
+		 * @param families the families to be exposed ; null if only the key is to be exposed
+		 */
+		public ScannedRow(Row row, Set<String> families) {
+			this.row = row;
+			this.families = families;
+		}
+
+		@Override
+		public String getKey() {
+			return this.row.getKey();
+		}
+
+		@Override
+		public ColumnFamilyData getValues() {
+			if (this.values == null) {
+				if (this.families == null)
+					this.values = new DefaultColumnFamilyData();
+				else
+					this.values = new ProjectedColumnFamilyData(this.row, this.families);
+			}
+			return this.values;
+		}
+		
+		@Override
+		public String toString() {
+			return "row " + this.getKey();
+		}
+	}
+	
+	/**
+	 * Data for a set of column families from a row.
+	 * Only column families that exist in the row are present.
+	 * Values for a column family are decoded once, the first time they are read.
+	 */
+	private static class ProjectedColumnFamilyData extends AbstractMap<String, Map<String, byte[]>> implements ColumnFamilyData {
+		private final Row row;
+		private final SortedSet<String> families = new TreeSet<String>();
+		private final Map<String, Map<String, byte[]>> decoded = new TreeMap<String, Map<String,byte[]>>();
+		
+		public ProjectedColumnFamilyData(Row row, Set<String> families) {
+			this.row = row;
+			for (String family : families) {
+				if (row.contains(family))
+					this.families.add(family);
+			}
+		}
+		
+		private Map<String, byte[]> decode(String family) {
+			Map<String, byte[]> ret = this.decoded.get(family);
+			if (ret == null) {
+				ColumnFamily cf = this.row.getNoCreate(family);
+				ret = cf == null ? new TreeMap<String, byte[]>() : cf.getValues(null, null);
+				this.decoded.put(family, ret);
+			}
+			return ret;
+		}
+
+		@Override
+		public boolean containsKey(Object key) {
+			return this.families.contains(key);
+		}
+
+		@Override
+		public Map<String, byte[]> get(Object key) {
+			return this.families.contains(key) ? this.decode((String)key) : null;
+		}
+
+		@Override
+		public Set<String> keySet() {
+			return Collections.unmodifiableSet(this.families);
+		}
+
+		@Override
+		public int size() {
+			return this.families.size();
+		}
+
+		@Override
+		public Set<Entry<String, Map<String, byte[]>>> entrySet() {
+			return new AbstractSet<Entry<String,Map<String,byte[]>>>() {
+
+				@Override
+				public Iterator<Entry<String, Map<String, byte[]>>> iterator() {
+					final Iterator<String> it = families.iterator();
+					return new Iterator<Entry<String,Map<String,byte[]>>>() {
+
+						@Override
+						public boolean hasNext() {
+							return it.hasNext();
+						}
+
+						@Override
+						public Entry<String, Map<String, byte[]>> next() {
+							String family = it.next();
+							return new SimpleImmutableEntry<String, Map<String,byte[]>>(family, decode(family));
+						}
+
+						@Override
+						public void remove() {
+							throw new UnsupportedOperationException();
+						}
+					};
+				}
+
+				@Override
+				public int size() {
+					return families.size();
+				}
+			};
+		}
+	}
+	
+	/**
+	 * The set of tables in this store
+	 */
+	private LazyMap<Table> tables = new LazyMap<Table>(false) {
+
+		/**
+		 * Creates a table according to its name
+		 */
+		@Override
+		protected Table newElement(String name) {
+			return new Table(name);
+		}
+		
+	};
+	
+	/**
+	 * Structures able to index rows within a table.
+	 * @see Memory#setTableIndex(TableIndex)
+	 */
+	public static enum TableIndex {
+		/**
+		 * A {@link ConcurrentSkipListMap} ; rows can be created or removed concurrently.
+		 */
+		SKIP_LIST,
+		/**
+		 * A prefix-compressed radix tree: keys sharing long prefixes (as composite keys do) use less memory, and rows are found visiting fewer objects.
+		 * Looking up and iterating rows does not lock, but creating or removing rows is serialized for each table.
+		 */
+		PREFIX_TREE
+	}
+	
+	private volatile TableIndex tableIndex = TableIndex.SKIP_LIST;
+	private volatile int dictionarySize = 1 << 16;
+	private volatile long capacity = 0;
+	private volatile String overflowDirectory = null;
+	
+	/**
+	 * The estimated number of bytes used by rows.
+	 */
+	private final AtomicLong usedBytes = new AtomicLong();
+	
+	/**
+	 * The file where evicted rows are spilled ; created as soon as a row is to be spilled.
+	 */
+	private volatile OverflowFile overflow = null;
+	
+	/**
+	 * Held while evicting rows.
+	 */
+	private final Object evictionLock = new Object();
+	private final Random evictionRandom = new Random();
+	private final AtomicBoolean evicting = new AtomicBoolean(false);
+	
+	/**
+	 * Time to live of rows in milliseconds per table.
+	 */
+	private final ConcurrentMap<String, Long> timeToLives = new ConcurrentHashMap<String, Long>();
+	
+	/**
+	 * Rows that are to expire according to their {@link Row#expiresAt expiration time} ; changes must synchronize on the wheel.
+	 */
+	private final TimerWheel<Row> expiries = new TimerWheel<Row>(EXPIRY_TICK, System.currentTimeMillis());
+	
+	/**
+	 * The task reclaiming expired rows in the background ; null if no row is to expire.
+	 */
+	private ScheduledFuture<?> reclaimer = null;
+	
+	/**
+	 * Held while reclaiming expired rows.
+	 */
+	private final Object expiryLock = new Object();
+	private volatile String persistenceDirectory = null;
+	private volatile boolean syncWrites = true;
+	private volatile int snapshotEvery = 100000;
+	
+	/**
+	 * The log where changes are appended ; null if this store is not persistent.
+	 */
+	private volatile WriteAheadLog log = null;
+	
+	/**
+	 * Held in read mode while changing the store, and in write mode while changing the {@link #log} or writing a snapshot.
+	 */
+	private final ReentrantReadWriteLock logLock = new ReentrantReadWriteLock();
+	
+	/**
+	 * Locks making sure that changes to a row are applied in the same order as they are logged.
+	 */
+	private final Object[] rowLocks = new Object[64];
+	
+	private final AtomicBoolean snapshotting = new AtomicBoolean(false);
+	
+	/**
+	 * The transaction number of changes being applied.
+	 * Only incremented while opening a {@link ReadSnapshot} : changes applied between two snapshots share their transaction number,
+	 * so that writers only read this number.
+	 */
+	private volatile long epoch = 1;
+	
+	/**
+	 * The number of changes being applied, striped by thread so that writers do not contend.
+	 * Stripes are {@link #WRITERS_PADDING} longs away from each other so that they do not share a cache line.
+	 * @see #beginChange()
+	 */
+	private final AtomicLongArray writers = new AtomicLongArray(WRITERS_STRIPES * WRITERS_PADDING);
+	
+	/**
+	 * Set while a {@link ReadSnapshot} is opened so that new changes wait for the {@link #epoch} to be incremented.
+	 */
+	private volatile boolean opening = false;
+	
+	/**
+	 * Held while opening a {@link ReadSnapshot} ; changes waiting for the snapshot to be open wait on this monitor,
+	 * and so does the opening snapshot waiting for changes being applied, notified by {@link #endChange()}.
+	 */
+	private final Object openingLock = new Object();
+	
+	/**
+	 * Versions of open {@link ReadSnapshot}s with the number of snapshots opened for each version.
+	 */
+	private final TreeMap<Long, Integer> openSnapshots = new TreeMap<Long, Integer>();
+	
+	/**
+	 * Versions of the oldest and the newest open {@link ReadSnapshot} ; {@link Long#MAX_VALUE} and {@link Long#MIN_VALUE} if none.
+	 */
+	private volatile long oldestSnapshot = Long.MAX_VALUE, newestSnapshot = Long.MIN_VALUE;
+	
+	/**
+	 * Rows and column families holding past versions, to be collected as soon as no open snapshot can read them.
+	 */
+	private final Queue<Row> versionedRows = new ConcurrentLinkedQueue<Row>();
+	private final Queue<ColumnFamily> versionedFamilies = new ConcurrentLinkedQueue<ColumnFamily>();
+	
+	/**
+	 * Only for testing purpose ; use {@link #INSTANCE}.
+	 */
+	Memory() {
+		for (int i = 0; i < this.rowLocks.length; ++i) {
+			this.rowLocks[i] = new Object();
+		}
+	}
+
+	/**
+	 * Loads data from the {@link #getPersistenceDirectory() persistence directory}, if any and if not already done.
+	 */
+	@Override
+	public synchronized void start() throws DatabaseNotReachedException {
+		String dir = this.persistenceDirectory;
+		if (dir == null || this.log != null)
+			return;
+		try {
+			this.recover(new File(dir));
+		} catch (IOException x) {
+			throw new DatabaseNotReachedException(x);
+		}
+		this.enforceCapacity();
+	}
+	
+	/**
+	 * The structure indexing rows within tables ; default is {@link TableIndex#SKIP_LIST}.
+	 */
+	public TableIndex getTableIndex() {
+		return tableIndex;
+	}
+
+	/**
+	 * Only considered for tables created afterwards ; {@link #reset() resetting} the store applies it to all tables.
+	 */
+	public void setTableIndex(TableIndex tableIndex) {
+		if (tableIndex == null)
+			throw new NullPointerException();
+		this.tableIndex = tableIndex;
+	}
+	
+	/**
+	 * The maximum number of distinct family names and qualifiers whose instances are shared by all rows of a table ; default is 65536.
+	 * Rows decoded from the persistence directory or sent by clients otherwise hold their own copy of each name,
+	 * which is a large part of the heap for tables whose rows have many properties.
+	 */
+	public int getDictionarySize() {
+		return dictionarySize;
+	}
+
+	/**
+	 * Only considered for tables created afterwards ; 0 disables sharing names.
+	 * @throws IllegalArgumentException in case the size is negative
+	 */
+	public void setDictionarySize(int dictionarySize) {
+		if (dictionarySize < 0)
+			throw new IllegalArgumentException("Dictionary size must be positive ; got " + dictionarySize);
+		this.dictionarySize = dictionarySize;
+	}
+	
+	/**
+	 * The estimated number of bytes rows may use before some of them are evicted ; 0 (the default) if unbounded.
+	 * Once changes make {@link #getUsedBytes() used bytes} exceed the capacity, the writer evicts rows until they fall below 95% of the capacity.
+	 * Rows to be evicted are the least recently read or written among a few rows sampled at random,
+	 * so that no list of rows ordered by access needs to be maintained.
+	 * Evicted rows are dropped, unless an {@link #setOverflowDirectory(String) overflow directory} is set.
+	 * While a {@link ReadSnapshot} is open, only rows created after the newest open snapshot are evicted.
+	 */
+	public long getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * @param capacity the capacity in bytes ; 0 means unbounded
+	 * @throws IllegalArgumentException in case the capacity is negative
+	 */
+	public void setCapacity(long capacity) {
+		if (capacity < 0)
+			throw new IllegalArgumentException("Capacity must be positive ; got " + capacity);
+		this.capacity = capacity;
+		this.enforceCapacity();
+	}
+	
+	/**
+	 * The directory where rows evicted to stay within {@link #getCapacity() capacity} are spilled ; null (the default) if evicted rows are dropped.
+	 * Spilled rows are still found, and are read back in memory as soon as they are requested.
+	 * Dropped rows are lost, which only suits a cache: a dropped row that is written again only holds values written afterwards.
+	 * In case this store is {@link #setPersistenceDirectory(String) persistent}, a dropped row is logged as deleted so that it is not recovered.
+	 */
+	public String getOverflowDirectory() {
+		return overflowDirectory;
+	}
+
+	/**
+	 * @throws IllegalStateException in case rows were already spilled to another directory
+	 */
+	public void setOverflowDirectory(String overflowDirectory) {
+		synchronized (this.evictionLock) {
+			OverflowFile o = this.overflow;
+			if (o != null && (overflowDirectory == null || !new File(overflowDirectory).getAbsoluteFile().equals(o.getFile().getParentFile().getAbsoluteFile())))
+				throw new IllegalStateException(this + " already spills rows to " + o.getFile().getParent());
+			this.overflowDirectory = overflowDirectory;
+		}
+	}
+	
+	/**
+	 * The estimated number of bytes used by rows of this store ; spilled rows only count for their key.
+	 * @see #setCapacity(long)
+	 */
+	public long getUsedBytes() {
+		return this.usedBytes.get();
+	}
+	
+	private OverflowFile getOverflow() throws IOException {
+		assert Thread.holdsLock(this.evictionLock);
+		if (this.overflow == null)
+			this.overflow = new OverflowFile(new File(this.overflowDirectory));
+		return this.overflow;
+	}
+	
+	/**
+	 * Evicts rows in case the capacity is exceeded.
+	 * Must not be called holding a lock on a row.
+	 */
+	private void enforceCapacity() {
+		long capacity = this.capacity;
+		if (capacity <= 0 || this.usedBytes.get() <= capacity)
+			return;
+		synchronized (this.evictionLock) {
+			long target = capacity - capacity / 20;
+			int misses = 0;
+			while (this.usedBytes.get() > target && misses < EVICTION_ATTEMPTS) {
+				List<Table> tables = new ArrayList<Table>(this.tables.map().values());
+				long[] rows = new long[tables.size()];
+				long total = 0;
+				for (int i = 0; i < rows.length; ++i) {
+					total += tables.get(i).count(null, null);
+					rows[i] = total;
+				}
+				if (total == 0)
+					return;
+				Table victimTable = null;
+				Row victim = null;
+				int samples = 0;
+				for (int i = 0; i < EVICTION_SAMPLES * EVICTION_ATTEMPTS && samples < EVICTION_SAMPLES; ++i) {
+					//Tables are sampled according to their number of rows
+					long n = (long)(this.evictionRandom.nextDouble() * total);
+					int ti = 0;
+					while (ti < rows.length - 1 && rows[ti] <= n)
+						ti++;
+					Table t = tables.get(ti);
+					Row r = t.sample(this.evictionRandom);
+					if (r == null || !r.isEvictable())
+						continue;
+					samples++;
+					if (victim == null || r.accessedAt - victim.accessedAt < 0) {
+						victimTable = t;
+						victim = r;
+					}
+				}
+				if (victim != null && this.evict(victimTable, victim))
+					misses = 0;
+				else
+					misses++;
+			}
+		}
+	}
+	
+	private void enforceCapacityInBackground() {
+		long capacity = this.capacity;
+		if (capacity <= 0 || this.usedBytes.get() <= capacity || !this.evicting.compareAndSet(false, true))
+			return;
+		Evictor.execute(new Runnable() {
+			
+			@Override
+			public void run() {
+				try {
+					enforceCapacity();
+				} catch (RuntimeException x) {
+					logger.log(Level.WARNING, "Could not evict rows from " + Memory.this + ": " + x.getMessage(), x);
+				} finally {
+					evicting.set(false);
+				}
+			}
+		});
+	}
+	
+	/**
+	 * Drops or spills a row ; a dropped row is logged as deleted in case this store is persistent.
+	 * @return whether the row was evicted
+	 */
+	private boolean evict(Table t, Row r) {
+		this.logLock.readLock().lock();
+		try {
+			WriteAheadLog l = this.log;
+			synchronized (this.rowLock(t.name, r.key)) {
+				boolean dropped;
+				this.beginChange();
+				try {
+					//No snapshot can be opened meanwhile
+					if (!r.isEvictable())
+						return false;
+					if (this.overflowDirectory != null)
+						return r.spill();
+					dropped = t.evict(r);
+				} finally {
+					this.endChange();
+				}
+				if (dropped && l != null) {
+					ByteArrayOutputStream record = new ByteArrayOutputStream();
+					this.deletion(t.name, r.key).write(new DataOutputStream(record));
+					l.append(record.toByteArray());
+				}
+				return dropped;
+			}
+		} catch (IOException x) {
+			throw new DatabaseNotReachedException(x);
+		} finally {
+			this.logLock.readLock().unlock();
+		}
+	}
+	
+	/**
+	 * The directory where this store is persisted ; null (the default) if this store only resides in memory.
+	 */
+	public String getPersistenceDirectory() {
+		return persistenceDirectory;
+	}
+
+	/**
+	 * Sets the directory where this store is to be persisted.
+	 * Data found in this directory are loaded when this store is {@link #start() started}.
+	 * @throws IllegalStateException in case this store is already persisted into another directory
+	 */
+	public synchronized void setPersistenceDirectory(String persistenceDirectory) {
+		if (this.log != null && !new File(persistenceDirectory).getAbsoluteFile().equals(this.log.getDirectory().getAbsoluteFile()))
+			throw new IllegalStateException(this + " is already persisted in " + this.log.getDirectory());
+		this.persistenceDirectory = persistenceDirectory;
+	}
+
+	/**
+	 * Whether changes are forced to the disk before returning in case this store is persisted ; default is true.
+	 * Changes performed concurrently are forced at once (group commit).
+	 * Otherwise, changes are only written to the operating system, which is faster, but may lose last changes in case of a system crash.
+	 */
+	public boolean isSyncWrites() {
+		return syncWrites;
+	}
+
+	/**
+	 * Only considered before this store is {@link #start() started}.
+	 */
+	public void setSyncWrites(boolean syncWrites) {
+		this.syncWrites = syncWrites;
+	}
+
+	/**
+	 * The number of logged changes after which a {@link #snapshot()} is taken in the background ; default is 100000.
+	 */
+	public int getSnapshotEvery() {
+		return snapshotEvery;
+	}
+
+	/**
+	 * @throws IllegalArgumentException in case the number is not strictly positive
+	 */
+	public void setSnapshotEvery(int snapshotEvery) {
+		if (snapshotEvery <= 0)
+			throw new IllegalArgumentException("Number of changes between snapshots must be strictly positive ; got " + snapshotEvery);
+		this.snapshotEvery = snapshotEvery;
+	}
+	
+	/**
+	 * The time in milliseconds rows of a table live after they were last changed ; 0 (the default) if rows never expire.
+	 */
+	public long getTimeToLive(String table) {
+		Long ret = this.timeToLives.get(table);
+		return ret == null ? 0 : ret;
+	}
+	
+	/**
+	 * Sets the time rows of a table live after they were last changed.
+	 * Expired rows are no longer found, and are reclaimed in the background.
+	 * Rows already in the table get this time to live from now.
+	 * Expiration times are not persisted: rows loaded by {@link #start()} also get their whole time to live from then.
+	 * @param timeToLive the time to live in milliseconds ; 0 means that rows never expire
+	 * @throws IllegalArgumentException in case the time to live is negative
+	 * @see com.googlecode.n_orm.Persisting#timeToLiveMs()
+	 */
+	public void setTimeToLive(String table, long timeToLive) {
+		if (timeToLive < 0)
+			throw new IllegalArgumentException("Time to live must be positive ; got " + timeToLive);
+		if (timeToLive == 0) {
+			this.timeToLives.remove(table);
+		} else {
+			this.timeToLives.put(table, timeToLive);
+			Table t = this.getTable(table, false);
+			if (t != null)
+				this.touchAll(t, timeToLive);
+		}
+	}
+	
+	private void touchAll(Table t, long timeToLive) {
+		Iterator<Row> rows = t.getRowIterator(null, null, false);
+		while (rows.hasNext()) {
+			rows.next().touch(System.currentTimeMillis() + timeToLive);
+		}
+	}
+	
+	private void scheduleExpiry(Row r, long expiresAt) {
+		synchronized (this.expiries) {
+			this.expiries.schedule(r, expiresAt);
+			if (this.reclaimer == null) {
+				this.reclaimer = Reclaimer.scheduleWithFixedDelay(new Runnable() {
+					
+					@Override
+					public void run() {
+						try {
+							reclaimExpired();
+						} catch (RuntimeException x) {
+							logger.log(Level.WARNING, "Could not reclaim expired rows for " + Memory.this + ": " + x.getMessage(), x);
+						}
+					}
+				}, RECLAIM_PERIOD, RECLAIM_PERIOD, TimeUnit.MILLISECONDS);
+			}
+		}
+	}
+	
+	/**
+	 * Reclaims all rows that expired up to now.
+	 * Performed regularly in the background as long as some rows are to expire.
+	 */
+	void reclaimExpired() {
+		synchronized (this.expiryLock) {
+			List<Row> due;
+			synchronized (this.expiries) {
+				due = this.expiries.advance(System.currentTimeMillis());
+				if (due.isEmpty() && this.expiries.size() == 0 && this.reclaimer != null) {
+					this.reclaimer.cancel(false);
+					this.reclaimer = null;
+				}
+			}
+			for (Row r : due) {
+				r.expire();
+			}
+		}
+	}
+	
+	/**
+	 * Deletes an expired row, logging deletion in case this store is persistent.
+	 */
+	private void reclaim(Table t, Row r) {
+		this.logLock.readLock().lock();
+		try {
+			WriteAheadLog l = this.log;
+			synchronized (this.rowLock(t.name, r.key)) {
+				boolean reclaimed;
+				long transaction = this.beginChange();
+				try {
+					reclaimed = t.reclaim(r, transaction);
+				} finally {
+					this.endChange();
+				}
+				if (reclaimed && l != null) {
+					ByteArrayOutputStream record = new ByteArrayOutputStream();
+					this.deletion(t.name, r.key).write(new DataOutputStream(record));
+					l.append(record.toByteArray());
+				}
+			}
+		} catch (IOException x) {
+			throw new DatabaseNotReachedException(x);
+		} finally {
+			this.logLock.readLock().unlock();
+		}
+	}
+	
+	/**
+	 * Whether changes to this store are currently persisted.
+	 */
+	public boolean isPersistent() {
+		return this.log != null;
+	}
+	
+	private void recover(File dir) throws IOException {
+		WriteAheadLog l = new WriteAheadLog(dir, this.syncWrites);
+		l.removeTemporaryFiles();
+		long snapshot = l.getLatestSnapshot();
+		if (snapshot > 0) {
+			DataInputStream in = l.readSnapshot(snapshot);
+			try {
+				this.readSnapshot(in);
+			} finally {
+				in.close();
+			}
+		}
+		long last = snapshot;
+		for (long segment : l.getSegmentsFrom(snapshot)) {
+			l.replay(segment, new WriteAheadLog.RecordHandler() {
+				
+				@Override
+				public void handle(byte[] record) throws IOException {
+					replay(record);
+					enforceCapacity();
+				}
+			});
+			last = segment;
+		}
+		l.open(last+1);
+		this.log = l;
+		for (Entry<String, Long> ttl : this.timeToLives.entrySet()) {
+			Table t = this.getTable(ttl.getKey(), false);
+			if (t != null)
+				this.touchAll(t, ttl.getValue());
+		}
+	}
+	
+	/**
+	 * Stops persisting changes to this store ; data in memory are kept.
+	 * All logged changes are made durable before returning.
+	 */
+	public void stopPersistence() throws DatabaseNotReachedException {
+		synchronized (this) {
+			this.logLock.writeLock().lock();
+			try {
+				WriteAheadLog l = this.log;
+				this.log = null;
+				this.persistenceDirectory = null;
+				if (l != null)
+					l.close();
+			} catch (IOException x) {
+				throw new DatabaseNotReachedException(x);
+			} finally {
+				this.logLock.writeLock().unlock();
+			}
+		}
+	}
+	
+	/**
+	 * Writes all data from this store into a new snapshot, and removes older snapshots and logs.
+	 * Changes are only blocked while the log is switched to a new segment: data are then written from a {@link ReadSnapshot}
+	 * opened at the same time, that sees exactly the changes logged in previous segments.
+	 * Changes applied meanwhile are logged in the new segment, and replayed on top of the snapshot in case of a recovery.
+	 * @throws IllegalStateException in case this store is not {@link #isPersistent() persistent}
+	 */
+	public void snapshot() throws DatabaseNotReachedException {
+		synchronized (this.snapshotting) {
+			WriteAheadLog l;
+			long number;
+			File tmp = null;
+			FileOutputStream file = null;
+			try {
+				ReadSnapshot view;
+				this.logLock.writeLock().lock();
+				try {
+					l = this.log;
+					if (l == null)
+						throw new IllegalStateException(this + " is not persistent");
+					number = l.rotate();
+					view = this.openReadSnapshot();
+				} finally {
+					this.logLock.writeLock().unlock();
+				}
+				try {
+					tmp = l.createSnapshotFile(number);
+					file = new FileOutputStream(tmp);
+					DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file));
+					this.writeSnapshot(out, view.getVersion());
+					out.flush();
+				} finally {
+					view.close();
+				}
+				file.getFD().sync();
+				file.close();
+				file = null;
+				l.commitSnapshot(number, tmp);
+			} catch (IOException x) {
+				throw new DatabaseNotReachedException(x);
+			} finally {
+				if (file != null) {
+					try {
+						file.close();
+					} catch (IOException x) {
+					}
+					tmp.delete();
+				}
+			}
+		}
+	}
+	
+	private void snapshotInBackground() {
+		if (!this.snapshotting.compareAndSet(false, true))
+			return;
+		Snapshotter.submit(new Runnable() {
+			
+			@Override
+			public void run() {
+				try {
+					if (isPersistent())
+						snapshot();
+				} catch (RuntimeException x) {
+					logger.log(Level.WARNING, "Could not write snapshot for " + Memory.this + ": " + x.getMessage(), x);
+				} finally {
+					snapshotting.set(false);
+				}
+			}
+		});
+	}
+	
+	/**
+	 * Writes data as they were when a {@link ReadSnapshot} was opened.
+	 * @param snapshot the version of an open read snapshot
+	 */
+	private void writeSnapshot(DataOutput out, long snapshot) throws IOException {
+		out.writeInt(SNAPSHOT_VERSION);
+		for (Table t : this.tables.map.values()) {
+			out.writeBoolean(true);
+			writeString(out, t.name);
+			for (Row r : t.map.values()) {
+				r = r.getVersion(snapshot);
+				if (r == null || r.isExpired())
+					continue;
+				out.writeBoolean(true);
+				writeString(out, r.key);
+				r.writeFamilies(out, snapshot);
+			}
+			out.writeBoolean(false);
+		}
+		out.writeBoolean(false);
+	}
+	
+	/**
+	 * Writes values of column families as they were when a snapshot was taken, followed by an end mark.
+	 * @param snapshot the version of an open read snapshot
+	 */
+	private static void writeFamilies(DataOutput out, Collection<ColumnFamily> families, long snapshot) throws IOException {
+		for (ColumnFamily cf : families) {
+			out.writeBoolean(true);
+			writeString(out, cf.name);
+			for (Value<?> v : cf.map.values()) {
+				byte[] val = v.getBytes(snapshot);
+				if (val == null || val == DELETED_VALUE)
+					continue;
+				if (v instanceof IncrementingValue) {
+					out.writeByte(INCREMENTING_VALUE);
+					writeString(out, v.qualifier);
+					out.writeLong(ConversionTools.convert(long.class, val));
+				} else {
+					out.writeByte(BYTE_VALUE);
+					writeString(out, v.qualifier);
+					writeBytes(out, val);
+				}
+			}
+			out.writeByte(END_OF_VALUES);
+		}
+		out.writeBoolean(false);
+	}
+	
+	/**
+	 * Writes the latest values of column families, followed by an end mark.
+	 */
+	private static void writeFamilies(DataOutput out, Collection<ColumnFamily> families) throws IOException {
+		for (ColumnFamily cf : families) {
+			out.writeBoolean(true);
+			writeString(out, cf.name);
+			for (Value<?> v : cf.map.values()) {
+				if (v instanceof IncrementingValue) {
+					out.writeByte(INCREMENTING_VALUE);
+					writeString(out, v.qualifier);
+					out.writeLong(((IncrementingValue)v).getValue());
+				} else {
+					byte[] val = v.getBytes();
+					if (val == DELETED_VALUE)
+						continue;
+					out.writeByte(BYTE_VALUE);
+					writeString(out, v.qualifier);
+					writeBytes(out, val);
+				}
+			}
+			out.writeByte(END_OF_VALUES);
+		}
+		out.writeBoolean(false);
+	}
+	
+	/**
+	 * Reads column families written by {@link #writeFamilies(DataOutput, Collection)}.
+	 * @param r the row owning column families
+	 * @param into the map where column families are to be put
+	 * @param transaction the transaction setting read values
+	 * @return the estimated number of bytes used by read column families
+	 */
+	private long readFamilies(DataInput in, Row r, ConcurrentMap<String, ColumnFamily> into, long transaction) throws IOException {
+		long ret = 0;
+		while (in.readBoolean()) {
+			String name = r.intern(readString(in));
+			ColumnFamily cf = into.get(name);
+			if (cf == null) {
+				cf = r.new ColumnFamily(name);
+				into.put(name, cf);
+				ret += familyBytes(name);
+			}
+			byte kind;
+			while ((kind = in.readByte()) != END_OF_VALUES) {
+				String qualifier = readString(in);
+				switch (kind) {
+				case BYTE_VALUE:
+					byte[] value = readBytes(in);
+					((ByteValue)cf.get(qualifier)).setValue(value, transaction);
+					ret += cellBytes(qualifier, value);
+					break;
+				case INCREMENTING_VALUE:
+					qualifier = cf.intern(qualifier);
+					cf.map.put(qualifier, cf.new IncrementingValue(qualifier, in.readLong()));
+					ret += incrementBytes(qualifier);
+					break;
+				default:
+					throw new IOException("Unknown value kind " + kind);
+				}
+			}
+		}
+		return ret;
+	}
+	
+	private void readSnapshot(DataInput in) throws IOException {
+		int version = in.readInt();
+		if (version != SNAPSHOT_VERSION)
+			throw new IOException("Unsupported snapshot version " + version);
+		while (in.readBoolean()) {
+			Table t = this.tables.get(readString(in));
+			while (in.readBoolean()) {
+				Row r = t.get(readString(in));
+				r.addBytes(this.readFamilies(in, r, r.map(), r.createTransaction()));
+				this.enforceCapacity();
+			}
+		}
+	}
+	
+	/**
+	 * A change to be {@link Memory#log(String, String, Change) logged} before being applied.
+	 */
+	private static abstract class Change {
+		abstract void write(DataOutput out) throws IOException;
+		abstract void apply();
+	}
+	
+	private Object rowLock(String table, String id) {
+		return this.rowLocks[(table.hashCode() * 31 + id.hashCode()) & (this.rowLocks.length - 1)];
+	}
+	
+	/**
+	 * Logs and applies a change.
+	 * Change is not durable until {@link #sync(long)} is called.
+	 * @return the sequence number of the log record ; 0 if this store is not persistent
+	 */
+	private long log(String table, String id, Change change) throws DatabaseNotReachedException {
+		if (this.log == null) {
+			this.apply(table, id, change);
+			return 0;
+		}
+		ByteArrayOutputStream record = new ByteArrayOutputStream();
+		this.logLock.readLock().lock();
+		try {
+			WriteAheadLog l = this.log;
+			if (l == null) {
+				this.apply(table, id, change);
+				return 0;
+			}
+			change.write(new DataOutputStream(record));
+			synchronized (this.rowLock(table, id)) {
+				long ret = l.append(record.toByteArray());
+				change.apply();
+				return ret;
+			}
+		} catch (IOException x) {
+			throw new DatabaseNotReachedException(x);
+		} finally {
+			this.logLock.readLock().unlock();
+		}
+	}
+	
+	/**
+	 * Applies a change that is not logged.
+	 * While capacity is bounded, changes are serialized with {@link #evict(Table, Row) evictions}.
+	 */
+	private void apply(String table, String id, Change change) {
+		if (this.capacity <= 0) {
+			change.apply();
+		} else {
+			synchronized (this.rowLock(table, id)) {
+				change.apply();
+			}
+		}
+	}
+	
+	/**
+	 * Makes sure the change logged with the given sequence number is durable.
+	 */
+	private void sync(long sequence) throws DatabaseNotReachedException {
+		WriteAheadLog l = this.log;
+		if (sequence <= 0 || l == null)
+			return;
+		try {
+			l.sync(sequence);
+		} catch (IOException x) {
+			throw new DatabaseNotReachedException(x);
+		}
+		if (l.getRecordsInSegment() >= this.snapshotEvery)
+			this.snapshotInBackground();
+	}
+	
+	private void replay(byte[] record) throws IOException {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+		byte kind = in.readByte();
+		switch (kind) {
+		case STORE_RECORD:
+			String table = readString(in), id = readString(in);
+			ColumnFamilyData changed = null;
+			int families = in.readInt();
+			if (families >= 0) {
+				changed = new DefaultColumnFamilyData();
+				for (int i = 0; i < families; ++i) {
+					String family = readString(in);
+					Map<String, byte[]> values = new TreeMap<String, byte[]>();
+					for (int j = in.readInt(); j > 0; --j) {
+						values.put(readString(in), readBytes(in));
+					}
+					changed.put(family, values);
+				}
+			}
+			Map<String, Set<String>> removed = null;
+			families = in.readInt();
+			if (families >= 0) {
+				removed = new HashMap<String, Set<String>>();
+				for (int i = 0; i < families; ++i) {
+					String family = readString(in);
+					Set<String> qualifiers = new TreeSet<String>();
+					for (int j = in.readInt(); j > 0; --j) {
+						qualifiers.add(readString(in));
+					}
+					removed.put(family, qualifiers);
+				}
+			}
+			Map<String, Map<String, Number>> incremented = null;
+			families = in.readInt();
+			if (families >= 0) {
+				incremented = new HashMap<String, Map<String,Number>>();
+				for (int i = 0; i < families; ++i) {
+					String family = readString(in);
+					Map<String, Number> increments = new TreeMap<String, Number>();
+					for (int j = in.readInt(); j > 0; --j) {
+						increments.put(readString(in), in.readLong());
+					}
+					incremented.put(family, increments);
+				}
+			}
+			try {
+				this.applyChanges(table, id, changed, removed, incremented);
+			} catch (IllegalArgumentException x) {
+				//Already reported when the change was first applied
+			}
+			break;
+		case DELETE_RECORD:
+			this.applyDelete(readString(in), readString(in));
+			break;
+		case RESET_RECORD:
+			this.clearTables();
+			break;
+		case TRUNCATE_RECORD:
+			this.applyTruncate(readString(in), readNullableString(in), readNullableString(in));
+			break;
+		default:
+			throw new IOException("Unknown record kind " + kind);
+		}
+	}
+	
+	/**
+	 * Returns the in-memory table.
+	 * @param table the name of the expected table
+	 * @param createIfNecessary whether to create the table if it does not exist
+	 * @return the table ; can be null if createIfNecessary is set to false and the table does not exist
+	 */
+	public Table getTable(String table, boolean createIfNecessary) {
+		return createIfNecessary ? this.tables.get(table) : this.tables.getNoCreate(table);
+	}
+	
+	/**
+	 * Returns the in-memory row (compatible with {@link com.googlecode.n_orm.storeapi.Row}) from a table.
+	 * @param table the name of the table in which to find the row
+	 * @param id the unique identifier for the row within the table
+	 * @param createIfNecessary whether to create the row if it does not exist (including in case table does not exists)
+	 * @return the row ; can be null if createIfNecessary is set to false and the row or the table does not exist
+	 */
+	public Row getRow(String table, String id, boolean createIfNecessary) {
+		Table t = this.getTable(table, createIfNecessary);
+		if (createIfNecessary)
+			return t.getLive(id, this.epoch);
+		Row ret = t == null ? null : t.getNoCreate(id);
+		if (ret == null || ret.isDeleted() || ret.isExpired())
+			return null;
+		ret.access();
+		return ret;
+	}
+
+	/**
+	 * Returns the in-memory column family for a given row from a table.
+	 * @param table the name of the table in which to find the column family for the row
+	 * @param id the unique identifier for the row within the table
+	 * @param family the name of the column family to be found within the row
+	 * @param createIfNecessary whether to create the row if it does not exist (including in case table or row does not exists)
+	 * @return the row ; can be null if createIfNecessary is set to false and the column family or the row or the table does not exist
+	 */
+	public ColumnFamily getFamily(String table, String id, String family, boolean createIfNecessary) {
+		Row r = this.getRow(table, id, createIfNecessary);
+		return createIfNecessary ? r.get(family) : r == null ? null : r.getNoCreate(family);
+	}
+
+	/**
+	 * Opens a consistent view of this store as it is now.
+	 * Changes being applied are waited for, but changes applied after this method returns do not block and are not visible from the snapshot.
+	 * The returned snapshot must be {@link ReadSnapshot#close() closed} so that past versions of data can be forgotten.
+	 */
+	public ReadSnapshot openReadSnapshot() {
+		boolean interrupted = false;
+		synchronized (this.openingLock) {
+			this.opening = true;
+			try {
+				//New changes are waiting ; changes being applied are waited for until endChange notifies
+				for (int i = 0; i < this.writers.length(); i += WRITERS_PADDING) {
+					while (this.writers.get(i) != 0) {
+						try {
+							this.openingLock.wait();
+						} catch (InterruptedException x) {
+							interrupted = true;
+						}
+					}
+				}
+				long version = this.epoch;
+				synchronized (this.openSnapshots) {
+					Integer n = this.openSnapshots.get(version);
+					this.openSnapshots.put(version, n == null ? 1 : n + 1);
+					this.updateSnapshotBounds();
+				}
+				this.epoch = version + 1;
+				return new ReadSnapshot(version);
+			} finally {
+				this.opening = false;
+				this.openingLock.notifyAll();
+				if (interrupted)
+					Thread.currentThread().interrupt();
+			}
+		}
+	}
+	
+	/**
+	 * Registers a change being applied ; {@link #endChange()} must be called once the change is applied.
+	 * Waits in case a {@link ReadSnapshot} is being opened, so that a snapshot sees all or nothing of a change.
+	 * Must not be called while a change is being applied by the current thread.
+	 * @return the transaction number for the change
+	 */
+	private long beginChange() {
+		int stripe = this.writersStripe();
+		boolean interrupted = false;
+		try {
+			while (true) {
+				this.writers.incrementAndGet(stripe);
+				if (!this.opening)
+					return this.epoch;
+				this.writers.decrementAndGet(stripe);
+				synchronized (this.openingLock) {
+					while (this.opening) {
+						try {
+							this.openingLock.wait();
+						} catch (InterruptedException x) {
+							interrupted = true;
+						}
+					}
+				}
+			}
+		} finally {
+			if (interrupted)
+				Thread.currentThread().interrupt();
+		}
+	}
+	
+	/**
+	 * Unregisters a change registered by {@link #beginChange()}.
+	 * Notifies a {@link ReadSnapshot} being opened once no change is being applied for this thread's stripe.
+	 */
+	private void endChange() {
+		if (this.writers.decrementAndGet(this.writersStripe()) == 0 && this.opening) {
+			synchronized (this.openingLock) {
+				this.openingLock.notifyAll();
+			}
+		}
+	}
+	
+	private int writersStripe() {
+		return ((int)Thread.currentThread().getId() & (WRITERS_STRIPES - 1)) * WRITERS_PADDING;
+	}
+	
+	private void closeReadSnapshot(long version) {
+		synchronized (this.openSnapshots) {
+			Integer n = this.openSnapshots.get(version);
+			if (n == null)
+				return;
+			if (n == 1)
+				this.openSnapshots.remove(version);
+			else
+				this.openSnapshots.put(version, n - 1);
+			this.updateSnapshotBounds();
+		}
+		this.collectVersions();
+	}
+	
+	private void updateSnapshotBounds() {
+		assert Thread.holdsLock(this.openSnapshots);
+		if (this.openSnapshots.isEmpty()) {
+			this.oldestSnapshot = Long.MAX_VALUE;
+			this.newestSnapshot = Long.MIN_VALUE;
+		} else {
+			this.oldestSnapshot = this.openSnapshots.firstKey();
+			this.newestSnapshot = this.openSnapshots.lastKey();
+		}
+	}
+	
+	/**
+	 * The number of currently open {@link ReadSnapshot}s.
+	 */
+	public int getOpenReadSnapshots() {
+		synchronized (this.openSnapshots) {
+			int ret = 0;
+			for (Integer n : this.openSnapshots.values()) {
+				ret += n;
+			}
+			return ret;
+		}
+	}
+	
+	/**
+	 * Whether an open snapshot can see data that existed from transaction bornAt (included) to deletedAt (excluded).
+	 */
+	private boolean isVisible(long bornAt, long deletedAt) {
+		synchronized (this.openSnapshots) {
+			Long s = this.openSnapshots.ceilingKey(bornAt);
+			return s != null && s < deletedAt;
+		}
+	}
+	
+	/**
+	 * Forgets past versions that cannot be read from open snapshots anymore.
+	 */
+	private void collectVersions() {
+		List<Row> rows = new ArrayList<Row>();
+		Row r;
+		while ((r = this.versionedRows.poll()) != null) {
+			rows.add(r);
+		}
+		for (Row row : rows) {
+			if (row.collectVersions())
+				this.versionedRows.add(row);
+		}
+		
+		//Column families register again by themselves in case they still hold past versions
+		List<ColumnFamily> families = new ArrayList<ColumnFamily>();
+		ColumnFamily cf;
+		while ((cf = this.versionedFamilies.poll()) != null) {
+			families.add(cf);
+		}
+		for (ColumnFamily family : families) {
+			family.collectVersions();
+		}
+	}
+	
+	/**
+	 * A consistent read-only view of this store as it was when the snapshot was {@link Memory#openReadSnapshot() opened}.
+	 * Changes applied after opening are not visible from the snapshot, and are not blocked by reads from the snapshot.
+	 * Past versions of changed or deleted data are kept as long as an open snapshot can read them ;
+	 * a snapshot should thus be {@link #close() closed} as soon as possible.
+	 * Rows that {@link Memory#setTimeToLive(String, long) expired} when the snapshot was opened are not visible from the snapshot.
+	 * Note that a {@link Memory#reset()} is visible from open snapshots.
+	 */
+	public class ReadSnapshot {
+		private final long version;
+		/**
+		 * When this snapshot was opened, in milliseconds ; rows that expired before are not visible.
+		 */
+		private final long openedAt;
+		private volatile boolean closed = false;
+		
+		private ReadSnapshot(long version) {
+			this.version = version;
+			this.openedAt = System.currentTimeMillis();
+		}
+		
+		/**
+		 * The last transaction visible from this snapshot.
+		 */
+		public long getVersion() {
+			return version;
+		}
+		
+		public boolean isClosed() {
+			return closed;
+		}
+		
+		/**
+		 * Releases this snapshot, so that past versions it could see can be forgotten.
+		 */
+		public void close() {
+			if (this.closed)
+				return;
+			this.closed = true;
+			Memory.this.closeReadSnapshot(this.version);
+		}
+		
+		private Table getTable(String table) {
+			if (this.closed)
+				throw new IllegalStateException("Snapshot " + this.version + " of " + Memory.this + " is closed");
+			return Memory.this.getTable(table, false);
+		}
+		
+		/**
+		 * The incarnation of a row visible from this snapshot ; null if row did not exist or was expired.
+		 */
+		private Row getVersion(Row r) {
+			Row ret = r.getVersion(this.version);
+			return ret == null || ret.isExpired(this.openedAt) ? null : ret;
+		}
+		
+		private Row getRow(String table, String id) {
+			Table t = this.getTable(table);
+			Row r = t == null ? null : t.getNoCreate(id);
+			return r == null ? null : this.getVersion(r);
+		}
+		
+		private ColumnFamily getFamily(String table, String id, String family) {
+			Row r = this.getRow(table, id);
+			return r == null ? null : r.getNoCreate(family);
+		}
+		
+		private ColumnFamilyData getValues(Row r, Set<String> families) {
+			ColumnFamilyData ret = new DefaultColumnFamilyData();
+			for (String family : families) {
+				ColumnFamily fam = r.getNoCreate(family);
+				if (fam != null) {
+					ret.put(family, fam.getValues(this.version, null, null));
+				}
+			}
+			return ret;
+		}
+		
+		/**
+		 * @see Memory#exists(String, String)
+		 */
+		public boolean exists(String table, String row) {
+			return this.getRow(table, row) != null;
+		}
+		
+		/**
+		 * @see Memory#exists(String, String, String)
+		 */
+		public boolean exists(String table, String row, String family) {
+			ColumnFamily fam = this.getFamily(table, row, family);
+			return fam != null && !fam.getValues(this.version, null, null).isEmpty();
+		}
+		
+		/**
+		 * @see Memory#get(String, String, String, String)
+		 */
+		public byte[] get(String table, String id, String family, String qualifier) {
+			ColumnFamily fam = this.getFamily(table, id, family);
+			Value<?> val = fam == null ? null : fam.getNoCreate(qualifier);
+			byte[] ret = val == null ? null : val.getBytes(this.version);
+			return ret == DELETED_VALUE ? null : ret;
+		}
+		
+		/**
+		 * @see Memory#get(String, String, String)
+		 */
+		public Map<String, byte[]> get(String table, String id, String family) {
+			return this.get(table, id, family, (Constraint)null);
+		}
+		
+		/**
+		 * @see Memory#get(String, String, String, Constraint)
+		 */
+		public Map<String, byte[]> get(String table, String id, String family, Constraint c) {
+			ColumnFamily fam = this.getFamily(table, id, family);
+			return fam == null ? null : fam.getValues(this.version, c == null ? null : c.getStartKey(), c == null ? null : c.getEndKey());
+		}
+		
+		/**
+		 * @see Memory#get(String, String, Set)
+		 */
+		public ColumnFamilyData get(String table, String id, Set<String> families) {
+			Row r = this.getRow(table, id);
+			return r == null ? null : this.getValues(r, families);
+		}
+		
+		/**
+		 * @see Memory#get(String, Collection, Set)
+		 */
+		public Map<String, ColumnFamilyData> get(String table, Collection<String> ids, Set<String> families) {
+			Map<String, ColumnFamilyData> ret = new TreeMap<String, ColumnFamilyData>();
+			for (String id : ids) {
+				ColumnFamilyData data = this.get(table, id, families);
+				if (data != null)
+					ret.put(id, data);
+			}
+			return ret;
+		}
+		
+		/**
+		 * Counts rows by scanning them, as rows changed since this snapshot was opened must be counted as they were ;
+		 * contrary to {@link Memory#count(String, Constraint)}, which takes a logarithmic time,
+		 * this takes a time linear in the number of rows of the table within the constraint.
+		 * @see Memory#count(String, Constraint)
+		 */
+		public long count(String table, Constraint c) {
+			Table t = this.getTable(table);
+			if (t == null)
+				return 0;
+			long ret = 0;
+			Iterator<Row> rows = t.getRowIterator(c == null ? null : c.getStartKey(), c == null ? null : c.getEndKey(), false);
+			while (rows.hasNext()) {
+				if (this.getVersion(rows.next()) != null)
+					ret++;
+			}
+			return ret;
+		}
+		
+		/**
+		 * @see Memory#get(String, Constraint, int, Set)
+		 */
+		public CloseableKeyIterator get(String table, Constraint c, int limit, Set<String> families) {
+			return this.get(table, c, limit, families, false);
+		}
+		
+		/**
+		 * Values for returned rows are read as soon as the row is returned.
+		 * @see Memory#get(String, Constraint, int, Set, boolean)
+		 */
+		public CloseableKeyIterator get(String table, Constraint c, final int limit, Set<String> families, boolean descending) {
+			Table t = this.getTable(table);
+			if (t == null)
+				return new EmptyCloseableIterator();
+			final Iterator<Row> rows = t.getRowIterator(c == null ? null : c.getStartKey(), c == null ? null : c.getEndKey(), descending);
+			final Set<String> projection = families == null ? null : new TreeSet<String>(families);
+			return new CloseableKeyIterator() {
+				private int count = 0;
+				private Row next = null;
+				
+				@Override
+				public boolean hasNext() {
+					while (this.next == null && this.count < limit && rows.hasNext()) {
+						this.next = getVersion(rows.next());
+					}
+					return this.next != null;
+				}
+				
+				@Override
+				public com.googlecode.n_orm.storeapi.Row next() {
+					if (!this.hasNext())
+						throw new NoSuchElementException();
+					final Row r = this.next;
+					this.next = null;
+					this.count++;
+					final ColumnFamilyData values = projection == null ? new DefaultColumnFamilyData() : getValues(r, projection);
+					return new com.googlecode.n_orm.storeapi.Row() {
 						
-						if (this.getValue() == DELETED_VALUE) {
-							// Deleting this column ASAP
-							ColumnRemover.submit(new Runnable() {
-
-								@Override
-								public void run() {
-									checkRemove();
-								}
-								
-							});
+						@Override
+						public String getKey() {
+							return r.getKey();
 						}
-					}
-
-					private void checkRemove() {
-						// Should we remove this column ?
-						if (this.getValue() == DELETED_VALUE) {
-							// Value is a delete so it deserves to be lock-checked
-							deletionLock.writeLock().lock();
-							try {
-								if (this.getValue() == DELETED_VALUE) {
-									ColumnFamily.this.map.remove(this.qualifier);
-									this.value.clear();
-								}
-							} finally {
-								deletionLock.writeLock().unlock();
-							}
+						
+						@Override
+						public ColumnFamilyData getValues() {
+							return values;
 						}
-					}
-
-					@Override
-					public byte[] getBytes() {
-						return this.getValue();
-					}
+					};
 				}
 				
-				public class IncrementingValue extends Value<Long> {
-					
-					/**
-					 * The actual value for this value
-					 */
-					protected final AtomicLong value;
-
-					public IncrementingValue(String qualifier, Long value) {
-						super(qualifier);
-						this.value = new AtomicLong(value);
-					}
-					
-					public long getValue() {
-						return this.value.get();
-					}
-					
-					/**
-					 * Atomically increments this value.
-					 * @param increment can be negatve or positive
-					 */
-					public void increment(long increment) {
-						this.value.getAndAdd(increment);
-					}
-					
-					@Override
-					public byte[] getBytes() {
-						return ConversionTools.convert(this.value.get());
-					}
+				@Override
+				public void remove() {
+					throw new UnsupportedOperationException();
 				}
-			}
-
+				
+				@Override
+				public void close() {
+				}
+			};
 		}
 		
-	}
-	
-	/**
-	 * The set of tables in this store
-	 */
-	private LazyMap<Table> tables = new LazyMap<Table>(false) {
-
-		/**
-		 * Creates a table according to its name
-		 */
 		@Override
-		protected Table newElement(String name) {
-			return new Table(name);
+		public String toString() {
+			return "snapshot " + this.version + " of " + Memory.this;
 		}
-		
-	};
-	
-	private Memory() {}
-
-	@Override
-	public void start() {
-	}
-	
-	/**
-	 * Returns the in-memory table.
-	 * @param table the name of the expected table
-	 * @param createIfNecessary whether to create the table if it does not exist
-	 * @return the table ; can be null if createIfNecessary is set to false and the table does not exist
-	 */
-	public Table getTable(String table, boolean createIfNecessary) {
-		return createIfNecessary ? this.tables.get(table) : this.tables.getNoCreate(table);
-	}
-	
-	/**
-	 * Returns the in-memory row (compatible with {@link com.googlecode.n_orm.storeapi.Row}) from a table.
-	 * @param table the name of the table in which to find the row
-	 * @param id the unique identifier for the row within the table
-	 * @param createIfNecessary whether to create the row if it does not exist (including in case table does not exists)
-	 * @return the row ; can be null if createIfNecessary is set to false and the row or the table does not exist
-	 */
-	public Row getRow(String table, String id, boolean createIfNecessary) {
-		Table t = this.getTable(table, createIfNecessary);
-		return createIfNecessary ? t.get(id) : (t == null ? null : t.getNoCreate(id));
-	}
-
-	/**
-	 * Returns the in-memory column family for a given row from a table.
-	 * @param table the name of the table in which to find the column family for the row
-	 * @param id the unique identifier for the row within the table
-	 * @param family the name of the column family to be found within the row
-	 * @param createIfNecessary whether to create the row if it does not exist (including in case table or row does not exists)
-	 * @return the row ; can be null if createIfNecessary is set to false and the column family or the row or the table does not exist
-	 */
-	public ColumnFamily getFamily(String table, String id, String family, boolean createIfNecessary) {
-		Row r = this.getRow(table, id, createIfNecessary);
-		return createIfNecessary ? r.get(family) : r == null ? null : r.getNoCreate(family);
 	}
 
 	@Override
@@ -557,19 +3166,150 @@ public class Memory implements SimpleStore {
 			ColumnFamilyData changed,
 			Map<String, Set<String>> removed,
 			Map<String, Map<String, Number>> incremented) {
+		this.sync(this.logChanges(table, id, changed, removed, incremented));
+		this.enforceCapacity();
+	}
+	
+	private long logChanges(final String table, final String id,
+			final ColumnFamilyData changed,
+			final Map<String, Set<String>> removed,
+			final Map<String, Map<String, Number>> incremented) {
+		if (this.log != null && this.getTimeToLive(table) > 0) {
+			//Logging deletion of an expired row before it is written again
+			Table t = this.getTable(table, false);
+			Row r = t == null ? null : t.getNoCreate(id);
+			if (r != null && r.isExpired())
+				this.reclaim(t, r);
+		}
+		return this.log(table, id, this.changes(table, id, changed, removed, incremented));
+	}
+	
+	private Change changes(final String table, final String id,
+			final ColumnFamilyData changed,
+			final Map<String, Set<String>> removed,
+			final Map<String, Map<String, Number>> incremented) {
+		return new Change() {
+			
+			@Override
+			void write(DataOutput out) throws IOException {
+				out.writeByte(STORE_RECORD);
+				writeString(out, table);
+				writeString(out, id);
+				if (changed == null) {
+					out.writeInt(-1);
+				} else {
+					out.writeInt(changed.size());
+					for (Entry<String, Map<String, byte[]>> family : changed.entrySet()) {
+						writeString(out, family.getKey());
+						out.writeInt(family.getValue().size());
+						for (Entry<String, byte[]> value : family.getValue().entrySet()) {
+							writeString(out, value.getKey());
+							writeBytes(out, value.getValue());
+						}
+					}
+				}
+				if (removed == null) {
+					out.writeInt(-1);
+				} else {
+					out.writeInt(removed.size());
+					for (Entry<String, Set<String>> family : removed.entrySet()) {
+						writeString(out, family.getKey());
+						out.writeInt(family.getValue().size());
+						for (String qualifier : family.getValue()) {
+							writeString(out, qualifier);
+						}
+					}
+				}
+				if (incremented == null) {
+					out.writeInt(-1);
+				} else {
+					out.writeInt(incremented.size());
+					for (Entry<String, Map<String, Number>> family : incremented.entrySet()) {
+						writeString(out, family.getKey());
+						out.writeInt(family.getValue().size());
+						for (Entry<String, Number> increment : family.getValue().entrySet()) {
+							writeString(out, increment.getKey());
+							out.writeLong(increment.getValue().longValue());
+						}
+					}
+				}
+			}
+			
+			@Override
+			void apply() {
+				applyChanges(table, id, changed, removed, incremented);
+			}
+		};
+	}
+
+	private void applyChanges(String table, String id,
+			ColumnFamilyData changed,
+			Map<String, Set<String>> removed,
+			Map<String, Map<String, Number>> incremented) {
 		
+		//Snapshots are not opened while changes are applied
+		long transaction = this.beginChange();
+		try {
+			this.applyChanges(table, id, changed, removed, incremented, transaction);
+		} finally {
+			this.endChange();
+		}
+	}
+	
+	/**
+	 * Applies changes to a row ; must be called while the change is {@link #beginChange() registered}.
+	 */
+	private void applyChanges(String table, String id,
+			ColumnFamilyData changed,
+			Map<String, Set<String>> removed,
+			Map<String, Map<String, Number>> incremented,
+			long transaction) {
+		Table t = this.getTable(table, true);
+		Row r = t.getLive(id, transaction);
+		long ttl = this.getTimeToLive(table);
+		if (ttl > 0) {
+			while (!r.touch(System.currentTimeMillis() + ttl)) {
+				//Expired row was not reclaimed yet
+				t.reclaim(r, transaction);
+				r = t.getLive(id, transaction);
+			}
+		}
+		//Not to be deleted by truncations ordered before this change
+		r.truncations = t.truncations;
+	
+		IllegalArgumentException x = this.applyChanges(r, table, changed, removed, incremented, transaction);
+		if (x != null)
+			throw x;
+	}
+	
+	/**
+	 * Applies changes to a row.
+	 * @return a problem that happened while applying changes ; other changes are applied anyway
+	 */
+	private IllegalArgumentException applyChanges(Row r, String table,
+			ColumnFamilyData changed,
+			Map<String, Set<String>> removed,
+			Map<String, Map<String, Number>> incremented,
+			long transaction) {
 		IllegalArgumentException x = null;
-		
-		Row r = this.getRow(table, id, true);
-		long transaction = r.createTransaction();
+		String id = r.key;
+		long bytes = 0;
 		
 		if (changed != null)
 			for (Entry<String, Map<String, byte[]>> change : changed.entrySet()) {
-				ColumnFamily f = r.get(change.getKey());
+				ColumnFamily f = r.getNoCreate(change.getKey());
+				if (f == null) {
+					f = r.get(change.getKey());
+					bytes += familyBytes(f.name);
+				}
 				for (Entry<String, byte[]> value : change.getValue().entrySet()) {
-					Value<?> val = f.get(value.getKey());
+					Value<?> val = f.getNoCreate(value.getKey());
+					byte[] old = val instanceof ByteValue ? ((ByteValue)val).getValue() : DELETED_VALUE;
+					if (val == null)
+						val = f.get(value.getKey());
 					if (val instanceof ByteValue) {
 						((ByteValue)val).setValue(value.getValue(), transaction);
+						bytes += cellBytes(val.qualifier, value.getValue() == null ? NULL_VALUE : value.getValue()) - cellBytes(val.qualifier, old);
 					} else {
 						x = new IllegalArgumentException("Cannot set an incrementing value " + value.getKey() + " in family " + change.getKey() + " for row " + id + " in table " + table);
 					}
@@ -583,6 +3323,7 @@ public class Memory implements SimpleStore {
 					for (String qual : remove.getValue()) {
 						Value<?> val = f.getNoCreate(qual);
 						if (val instanceof ByteValue) {
+							bytes -= cellBytes(qual, ((ByteValue)val).getValue());
 							((ByteValue)val).setValue(DELETED_VALUE, transaction);
 						} else {
 							x = new IllegalArgumentException("Cannot remove an incrementing value " + qual + " in family " + remove.getKey() + " for row " + id + " in table " + table);
@@ -593,32 +3334,342 @@ public class Memory implements SimpleStore {
 		
 		if (incremented != null)
 			for (Entry<String, Map<String, Number>> incr : incremented.entrySet()) {
-				ColumnFamily f = r.get(incr.getKey());
+				ColumnFamily f = r.getNoCreate(incr.getKey());
+				if (f == null) {
+					f = r.get(incr.getKey());
+					bytes += familyBytes(f.name);
+				}
 				for (Entry<String, Number> entry : incr.getValue().entrySet()) {
-					f.incr(entry.getKey(), entry.getValue());
+					if (f.getNoCreate(entry.getKey()) == null)
+						bytes += incrementBytes(entry.getKey());
+					f.incr(entry.getKey(), entry.getValue(), transaction);
 				}
 			}
 		
+		r.addBytes(bytes);
+		r.access();
+		return x;
+	}
+
+	@Override
+	public void storeChanges(String table, Collection<RowChanges> rows) {
+		//Changes are made durable at once
+		long sequence = 0;
+		for (RowChanges row : rows) {
+			sequence = Math.max(sequence, this.logChanges(table, row.getId(), row.getChanged(), row.getRemoved(), row.getIncrements()));
+		}
+		this.sync(sequence);
+		this.enforceCapacity();
+	}
+
+	/**
+	 * Bulk-loads sorted rows into a table.
+	 * Rows are built apart from the table by batches, with no lock held ; each batch is then logged, in case this store is
+	 * {@link #setPersistenceDirectory(String) persistent}, and added to the table in key order.
+	 * A row that was created meanwhile by another change is changed as by {@link #storeChanges(String, Collection)}.
+	 * Other changes are not blocked by the load. In case this store is persistent, all rows are made durable at once.
+	 * Adding a row to its table still costs as much as storing it : each row is inserted in the table index, logged and
+	 * versioned on its own, under its row lock. Only the {@link Table#count(String, String) key index} is built
+	 * in linear time when loaded keys come after indexed keys. Rows become visible batch by batch, not atomically.
+	 */
+	@Override
+	public void load(String table, Iterator<RowChanges> rows) {
+		Table t = this.getTable(table, true);
+		long sequence = 0;
+		IllegalArgumentException x = null;
+		List<RowChanges> changes = new ArrayList<RowChanges>(LOAD_BATCH);
+		List<Row> built = new ArrayList<Row>(LOAD_BATCH);
+		String last = null;
+		try {
+			while (rows.hasNext()) {
+				RowChanges row = rows.next();
+				String id = row.getId();
+				if (last != null && id.compareTo(last) <= 0) {
+					x = new IllegalArgumentException("Rows loaded into table " + table + " are not sorted: " + id + " comes after " + last);
+					break;
+				}
+				last = id;
+				//Values are visible as soon as the row is
+				Row r = t.new Row(id, UNBORN, null);
+				IllegalArgumentException rx = this.applyChanges(r, table, row.getChanged(), row.getRemoved(), row.getIncrements(), Long.MIN_VALUE);
+				if (x == null)
+					x = rx;
+				changes.add(row);
+				built.add(r);
+				if (built.size() == LOAD_BATCH) {
+					sequence = Math.max(sequence, this.publish(t, changes, built));
+					this.enforceCapacity();
+				}
+			}
+		} finally {
+			//Rows that were built are loaded
+			sequence = Math.max(sequence, this.publish(t, changes, built));
+			this.sync(sequence);
+		}
+		this.enforceCapacity();
 		if (x != null)
 			throw x;
 	}
+	
+	/**
+	 * Logs and adds rows built by a {@link #load(String, Iterator) bulk load} to their table ; lists are emptied.
+	 * @return the sequence number of the last log record ; 0 if this store is not persistent
+	 */
+	private long publish(Table t, List<RowChanges> changes, List<Row> built) {
+		if (built.isEmpty())
+			return 0;
+		long sequence = 0;
+		List<String> keys = new ArrayList<String>(built.size());
+		this.logLock.readLock().lock();
+		try {
+			WriteAheadLog l = this.log;
+			ByteArrayOutputStream record = new ByteArrayOutputStream();
+			for (int i = 0; i < built.size(); ++i) {
+				RowChanges row = changes.get(i);
+				Row r = built.get(i);
+				//Ordering the row with concurrent changes as they are logged
+				synchronized (this.rowLock(t.name, r.key)) {
+					if (l != null) {
+						record.reset();
+						this.changes(t.name, r.key, row.getChanged(), row.getRemoved(), row.getIncrements()).write(new DataOutputStream(record));
+						sequence = l.append(record.toByteArray());
+					}
+					//Not to be deleted by truncations ordered before this row is logged
+					r.truncations = t.truncations;
+					long transaction = this.beginChange();
+					try {
+						if (t.publish(r, transaction)) {
+							keys.add(r.key);
+						} else {
+							r.release();
+							try {
+								this.applyChanges(t.name, r.key, row.getChanged(), row.getRemoved(), row.getIncrements(), transaction);
+							} catch (IllegalArgumentException x) {
+								//Already reported when the row was built
+							}
+						}
+					} finally {
+						this.endChange();
+					}
+				}
+			}
+		} catch (IOException e) {
+			throw new DatabaseNotReachedException(e);
+		} finally {
+			this.logLock.readLock().unlock();
+		}
+		t.published(keys);
+		long ttl = this.getTimeToLive(t.name);
+		if (ttl > 0) {
+			long expiresAt = System.currentTimeMillis() + ttl;
+			for (Row r : built) {
+				r.touch(expiresAt);
+			}
+		}
+		changes.clear();
+		built.clear();
+		return sequence;
+	}
 
+	/**
+	 * Takes a logarithmic time according to the number of rows in the table ;
+	 * in case the table has a {@link #setTimeToLive(String, long) time to live}, expired rows that were not reclaimed yet are not counted,
+	 * which takes a time linear in the number of rows of this store that are about to expire, or that expired since they were last reclaimed in the background.
+	 */
 	@Override
 	public long count(String table, Constraint c)
 			throws DatabaseNotReachedException {
 		Table t = this.getTable(table, false);
-		return t == null ? 0 : subMap(t.getNavigableMap(), c == null ? null : c.getStartKey(), c == null ? null : c.getEndKey()).size();
+		if (t == null)
+			return 0;
+		String from = c == null ? null : c.getStartKey(), to = c == null ? null : c.getEndKey();
+		long ret = t.count(from, to);
+		if (this.getTimeToLive(table) > 0) {
+			//Expired rows are still in the index until reclaimed
+			List<Row> expired;
+			synchronized (this.expiries) {
+				expired = this.expiries.elapsed(System.currentTimeMillis());
+			}
+			ret = Math.max(0, ret - t.countExpired(expired, from, to));
+		}
+		return ret;
+	}
+	
+	/**
+	 * Processes elements close to the data, in parallel.
+	 * The range of keys is split into ranges holding about the same number of rows, that are scanned concurrently by a pool with one thread per available processor.
+	 * Rows are read while they are processed, as for {@link com.googlecode.n_orm.operations.Process#processElements(Class, Constraint, Process, int, String[], int, com.googlecode.n_orm.ProcessCanceller, ExecutorService)}.
+	 * This method returns immediately ; callback is notified once all ranges were processed,
+	 * with a {@link ProcessException} in case an element could not be processed.
+	 */
+	@Override
+	public <AE extends PersistingElement, E extends AE> void process(MetaInformation meta, final String table, Constraint c, final Set<String> families, final Class<E> element, final Process<AE> action, final Callback callback) {
+		final Map<String, Field> toBeActivated = meta == null ? null : meta.getFamilies();
+		final String to = c == null ? null : c.getEndKey();
+		Table t = this.getTable(table, false);
+		final List<String> starts = t == null ? new ArrayList<String>() : t.split(c == null ? null : c.getStartKey(), to, PROCESS_RANGES);
+		final List<ProcessException.Problem> problems = Collections.synchronizedList(new ArrayList<ProcessException.Problem>());
+		final List<Throwable> exceptions = Collections.synchronizedList(new ArrayList<Throwable>());
+		if (starts.isEmpty()) {
+			processCompleted(action, callback, problems, exceptions);
+			return;
+		}
+		final AtomicInteger remaining = new AtomicInteger(starts.size());
+		for (int i = 0; i < starts.size(); ++i) {
+			final String start = starts.get(i), next = i + 1 < starts.size() ? starts.get(i + 1) : null;
+			Processor.execute(new Runnable() {
+				
+				@Override
+				public void run() {
+					try {
+						CloseableKeyIterator rows = get(table, start == null && to == null ? null : new Constraint(start, to), Integer.MAX_VALUE, families);
+						try {
+							while (rows.hasNext()) {
+								com.googlecode.n_orm.storeapi.Row data = rows.next();
+								if (next != null && data.getKey().compareTo(next) >= 0)
+									break;
+								E elt = null;
+								try {
+									elt = StorageManagement.createElementFromRow(element, toBeActivated, data);
+									action.process(elt);
+								} catch (Throwable x) {
+									problems.add(new ProcessException.Problem(elt, data, x));
+								}
+							}
+						} finally {
+							rows.close();
+						}
+					} catch (Throwable x) {
+						exceptions.add(x);
+					} finally {
+						if (remaining.decrementAndGet() == 0)
+							processCompleted(action, callback, problems, exceptions);
+					}
+				}
+			});
+		}
 	}
 	
+	private static void processCompleted(Process<? extends PersistingElement> action, Callback callback, List<ProcessException.Problem> problems, List<Throwable> exceptions) {
+		if (callback == null)
+			return;
+		if (problems.isEmpty() && exceptions.isEmpty())
+			callback.processCompleted();
+		else
+			callback.processCompletedInError(new ProcessException(action, null, problems, exceptions));
+	}
+	
+	/**
+	 * Removes all data from this store.
+	 */
 	public void reset() {
+		long sequence = 0;
+		this.logLock.writeLock().lock();
+		try {
+			WriteAheadLog l = this.log;
+			if (l != null)
+				sequence = l.append(new byte[] {RESET_RECORD});
+			this.clearTables();
+		} catch (IOException x) {
+			throw new DatabaseNotReachedException(x);
+		} finally {
+			this.logLock.writeLock().unlock();
+		}
+		this.sync(sequence);
+	}
+
+	private void clearTables() {
+		for (Table t : this.tables.map().values()) {
+			t.clear();
+		}
 		this.tables.clear();
 	}
 
+	/**
+	 * Deletes all rows whose key satisfies the constraint.
+	 * Rows in the range are unlinked from their table at once rather than deleted one by one ;
+	 * only a single record is logged in case this store is {@link #setPersistenceDirectory(String) persistent}.
+	 * Other writers are only blocked while the truncation is logged and ordered, not while rows are unlinked.
+	 */
+	@Override
+	public void truncate(String table, Constraint c) {
+		String from = c == null ? null : c.getStartKey(), to = c == null ? null : c.getEndKey();
+		long sequence = 0;
+		Table t;
+		int truncation;
+		this.logLock.writeLock().lock();
+		try {
+			WriteAheadLog l = this.log;
+			if (l != null) {
+				ByteArrayOutputStream record = new ByteArrayOutputStream();
+				DataOutputStream out = new DataOutputStream(record);
+				out.writeByte(TRUNCATE_RECORD);
+				writeString(out, table);
+				writeNullableString(out, from);
+				writeNullableString(out, to);
+				sequence = l.append(record.toByteArray());
+			}
+			t = this.getTable(table, false);
+			truncation = t == null ? 0 : t.orderTruncation();
+		} catch (IOException x) {
+			throw new DatabaseNotReachedException(x);
+		} finally {
+			this.logLock.writeLock().unlock();
+		}
+		if (t != null)
+			t.truncate(from, to, truncation);
+		this.sync(sequence);
+	}
+	
+	private void applyTruncate(String table, String fromKeyIncl, String toKeyIncl) {
+		Table t = this.getTable(table, false);
+		if (t == null)
+			return;
+		int truncation;
+		this.logLock.writeLock().lock();
+		try {
+			truncation = t.orderTruncation();
+		} finally {
+			this.logLock.writeLock().unlock();
+		}
+		t.truncate(fromKeyIncl, toKeyIncl, truncation);
+	}
+
 	@Override
 	public void delete(String table, String id) {
+		this.sync(this.log(table, id, this.deletion(table, id)));
+	}
+	
+	private Change deletion(final String table, final String id) {
+		return new Change() {
+			
+			@Override
+			void write(DataOutput out) throws IOException {
+				out.writeByte(DELETE_RECORD);
+				writeString(out, table);
+				writeString(out, id);
+			}
+			
+			@Override
+			void apply() {
+				applyDelete(table, id);
+			}
+		};
+	}
+	
+	private void applyDelete(String table, String id) {
 		Table t = this.getTable(table, false);
-		if (t != null)
-			t.remove(id);
+		if (t == null)
+			return;
+		long transaction = this.beginChange();
+		try {
+			if (this.newestSnapshot == Long.MIN_VALUE)
+				t.remove(id);
+			else
+				t.kill(id, transaction);
+		} finally {
+			this.endChange();
+		}
 	}
 
 	@Override
@@ -655,13 +3706,49 @@ public class Memory implements SimpleStore {
 	}
 
 	@Override
-	public CloseableKeyIterator get(final String table, Constraint c, final int limit, Set<String> families)
+	public Map<String, ColumnFamilyData> get(String table, Collection<String> ids, Set<String> families) throws DatabaseNotReachedException {
+		Map<String, ColumnFamilyData> ret = new TreeMap<String, ColumnFamilyData>();
+		if (!this.tables.contains(table))
+			return ret;
+		
+		for (String id : ids) {
+			ColumnFamilyData data = this.get(table, id, families);
+			if (data != null)
+				ret.put(id, data);
+		}
+		
+		return ret;
+	}
+
+	/**
+	 * Rows matching constraint sorted according to their key in ascending order.
+	 * Returned rows only expose families in the given set, and decode them lazily when first read.
+	 * @param families the families to be returned with each row ; null if only keys are expected
+	 */
+	@Override
+	public CloseableKeyIterator get(String table, Constraint c, int limit, Set<String> families)
+			throws DatabaseNotReachedException {
+		return this.get(table, c, limit, families, false);
+	}
+
+	/**
+	 * Rows matching constraint sorted according to their key in ascending or descending order.
+	 * Returned rows only expose families in the given set, and decode them lazily when first read.
+	 * Scans are weakly consistent: a row is returned in case it exists when the scan reaches it,
+	 * and its values are those found when a column family is first read from the returned row,
+	 * which may include changes applied after the row was returned.
+	 * Use a {@link #openReadSnapshot() read snapshot} for consistent scans.
+	 * @param families the families to be returned with each row ; null if only keys are expected
+	 * @param descending whether rows are returned from the highest key to the lowest one
+	 */
+	@Override
+	public CloseableKeyIterator get(final String table, Constraint c, final int limit, Set<String> families, boolean descending)
 			throws DatabaseNotReachedException {
 		Table t = this.getTable(table, false);
 		if (t == null)
 			return new EmptyCloseableIterator();
-		final String endKey = c == null ? null : c.getEndKey();
-		final Iterator<Row> ret = t.getRowIterator(c == null ? null : c.getStartKey());
+		final Iterator<Row> ret = t.getRowIterator(c == null ? null : c.getStartKey(), c == null ? null : c.getEndKey(), descending);
+		final Set<String> projection = families == null ? null : new TreeSet<String>(families);
 		return new CloseableKeyIterator() {
 			private int count = 0;
 			private Row next = null;
@@ -680,12 +3767,12 @@ public class Memory implements SimpleStore {
 					return next = null;
 				}
 				
-				next = ret.hasNext() ? ret.next() : null;
+				do {
+					next = ret.hasNext() ? ret.next() : null;
+				} while (next != null && (next.isDeleted() || next.isExpired()));
 				
-				if (next == null
-						|| (endKey != null && next.getKey().compareTo(endKey) > 0) ) {
+				if (next == null) {
 					done = true;
-					next = null;
 				}
 					
 				return next;
@@ -698,9 +3785,9 @@ public class Memory implements SimpleStore {
 			
 			@Override
 			public com.googlecode.n_orm.storeapi.Row next() {
-				com.googlecode.n_orm.storeapi.Row ret = updateNext();
+				Row ret = updateNext();
 				next = null;
-				return ret;
+				return ret == null ? null : new ScannedRow(ret, projection);
 			}
 			
 			@Override
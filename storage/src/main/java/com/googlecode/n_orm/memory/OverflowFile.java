@@ -0,0 +1,202 @@
+package com.googlecode.n_orm.memory;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Comparator;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * A temporary file where {@link Memory} spills rows evicted to stay within its {@link Memory#setCapacity(long) capacity}.
+ * A record is found back from the offset returned by {@link #append(byte[])}, and is never rewritten until it is {@link #free(long) freed}.
+ * As long as a spilled row is not read again, its record is the only copy of its data.
+ * Space of freed records is reused by next records, the smallest free extent large enough being chosen ;
+ * adjacent free extents are merged, and the file is shrunk as soon as its last extent is free.<br>
+ * Records can be read concurrently with appends.
+ */
+class OverflowFile {
+	/**
+	 * Sorts free extents, given as their length and their offset, according to their length and then to their offset.
+	 */
+	private static final Comparator<long[]> EXTENT_ORDER = new Comparator<long[]>() {
+
+		@Override
+		public int compare(long[] e1, long[] e2) {
+			if (e1[0] != e2[0])
+				return e1[0] < e2[0] ? -1 : 1;
+			return e1[1] < e2[1] ? -1 : e1[1] == e2[1] ? 0 : 1;
+		}
+	};
+	
+	private final File file;
+	private final RandomAccessFile raf;
+	private final FileChannel channel;
+	private long end = 0;
+	
+	/**
+	 * The number of records that were not freed yet.
+	 */
+	private int records = 0;
+	
+	/**
+	 * Lengths of free extents according to their offset.
+	 */
+	private final TreeMap<Long, Long> freeExtents = new TreeMap<Long, Long>();
+	
+	/**
+	 * Free extents as their length and their offset, sorted by {@link #EXTENT_ORDER}.
+	 */
+	private final TreeSet<long[]> freeBySize = new TreeSet<long[]>(EXTENT_ORDER);
+	
+	/**
+	 * The number of bytes in free extents.
+	 */
+	private long free = 0;
+
+	/**
+	 * Creates a new empty file in the given directory ; the file is deleted when closed.
+	 */
+	public OverflowFile(File directory) throws IOException {
+		if (!directory.isDirectory() && !directory.mkdirs())
+			throw new IOException("Cannot create overflow directory " + directory);
+		this.file = File.createTempFile("overflow-", ".bin", directory);
+		this.file.deleteOnExit();
+		this.raf = new RandomAccessFile(this.file, "rw");
+		this.channel = this.raf.getChannel();
+	}
+
+	public File getFile() {
+		return this.file;
+	}
+
+	/**
+	 * The number of bytes in this file.
+	 */
+	public synchronized long size() {
+		return this.end;
+	}
+
+	/**
+	 * The number of bytes of this file that are free to be reused.
+	 */
+	public synchronized long freeSize() {
+		return this.free;
+	}
+
+	/**
+	 * The number of records that were not {@link #free(long) freed} yet.
+	 */
+	public synchronized int records() {
+		return this.records;
+	}
+
+	/**
+	 * Appends a record, reusing space of freed records if possible.
+	 * @return the offset of the record
+	 */
+	public synchronized long append(byte[] record) throws IOException {
+		ByteBuffer buf = ByteBuffer.allocate(4 + record.length);
+		buf.putInt(record.length);
+		buf.put(record);
+		buf.flip();
+		long length = buf.remaining();
+		long ret;
+		long[] extent = this.freeBySize.ceiling(new long[] {length, -1});
+		if (extent == null) {
+			ret = this.end;
+		} else {
+			ret = extent[1];
+			this.removeFree(ret, extent[0]);
+			if (extent[0] > length)
+				this.addFree(ret + length, extent[0] - length);
+		}
+		long position = ret;
+		while (buf.hasRemaining()) {
+			position += this.channel.write(buf, position);
+		}
+		this.end = Math.max(this.end, position);
+		this.records++;
+		return ret;
+	}
+
+	/**
+	 * Reads the record appended at the given offset.
+	 */
+	public byte[] read(long offset) throws IOException {
+		ByteBuffer ret = ByteBuffer.allocate(this.readLength(offset));
+		this.readFully(ret, offset + 4);
+		return ret.array();
+	}
+	
+	private int readLength(long offset) throws IOException {
+		ByteBuffer length = ByteBuffer.allocate(4);
+		this.readFully(length, offset);
+		return length.getInt(0);
+	}
+
+	private void readFully(ByteBuffer buf, long offset) throws IOException {
+		while (buf.hasRemaining()) {
+			int read = this.channel.read(buf, offset);
+			if (read < 0)
+				throw new EOFException("Unexpected end of overflow file " + this.file + " at " + offset);
+			offset += read;
+		}
+	}
+
+	/**
+	 * States that a record is not needed anymore so that its space can be reused ; the file is emptied as soon as no record is needed.
+	 * @param offset the offset of the record, that must not be read anymore
+	 */
+	public synchronized void free(long offset) throws IOException {
+		assert offset >= 0 && offset < this.end && this.records > 0;
+		if (--this.records == 0) {
+			this.channel.truncate(0);
+			this.end = 0;
+			this.freeExtents.clear();
+			this.freeBySize.clear();
+			this.free = 0;
+			return;
+		}
+		long length = 4 + this.readLength(offset);
+		Entry<Long, Long> previous = this.freeExtents.lowerEntry(offset);
+		if (previous != null && previous.getKey() + previous.getValue() == offset) {
+			this.removeFree(previous.getKey(), previous.getValue());
+			offset = previous.getKey();
+			length += previous.getValue();
+		}
+		Long next = this.freeExtents.get(offset + length);
+		if (next != null) {
+			this.removeFree(offset + length, next);
+			length += next;
+		}
+		if (offset + length == this.end) {
+			//Shrinking the file
+			this.channel.truncate(offset);
+			this.end = offset;
+		} else {
+			this.addFree(offset, length);
+		}
+	}
+	
+	private void addFree(long offset, long length) {
+		this.freeExtents.put(offset, length);
+		this.freeBySize.add(new long[] {length, offset});
+		this.free += length;
+	}
+	
+	private void removeFree(long offset, long length) {
+		this.freeExtents.remove(offset);
+		this.freeBySize.remove(new long[] {length, offset});
+		this.free -= length;
+	}
+
+	public synchronized void close() throws IOException {
+		this.raf.close();
+		this.file.delete();
+	}
+}
@@ -0,0 +1,595 @@
+package com.googlecode.n_orm.memory;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * A concurrent map sorted according to its {@link String} keys, stored as a prefix-compressed radix tree.
+ * Each node stores once the characters shared by all keys below it, so that keys sharing long prefixes
+ * (such as n-orm composite keys) are not stored in full.
+ * Children of a node are found from their first character in a sorted array sized according to the number of children:
+ * small arrays are scanned, and larger ones are searched by dichotomy.
+ * A lookup thus visits one node per distinct prefix of the key, instead of about log(n) nodes scattered in the heap for a skip list.<br>
+ * Reads do not lock: a reachable node never changes but for its value, and the children of a node are replaced as a whole.
+ * Changes are serialized.
+ * Iterators are weakly consistent: each step looks for the key that follows the last returned one.
+ * Null keys and values are not supported.
+ * @param <V> the type of values
+ */
+class PrefixTreeMap<V> extends AbstractMap<String, V> implements ConcurrentMap<String, V> {
+	private static final char[] EMPTY_PREFIX = new char[0];
+
+	/**
+	 * Under this number of children, children are found by a linear scan.
+	 */
+	private static final int LINEAR_SEARCH_MAX = 8;
+
+	private static final class Children<V> {
+		private final char[] labels;
+		private final Node<V>[] nodes;
+
+		public Children(char[] labels, Node<V>[] nodes) {
+			this.labels = labels;
+			this.nodes = nodes;
+		}
+
+		public int size() {
+			return this.labels.length;
+		}
+
+		/**
+		 * The index of the child for the given character ; (-(insertion point) - 1) if none.
+		 */
+		public int indexOf(char c) {
+			if (this.labels.length <= LINEAR_SEARCH_MAX) {
+				for (int i = 0; i < this.labels.length; ++i) {
+					if (this.labels[i] == c)
+						return i;
+					if (this.labels[i] > c)
+						return -i - 1;
+				}
+				return -this.labels.length - 1;
+			}
+			return Arrays.binarySearch(this.labels, c);
+		}
+
+		@SuppressWarnings("unchecked")
+		public Children<V> with(int index, char label, Node<V> node) {
+			boolean insert = index < 0;
+			if (insert)
+				index = -index - 1;
+			int size = this.labels.length + (insert ? 1 : 0);
+			char[] labels = new char[size];
+			Node<V>[] nodes = new Node[size];
+			if (insert) {
+				System.arraycopy(this.labels, 0, labels, 0, index);
+				System.arraycopy(this.nodes, 0, nodes, 0, index);
+				System.arraycopy(this.labels, index, labels, index + 1, this.labels.length - index);
+				System.arraycopy(this.nodes, index, nodes, index + 1, this.nodes.length - index);
+			} else {
+				System.arraycopy(this.labels, 0, labels, 0, size);
+				System.arraycopy(this.nodes, 0, nodes, 0, size);
+			}
+			labels[index] = label;
+			nodes[index] = node;
+			return new Children<V>(labels, nodes);
+		}
+
+		@SuppressWarnings("unchecked")
+		public Children<V> without(int index) {
+			int size = this.labels.length - 1;
+			char[] labels = new char[size];
+			Node<V>[] nodes = new Node[size];
+			System.arraycopy(this.labels, 0, labels, 0, index);
+			System.arraycopy(this.nodes, 0, nodes, 0, index);
+			System.arraycopy(this.labels, index + 1, labels, index, size - index);
+			System.arraycopy(this.nodes, index + 1, nodes, index, size - index);
+			return new Children<V>(labels, nodes);
+		}
+	}
+
+	@SuppressWarnings("rawtypes")
+	private static final Children NO_CHILDREN = new Children<Object>(new char[0], new Node[0]);
+
+	private static final class Node<V> {
+		/**
+		 * Characters following the label of this node in all keys below this node.
+		 */
+		private final char[] prefix;
+		private volatile V value;
+		private volatile Children<V> children;
+
+		public Node(char[] prefix, V value, Children<V> children) {
+			this.prefix = prefix;
+			this.value = value;
+			this.children = children;
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private static <V> Children<V> noChildren() {
+		return NO_CHILDREN;
+	}
+
+	private static char[] concat(char[] prefix, char label, char[] suffix) {
+		char[] ret = new char[prefix.length + 1 + suffix.length];
+		System.arraycopy(prefix, 0, ret, 0, prefix.length);
+		ret[prefix.length] = label;
+		System.arraycopy(suffix, 0, ret, prefix.length + 1, suffix.length);
+		return ret;
+	}
+
+	private volatile Node<V> root = new Node<V>(EMPTY_PREFIX, null, PrefixTreeMap.<V>noChildren());
+	private volatile int size = 0;
+
+	private Node<V> find(String key) {
+		Node<V> n = this.root;
+		int i = 0;
+		while (true) {
+			char[] prefix = n.prefix;
+			if (key.length() - i < prefix.length)
+				return null;
+			for (int j = 0; j < prefix.length; ++j) {
+				if (key.charAt(i++) != prefix[j])
+					return null;
+			}
+			if (i == key.length())
+				return n;
+			Children<V> children = n.children;
+			int index = children.indexOf(key.charAt(i++));
+			if (index < 0)
+				return null;
+			n = children.nodes[index];
+		}
+	}
+
+	@Override
+	public V get(Object key) {
+		Node<V> n = this.find((String)key);
+		return n == null ? null : n.value;
+	}
+
+	@Override
+	public boolean containsKey(Object key) {
+		return this.get(key) != null;
+	}
+
+	@Override
+	public int size() {
+		return this.size;
+	}
+
+	@Override
+	public boolean isEmpty() {
+		return this.size == 0;
+	}
+
+	/**
+	 * Replaces a child of a node, or the root in case parent is null.
+	 */
+	private void replace(Node<V> parent, int index, Node<V> node) {
+		if (parent == null) {
+			this.root = node;
+		} else {
+			Children<V> children = parent.children;
+			parent.children = children.with(index, children.labels[index], node);
+		}
+	}
+
+	private synchronized V put(String key, V value, boolean onlyIfAbsent) {
+		if (key == null || value == null)
+			throw new NullPointerException();
+		Node<V> parent = null, n = this.root;
+		int parentIndex = -1, i = 0;
+		while (true) {
+			char[] prefix = n.prefix;
+			int j = 0;
+			while (j < prefix.length && i + j < key.length() && key.charAt(i + j) == prefix[j])
+				j++;
+			if (j < prefix.length) {
+				//Splitting node
+				Node<V> rest = new Node<V>(Arrays.copyOfRange(prefix, j + 1, prefix.length), n.value, n.children);
+				Node<V> mid = new Node<V>(Arrays.copyOf(prefix, j), null, PrefixTreeMap.<V>noChildren().with(-1, prefix[j], rest));
+				if (i + j == key.length()) {
+					mid.value = value;
+				} else {
+					char c = key.charAt(i + j);
+					Node<V> leaf = new Node<V>(key.substring(i + j + 1).toCharArray(), value, PrefixTreeMap.<V>noChildren());
+					mid.children = mid.children.with(mid.children.indexOf(c), c, leaf);
+				}
+				this.replace(parent, parentIndex, mid);
+				this.size++;
+				return null;
+			}
+			i += prefix.length;
+			if (i == key.length()) {
+				V ret = n.value;
+				if (ret == null || !onlyIfAbsent)
+					n.value = value;
+				if (ret == null)
+					this.size++;
+				return ret;
+			}
+			char c = key.charAt(i++);
+			Children<V> children = n.children;
+			int index = children.indexOf(c);
+			if (index < 0) {
+				Node<V> leaf = new Node<V>(key.substring(i).toCharArray(), value, PrefixTreeMap.<V>noChildren());
+				n.children = children.with(index, c, leaf);
+				this.size++;
+				return null;
+			}
+			parent = n;
+			parentIndex = index;
+			n = children.nodes[index];
+		}
+	}
+
+	@Override
+	public V put(String key, V value) {
+		return this.put(key, value, false);
+	}
+
+	@Override
+	public V putIfAbsent(String key, V value) {
+		return this.put(key, value, true);
+	}
+
+	/**
+	 * Removes the value for a key.
+	 * @param expected the value to be removed ; null to remove any value
+	 * @return the removed value ; null if nothing was removed
+	 */
+	private synchronized V remove(String key, Object expected) {
+		Node<V> grandParent = null, parent = null, n = this.root;
+		int parentIndex = -1, index = -1, i = 0;
+		while (true) {
+			char[] prefix = n.prefix;
+			if (key.length() - i < prefix.length)
+				return null;
+			for (int j = 0; j < prefix.length; ++j) {
+				if (key.charAt(i++) != prefix[j])
+					return null;
+			}
+			if (i == key.length())
+				break;
+			Children<V> children = n.children;
+			int next = children.indexOf(key.charAt(i++));
+			if (next < 0)
+				return null;
+			grandParent = parent;
+			parentIndex = index;
+			parent = n;
+			index = next;
+			n = children.nodes[next];
+		}
+
+		V ret = n.value;
+		if (ret == null || (expected != null && !expected.equals(ret)))
+			return null;
+		n.value = null;
+		this.size--;
+		if (parent == null)
+			return ret;
+
+		Children<V> children = n.children;
+		if (children.size() == 0) {
+			Children<V> siblings = parent.children.without(index);
+			if (siblings.size() == 1 && parent.value == null && grandParent != null) {
+				//Parent is now useless
+				this.replace(grandParent, parentIndex, new Node<V>(concat(parent.prefix, siblings.labels[0], siblings.nodes[0].prefix), siblings.nodes[0].value, siblings.nodes[0].children));
+			} else {
+				parent.children = siblings;
+			}
+		} else if (children.size() == 1) {
+			//Merging with the only child
+			Node<V> child = children.nodes[0];
+			this.replace(parent, index, new Node<V>(concat(n.prefix, children.labels[0], child.prefix), child.value, child.children));
+		}
+		return ret;
+	}
+
+	@Override
+	public V remove(Object key) {
+		return this.remove((String)key, null);
+	}
+
+	@Override
+	public boolean remove(Object key, Object value) {
+		if (value == null)
+			return false;
+		return this.remove((String)key, value) != null;
+	}
+
+	@Override
+	public synchronized boolean replace(String key, V oldValue, V newValue) {
+		if (oldValue == null || newValue == null)
+			throw new NullPointerException();
+		Node<V> n = this.find(key);
+		if (n == null || !oldValue.equals(n.value))
+			return false;
+		n.value = newValue;
+		return true;
+	}
+
+	@Override
+	public synchronized V replace(String key, V value) {
+		if (value == null)
+			throw new NullPointerException();
+		Node<V> n = this.find(key);
+		V ret = n == null ? null : n.value;
+		if (ret != null)
+			n.value = value;
+		return ret;
+	}
+
+	@Override
+	public synchronized void clear() {
+		this.root = new Node<V>(EMPTY_PREFIX, null, PrefixTreeMap.<V>noChildren());
+		this.size = 0;
+	}
+
+	/**
+	 * The entry with the lowest key below the given node ; null if none.
+	 * A node reached from a stale array of children may have been removed concurrently, and then have no value nor children :
+	 * next children are searched in this case.
+	 */
+	private static <V> Entry<String, V> first(Node<V> n, StringBuilder path) {
+		int length = path.length();
+		path.append(n.prefix);
+		V value = n.value;
+		if (value != null)
+			return new SimpleImmutableEntry<String, V>(path.toString(), value);
+		Children<V> children = n.children;
+		for (int k = 0; k < children.size(); ++k) {
+			int childLength = path.length();
+			path.append(children.labels[k]);
+			Entry<String, V> ret = first(children.nodes[k], path);
+			if (ret != null)
+				return ret;
+			//Removed concurrently
+			path.setLength(childLength);
+		}
+		//All children were removed concurrently, maybe after a value was set
+		value = n.value;
+		if (value != null)
+			return new SimpleImmutableEntry<String, V>(path.toString(), value);
+		path.setLength(length);
+		return null;
+	}
+
+	/**
+	 * The entry with the greatest key below the given node ; null if none.
+	 * @see #first(Node, StringBuilder)
+	 */
+	private static <V> Entry<String, V> last(Node<V> n, StringBuilder path) {
+		int length = path.length();
+		path.append(n.prefix);
+		Children<V> children = n.children;
+		for (int k = children.size() - 1; k >= 0; --k) {
+			int childLength = path.length();
+			path.append(children.labels[k]);
+			Entry<String, V> ret = last(children.nodes[k], path);
+			if (ret != null)
+				return ret;
+			//Removed concurrently
+			path.setLength(childLength);
+		}
+		//Key for this node is a prefix of keys below, and thus lower
+		V value = n.value;
+		if (value != null)
+			return new SimpleImmutableEntry<String, V>(path.toString(), value);
+		path.setLength(length);
+		return null;
+	}
+
+	/**
+	 * The entry with the lowest key greater than (or equal to if inclusive) the target key, below the given node.
+	 * @param i the number of characters of target already matched by the path to this node
+	 */
+	private static <V> Entry<String, V> ceiling(Node<V> n, StringBuilder path, String target, int i, boolean inclusive) {
+		int length = path.length();
+		char[] prefix = n.prefix;
+		for (int j = 0; j < prefix.length; ++j, ++i) {
+			if (i == target.length() || prefix[j] > target.charAt(i))
+				//All keys below are greater
+				return first(n, path);
+			if (prefix[j] < target.charAt(i))
+				//All keys below are lower
+				return null;
+		}
+		path.append(prefix);
+		if (i == target.length()) {
+			V value = n.value;
+			if (inclusive && value != null)
+				return new SimpleImmutableEntry<String, V>(path.toString(), value);
+		}
+		Children<V> children = n.children;
+		int start = 0;
+		char c = 0;
+		if (i < target.length()) {
+			c = target.charAt(i);
+			start = children.indexOf(c);
+			if (start < 0)
+				start = -start - 1;
+		}
+		for (int k = start; k < children.size(); ++k) {
+			int childLength = path.length();
+			path.append(children.labels[k]);
+			Entry<String, V> ret = i < target.length() && children.labels[k] == c
+					? ceiling(children.nodes[k], path, target, i + 1, inclusive)
+					: first(children.nodes[k], path);
+			if (ret != null)
+				return ret;
+			path.setLength(childLength);
+		}
+		path.setLength(length);
+		return null;
+	}
+
+	/**
+	 * The entry with the greatest key lower than (or equal to if inclusive) the target key, below the given node.
+	 * @param i the number of characters of target already matched by the path to this node
+	 */
+	private static <V> Entry<String, V> floor(Node<V> n, StringBuilder path, String target, int i, boolean inclusive) {
+		int length = path.length();
+		char[] prefix = n.prefix;
+		for (int j = 0; j < prefix.length; ++j, ++i) {
+			if (i == target.length() || prefix[j] > target.charAt(i))
+				//All keys below are greater
+				return null;
+			if (prefix[j] < target.charAt(i))
+				//All keys below are lower
+				return last(n, path);
+		}
+		path.append(prefix);
+		if (i == target.length()) {
+			//Keys below are longer, and thus greater
+			V value = n.value;
+			if (inclusive && value != null)
+				return new SimpleImmutableEntry<String, V>(path.toString(), value);
+			path.setLength(length);
+			return null;
+		}
+		Children<V> children = n.children;
+		char c = target.charAt(i);
+		int start = children.indexOf(c);
+		if (start < 0)
+			start = -start - 2;
+		for (int k = start; k >= 0; --k) {
+			int childLength = path.length();
+			path.append(children.labels[k]);
+			Entry<String, V> ret = children.labels[k] == c
+					? floor(children.nodes[k], path, target, i + 1, inclusive)
+					: last(children.nodes[k], path);
+			if (ret != null)
+				return ret;
+			path.setLength(childLength);
+		}
+		//Key for this node is a prefix of target, and thus lower
+		V value = n.value;
+		if (value != null)
+			return new SimpleImmutableEntry<String, V>(path.toString(), value);
+		path.setLength(length);
+		return null;
+	}
+
+	/**
+	 * The entry with the lowest key greater than (or equal to if inclusive) the given key ; null if none.
+	 */
+	public Entry<String, V> ceilingEntry(String key, boolean inclusive) {
+		return ceiling(this.root, new StringBuilder(), key, 0, inclusive);
+	}
+
+	/**
+	 * The entry with the greatest key lower than (or equal to if inclusive) the given key ; null if none.
+	 */
+	public Entry<String, V> floorEntry(String key, boolean inclusive) {
+		return floor(this.root, new StringBuilder(), key, 0, inclusive);
+	}
+
+	public Entry<String, V> firstEntry() {
+		return this.ceilingEntry("", true);
+	}
+
+	public Entry<String, V> lastEntry() {
+		return last(this.root, new StringBuilder());
+	}
+
+	/**
+	 * Iterates over entries whose keys are between fromKeyIncl and toKeyIncl.
+	 * @param fromKeyIncl the lowest key ; null means no lower bound
+	 * @param toKeyIncl the highest key ; null means no higher bound
+	 * @param descending whether entries are iterated from the highest key to the lowest one
+	 */
+	public Iterator<Entry<String, V>> entries(final String fromKeyIncl, final String toKeyIncl, final boolean descending) {
+		return new Iterator<Entry<String, V>>() {
+			private Entry<String, V> next = descending
+					? (toKeyIncl == null ? lastEntry() : floorEntry(toKeyIncl, true))
+					: (fromKeyIncl == null ? firstEntry() : ceilingEntry(fromKeyIncl, true));
+			private String last = null;
+
+			{
+				this.checkBound();
+			}
+
+			private void checkBound() {
+				if (this.next == null)
+					return;
+				String bound = descending ? fromKeyIncl : toKeyIncl;
+				if (bound != null && (descending ? this.next.getKey().compareTo(bound) < 0 : this.next.getKey().compareTo(bound) > 0))
+					this.next = null;
+			}
+
+			@Override
+			public boolean hasNext() {
+				return this.next != null;
+			}
+
+			@Override
+			public Entry<String, V> next() {
+				Entry<String, V> ret = this.next;
+				if (ret == null)
+					throw new NoSuchElementException();
+				this.last = ret.getKey();
+				this.next = descending ? floorEntry(this.last, false) : ceilingEntry(this.last, false);
+				this.checkBound();
+				return ret;
+			}
+
+			@Override
+			public void remove() {
+				if (this.last == null)
+					throw new IllegalStateException();
+				PrefixTreeMap.this.remove(this.last);
+				this.last = null;
+			}
+		};
+	}
+
+	/**
+	 * Iterates over values whose keys are between fromKeyIncl and toKeyIncl.
+	 * @see #entries(String, String, boolean)
+	 */
+	public Iterator<V> values(String fromKeyIncl, String toKeyIncl, boolean descending) {
+		final Iterator<Entry<String, V>> entries = this.entries(fromKeyIncl, toKeyIncl, descending);
+		return new Iterator<V>() {
+
+			@Override
+			public boolean hasNext() {
+				return entries.hasNext();
+			}
+
+			@Override
+			public V next() {
+				return entries.next().getValue();
+			}
+
+			@Override
+			public void remove() {
+				entries.remove();
+			}
+		};
+	}
+
+	@Override
+	public Set<Entry<String, V>> entrySet() {
+		return new AbstractSet<Entry<String, V>>() {
+
+			@Override
+			public Iterator<Entry<String, V>> iterator() {
+				return entries(null, null, false);
+			}
+
+			@Override
+			public int size() {
+				return PrefixTreeMap.this.size();
+			}
+		};
+	}
+}
@@ -0,0 +1,337 @@
+package com.googlecode.n_orm.memory;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import com.googlecode.n_orm.memory.LogStructuredStore.Cell;
+import com.googlecode.n_orm.memory.LogStructuredStore.Key;
+
+/**
+ * An immutable file of {@link Cell cells} sorted according to their {@link Key key}, as written by a {@link LogStructuredStore}.
+ * Cells are grouped into blocks of about {@link #BLOCK_SIZE} bytes ; the first key of each block is kept in memory (the block index)
+ * so that finding a key only needs to read a single block.
+ * A {@link BloomFilter} tells whether the segment may hold cells for a row without reading any block.<br>
+ * The file is memory-mapped, and can thus be larger than the heap ; it is mapped by chunks of {@link #CHUNK_SIZE} bytes in case it is larger than what a single buffer can map.<br>
+ * A segment holds changes from a range of generations of the {@link LogStructuredStore} memtable ; a segment for a wider range replaces segments for ranges it includes.
+ */
+class SortedSegment {
+	static final int BLOCK_SIZE = 4096;
+	static final long CHUNK_SIZE = 1L << 30;
+
+	private static final int MAGIC = 0x4e4c534d;
+	private static final int VERSION = 1;
+	private static final int HEADER_SIZE = 4 + 4;
+	private static final int FOOTER_SIZE = 8 + 8 + 8 + 4;
+
+	private static void writeKey(DataOutput out, Key key) throws IOException {
+		Memory.writeString(out, key.row);
+		out.writeBoolean(key.family != null);
+		if (key.family != null) {
+			Memory.writeString(out, key.family);
+			Memory.writeString(out, key.qualifier);
+		}
+	}
+
+	private static Key readKey(DataInput in) throws IOException {
+		String row = Memory.readString(in);
+		if (!in.readBoolean())
+			return new Key(row, null, null);
+		String family = Memory.readString(in);
+		return new Key(row, family, Memory.readString(in));
+	}
+
+	/**
+	 * Writes cells into a new segment file and forces it to the disk.
+	 * @param cells cells sorted according to their key, each key appearing at most once
+	 * @return the number of written cells
+	 */
+	static long write(File f, Iterator<Cell> cells) throws IOException {
+		FileOutputStream file = new FileOutputStream(f);
+		try {
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file, 4 * BLOCK_SIZE));
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			long offset = HEADER_SIZE, count = 0;
+
+			ByteArrayOutputStream block = new ByteArrayOutputStream(2 * BLOCK_SIZE);
+			DataOutputStream blockOut = new DataOutputStream(block);
+			ByteArrayOutputStream index = new ByteArrayOutputStream();
+			DataOutputStream indexOut = new DataOutputStream(index);
+			int blocks = 0;
+			long[] rowHashes = new long[64];
+			int rows = 0;
+			String lastRow = null;
+
+			while (cells.hasNext()) {
+				Cell c = cells.next();
+				if (block.size() == 0) {
+					writeKey(indexOut, c.key);
+					indexOut.writeLong(offset);
+					blocks++;
+				}
+				if (!c.key.row.equals(lastRow)) {
+					if (rows == rowHashes.length)
+						rowHashes = Arrays.copyOf(rowHashes, 2 * rows);
+					rowHashes[rows++] = BloomFilter.hash(c.key.row);
+					lastRow = c.key.row;
+				}
+				blockOut.writeByte(c.kind);
+				writeKey(blockOut, c.key);
+				if (c.kind == LogStructuredStore.PUT)
+					Memory.writeBytes(blockOut, c.value);
+				count++;
+				if (block.size() >= BLOCK_SIZE) {
+					indexOut.writeInt(block.size());
+					block.writeTo(out);
+					offset += block.size();
+					block.reset();
+				}
+			}
+			if (block.size() > 0) {
+				indexOut.writeInt(block.size());
+				block.writeTo(out);
+				offset += block.size();
+			}
+
+			long indexOffset = offset;
+			out.writeInt(blocks);
+			index.writeTo(out);
+			long bloomOffset = indexOffset + 4 + index.size();
+			BloomFilter.create(rowHashes, rows).write(out);
+			out.writeLong(indexOffset);
+			out.writeLong(bloomOffset);
+			out.writeLong(count);
+			out.writeInt(MAGIC);
+			out.flush();
+			file.getFD().sync();
+			return count;
+		} finally {
+			file.close();
+		}
+	}
+
+	private final File file;
+	private final long minGeneration, maxGeneration;
+	private final ByteBuffer[] chunks;
+	private final Key[] firstKeys;
+	private final long[] offsets;
+	private final int[] lengths;
+	private final BloomFilter rows;
+	private final long cells;
+
+	/**
+	 * Opens an existing segment.
+	 * @param minGeneration the first memtable generation this segment holds changes from
+	 * @param maxGeneration the last memtable generation this segment holds changes from
+	 */
+	SortedSegment(File file, long minGeneration, long maxGeneration) throws IOException {
+		this.file = file;
+		this.minGeneration = minGeneration;
+		this.maxGeneration = maxGeneration;
+		long size;
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			FileChannel ch = raf.getChannel();
+			size = ch.size();
+			if (size < HEADER_SIZE + FOOTER_SIZE)
+				throw new IOException("Segment " + file.getAbsolutePath() + " is truncated");
+			this.chunks = new ByteBuffer[(int)((size + CHUNK_SIZE - 1) / CHUNK_SIZE)];
+			for (int i = 0; i < this.chunks.length; ++i) {
+				long start = i * CHUNK_SIZE;
+				//Mapping remains valid after the channel is closed
+				this.chunks[i] = ch.map(FileChannel.MapMode.READ_ONLY, start, Math.min(CHUNK_SIZE, size - start));
+			}
+		} finally {
+			raf.close();
+		}
+
+		DataInputStream header = this.read(0, HEADER_SIZE);
+		if (header.readInt() != MAGIC || header.readInt() != VERSION)
+			throw new IOException(file.getAbsolutePath() + " is not a segment");
+		DataInputStream footer = this.read(size - FOOTER_SIZE, FOOTER_SIZE);
+		long indexOffset = footer.readLong(), bloomOffset = footer.readLong();
+		this.cells = footer.readLong();
+		if (footer.readInt() != MAGIC || indexOffset < HEADER_SIZE || bloomOffset < indexOffset || bloomOffset > size - FOOTER_SIZE)
+			throw new IOException("Segment " + file.getAbsolutePath() + " is corrupted");
+
+		DataInputStream index = this.read(indexOffset, (int)(bloomOffset - indexOffset));
+		int blocks = index.readInt();
+		this.firstKeys = new Key[blocks];
+		this.offsets = new long[blocks];
+		this.lengths = new int[blocks];
+		for (int i = 0; i < blocks; ++i) {
+			this.firstKeys[i] = readKey(index);
+			this.offsets[i] = index.readLong();
+			this.lengths[i] = index.readInt();
+		}
+		this.rows = BloomFilter.read(this.read(bloomOffset, (int)(size - FOOTER_SIZE - bloomOffset)));
+	}
+
+	/**
+	 * Copies bytes from the mapped file, possibly across chunks.
+	 */
+	private DataInputStream read(long offset, int length) {
+		byte[] ret = new byte[length];
+		int done = 0;
+		while (done < length) {
+			long pos = offset + done;
+			ByteBuffer chunk = this.chunks[(int)(pos / CHUNK_SIZE)].duplicate();
+			chunk.position((int)(pos % CHUNK_SIZE));
+			int n = Math.min(length - done, chunk.remaining());
+			chunk.get(ret, done, n);
+			done += n;
+		}
+		return new DataInputStream(new ByteArrayInputStream(ret));
+	}
+
+	private List<Cell> readBlock(int block) {
+		try {
+			DataInputStream in = this.read(this.offsets[block], this.lengths[block]);
+			List<Cell> ret = new ArrayList<Cell>();
+			while (in.available() > 0) {
+				byte kind = in.readByte();
+				Key key = readKey(in);
+				ret.add(new Cell(key, kind, kind == LogStructuredStore.PUT ? Memory.readBytes(in) : null));
+			}
+			return ret;
+		} catch (IOException x) {
+			//Reading from a byte array
+			throw new IllegalStateException("Corrupted block " + block + " in segment " + this.file.getAbsolutePath(), x);
+		}
+	}
+
+	/**
+	 * The last block whose first key is lower (or equal if not strict) than the given key ; -1 if none.
+	 */
+	private int findBlock(Key key, boolean strict) {
+		int low = 0, high = this.firstKeys.length - 1, ret = -1;
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			int c = this.firstKeys[mid].compareTo(key);
+			if (c < 0 || (c == 0 && !strict)) {
+				ret = mid;
+				low = mid + 1;
+			} else {
+				high = mid - 1;
+			}
+		}
+		return ret;
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	public long getMinGeneration() {
+		return minGeneration;
+	}
+
+	public long getMaxGeneration() {
+		return maxGeneration;
+	}
+
+	/**
+	 * The number of cells in this segment.
+	 */
+	public long getCells() {
+		return cells;
+	}
+
+	/**
+	 * Whether this segment may hold cells for the given row ; false means for sure it does not.
+	 */
+	public boolean mightContainRow(String row) {
+		return this.rows.mightContain(BloomFilter.hash(row));
+	}
+
+	/**
+	 * Iterates over cells whose key is between from (included) and to (excluded).
+	 * Blocks are read lazily.
+	 * @param from null means no lower bound
+	 * @param to null means no upper bound
+	 * @param descending whether cells are iterated from the highest key to the lowest one
+	 */
+	public Iterator<Cell> iterator(final Key from, final Key to, final boolean descending) {
+		final int first = descending
+				? (to == null ? this.firstKeys.length - 1 : this.findBlock(to, true))
+				: (from == null ? 0 : Math.max(0, this.findBlock(from, false)));
+		return new Iterator<Cell>() {
+			private int block = first;
+			private List<Cell> cells = null;
+			private int pos;
+			private Cell next = null;
+			private boolean done = false;
+
+			@Override
+			public boolean hasNext() {
+				while (this.next == null && !this.done) {
+					if (this.cells == null) {
+						if (this.block < 0 || this.block >= firstKeys.length) {
+							this.done = true;
+							return false;
+						}
+						this.cells = readBlock(this.block);
+						this.pos = descending ? this.cells.size() - 1 : 0;
+					}
+					if (this.pos < 0 || this.pos >= this.cells.size()) {
+						this.cells = null;
+						this.block += descending ? -1 : 1;
+						continue;
+					}
+					Cell c = this.cells.get(this.pos);
+					this.pos += descending ? -1 : 1;
+					boolean afterFrom = from == null || c.key.compareTo(from) >= 0;
+					boolean beforeTo = to == null || c.key.compareTo(to) < 0;
+					if (afterFrom && beforeTo)
+						this.next = c;
+					else if (descending ? !afterFrom : !beforeTo)
+						this.done = true;
+				}
+				return this.next != null;
+			}
+
+			@Override
+			public Cell next() {
+				if (!this.hasNext())
+					throw new NoSuchElementException();
+				Cell ret = this.next;
+				this.next = null;
+				return ret;
+			}
+
+			@Override
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
+
+	/**
+	 * Removes the file for this segment.
+	 * The segment can still be read until it is garbage collected as long as the operating system keeps mapped data for removed files.
+	 */
+	public void delete() {
+		this.file.delete();
+	}
+
+	@Override
+	public String toString() {
+		return "segment " + this.file.getAbsolutePath();
+	}
+}
@@ -0,0 +1,150 @@
+package com.googlecode.n_orm.memory;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Removes deleted cells from {@link Memory} column families in the background.
+ * A column family holding deleted cells registers itself once, whatever the number of deleted cells, and is swept as a whole.
+ * Sweeps happen every {@link #getPeriod()} milliseconds, and each sweep handles at most {@link #getBatchSize()} column families ;
+ * remaining column families are handled by next sweeps.
+ */
+public class TombstoneCompactor {
+	private static final Logger logger = Logger.getLogger(TombstoneCompactor.class.getName());
+
+	/**
+	 * Something holding deleted cells.
+	 */
+	static interface Compactable {
+		/**
+		 * Removes deleted cells.
+		 * @return the number of removed cells
+		 */
+		long compact();
+	}
+
+	private static volatile long PERIOD = 100;
+	private static volatile int BATCH_SIZE = 1000;
+
+	private static final Queue<Compactable> pending = new ConcurrentLinkedQueue<Compactable>();
+	private static final AtomicInteger backlog = new AtomicInteger();
+	private static final AtomicLong reclaimed = new AtomicLong(), sweeps = new AtomicLong();
+	private static final AtomicBoolean started = new AtomicBoolean(false);
+
+	/**
+	 * The time in milliseconds between two sweeps ; default is 100.
+	 */
+	public static long getPeriod() {
+		return PERIOD;
+	}
+
+	/**
+	 * @throws IllegalArgumentException in case period is not strictly positive
+	 */
+	public static void setPeriod(long period) {
+		if (period <= 0)
+			throw new IllegalArgumentException("Compaction period must be strictly positive ; got " + period);
+		PERIOD = period;
+	}
+
+	/**
+	 * The maximum number of column families swept at once ; default is 1000.
+	 */
+	public static int getBatchSize() {
+		return BATCH_SIZE;
+	}
+
+	/**
+	 * @throws IllegalArgumentException in case batch size is not strictly positive
+	 */
+	public static void setBatchSize(int batchSize) {
+		if (batchSize <= 0)
+			throw new IllegalArgumentException("Compaction batch size must be strictly positive ; got " + batchSize);
+		BATCH_SIZE = batchSize;
+	}
+
+	/**
+	 * The number of column families waiting for being swept.
+	 */
+	public static int getBacklog() {
+		return backlog.get();
+	}
+
+	/**
+	 * The number of deleted cells removed so far.
+	 */
+	public static long getReclaimedCells() {
+		return reclaimed.get();
+	}
+
+	/**
+	 * The number of sweeps performed so far.
+	 */
+	public static long getSweeps() {
+		return sweeps.get();
+	}
+
+	/**
+	 * Registers a column family to be swept.
+	 * Should be called only once until the column family is {@link Compactable#compact() compacted}.
+	 */
+	static void register(Compactable c) {
+		pending.add(c);
+		backlog.incrementAndGet();
+		if (started.compareAndSet(false, true)) {
+			Thread t = new Thread(new Runnable() {
+
+				@Override
+				public void run() {
+					while (true) {
+						try {
+							Thread.sleep(PERIOD);
+							sweep();
+						} catch (InterruptedException x) {
+							return;
+						} catch (RuntimeException x) {
+							logger.log(Level.WARNING, "Problem while removing deleted cells: " + x.getMessage(), x);
+						}
+					}
+				}
+			}, "n-orm memory compactor");
+			t.setDaemon(true);
+			t.start();
+		}
+	}
+
+	/**
+	 * Sweeps at most {@link #getBatchSize()} column families.
+	 * @return the number of removed cells
+	 */
+	static synchronized long sweep() {
+		long ret = 0;
+		for (int i = BATCH_SIZE; i > 0; --i) {
+			Compactable c = pending.poll();
+			if (c == null)
+				break;
+			backlog.decrementAndGet();
+			ret += c.compact();
+		}
+		reclaimed.addAndGet(ret);
+		sweeps.incrementAndGet();
+		return ret;
+	}
+
+	/**
+	 * Sweeps all column families waiting for being swept.
+	 * @return the number of removed cells
+	 */
+	public static long compactNow() {
+		long ret = 0;
+		while (getBacklog() > 0) {
+			ret += sweep();
+		}
+		return ret;
+	}
+}
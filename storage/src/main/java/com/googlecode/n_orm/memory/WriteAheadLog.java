@@ -0,0 +1,374 @@
+package com.googlecode.n_orm.memory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * Files used by {@link Memory} to survive restarts.
+ * Changes are appended as records to log segments, and the whole store is regularly written to a snapshot.
+ * A snapshot numbered n contains all changes from segments numbered strictly less than n ;
+ * a store is thus recovered by reading the latest snapshot and replaying segments from n.<br>
+ * Records are made durable by {@link #sync(long)} which performs a group commit:
+ * a single flush (and fsync if requested) makes durable all records appended so far, including those appended by other threads while waiting.<br>
+ * Each record is stored with its length and checksum so that a record partially written during a crash is detected and discarded.
+ */
+class WriteAheadLog {
+	private static final Logger logger = Logger.getLogger(WriteAheadLog.class.getName());
+
+	private static final String SEGMENT_PREFIX = "log-", SEGMENT_SUFFIX = ".wal";
+	private static final String SNAPSHOT_PREFIX = "snapshot-", SNAPSHOT_SUFFIX = ".snap";
+	private static final String TEMPORARY_SUFFIX = ".tmp";
+
+	/**
+	 * Something able to apply records read from a log segment.
+	 */
+	static interface RecordHandler {
+		void handle(byte[] record) throws IOException;
+	}
+
+	/**
+	 * An input stream reading from a (possibly memory-mapped) byte buffer.
+	 */
+	private static class ByteBufferInputStream extends InputStream {
+		private final ByteBuffer buffer;
+
+		public ByteBufferInputStream(ByteBuffer buffer) {
+			this.buffer = buffer;
+		}
+
+		@Override
+		public int read() {
+			return this.buffer.hasRemaining() ? this.buffer.get() & 0xFF : -1;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) {
+			if (len == 0)
+				return 0;
+			if (!this.buffer.hasRemaining())
+				return -1;
+			len = Math.min(len, this.buffer.remaining());
+			this.buffer.get(b, off, len);
+			return len;
+		}
+
+		@Override
+		public int available() {
+			return this.buffer.remaining();
+		}
+	}
+
+	private final File directory;
+	private final boolean syncWrites;
+
+	private final Object syncLock = new Object();
+	private FileOutputStream file = null;
+	private DataOutputStream out = null;
+	private long segment = -1;
+	private long recordsInSegment = 0;
+	private long appended = 0, synced = 0;
+
+	/**
+	 * @param directory the directory where log segments and snapshots are stored ; created if necessary
+	 * @param syncWrites whether {@link #sync(long)} forces records to the disk ; otherwise records are only flushed to the operating system
+	 */
+	public WriteAheadLog(File directory, boolean syncWrites) throws IOException {
+		if (!directory.isDirectory() && !directory.mkdirs())
+			throw new IOException("Cannot create directory " + directory.getAbsolutePath());
+		this.directory = directory;
+		this.syncWrites = syncWrites;
+	}
+
+	public File getDirectory() {
+		return directory;
+	}
+
+	private List<Long> list(String prefix, String suffix) {
+		List<Long> ret = new ArrayList<Long>();
+		String[] files = this.directory.list();
+		if (files != null) {
+			for (String f : files) {
+				if (f.startsWith(prefix) && f.endsWith(suffix)) {
+					try {
+						ret.add(Long.parseLong(f.substring(prefix.length(), f.length() - suffix.length())));
+					} catch (NumberFormatException x) {
+					}
+				}
+			}
+		}
+		Collections.sort(ret);
+		return ret;
+	}
+
+	private File getSegmentFile(long segment) {
+		return new File(this.directory, String.format("%s%020d%s", SEGMENT_PREFIX, segment, SEGMENT_SUFFIX));
+	}
+
+	private File getSnapshotFile(long snapshot) {
+		return new File(this.directory, String.format("%s%020d%s", SNAPSHOT_PREFIX, snapshot, SNAPSHOT_SUFFIX));
+	}
+
+	/**
+	 * The number of the latest snapshot ; 0 if none.
+	 */
+	public long getLatestSnapshot() {
+		List<Long> snapshots = this.list(SNAPSHOT_PREFIX, SNAPSHOT_SUFFIX);
+		return snapshots.isEmpty() ? 0 : snapshots.get(snapshots.size()-1);
+	}
+
+	/**
+	 * The numbers of existing segments that were written after the given snapshot, in ascending order.
+	 */
+	public List<Long> getSegmentsFrom(long snapshot) {
+		List<Long> ret = new ArrayList<Long>();
+		for (Long s : this.list(SEGMENT_PREFIX, SEGMENT_SUFFIX)) {
+			if (s >= snapshot)
+				ret.add(s);
+		}
+		return ret;
+	}
+
+	/**
+	 * Opens a snapshot for reading.
+	 * Snapshot is memory-mapped unless it is too large to be mapped as a single buffer.
+	 */
+	public DataInputStream readSnapshot(long snapshot) throws IOException {
+		File f = this.getSnapshotFile(snapshot);
+		FileInputStream in = new FileInputStream(f);
+		try {
+			FileChannel ch = in.getChannel();
+			if (ch.size() <= Integer.MAX_VALUE) {
+				ByteBuffer mapped = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+				//Mapping remains valid after the channel is closed
+				in.close();
+				return new DataInputStream(new ByteBufferInputStream(mapped));
+			}
+		} catch (IOException x) {
+			in.close();
+			throw x;
+		}
+		return new DataInputStream(new BufferedInputStream(in));
+	}
+
+	/**
+	 * Reads all records from a segment.
+	 * In case the segment ends with a partially written or corrupted record, this record is discarded and the segment is truncated right before it.
+	 */
+	public void replay(long segment, RecordHandler handler) throws IOException {
+		File f = this.getSegmentFile(segment);
+		long valid = 0;
+		boolean truncate = false;
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(f)));
+		try {
+			CRC32 crc = new CRC32();
+			while (true) {
+				int length;
+				try {
+					length = in.readInt();
+				} catch (EOFException x) {
+					break;
+				}
+				try {
+					long checksum = in.readLong();
+					if (length < 0 || length > f.length())
+						throw new IOException("Invalid record length " + length);
+					byte[] record = new byte[length];
+					in.readFully(record);
+					crc.reset();
+					crc.update(record);
+					if (crc.getValue() != checksum)
+						throw new IOException("Invalid checksum");
+					handler.handle(record);
+					valid += 4 + 8 + length;
+				} catch (IOException x) {
+					logger.log(Level.WARNING, "Discarding end of log segment " + f.getAbsolutePath() + " from byte " + valid + ": " + x.getMessage());
+					truncate = true;
+					break;
+				}
+			}
+		} finally {
+			in.close();
+		}
+		if (truncate) {
+			RandomAccessFile raf = new RandomAccessFile(f, "rw");
+			try {
+				raf.setLength(valid);
+			} finally {
+				raf.close();
+			}
+		}
+	}
+
+	/**
+	 * Starts appending records to a new segment.
+	 * @param segment the number of the segment ; must be greater than any existing segment
+	 */
+	public void open(long segment) throws IOException {
+		synchronized (this.syncLock) {
+			synchronized (this) {
+				this.closeSegment();
+				this.file = new FileOutputStream(this.getSegmentFile(segment), true);
+				this.out = new DataOutputStream(new BufferedOutputStream(this.file));
+				this.segment = segment;
+				this.recordsInSegment = 0;
+			}
+		}
+	}
+
+	private void closeSegment() throws IOException {
+		if (this.out == null)
+			return;
+		this.out.flush();
+		if (this.syncWrites)
+			this.file.getChannel().force(false);
+		this.out.close();
+		this.out = null;
+		this.file = null;
+		this.synced = this.appended;
+	}
+
+	/**
+	 * Closes current segment after having made all records durable.
+	 */
+	public void close() throws IOException {
+		synchronized (this.syncLock) {
+			synchronized (this) {
+				this.closeSegment();
+			}
+		}
+	}
+
+	/**
+	 * The number of records in current segment.
+	 */
+	public synchronized long getRecordsInSegment() {
+		return recordsInSegment;
+	}
+
+	/**
+	 * Appends a record to the current segment.
+	 * Record is not durable until {@link #sync(long)} is called.
+	 * @return the sequence number for the record, to be given to {@link #sync(long)}
+	 */
+	public synchronized long append(byte[] record) throws IOException {
+		if (this.out == null)
+			throw new IOException("Log in " + this.directory.getAbsolutePath() + " is closed");
+		CRC32 crc = new CRC32();
+		crc.update(record);
+		this.out.writeInt(record.length);
+		this.out.writeLong(crc.getValue());
+		this.out.write(record);
+		this.recordsInSegment++;
+		return ++this.appended;
+	}
+
+	/**
+	 * Makes sure that the record with the given sequence number, and all records appended before, are durable.
+	 * Threads waiting for a sync in progress do not need to sync again in case the sync they waited for included their record.
+	 */
+	public void sync(long sequence) throws IOException {
+		synchronized (this.syncLock) {
+			if (this.synced >= sequence)
+				return;
+			long target;
+			FileOutputStream f;
+			synchronized (this) {
+				if (this.out == null)
+					throw new IOException("Log in " + this.directory.getAbsolutePath() + " is closed");
+				this.out.flush();
+				target = this.appended;
+				f = this.file;
+			}
+			//Appending can go on while forcing
+			if (this.syncWrites)
+				f.getChannel().force(false);
+			this.synced = target;
+		}
+	}
+
+	/**
+	 * Closes current segment and starts a new one.
+	 * Should be called before writing a snapshot.
+	 * @return the number of the new segment, which is also the number of the snapshot to be written
+	 */
+	public long rotate() throws IOException {
+		synchronized (this.syncLock) {
+			synchronized (this) {
+				long next = this.segment + 1;
+				this.open(next);
+				return next;
+			}
+		}
+	}
+
+	/**
+	 * Creates a temporary file for writing a snapshot.
+	 * Snapshot is only considered once {@link #commitSnapshot(long, File)} is called.
+	 */
+	public File createSnapshotFile(long snapshot) {
+		return new File(this.directory, this.getSnapshotFile(snapshot).getName() + TEMPORARY_SUFFIX);
+	}
+
+	/**
+	 * Makes a snapshot written to a temporary file the latest one, and removes segments and snapshots it makes useless.
+	 * @param tmp the file created by {@link #createSnapshotFile(long)}, already written and forced to disk
+	 */
+	public void commitSnapshot(long snapshot, File tmp) throws IOException {
+		File f = this.getSnapshotFile(snapshot);
+		if (!tmp.renameTo(f))
+			throw new IOException("Cannot rename " + tmp.getAbsolutePath() + " to " + f.getAbsolutePath());
+		for (Long s : this.list(SNAPSHOT_PREFIX, SNAPSHOT_SUFFIX)) {
+			if (s < snapshot)
+				this.getSnapshotFile(s).delete();
+		}
+		for (Long s : this.list(SEGMENT_PREFIX, SEGMENT_SUFFIX)) {
+			if (s < snapshot)
+				this.getSegmentFile(s).delete();
+		}
+	}
+
+	/**
+	 * Removes segments numbered strictly less than the given number, e.g. once their records were written elsewhere.
+	 */
+	public void removeSegmentsBefore(long segment) {
+		for (Long s : this.list(SEGMENT_PREFIX, SEGMENT_SUFFIX)) {
+			if (s < segment)
+				this.getSegmentFile(s).delete();
+		}
+	}
+
+	/**
+	 * Removes snapshots that were not committed, e.g. because of a crash while writing them.
+	 */
+	public void removeTemporaryFiles() {
+		File[] files = this.directory.listFiles();
+		if (files != null) {
+			for (File f : files) {
+				if (f.getName().startsWith(SNAPSHOT_PREFIX) && f.getName().endsWith(TEMPORARY_SUFFIX))
+					f.delete();
+			}
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "write-ahead log in " + this.directory.getAbsolutePath();
+	}
+}
@@ -9,6 +9,7 @@ import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
@@ -28,6 +29,8 @@ import com.googlecode.n_orm.storeapi.ActionnableStore;
 import com.googlecode.n_orm.storeapi.CloseableKeyIterator;
 import com.googlecode.n_orm.storeapi.Constraint;
 import com.googlecode.n_orm.storeapi.MetaInformation;
+import com.googlecode.n_orm.storeapi.PrefetchingKeyIterator;
+import com.googlecode.n_orm.storeapi.ReverseScanStore;
 import com.googlecode.n_orm.storeapi.Row;
 import com.googlecode.n_orm.storeapi.Store;
 
@@ -138,6 +141,14 @@ public class Process {
 	private Process() {}
 
 	public static <AE extends PersistingElement, E extends AE> ProcessReport<E> processElements(final Class<E> clazz, Constraint c, final com.googlecode.n_orm.Process<AE> processAction, int limit, String[] families, int threadNumber, ProcessCanceller cancel, ExecutorService executor) throws DatabaseNotReachedException, InterruptedException, ProcessException {
+		return processElements(clazz, c, processAction, limit, families, false, threadNumber, cancel, executor);
+	}
+
+	/**
+	 * Processes elements matching the constraint.
+	 * @param descending whether elements are to be processed from the greatest to the lowest ; the limit then applies to greatest elements
+	 */
+	public static <AE extends PersistingElement, E extends AE> ProcessReport<E> processElements(final Class<E> clazz, Constraint c, final com.googlecode.n_orm.Process<AE> processAction, int limit, String[] families, boolean descending, int threadNumber, ProcessCanceller cancel, ExecutorService executor) throws DatabaseNotReachedException, InterruptedException, ProcessException {
 		ProcessReport<E> ret = new ProcessReport<E>();
 		long start = System.currentTimeMillis();
 		//long end = (threadNumber == 1 || start > Long.MAX_VALUE - timeout) ? Long.MAX_VALUE : start+timeout;
@@ -146,7 +157,12 @@ public class Process {
 		final Map<String, Field> toBeActivated = families == null ? null : StorageManagement.getAutoActivatedFamilies(clazz, families);
 		ret.toBeActivated = toBeActivated;
 		ret.clazz = clazz;
-		final CloseableKeyIterator keys = store.get(new MetaInformation().forClass(clazz).withColumnFamilies(toBeActivated), PersistingMixin.getInstance().getTable(clazz), c, limit, toBeActivated == null ? null : toBeActivated.keySet());
+		MetaInformation meta = new MetaInformation().forClass(clazz).withColumnFamilies(toBeActivated);
+		String table = PersistingMixin.getInstance().getTable(clazz);
+		Set<String> fams = toBeActivated == null ? null : toBeActivated.keySet();
+		final CloseableKeyIterator keys = PrefetchingKeyIterator.prefetch(!descending ? store.get(meta, table, c, limit, fams)
+				: store instanceof ReverseScanStore ? ((ReverseScanStore)store).get(meta, table, c, limit, fams, true)
+				: Constraint.reverseScan(store, meta, table, c, limit, fams), limit);
 		boolean ownsExecutor = executor == null;
 		if (ownsExecutor) {
 			executor = threadNumber == 1 ? null : Executors.newCachedThreadPool();
@@ -0,0 +1,127 @@
+package com.googlecode.n_orm.query;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import com.googlecode.n_orm.storeapi.Constraint;
+
+/**
+ * The state needed to resume a paginated search right after the last returned row.
+ * A token is made of the searched class, the search direction, the bounds of the original {@link Constraint} and the key of the last returned row.
+ * Its textual form only uses hexadecimal digits so that it can be safely passed to a client.
+ * @see SearchableClassConstraintBuilder#page()
+ */
+final class ContinuationToken {
+	private static final byte VERSION = 1;
+	private static final char[] DIGITS = "0123456789abcdef".toCharArray();
+
+	private final String className;
+	private final boolean descending;
+	private final String startKey, endKey;
+	private final String lastKey;
+
+	ContinuationToken(Class<?> clazz, Constraint c, boolean descending, String lastKey) {
+		this(clazz.getName(), descending, c == null ? null : c.getStartKey(), c == null ? null : c.getEndKey(), lastKey);
+	}
+
+	private ContinuationToken(String className, boolean descending, String startKey, String endKey, String lastKey) {
+		this.className = className;
+		this.descending = descending;
+		this.startKey = startKey;
+		this.endKey = endKey;
+		this.lastKey = lastKey;
+	}
+
+	String getLastKey() {
+		return lastKey;
+	}
+
+	/**
+	 * Checks that this token was issued by a query for the same class, constraint and direction.
+	 * @throws IllegalArgumentException in case this token does not correspond to the given query
+	 */
+	void checkIssuedFor(Class<?> clazz, Constraint c, boolean descending) {
+		String start = c == null ? null : c.getStartKey(), end = c == null ? null : c.getEndKey();
+		if (!this.className.equals(clazz.getName()) || this.descending != descending || !equal(this.startKey, start) || !equal(this.endKey, end))
+			throw new IllegalArgumentException("Continuation token was not issued for this query on " + clazz.getName());
+	}
+
+	/**
+	 * The constraint returning the rows of the original query that are after the last returned row.
+	 * In case of a descending search, last returned row is included as no string can be computed to be just before it.
+	 */
+	Constraint getResumingConstraint() {
+		if (this.descending)
+			return new Constraint(this.startKey, this.lastKey);
+		else
+			return new Constraint(this.lastKey + Character.MIN_VALUE, this.endKey);
+	}
+
+	private static boolean equal(String s1, String s2) {
+		return s1 == null ? s2 == null : s1.equals(s2);
+	}
+
+	private static void writeNullable(DataOutputStream out, String s) throws IOException {
+		out.writeBoolean(s != null);
+		if (s != null)
+			out.writeUTF(s);
+	}
+
+	private static String readNullable(DataInputStream in) throws IOException {
+		return in.readBoolean() ? in.readUTF() : null;
+	}
+
+	@Override
+	public String toString() {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try {
+			DataOutputStream out = new DataOutputStream(bytes);
+			out.writeByte(VERSION);
+			out.writeUTF(this.className);
+			out.writeBoolean(this.descending);
+			writeNullable(out, this.startKey);
+			writeNullable(out, this.endKey);
+			out.writeUTF(this.lastKey);
+			out.close();
+		} catch (IOException e) {
+			throw new IllegalStateException("Cannot encode continuation token", e);
+		}
+		byte[] data = bytes.toByteArray();
+		char[] ret = new char[data.length * 2];
+		for (int i = 0; i < data.length; ++i) {
+			ret[2 * i] = DIGITS[(data[i] >> 4) & 0xF];
+			ret[2 * i + 1] = DIGITS[data[i] & 0xF];
+		}
+		return new String(ret);
+	}
+
+	/**
+	 * Decodes a token from its {@link #toString() textual form}.
+	 * @throws IllegalArgumentException in case the given string is not a valid token
+	 */
+	static ContinuationToken parse(String token) {
+		if (token == null || token.length() % 2 != 0)
+			throw new IllegalArgumentException("Invalid continuation token " + token);
+		byte[] data = new byte[token.length() / 2];
+		for (int i = 0; i < data.length; ++i) {
+			int high = Character.digit(token.charAt(2 * i), 16), low = Character.digit(token.charAt(2 * i + 1), 16);
+			if (high < 0 || low < 0)
+				throw new IllegalArgumentException("Invalid continuation token " + token);
+			data[i] = (byte) ((high << 4) | low);
+		}
+		try {
+			DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+			if (in.readByte() != VERSION)
+				throw new IllegalArgumentException("Unsupported continuation token version in " + token);
+			ContinuationToken ret = new ContinuationToken(in.readUTF(), in.readBoolean(), readNullable(in), readNullable(in), in.readUTF());
+			if (in.available() != 0)
+				throw new IllegalArgumentException("Invalid continuation token " + token);
+			return ret;
+		} catch (IOException e) {
+			throw new IllegalArgumentException("Invalid continuation token " + token, e);
+		}
+	}
+}
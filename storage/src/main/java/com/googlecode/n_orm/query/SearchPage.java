@@ -0,0 +1,42 @@
+package com.googlecode.n_orm.query;
+
+import java.util.Collections;
+import java.util.List;
+
+import com.googlecode.n_orm.PersistingElement;
+
+/**
+ * A page of elements found by {@link SearchableClassConstraintBuilder#page()}.
+ * Next page can be requested by the same query to which the {@link #getContinuationToken() continuation token} is given using {@link SearchableClassConstraintBuilder#startingAfter(String)}.
+ * @param <T> the type of the found elements
+ */
+public class SearchPage<T extends PersistingElement> {
+	private final List<T> elements;
+	private final String continuationToken;
+
+	SearchPage(List<T> elements, String continuationToken) {
+		this.elements = Collections.unmodifiableList(elements);
+		this.continuationToken = continuationToken;
+	}
+
+	/**
+	 * The elements of this page, in the order of the query (see {@link SearchableClassConstraintBuilder#inDescendingOrder()}).
+	 */
+	public List<T> getElements() {
+		return elements;
+	}
+
+	/**
+	 * An opaque token to resume the query right after the last element of this page ; null if this page is the last one.
+	 */
+	public String getContinuationToken() {
+		return continuationToken;
+	}
+
+	/**
+	 * Whether this page is the last one for the query, i.e. there is no {@link #getContinuationToken() continuation token}.
+	 */
+	public boolean isLast() {
+		return continuationToken == null;
+	}
+}
@@ -8,6 +8,9 @@ import java.io.InputStream;
 import java.io.ObjectOutputStream;
 import java.io.OutputStream;
 import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.NavigableSet;
 import java.util.Set;
@@ -40,6 +43,8 @@ public class SearchableClassConstraintBuilder<T extends PersistingElement>
 	private Integer limit = null;
 	private String [] toBeActivated = null; //null: no activation, non null: autoactivation
 	private String tablePostfix = null;
+	private boolean descending = false;
+	private ContinuationToken continuation = null;
 
 
 	public SearchableClassConstraintBuilder(Class<T> clazz) {
@@ -128,10 +133,32 @@ public class SearchableClassConstraintBuilder<T extends PersistingElement>
 
 	@Override
 	public Constraint getConstraint() {
-		Constraint ret = super.getConstraint();
+		return this.withPostfix(super.getConstraint());
+	}
+	
+	private Constraint withPostfix(Constraint c) {
 		if (this.getTablePostfix() != null)
-			ret = new FederatedTableManagement.ConstraintWithPostfix(ret, getTablePostfix());
-		return ret;
+			c = new FederatedTableManagement.ConstraintWithPostfix(c, getTablePostfix());
+		return c;
+	}
+
+	/**
+	 * Requests elements to be found from the greatest to the lowest (see {@link PersistingElement#compareTo(PersistingElement)}).
+	 * Any limit set by {@link #withAtMost(int)} then applies to greatest elements, which makes possible to find the latest N elements.
+	 * Counting elements is not affected.
+	 */
+	@Continuator
+	public SearchableClassConstraintBuilder<T> inDescendingOrder() {
+		this.descending = true;
+		return this;
+	}
+	
+	/**
+	 * Whether elements are to be found from the greatest to the lowest.
+	 * @see #inDescendingOrder()
+	 */
+	public boolean isDescending() {
+		return this.descending;
 	}
 
 	/**
@@ -184,28 +211,88 @@ public class SearchableClassConstraintBuilder<T extends PersistingElement>
 	/**
 	 * Runs the query to find at most N matching elements. The maximum limit N must be set before using {@link #withAtMost(int)}.
 	 * Elements activated (see {@link #andActivate(String...)}), and their keys are all loaded into memory.
-	 * @return A (possibly empty) set of elements matching the query limited to the maximum limit.
+	 * @return A (possibly empty) set of elements matching the query limited to the maximum limit ; sorted in descending order in case of {@link #inDescendingOrder()}.
 	 * @throws DatabaseNotReachedException
 	 */
 	@Continuator
 	public NavigableSet<T> go() throws DatabaseNotReachedException {
 		checkHasLimits();
-		return StorageManagement.findElementsToSet(this.getClazz(), this.getConstraint(), this.limit, this.toBeActivated);
+		return StorageManagement.findElementsToSet(this.getClazz(), this.getConstraint(), this.limit, this.descending, this.toBeActivated);
 	}
 	
 	/**
 	 * Runs the query to find at most N matching elements. The maximum limit N must be set before using {@link #withAtMost(int)}.
 	 * Elements activated (see {@link #andActivate(String...)}). Instead of this function, you should consider using {@link #forEach(Process)}.
+	 * Next rows are {@link com.googlecode.n_orm.storeapi.PrefetchingKeyIterator prefetched} from the data store while iterated elements are processed.
 	 * @return A (possibly empty) set of elements matching the query limited to the maximum limit, that has to be closed once performed.
 	 * @throws DatabaseNotReachedException
 	 */
 	@Continuator
 	public CloseableIterator<T> iterate() throws DatabaseNotReachedException {
 		checkHasLimits();
-		return StorageManagement.findElement(this.getClazz(), this.getConstraint(), this.limit, this.toBeActivated);
+		return StorageManagement.findElement(this.getClazz(), this.getConstraint(), this.limit, this.descending, this.toBeActivated);
 	}
 
 	
+	/**
+	 * Requests {@link #page()} to return elements found right after the last element of a previous page.
+	 * The query must be the same as the one that issued the token (same class, keys, bounds and order) ; limit may differ.
+	 * @param continuationToken a token returned by {@link SearchPage#getContinuationToken()} ; null means first page
+	 * @throws IllegalArgumentException in case the token is not valid
+	 */
+	@Continuator
+	public SearchableClassConstraintBuilder<T> startingAfter(String continuationToken) {
+		this.continuation = continuationToken == null ? null : ContinuationToken.parse(continuationToken);
+		return this;
+	}
+	
+	/**
+	 * Runs the query to find a page of at most N matching elements. The maximum limit N must be set before using {@link #withAtMost(int)}.
+	 * Elements activated (see {@link #andActivate(String...)}).
+	 * In case a continuation token was given using {@link #startingAfter(String)}, the search starts right after the last element of the page that issued the token,
+	 * so that reading a page costs the same regardless of its position.
+	 * @return A (possibly empty) page of elements matching the query, with a token to get the next page in case there might be more elements.
+	 * @throws DatabaseNotReachedException
+	 * @throws IllegalArgumentException in case the continuation token was issued by another query
+	 */
+	@Continuator
+	public SearchPage<T> page() throws DatabaseNotReachedException {
+		checkHasLimits();
+		Constraint c = super.getConstraint();
+		String lastKey = null;
+		Constraint resumed = c;
+		if (this.continuation != null) {
+			this.continuation.checkIssuedFor(this.getClazz(), c, this.descending);
+			lastKey = this.continuation.getLastKey();
+			resumed = this.continuation.getResumingConstraint();
+		}
+		
+		//One more element tells whether there is a next page ; descending search also returns lastKey
+		long toBeRead = (long)this.limit + (lastKey != null && this.descending ? 2 : 1);
+		CloseableIterator<T> found = StorageManagement.findElement(this.getClazz(), this.withPostfix(resumed), (int)Math.min(toBeRead, Integer.MAX_VALUE), this.descending, this.toBeActivated);
+		List<T> elements = new ArrayList<T>();
+		boolean hasMore = false;
+		try {
+			while (found.hasNext()) {
+				T element = found.next();
+				if (lastKey != null && lastKey.equals(element.getIdentifier()))
+					continue;
+				if (elements.size() >= this.limit) {
+					hasMore = true;
+					break;
+				}
+				elements.add(element);
+			}
+		} finally {
+			found.close();
+		}
+		
+		String token = null;
+		if (hasMore)
+			token = new ContinuationToken(this.getClazz(), c, this.descending, elements.get(elements.size()-1).getIdentifier()).toString();
+		return new SearchPage<T>(elements, token);
+	}
+
 	/**
 	 * Runs the query to find an element matching the query. Any limit set by {@link #withAtMost(int)} will be ignored (as it is considered to be 1).
 	 * The element is activated according to declared column families (see {@link #andActivate(String...)}).
@@ -214,7 +301,7 @@ public class SearchableClassConstraintBuilder<T extends PersistingElement>
 	 */
 	@Continuator
 	public T any()  throws DatabaseNotReachedException {
-		CloseableIterator<T> found = StorageManagement.findElement(this.getClazz(), this.getConstraint(), 1, this.toBeActivated);
+		CloseableIterator<T> found = StorageManagement.findElement(this.getClazz(), this.getConstraint(), 1, this.descending, this.toBeActivated);
 		try {
 			if (found.hasNext())
 				return found.next();
@@ -305,7 +392,7 @@ public class SearchableClassConstraintBuilder<T extends PersistingElement>
 	 */
 	public ProcessReport<T> forEach(Process<T> action, int threadNumber, long timeoutMs, ExecutorService executor) throws DatabaseNotReachedException, InterruptedException, ProcessException {
 		this.checkHasLimits();
-		return com.googlecode.n_orm.operations.Process.processElements(this.getClazz(), this.getConstraint(), action, this.limit, this.toBeActivated, threadNumber, new TimeoutCanceller(timeoutMs), executor);
+		return com.googlecode.n_orm.operations.Process.processElements(this.getClazz(), this.getConstraint(), action, this.limit, this.toBeActivated, this.descending, threadNumber, new TimeoutCanceller(timeoutMs), executor);
 	}
 	
 	/**
@@ -323,7 +410,7 @@ public class SearchableClassConstraintBuilder<T extends PersistingElement>
 	 */
 	public ProcessReport<T> forEach(Process<T> action, int threadNumber, ProcessCanceller canceller, ExecutorService executor) throws DatabaseNotReachedException, InterruptedException, ProcessException {
 		this.checkHasLimits();
-		return com.googlecode.n_orm.operations.Process.processElements(this.getClazz(), this.getConstraint(), action, this.limit, this.toBeActivated, threadNumber, canceller, executor);
+		return com.googlecode.n_orm.operations.Process.processElements(this.getClazz(), this.getConstraint(), action, this.limit, this.toBeActivated, this.descending, threadNumber, canceller, executor);
 	}
 	
 	/**
@@ -339,7 +426,7 @@ public class SearchableClassConstraintBuilder<T extends PersistingElement>
 	 * @throws InstantiationException 
 	 */
 	public void remoteForEach(Process<T> action, Callback callBack, int threadNumber, long timeout) throws DatabaseNotReachedException, InstantiationException, IllegalAccessException {
-		Store s = StoreSelector.getInstance().getStoreFor(this.getClazz());
+		Store s = StoreSelector.getInstance().getActualStoreFor(this.getClazz());
 		if ((!(s instanceof ActionnableStore)) && hasNoLimit())
 			throw new IllegalStateException("No limit set while store " + s + " for " + this.getClazz().getName() + " is not implementing " + ActionnableStore.class.getName() + " ; please use withAtMost expression.");
 		int limit;
@@ -350,6 +437,19 @@ public class SearchableClassConstraintBuilder<T extends PersistingElement>
 		com.googlecode.n_orm.operations.Process.processElementsRemotely(this.getClazz(), this.getConstraint(), action, callBack, limit, this.toBeActivated, threadNumber, timeout);
 	}
 	
+	/**
+	 * Stores elements of the searched class in a single bulk-load request rather than storing them one after the other.
+	 * No constraint can be set on keys, and elements must not be of a subclass.
+	 * @param sortedElements elements sorted in strictly ascending order (see {@link PersistingElement#compareTo(PersistingElement)})
+	 * @throws IllegalStateException in case a constraint on keys is set
+	 * @see StorageManagement#loadElements(Class, Iterator)
+	 */
+	public void load(Iterator<? extends T> sortedElements) throws DatabaseNotReachedException {
+		if (this.getConstraint() != null)
+			throw new IllegalStateException("Cannot bulk-load elements into a range of keys");
+		StorageManagement.loadElements(this.getClazz(), sortedElements);
+	}
+
 	/**
 	 * Runs the query to find at most N matching elements and serialize a representation into the output stream. The maximum limit N can be set before using {@link #withAtMost(int)}, but is not mandatory.
 	 * Dependencies are not serialized. Consider carefully setting families to be activated before ; it is advised to use {@link #andActivateAllFamilies()}.
@@ -0,0 +1,95 @@
+package com.googlecode.n_orm.storeapi;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Future;
+
+import com.googlecode.n_orm.storeapi.Row.ColumnFamilyData;
+
+/**
+ * A non-blocking version of the {@link Store} interface: each operation
+ * returns immediately a {@link Future} for its result. Semantics of each
+ * operation is the one of the {@link Store} method with the same signature.
+ * Any {@link com.googlecode.n_orm.DatabaseNotReachedException} is reported as
+ * the cause of the {@link java.util.concurrent.ExecutionException} thrown by
+ * {@link Future#get()}.<br>
+ * Many independent requests can thus be issued at once, and only then joined.
+ *
+ * @see AsyncStoreAdapter an implementation that runs any {@link Store} on an
+ *      executor
+ */
+public interface AsyncStore {
+
+	/**
+	 * @see Store#delete(MetaInformation, String, String)
+	 */
+	public Future<Void> delete(MetaInformation meta, String table, String id);
+
+	/**
+	 * @see Store#exists(MetaInformation, String, String)
+	 */
+	public Future<Boolean> exists(MetaInformation meta, String table,
+			String row);
+
+	/**
+	 * @see Store#exists(MetaInformation, String, String, String)
+	 */
+	public Future<Boolean> exists(MetaInformation meta, String table,
+			String row, String family);
+
+	/**
+	 * @see Store#get(MetaInformation, String, Constraint, int, Set)
+	 */
+	public Future<CloseableKeyIterator> get(MetaInformation meta,
+			String table, Constraint c, int limit, Set<String> families);
+
+	/**
+	 * @see Store#get(MetaInformation, String, String, String, String)
+	 */
+	public Future<byte[]> get(MetaInformation meta, String table, String row,
+			String family, String key);
+
+	/**
+	 * @see Store#get(MetaInformation, String, String, String)
+	 */
+	public Future<Map<String, byte[]>> get(MetaInformation meta, String table,
+			String id, String family);
+
+	/**
+	 * @see Store#get(MetaInformation, String, String, String, Constraint)
+	 */
+	public Future<Map<String, byte[]>> get(MetaInformation meta, String table,
+			String id, String family, Constraint c);
+
+	/**
+	 * @see Store#get(MetaInformation, String, String, Set)
+	 */
+	public Future<ColumnFamilyData> get(MetaInformation meta, String table,
+			String id, Set<String> families);
+
+	/**
+	 * @see MultiGetStore#get(MetaInformation, String, Collection, Set)
+	 */
+	public Future<Map<String, ColumnFamilyData>> get(MetaInformation meta,
+			String table, Collection<String> ids, Set<String> families);
+
+	/**
+	 * @see Store#storeChanges(MetaInformation, String, String, ColumnFamilyData, Map, Map)
+	 */
+	public Future<Void> storeChanges(MetaInformation meta, String table,
+			String id, ColumnFamilyData changed,
+			Map<String, Set<String>> removed,
+			Map<String, Map<String, Number>> increments);
+
+	/**
+	 * @see BatchStore#storeChanges(String, Collection)
+	 */
+	public Future<Void> storeChanges(String table, Collection<RowChanges> rows);
+
+	/**
+	 * @see Store#count(MetaInformation, String, Constraint)
+	 */
+	public Future<Long> count(MetaInformation meta, String table, Constraint c);
+
+}
@@ -0,0 +1,350 @@
+package com.googlecode.n_orm.storeapi;
+
+import java.lang.ref.WeakReference;
+import java.util.Collection;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.googlecode.n_orm.storeapi.Row.ColumnFamilyData;
+
+/**
+ * An {@link AsyncStore} that runs requests of a blocking {@link Store} on an
+ * executor. Unless an executor is explicitly given, a
+ * {@link #getDefaultExecutor() default executor} shared by all adapters is
+ * used.
+ *
+ * @see #getAdapter(Store)
+ */
+public class AsyncStoreAdapter implements AsyncStore {
+	/**
+	 * Adapters returned by {@link #getAdapter(Store)} ; as those adapters only weakly reference their store,
+	 * an entry is released as soon as its store is not used anymore.
+	 */
+	private static final Map<Store, AsyncStoreAdapter> INSTANCES = new WeakHashMap<Store, AsyncStoreAdapter>();
+	
+	/**
+	 * Maximum number of threads of the {@link #getDefaultExecutor() default executor}.
+	 */
+	public static final int DEFAULT_MAX_THREADS = 4 * Runtime.getRuntime().availableProcessors();
+
+	private static volatile ExecutorService defaultExecutor = null;
+
+	/**
+	 * The adapter for the given store. Each store has only one adapter, which
+	 * uses the {@link #getDefaultExecutor() default executor} unless
+	 * {@link #setExecutor(ExecutorService) set otherwise}.
+	 * The adapter is released as soon as the store is not used anymore.
+	 */
+	public static AsyncStoreAdapter getAdapter(Store target) {
+		if (target == null)
+			throw new NullPointerException("Cannot adapt a null store");
+		synchronized (INSTANCES) {
+			AsyncStoreAdapter ret = INSTANCES.get(target);
+			if (ret == null) {
+				ret = new AsyncStoreAdapter(new WeakReference<Store>(target));
+				INSTANCES.put(target, ret);
+			}
+			return ret;
+		}
+	}
+
+	/**
+	 * The executor used by adapters with no explicitly set executor. Unless
+	 * {@link #setDefaultExecutor(ExecutorService) set otherwise}, this is a
+	 * pool of at most {@link #DEFAULT_MAX_THREADS} daemon threads that are
+	 * kept alive for 10s once idle ; requests wait in a queue while all
+	 * threads are busy.
+	 */
+	public static ExecutorService getDefaultExecutor() {
+		ExecutorService ret = defaultExecutor;
+		if (ret == null) {
+			synchronized (AsyncStoreAdapter.class) {
+				ret = defaultExecutor;
+				if (ret == null) {
+					final AtomicInteger threadCount = new AtomicInteger();
+					ThreadPoolExecutor pool = new ThreadPoolExecutor(DEFAULT_MAX_THREADS, DEFAULT_MAX_THREADS, 10L,
+							TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+							new ThreadFactory() {
+
+								@Override
+								public Thread newThread(Runnable r) {
+									Thread ret = new Thread(r,
+											"n-orm async store #"
+													+ threadCount.incrementAndGet());
+									ret.setDaemon(true);
+									return ret;
+								}
+							});
+					pool.allowCoreThreadTimeOut(true);
+					ret = pool;
+					defaultExecutor = ret;
+				}
+			}
+		}
+		return ret;
+	}
+
+	/**
+	 * Sets the executor used by adapters with no explicitly set executor.
+	 * Previous default executor is not shut down.
+	 *
+	 * @param executor
+	 *            the new default executor ; null means that a new default
+	 *            executor is to be created when necessary
+	 */
+	public static void setDefaultExecutor(ExecutorService executor) {
+		synchronized (AsyncStoreAdapter.class) {
+			defaultExecutor = executor;
+		}
+	}
+
+	/**
+	 * The adapted store, or null in case it is only {@link #storeReference weakly referenced}
+	 */
+	private final Store store;
+	
+	/**
+	 * The adapted store for adapters returned by {@link #getAdapter(Store)}
+	 */
+	private final WeakReference<Store> storeReference;
+	private volatile ExecutorService executor;
+
+	/**
+	 * An adapter using the {@link #getDefaultExecutor() default executor}.
+	 */
+	public AsyncStoreAdapter(Store store) {
+		this(store, null);
+	}
+
+	/**
+	 * @param executor
+	 *            the executor on which requests are run ; null means the
+	 *            {@link #getDefaultExecutor() default executor}
+	 */
+	public AsyncStoreAdapter(Store store, ExecutorService executor) {
+		if (store == null)
+			throw new NullPointerException("Cannot adapt a null store");
+		this.store = store;
+		this.storeReference = null;
+		this.executor = executor;
+	}
+	
+	private AsyncStoreAdapter(WeakReference<Store> storeReference) {
+		this.store = null;
+		this.storeReference = storeReference;
+		this.executor = null;
+	}
+
+	/**
+	 * The blocking store to which requests are sent.
+	 */
+	public Store getStore() {
+		return this.store == null ? this.storeReference.get() : this.store;
+	}
+
+	/**
+	 * The executor on which requests are run.
+	 */
+	public ExecutorService getExecutor() {
+		ExecutorService ret = this.executor;
+		return ret == null ? getDefaultExecutor() : ret;
+	}
+
+	/**
+	 * @param executor
+	 *            the executor on which requests are run ; null means the
+	 *            {@link #getDefaultExecutor() default executor}
+	 */
+	public void setExecutor(ExecutorService executor) {
+		this.executor = executor;
+	}
+
+	/**
+	 * Runs a task on the {@link #getExecutor() executor} for this adapter.
+	 */
+	public <T> Future<T> submit(Callable<T> task) {
+		return this.getExecutor().submit(task);
+	}
+
+	@Override
+	public Future<Void> delete(final MetaInformation meta, final String table,
+			final String id) {
+		final Store store = this.getStore();
+		return this.submit(new Callable<Void>() {
+
+			@Override
+			public Void call() throws Exception {
+				store.delete(meta, table, id);
+				return null;
+			}
+		});
+	}
+
+	@Override
+	public Future<Boolean> exists(final MetaInformation meta,
+			final String table, final String row) {
+		final Store store = this.getStore();
+		return this.submit(new Callable<Boolean>() {
+
+			@Override
+			public Boolean call() throws Exception {
+				return store.exists(meta, table, row);
+			}
+		});
+	}
+
+	@Override
+	public Future<Boolean> exists(final MetaInformation meta,
+			final String table, final String row, final String family) {
+		final Store store = this.getStore();
+		return this.submit(new Callable<Boolean>() {
+
+			@Override
+			public Boolean call() throws Exception {
+				return store.exists(meta, table, row, family);
+			}
+		});
+	}
+
+	@Override
+	public Future<CloseableKeyIterator> get(final MetaInformation meta,
+			final String table, final Constraint c, final int limit,
+			final Set<String> families) {
+		final Store store = this.getStore();
+		return this.submit(new Callable<CloseableKeyIterator>() {
+
+			@Override
+			public CloseableKeyIterator call() throws Exception {
+				return store.get(meta, table, c, limit, families);
+			}
+		});
+	}
+
+	@Override
+	public Future<byte[]> get(final MetaInformation meta, final String table,
+			final String row, final String family, final String key) {
+		final Store store = this.getStore();
+		return this.submit(new Callable<byte[]>() {
+
+			@Override
+			public byte[] call() throws Exception {
+				return store.get(meta, table, row, family, key);
+			}
+		});
+	}
+
+	@Override
+	public Future<Map<String, byte[]>> get(final MetaInformation meta,
+			final String table, final String id, final String family) {
+		final Store store = this.getStore();
+		return this.submit(new Callable<Map<String, byte[]>>() {
+
+			@Override
+			public Map<String, byte[]> call() throws Exception {
+				return store.get(meta, table, id, family);
+			}
+		});
+	}
+
+	@Override
+	public Future<Map<String, byte[]>> get(final MetaInformation meta,
+			final String table, final String id, final String family,
+			final Constraint c) {
+		final Store store = this.getStore();
+		return this.submit(new Callable<Map<String, byte[]>>() {
+
+			@Override
+			public Map<String, byte[]> call() throws Exception {
+				return store.get(meta, table, id, family, c);
+			}
+		});
+	}
+
+	@Override
+	public Future<ColumnFamilyData> get(final MetaInformation meta,
+			final String table, final String id, final Set<String> families) {
+		final Store store = this.getStore();
+		return this.submit(new Callable<ColumnFamilyData>() {
+
+			@Override
+			public ColumnFamilyData call() throws Exception {
+				return store.get(meta, table, id, families);
+			}
+		});
+	}
+
+	@Override
+	public Future<Map<String, ColumnFamilyData>> get(
+			final MetaInformation meta, final String table,
+			final Collection<String> ids, final Set<String> families) {
+		final Store store = this.getStore();
+		return this.submit(new Callable<Map<String, ColumnFamilyData>>() {
+
+			@Override
+			public Map<String, ColumnFamilyData> call() throws Exception {
+				if (store instanceof MultiGetStore)
+					return ((MultiGetStore)store).get(meta, table, ids, families);
+				else
+					return DefaultColumnFamilyData.get(store, meta, table, ids, families);
+			}
+		});
+	}
+
+	@Override
+	public Future<Void> storeChanges(final MetaInformation meta,
+			final String table, final String id,
+			final ColumnFamilyData changed,
+			final Map<String, Set<String>> removed,
+			final Map<String, Map<String, Number>> increments) {
+		final Store store = this.getStore();
+		return this.submit(new Callable<Void>() {
+
+			@Override
+			public Void call() throws Exception {
+				store.storeChanges(meta, table, id, changed, removed,
+						increments);
+				return null;
+			}
+		});
+	}
+
+	@Override
+	public Future<Void> storeChanges(final String table,
+			final Collection<RowChanges> rows) {
+		final Store store = this.getStore();
+		return this.submit(new Callable<Void>() {
+
+			@Override
+			public Void call() throws Exception {
+				if (store instanceof BatchStore)
+					((BatchStore)store).storeChanges(table, rows);
+				else
+					RowChanges.storeChanges(store, table, rows);
+				return null;
+			}
+		});
+	}
+
+	@Override
+	public Future<Long> count(final MetaInformation meta, final String table,
+			final Constraint c) {
+		final Store store = this.getStore();
+		return this.submit(new Callable<Long>() {
+
+			@Override
+			public Long call() throws Exception {
+				return store.count(meta, table, c);
+			}
+		});
+	}
+
+}
@@ -0,0 +1,22 @@
+package com.googlecode.n_orm.storeapi;
+
+import java.util.Collection;
+
+import com.googlecode.n_orm.DatabaseNotReachedException;
+
+/**
+ * A {@link SimpleStore} able to store changes for many rows of a table in a single request.
+ * Changes for stores that do not implement this interface are stored one row after the other
+ * using {@link RowChanges#storeChanges(SimpleStore, String, Collection)}.
+ * Such a store is seen as a {@link BatchStore} once wrapped by a {@link SimpleStoreWrapper}.
+ */
+public interface BatchSimpleStore extends SimpleStore {
+	
+	/**
+	 * Stores given pieces of information for many rows of a table in a single request.
+	 * Result should be the same as invoking {@link #storeChanges(String, String, com.googlecode.n_orm.storeapi.Row.ColumnFamilyData, java.util.Map, java.util.Map)} for each row.
+	 * @param table the table where rows are to be found
+	 * @param rows changes for each row ; {@link RowChanges#getMeta() meta information} can be ignored
+	 */
+	void storeChanges(String table, Collection<RowChanges> rows) throws DatabaseNotReachedException;
+}
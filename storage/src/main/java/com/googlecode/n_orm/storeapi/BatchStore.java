@@ -0,0 +1,28 @@
+package com.googlecode.n_orm.storeapi;
+
+import java.util.Collection;
+
+import com.googlecode.n_orm.DatabaseNotReachedException;
+
+/**
+ * A store able to store changes for many rows of a table in a single request.
+ * Changes for stores that do not implement this interface are stored one row after the other
+ * using {@link RowChanges#storeChanges(Store, String, Collection)}.
+ */
+public interface BatchStore extends Store {
+
+	/**
+	 * Stores given pieces of information for many rows of a table in a single
+	 * request. Result should be the same as invoking
+	 * {@link #storeChanges(MetaInformation, String, String, com.googlecode.n_orm.storeapi.Row.ColumnFamilyData, java.util.Map, java.util.Map)}
+	 * for each row.
+	 * 
+	 * @param table
+	 *            the table where rows are to be found ; no table postfix is
+	 *            computed for federated tables
+	 * @param rows
+	 *            changes for each row
+	 */
+	public void storeChanges(String table, Collection<RowChanges> rows)
+			throws DatabaseNotReachedException;
+}
@@ -0,0 +1,24 @@
+package com.googlecode.n_orm.storeapi;
+
+import java.util.Collection;
+import java.util.Iterator;
+
+import com.googlecode.n_orm.DatabaseNotReachedException;
+
+/**
+ * A {@link SimpleStore} able to take advantage of sorted input to load many rows of a table.
+ * Rows are loaded into stores that do not implement this interface by batches
+ * using {@link RowChanges#load(SimpleStore, String, Iterator)}.
+ * Such a store is seen as a {@link BulkLoadStore} once wrapped by a {@link SimpleStoreWrapper}.
+ */
+public interface BulkLoadSimpleStore extends SimpleStore {
+	
+	/**
+	 * Bulk-loads rows of a table.
+	 * Result should be the same as invoking {@link BatchSimpleStore#storeChanges(String, Collection)} for all rows.
+	 * @param table the table where rows are to be found
+	 * @param rows changes for each row, sorted according to row identifiers in strictly ascending order ; {@link RowChanges#getMeta() meta information} can be ignored
+	 * @throws IllegalArgumentException in case rows are not sorted ; rows before the unsorted one might be loaded
+	 */
+	void load(String table, Iterator<RowChanges> rows) throws DatabaseNotReachedException;
+}
@@ -0,0 +1,31 @@
+package com.googlecode.n_orm.storeapi;
+
+import java.util.Collection;
+import java.util.Iterator;
+
+import com.googlecode.n_orm.DatabaseNotReachedException;
+
+/**
+ * A store able to take advantage of sorted input to load many rows of a table.
+ * Rows are loaded into stores that do not implement this interface by batches
+ * using {@link RowChanges#load(Store, String, Iterator)}.
+ */
+public interface BulkLoadStore extends Store {
+
+	/**
+	 * Bulk-loads rows of a table. Result should be the same as invoking
+	 * {@link BatchStore#storeChanges(String, Collection)} for all rows.
+	 * 
+	 * @param table
+	 *            the table where rows are to be found ; no table postfix is
+	 *            computed for federated tables
+	 * @param rows
+	 *            changes for each row, sorted according to row identifiers
+	 *            in strictly ascending order
+	 * @throws IllegalArgumentException
+	 *             in case rows are not sorted ; rows before the unsorted one
+	 *             might be loaded
+	 */
+	public void load(String table, Iterator<RowChanges> rows)
+			throws DatabaseNotReachedException;
+}
@@ -1,13 +1,18 @@
 package com.googlecode.n_orm.storeapi;
 
 import java.lang.reflect.Field;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
 
 import org.apache.commons.beanutils.ConvertUtils;
 
+import com.googlecode.n_orm.DatabaseNotReachedException;
 import com.googlecode.n_orm.Key;
 import com.googlecode.n_orm.KeyManagement;
 import com.googlecode.n_orm.PropertyManagement;
@@ -19,6 +24,101 @@ import com.googlecode.n_orm.conversion.ConversionTools;
  * In case this restrictions applies to a column family (as in {@link SimpleStore#get(String, String, String, Constraint)}, returned columns should have key be between {@link #getStartKey()} and {@link #getEndKey()}.
  */
 public class Constraint {
+	/**
+	 * Number of keys listed at once by {@link #truncate(Store, MetaInformation, String, Constraint)}.
+	 */
+	private static final int TRUNCATE_BATCH = 1000;
+
+	/**
+	 * Deletes rows satisfying a constraint one after the other.
+	 * To be used by stores that cannot delete a range of rows in a single request.
+	 * @param c the constraint on keys of deleted rows ; null means all rows in the table
+	 */
+	public static void truncate(Store store, MetaInformation meta, String table, Constraint c) throws DatabaseNotReachedException {
+		String end = c == null ? null : c.getEndKey();
+		List<String> keys;
+		do {
+			keys = new ArrayList<String>(TRUNCATE_BATCH);
+			CloseableKeyIterator it = store.get(meta, table, c, TRUNCATE_BATCH, null);
+			try {
+				while (it.hasNext())
+					keys.add(it.next().getKey());
+			} finally {
+				it.close();
+			}
+			for (String key : keys) {
+				store.delete(meta, table, key);
+			}
+			if (!keys.isEmpty())
+				c = new Constraint(keys.get(keys.size()-1) + '\u0000', end);
+		} while (keys.size() == TRUNCATE_BATCH);
+	}
+
+	/**
+	 * Deletes rows satisfying a constraint one after the other.
+	 * To be used by stores that cannot delete a range of rows in a single request.
+	 * @param c the constraint on keys of deleted rows ; null means all rows in the table
+	 * @see #truncate(Store, MetaInformation, String, Constraint)
+	 */
+	public static void truncate(SimpleStore store, String table, Constraint c) throws DatabaseNotReachedException {
+		truncate(SimpleStoreWrapper.getWrapper(store), null, table, c);
+	}
+	
+	/**
+	 * Rows matching a constraint sorted according to their key in descending order.
+	 * To be used by stores that cannot scan a table from its greatest keys:
+	 * all matching rows are read in ascending order, and only the last <code>limit</code> ones are kept.
+	 * @param c the constraint on keys of returned rows ; null means all rows in the table
+	 * @see ReverseScanStore#get(MetaInformation, String, Constraint, int, Set, boolean)
+	 */
+	public static CloseableKeyIterator reverseScan(Store store, MetaInformation meta, String table, Constraint c, int limit, Set<String> families) throws DatabaseNotReachedException {
+		final ArrayDeque<Row> rows = new ArrayDeque<Row>();
+		if (limit > 0) {
+			CloseableKeyIterator it = store.get(meta, table, c, Integer.MAX_VALUE, families);
+			try {
+				while (it.hasNext()) {
+					if (rows.size() == limit)
+						rows.removeFirst();
+					rows.addLast(it.next());
+				}
+			} finally {
+				it.close();
+			}
+		}
+		final Iterator<Row> ret = rows.descendingIterator();
+		return new CloseableKeyIterator() {
+			
+			@Override
+			public boolean hasNext() {
+				return ret.hasNext();
+			}
+
+			@Override
+			public Row next() {
+				return ret.next();
+			}
+
+			@Override
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+
+			@Override
+			public void close() {
+				rows.clear();
+			}
+		};
+	}
+
+	/**
+	 * Rows matching a constraint sorted according to their key in descending order.
+	 * To be used by stores that cannot scan a table from its greatest keys.
+	 * @param c the constraint on keys of returned rows ; null means all rows in the table
+	 * @see #reverseScan(Store, MetaInformation, String, Constraint, int, Set)
+	 */
+	public static CloseableKeyIterator reverseScan(SimpleStore store, String table, Constraint c, int limit, Set<String> families) throws DatabaseNotReachedException {
+		return reverseScan(SimpleStoreWrapper.getWrapper(store), null, table, c, limit, families);
+	}
 	
 	protected static Map<Field, Object> toMapOfFields(Class<?> clazz, Map<String, Object> values) {
 		if (values == null)
@@ -1,8 +1,12 @@
 package com.googlecode.n_orm.storeapi;
 
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.Map;
+import java.util.Set;
 import java.util.TreeMap;
 
+import com.googlecode.n_orm.DatabaseNotReachedException;
 import com.googlecode.n_orm.storeapi.Row.ColumnFamilyData;
 
 public class DefaultColumnFamilyData extends TreeMap<String /* family name */, 
@@ -10,6 +14,36 @@ public class DefaultColumnFamilyData extends TreeMap<String /* family name */,
 		ColumnFamilyData {
 
 	private static final long serialVersionUID = -7463011284583132839L;
+
+	/**
+	 * Reads rows one after the other.
+	 * To be used for stores that cannot read many rows in a single request.
+	 * @see MultiGetStore#get(MetaInformation, String, Collection, Set)
+	 */
+	public static Map<String, ColumnFamilyData> get(Store store, MetaInformation meta, String table, Collection<String> ids, Set<String> families) throws DatabaseNotReachedException {
+		Map<String, ColumnFamilyData> ret = new HashMap<String, ColumnFamilyData>();
+		for (String id : ids) {
+			ColumnFamilyData data = store.get(meta, table, id, families);
+			if (data != null)
+				ret.put(id, data);
+		}
+		return ret;
+	}
+
+	/**
+	 * Reads rows one after the other.
+	 * To be used for stores that cannot read many rows in a single request.
+	 * @see MultiGetSimpleStore#get(String, Collection, Set)
+	 */
+	public static Map<String, ColumnFamilyData> get(SimpleStore store, String table, Collection<String> ids, Set<String> families) throws DatabaseNotReachedException {
+		Map<String, ColumnFamilyData> ret = new HashMap<String, ColumnFamilyData>();
+		for (String id : ids) {
+			ColumnFamilyData data = store.get(table, id, families);
+			if (data != null)
+				ret.put(id, data);
+		}
+		return ret;
+	}
 	
 	public DefaultColumnFamilyData() {
 		super();
@@ -1,5 +1,7 @@
 package com.googlecode.n_orm.storeapi;
 
+import java.util.Collection;
+import java.util.Iterator;
 import java.util.Map;
 import java.util.Set;
 
@@ -9,7 +11,7 @@ import com.googlecode.n_orm.storeapi.Row.ColumnFamilyData;
 /**
  *	A store that delegates all of its requests to another one.
  */
-public class DelegatingStore implements Store {
+public class DelegatingStore implements MultiGetStore, BatchStore, ReverseScanStore, TruncatableStore, BulkLoadStore {
 
 	private final Store actualStore;
 
@@ -82,6 +84,17 @@ public class DelegatingStore implements Store {
 		return actualStore.get(meta, table, c, limit, families);
 	}
 
+	public CloseableKeyIterator get(MetaInformation meta, String table,
+			Constraint c, int limit, Set<String> families, boolean descending)
+			throws DatabaseNotReachedException {
+		if (actualStore instanceof ReverseScanStore)
+			return ((ReverseScanStore)actualStore).get(meta, table, c, limit, families, descending);
+		else if (descending)
+			return Constraint.reverseScan(actualStore, meta, table, c, limit, families);
+		else
+			return actualStore.get(meta, table, c, limit, families);
+	}
+
 	public byte[] get(MetaInformation meta, String table, String row,
 			String family, String key) throws DatabaseNotReachedException {
 		return actualStore.get(meta, table, row, family, key);
@@ -103,6 +116,15 @@ public class DelegatingStore implements Store {
 		return actualStore.get(meta, table, id, families);
 	}
 
+	public Map<String, ColumnFamilyData> get(MetaInformation meta,
+			String table, Collection<String> ids, Set<String> families)
+			throws DatabaseNotReachedException {
+		if (actualStore instanceof MultiGetStore)
+			return ((MultiGetStore)actualStore).get(meta, table, ids, families);
+		else
+			return DefaultColumnFamilyData.get(actualStore, meta, table, ids, families);
+	}
+
 	public void storeChanges(MetaInformation meta, String table, String id,
 			ColumnFamilyData changed, Map<String, Set<String>> removed,
 			Map<String, Map<String, Number>> increments)
@@ -110,8 +132,32 @@ public class DelegatingStore implements Store {
 		actualStore.storeChanges(meta, table, id, changed, removed, increments);
 	}
 
+	public void storeChanges(String table, Collection<RowChanges> rows)
+			throws DatabaseNotReachedException {
+		if (actualStore instanceof BatchStore)
+			((BatchStore)actualStore).storeChanges(table, rows);
+		else
+			RowChanges.storeChanges(actualStore, table, rows);
+	}
+
 	public long count(MetaInformation meta, String table, Constraint c)
 			throws DatabaseNotReachedException {
 		return actualStore.count(meta, table, c);
 	}
+
+	public void truncate(MetaInformation meta, String table, Constraint c)
+			throws DatabaseNotReachedException {
+		if (actualStore instanceof TruncatableStore)
+			((TruncatableStore)actualStore).truncate(meta, table, c);
+		else
+			Constraint.truncate(actualStore, meta, table, c);
+	}
+
+	public void load(String table, Iterator<RowChanges> rows)
+			throws DatabaseNotReachedException {
+		if (actualStore instanceof BulkLoadStore)
+			((BulkLoadStore)actualStore).load(table, rows);
+		else
+			RowChanges.load(actualStore, table, rows);
+	}
 }
@@ -0,0 +1,37 @@
+package com.googlecode.n_orm.storeapi;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.Set;
+
+import com.googlecode.n_orm.DatabaseNotReachedException;
+import com.googlecode.n_orm.storeapi.Row.ColumnFamilyData;
+
+/**
+ * A store able to read many rows of a table in a single request.
+ * Rows of stores that do not implement this interface are read one after the other
+ * using {@link DefaultColumnFamilyData#get(Store, MetaInformation, String, Collection, Set)}.
+ */
+public interface MultiGetStore extends Store {
+
+	/**
+	 * Returns all elements in families for a set of rows in a single request ;
+	 * no side-effect. Result should be the same as invoking
+	 * {@link #get(MetaInformation, String, String, Set)} for each given id.
+	 * 
+	 * @param table
+	 *            the table from which to find the elements
+	 * @param ids
+	 *            the unique identifiers (i.e. the keys) with which the
+	 *            elements were stored
+	 * @param families
+	 *            the set of column families to be activated ; should never be
+	 *            null or empty
+	 * @return the data stored for each family of each found element, indexed
+	 *         by element identifier ; an id that does not exist within the
+	 *         given table is absent from the returned map, which is never null
+	 */
+	public Map<String, ColumnFamilyData> get(MetaInformation meta,
+			String table, Collection<String> ids, Set<String> families)
+			throws DatabaseNotReachedException;
+}
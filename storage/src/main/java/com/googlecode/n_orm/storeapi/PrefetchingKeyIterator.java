@@ -0,0 +1,424 @@
+package com.googlecode.n_orm.storeapi;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.googlecode.n_orm.DatabaseNotReachedException;
+
+/**
+ * A {@link CloseableKeyIterator} that reads rows from another iterator in the
+ * background while the caller processes rows already read. Rows are read by
+ * pages of at most {@link #getPageSize()} rows, and at most
+ * {@link #getQueueDepth()} pages are waiting for being processed. The
+ * decorated iterator is only used from the background thread, and is closed
+ * once exhausted or once this iterator is closed.
+ * At most {@link #getMaxFetcherThreads()} iterators read in the background at
+ * the same time ; other iterators read rows from the caller thread when asked
+ * for, as the decorated iterator would do.
+ * As the background thread waits until rows are processed or this iterator is
+ * closed, iterators should always be closed ; otherwise, the background thread
+ * gives up once this iterator is unreachable or once no row was processed for
+ * {@link #getMaxIdleMs()}.
+ *
+ * @see #prefetch(CloseableKeyIterator, int)
+ */
+public class PrefetchingKeyIterator implements CloseableKeyIterator {
+	private static volatile boolean ENABLED = true;
+	private static volatile int PAGE_SIZE = 100;
+	private static volatile int QUEUE_DEPTH = 2;
+	private static volatile long MAX_IDLE_MS = 60000;
+	/**
+	 * How often a background thread waiting for room checks whether its consumer is idle or unreachable.
+	 */
+	private static final long IDLE_CHECK_MS = 1000;
+
+	private static final ThreadPoolExecutor fetcher = new ThreadPoolExecutor(0,
+			2 * Runtime.getRuntime().availableProcessors(), 10L, TimeUnit.SECONDS,
+			new SynchronousQueue<Runnable>(), new ThreadFactory() {
+				private final AtomicInteger threadCount = new AtomicInteger();
+
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread ret = new Thread(r, "n-orm prefetcher #"
+							+ threadCount.incrementAndGet());
+					ret.setDaemon(true);
+					return ret;
+				}
+			});
+
+	/**
+	 * Whether {@link #prefetch(CloseableKeyIterator, int)} decorates
+	 * iterators ; default is true.
+	 */
+	public static boolean isEnabled() {
+		return ENABLED;
+	}
+
+	public static void setEnabled(boolean enabled) {
+		ENABLED = enabled;
+	}
+
+	/**
+	 * The maximum number of iterators reading rows in the background at the
+	 * same time ; default is twice the number of processors.
+	 */
+	public static int getMaxFetcherThreads() {
+		return fetcher.getMaximumPoolSize();
+	}
+
+	/**
+	 * @throws IllegalArgumentException
+	 *             in case the number of threads is not strictly positive
+	 */
+	public static void setMaxFetcherThreads(int maxThreads) {
+		if (maxThreads <= 0)
+			throw new IllegalArgumentException(
+					"Number of fetcher threads must be strictly positive ; got " + maxThreads);
+		fetcher.setMaximumPoolSize(maxThreads);
+	}
+
+	/**
+	 * The default maximum number of rows read at once ; default is 100.
+	 */
+	public static int getDefaultPageSize() {
+		return PAGE_SIZE;
+	}
+
+	/**
+	 * @throws IllegalArgumentException
+	 *             in case page size is not strictly positive
+	 */
+	public static void setDefaultPageSize(int pageSize) {
+		if (pageSize <= 0)
+			throw new IllegalArgumentException(
+					"Page size must be strictly positive ; got " + pageSize);
+		PAGE_SIZE = pageSize;
+	}
+
+	/**
+	 * The default maximum number of pages read in advance ; default is 2.
+	 */
+	public static int getDefaultQueueDepth() {
+		return QUEUE_DEPTH;
+	}
+
+	/**
+	 * @throws IllegalArgumentException
+	 *             in case queue depth is not strictly positive
+	 */
+	public static void setDefaultQueueDepth(int queueDepth) {
+		if (queueDepth <= 0)
+			throw new IllegalArgumentException(
+					"Queue depth must be strictly positive ; got " + queueDepth);
+		QUEUE_DEPTH = queueDepth;
+	}
+
+	/**
+	 * The maximum time in ms a background thread waits for rows to be processed ; default is 60000.
+	 * Once elapsed, the decorated iterator is closed, and the caller gets a {@link DatabaseNotReachedException}
+	 * once it processed rows already read.
+	 */
+	public static long getMaxIdleMs() {
+		return MAX_IDLE_MS;
+	}
+
+	/**
+	 * @throws IllegalArgumentException
+	 *             in case time is not strictly positive
+	 */
+	public static void setMaxIdleMs(long maxIdleMs) {
+		if (maxIdleMs <= 0)
+			throw new IllegalArgumentException(
+					"Maximum idle time must be strictly positive ; got " + maxIdleMs);
+		MAX_IDLE_MS = maxIdleMs;
+	}
+
+	/**
+	 * Decorates the given iterator with a prefetching iterator using default
+	 * page size and queue depth. Iterator is returned undecorated in case
+	 * prefetching is {@link #isEnabled() disabled} or in case the
+	 * expected number of rows fits in a single page.
+	 *
+	 * @param limit
+	 *            the maximum number of rows the given iterator can return
+	 */
+	public static CloseableKeyIterator prefetch(CloseableKeyIterator it,
+			int limit) {
+		int pageSize = getDefaultPageSize();
+		if (it == null || !isEnabled() || limit <= pageSize
+				|| it instanceof PrefetchingKeyIterator)
+			return it;
+		return new PrefetchingKeyIterator(it, pageSize, getDefaultQueueDepth());
+	}
+
+	/**
+	 * Marks the end of the iteration in {@link Fetch#pages}.
+	 */
+	private static final List<Row> END = new ArrayList<Row>(0);
+
+	/**
+	 * Reads rows in the background.
+	 * Does not reference its {@link PrefetchingKeyIterator} so that it can notice once it is unreachable.
+	 */
+	private static class Fetch implements Runnable {
+		private final CloseableKeyIterator iterator;
+		private final int pageSize, queueDepth;
+		private final WeakReference<PrefetchingKeyIterator> owner;
+		/**
+		 * Pages read in the background, guarded by {@link #lock}.
+		 */
+		private final LinkedList<List<Row>> pages = new LinkedList<List<Row>>();
+		private final ReentrantLock lock = new ReentrantLock();
+		/**
+		 * Signaled when a page is taken from {@link #pages} or when this iterator is closed.
+		 */
+		private final Condition notFull = lock.newCondition();
+		/**
+		 * Signaled when a page is put into {@link #pages}.
+		 */
+		private final Condition notEmpty = lock.newCondition();
+		/**
+		 * When a page was last taken from {@link #pages}, guarded by {@link #lock}.
+		 */
+		private long lastTaken = System.currentTimeMillis();
+		private volatile boolean closed = false;
+		private volatile Throwable error = null;
+
+		private Fetch(CloseableKeyIterator iterator, int pageSize, int queueDepth, PrefetchingKeyIterator owner) {
+			this.iterator = iterator;
+			this.pageSize = pageSize;
+			this.queueDepth = queueDepth;
+			this.owner = new WeakReference<PrefetchingKeyIterator>(owner);
+		}
+
+		@Override
+		public void run() {
+			List<Row> page = null;
+			try {
+				boolean hasNext = true;
+				while (hasNext && !closed && error == null) {
+					page = new ArrayList<Row>(pageSize);
+					while (page.size() < pageSize && !closed
+							&& (hasNext = iterator.hasNext())) {
+						page.add(iterator.next());
+					}
+					if (!page.isEmpty())
+						this.enqueue(page);
+					page = null;
+				}
+			} catch (Throwable t) {
+				this.error = t;
+				//Rows read before the problem are still to be returned
+				try {
+					if (page != null && !page.isEmpty())
+						this.enqueue(page);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			} finally {
+				try {
+					iterator.close();
+				} finally {
+					try {
+						this.enqueue(END);
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+				}
+			}
+		}
+
+		/**
+		 * Waits for room in {@link #pages} unless this iterator is closed.
+		 * Gives up in case the consumer did not take any page for more than {@link PrefetchingKeyIterator#getMaxIdleMs()},
+		 * which is reported as an {@link #error}, or in case the consumer is unreachable.
+		 */
+		private void enqueue(List<Row> page) throws InterruptedException {
+			this.lock.lock();
+			try {
+				while (this.pages.size() >= this.queueDepth && page != END) {
+					if (this.closed)
+						return;
+					long maxIdle = getMaxIdleMs();
+					if (this.notFull.await(Math.min(maxIdle, IDLE_CHECK_MS), TimeUnit.MILLISECONDS))
+						continue;
+					if (this.owner.get() == null) {
+						this.closed = true;
+					} else if (System.currentTimeMillis() - this.lastTaken >= maxIdle) {
+						if (this.error == null)
+							this.error = new DatabaseNotReachedException("No row was taken from " + this.iterator
+									+ " for more than " + maxIdle + "ms ; rows are no longer read");
+						return;
+					}
+				}
+				if (this.closed)
+					return;
+				this.pages.addLast(page);
+				this.notEmpty.signal();
+			} finally {
+				this.lock.unlock();
+			}
+		}
+
+		/**
+		 * Waits for a page in {@link #pages}.
+		 */
+		private List<Row> dequeue() throws InterruptedException {
+			this.lock.lock();
+			try {
+				while (this.pages.isEmpty()) {
+					this.notEmpty.await();
+				}
+				List<Row> ret = this.pages.removeFirst();
+				this.lastTaken = System.currentTimeMillis();
+				this.notFull.signal();
+				return ret;
+			} finally {
+				this.lock.unlock();
+			}
+		}
+
+		private void close() {
+			this.closed = true;
+			this.lock.lock();
+			try {
+				this.pages.clear();
+				this.notFull.signalAll();
+			} finally {
+				this.lock.unlock();
+			}
+		}
+	}
+
+	private final CloseableKeyIterator iterator;
+	private final int pageSize, queueDepth;
+	/**
+	 * The rows read in the background ; null in case no fetcher thread was available.
+	 */
+	private final Fetch fetch;
+	private boolean closed = false;
+	private Iterator<Row> current = null;
+	private boolean done = false;
+
+	/**
+	 * Starts reading in the background from the given iterator.
+	 *
+	 * @param pageSize
+	 *            the maximum number of rows read at once
+	 * @param queueDepth
+	 *            the maximum number of pages read in advance
+	 */
+	public PrefetchingKeyIterator(CloseableKeyIterator iterator, int pageSize,
+			int queueDepth) {
+		if (pageSize <= 0 || queueDepth <= 0)
+			throw new IllegalArgumentException(
+					"Page size and queue depth must be strictly positive ; got "
+							+ pageSize + " and " + queueDepth);
+		this.iterator = iterator;
+		this.pageSize = pageSize;
+		this.queueDepth = queueDepth;
+		Fetch fetch = new Fetch(iterator, pageSize, queueDepth, this);
+		try {
+			fetcher.execute(fetch);
+		} catch (RejectedExecutionException x) {
+			// All fetcher threads are busy
+			fetch = null;
+		}
+		this.fetch = fetch;
+	}
+
+	public int getPageSize() {
+		return pageSize;
+	}
+
+	public int getQueueDepth() {
+		return queueDepth;
+	}
+
+	@Override
+	public boolean hasNext() {
+		if (this.fetch == null) {
+			if (done || closed)
+				return false;
+			if (this.iterator.hasNext())
+				return true;
+			done = true;
+			this.iterator.close();
+			return false;
+		}
+		while (current == null || !current.hasNext()) {
+			if (done || closed)
+				return false;
+			List<Row> page;
+			try {
+				page = this.fetch.dequeue();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new DatabaseNotReachedException(
+						"Interrupted while waiting for rows", e);
+			}
+			if (page == END) {
+				done = true;
+				Throwable t = this.fetch.error;
+				if (t != null) {
+					if (t instanceof RuntimeException)
+						throw (RuntimeException) t;
+					if (t instanceof Error)
+						throw (Error) t;
+					throw new DatabaseNotReachedException(t);
+				}
+				return false;
+			}
+			current = page.iterator();
+		}
+		return true;
+	}
+
+	@Override
+	public Row next() {
+		if (!this.hasNext())
+			throw new NoSuchElementException();
+		return this.fetch != null ? current.next() : this.iterator.next();
+	}
+
+	@Override
+	public void remove() {
+		throw new UnsupportedOperationException(
+				"Cannot remove rows from a prefetching iterator");
+	}
+
+	/**
+	 * Stops reading rows ; decorated iterator is closed by the background
+	 * thread as soon as it notices.
+	 */
+	@Override
+	public void close() {
+		if (this.closed)
+			return;
+		this.closed = true;
+		this.current = null;
+		if (this.fetch == null) {
+			if (!this.done)
+				this.iterator.close();
+			return;
+		}
+		this.fetch.close();
+	}
+
+	@Override
+	public String toString() {
+		return "prefetching " + this.iterator;
+	}
+}
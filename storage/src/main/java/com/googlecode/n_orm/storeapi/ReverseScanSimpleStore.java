@@ -0,0 +1,22 @@
+package com.googlecode.n_orm.storeapi;
+
+import java.util.Set;
+
+import com.googlecode.n_orm.DatabaseNotReachedException;
+
+/**
+ * A {@link SimpleStore} able to scan a table from its greatest keys.
+ * Tables of stores that do not implement this interface are scanned in ascending order
+ * using {@link Constraint#reverseScan(SimpleStore, String, Constraint, int, Set)}.
+ * Such a store is seen as a {@link ReverseScanStore} once wrapped by a {@link SimpleStoreWrapper}.
+ */
+public interface ReverseScanSimpleStore extends SimpleStore {
+	
+	/**
+	 * Rows matching constraint sorted according to their key in ascending or descending order.
+	 * In descending order, the limit applies to rows with the greatest keys.
+	 * @param families the families to be returned with each row ; null if only keys are expected
+	 * @param descending whether rows should be returned in descending order ; if false, result should be the same as {@link #get(String, Constraint, int, Set)}
+	 */
+	CloseableKeyIterator get(String table, Constraint c, int limit, Set<String> families, boolean descending) throws DatabaseNotReachedException;
+}
@@ -0,0 +1,27 @@
+package com.googlecode.n_orm.storeapi;
+
+import java.util.Set;
+
+import com.googlecode.n_orm.DatabaseNotReachedException;
+
+/**
+ * A store able to scan a table from its greatest keys.
+ * Tables of stores that do not implement this interface are scanned in ascending order
+ * using {@link Constraint#reverseScan(Store, MetaInformation, String, Constraint, int, Set)}.
+ */
+public interface ReverseScanStore extends Store {
+
+	/**
+	 * Rows matching constraint sorted according to their key in ascending
+	 * or descending order. In descending order, the limit applies to rows
+	 * with the greatest keys.
+	 * 
+	 * @param descending
+	 *            whether rows should be returned in descending order ; if
+	 *            false, result should be the same as
+	 *            {@link #get(MetaInformation, String, Constraint, int, Set)}
+	 */
+	public CloseableKeyIterator get(MetaInformation meta, String table,
+			Constraint c, int limit, Set<String> families, boolean descending)
+			throws DatabaseNotReachedException;
+}
@@ -0,0 +1,136 @@
+package com.googlecode.n_orm.storeapi;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.googlecode.n_orm.DatabaseNotReachedException;
+import com.googlecode.n_orm.storeapi.Row.ColumnFamilyData;
+
+/**
+ * Changes to be stored for a given row.
+ * Used to send changes for many rows of a table in a single request.
+ * @see BatchStore#storeChanges(String, Collection)
+ * @see BatchSimpleStore#storeChanges(String, Collection)
+ */
+public class RowChanges {
+	/**
+	 * Number of rows sent at once by {@link #load(Store, String, Iterator)}.
+	 */
+	private static final int LOAD_BATCH = 1000;
+
+	/**
+	 * Stores changes one row after the other.
+	 * To be used by stores that cannot send changes for many rows in a single request.
+	 */
+	public static void storeChanges(Store store, String table, Collection<RowChanges> rows) throws DatabaseNotReachedException {
+		for (RowChanges row : rows) {
+			store.storeChanges(row.getMeta(), table, row.getId(), row.getChanged(), row.getRemoved(), row.getIncrements());
+		}
+	}
+
+	/**
+	 * Stores changes one row after the other.
+	 * To be used by stores that cannot send changes for many rows in a single request.
+	 */
+	public static void storeChanges(SimpleStore store, String table, Collection<RowChanges> rows) throws DatabaseNotReachedException {
+		for (RowChanges row : rows) {
+			store.storeChanges(table, row.getId(), row.getChanged(), row.getRemoved(), row.getIncrements());
+		}
+	}
+
+	/**
+	 * Stores changes by batches of rows.
+	 * To be used by stores that cannot take advantage of sorted rows for a bulk load.
+	 */
+	public static void load(Store store, String table, Iterator<RowChanges> rows) throws DatabaseNotReachedException {
+		List<RowChanges> batch = new ArrayList<RowChanges>(LOAD_BATCH);
+		while (rows.hasNext()) {
+			batch.add(rows.next());
+			if (batch.size() == LOAD_BATCH || !rows.hasNext()) {
+				if (store instanceof BatchStore)
+					((BatchStore)store).storeChanges(table, batch);
+				else
+					storeChanges(store, table, batch);
+				batch = new ArrayList<RowChanges>(LOAD_BATCH);
+			}
+		}
+	}
+
+	/**
+	 * Stores changes by batches of rows.
+	 * To be used by stores that cannot take advantage of sorted rows for a bulk load.
+	 */
+	public static void load(SimpleStore store, String table, Iterator<RowChanges> rows) throws DatabaseNotReachedException {
+		List<RowChanges> batch = new ArrayList<RowChanges>(LOAD_BATCH);
+		while (rows.hasNext()) {
+			batch.add(rows.next());
+			if (batch.size() == LOAD_BATCH || !rows.hasNext()) {
+				if (store instanceof BatchSimpleStore)
+					((BatchSimpleStore)store).storeChanges(table, batch);
+				else
+					storeChanges(store, table, batch);
+				batch = new ArrayList<RowChanges>(LOAD_BATCH);
+			}
+		}
+	}
+
+	private final MetaInformation meta;
+	private final String id;
+	private final ColumnFamilyData changed;
+	private final Map<String, Set<String>> removed;
+	private final Map<String, Map<String, Number>> increments;
+
+	public RowChanges(MetaInformation meta, String id, ColumnFamilyData changed,
+			Map<String, Set<String>> removed,
+			Map<String, Map<String, Number>> increments) {
+		this.meta = meta;
+		this.id = id;
+		this.changed = changed;
+		this.removed = removed;
+		this.increments = increments;
+	}
+
+	/**
+	 * Meta information for the changed row ; can be null.
+	 */
+	public MetaInformation getMeta() {
+		return meta;
+	}
+
+	/**
+	 * The unique identifier (i.e. the key) for the changed row.
+	 */
+	public String getId() {
+		return id;
+	}
+
+	/**
+	 * Changed columns ; can be null.
+	 */
+	public ColumnFamilyData getChanged() {
+		return changed;
+	}
+
+	/**
+	 * Removed columns ; can be null.
+	 */
+	public Map<String, Set<String>> getRemoved() {
+		return removed;
+	}
+
+	/**
+	 * Incremented columns ; can be null.
+	 */
+	public Map<String, Map<String, Number>> getIncrements() {
+		return increments;
+	}
+
+	@Override
+	public String toString() {
+		return "changes for row " + this.id;
+	}
+}
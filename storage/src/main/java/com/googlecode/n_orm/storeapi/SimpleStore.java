@@ -44,7 +44,7 @@ public interface SimpleStore {
 	
 	/**
 	 * Rows matching constraint sorted according to their key in ascending order.
-	 * @param families TODO
+	 * @param families the families to be returned with each row ; null if only keys are expected
 	 */
 	CloseableKeyIterator get(String table, Constraint c, int limit, Set<String> families) throws DatabaseNotReachedException;
 	
@@ -92,12 +92,6 @@ public interface SimpleStore {
 	long count(String table, Constraint c)
 			throws DatabaseNotReachedException;
 
-//	/**
-//	 * Deletes all elements satisfying the constraint
-//	 */
-//	void truncate(String table, Constraint c)
-//			throws DatabaseNotReachedException;
-	
 //	/**
 //	 * Counts the number of elements in the table.
 //	 * In case the table is missing, 0 is returned.
@@ -1,21 +1,44 @@
 package com.googlecode.n_orm.storeapi;
 
+import java.util.Collection;
+import java.util.Iterator;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Set;
 
+import com.googlecode.n_orm.Callback;
 import com.googlecode.n_orm.DatabaseNotReachedException;
+import com.googlecode.n_orm.PersistingElement;
+import com.googlecode.n_orm.Process;
 import com.googlecode.n_orm.storeapi.Row.ColumnFamilyData;
 
-public class SimpleStoreWrapper implements Store {
+public class SimpleStoreWrapper implements MultiGetStore, BatchStore, ReverseScanStore, TruncatableStore, BulkLoadStore {
 	private static Map<SimpleStore, Store> INSTANCES = new HashMap<SimpleStore, Store>();
+	
+	/**
+	 * The wrapper for {@link ActionnableSimpleStore}s.
+	 */
+	private static class ActionnableSimpleStoreWrapper extends SimpleStoreWrapper implements ActionnableStore {
+
+		private ActionnableSimpleStoreWrapper(ActionnableSimpleStore store) {
+			super(store);
+		}
+
+		@Override
+		public <AE extends PersistingElement, E extends AE> void process(
+				MetaInformation meta, String table, Constraint c,
+				Set<String> families, Class<E> element, Process<AE> action,
+				Callback callback) throws DatabaseNotReachedException {
+			((ActionnableSimpleStore)this.getStore()).process(meta, table, c, families, element, action, callback);
+		}
+	}
 
 	public static SimpleStoreWrapper getWrapper(SimpleStore s) {
 		synchronized (INSTANCES) {
 			SimpleStoreWrapper ret = (SimpleStoreWrapper) INSTANCES
 					.get(s);
 			if (ret == null) {
-				ret = new SimpleStoreWrapper(s);
+				ret = s instanceof ActionnableSimpleStore ? new ActionnableSimpleStoreWrapper((ActionnableSimpleStore)s) : new SimpleStoreWrapper(s);
 			}
 			return ret;
 		}
@@ -115,6 +138,18 @@ public class SimpleStoreWrapper implements Store {
 		return this.store.get(table, c, limit, families);
 	}
 
+	@Override
+	public CloseableKeyIterator get(MetaInformation meta,
+			String table, Constraint c, int limit,
+			Set<String> families, boolean descending) throws DatabaseNotReachedException {
+		if (store instanceof ReverseScanSimpleStore)
+			return ((ReverseScanSimpleStore)store).get(table, c, limit, families, descending);
+		else if (descending)
+			return Constraint.reverseScan(store, table, c, limit, families);
+		else
+			return this.store.get(table, c, limit, families);
+	}
+
 	/*
 	 * (non-Javadoc)
 	 * 
@@ -175,6 +210,23 @@ public class SimpleStoreWrapper implements Store {
 		return store.get(table, id, families);
 	}
 
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see
+	 * com.googlecode.n_orm.storeapi.MultiGetStore#get(com.googlecode.n_orm.storeapi
+	 * .MetaInformation, java.lang.String, java.util.Collection, java.util.Set)
+	 */
+	@Override
+	public Map<String, ColumnFamilyData> get(MetaInformation meta,
+			String table, Collection<String> ids,
+			Set<String> families) throws DatabaseNotReachedException {
+		if (store instanceof MultiGetSimpleStore)
+			return ((MultiGetSimpleStore)store).get(table, ids, families);
+		else
+			return DefaultColumnFamilyData.get(store, table, ids, families);
+	}
+
 	/*
 	 * (non-Javadoc)
 	 * 
@@ -192,6 +244,21 @@ public class SimpleStoreWrapper implements Store {
 		store.storeChanges(table, id, changed, removed, increments);
 	}
 
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see com.googlecode.n_orm.storeapi.BatchStore#storeChanges(java.lang.String,
+	 * java.util.Collection)
+	 */
+	@Override
+	public void storeChanges(String table, Collection<RowChanges> rows)
+			throws DatabaseNotReachedException {
+		if (store instanceof BatchSimpleStore)
+			((BatchSimpleStore)store).storeChanges(table, rows);
+		else
+			RowChanges.storeChanges(store, table, rows);
+	}
+
 	/*
 	 * (non-Javadoc)
 	 * 
@@ -203,4 +270,22 @@ public class SimpleStoreWrapper implements Store {
 			Constraint c) throws DatabaseNotReachedException {
 		return store.count(table, c);
 	}
+
+	@Override
+	public void truncate(MetaInformation meta, String table, Constraint c)
+			throws DatabaseNotReachedException {
+		if (store instanceof TruncatableSimpleStore)
+			((TruncatableSimpleStore)store).truncate(table, c);
+		else
+			Constraint.truncate(store, table, c);
+	}
+
+	@Override
+	public void load(String table, Iterator<RowChanges> rows)
+			throws DatabaseNotReachedException {
+		if (store instanceof BulkLoadSimpleStore)
+			((BulkLoadSimpleStore)store).load(table, rows);
+		else
+			RowChanges.load(store, table, rows);
+	}
 }
@@ -0,0 +1,19 @@
+package com.googlecode.n_orm.storeapi;
+
+import com.googlecode.n_orm.DatabaseNotReachedException;
+
+/**
+ * A {@link SimpleStore} able to delete a range of rows in a single request.
+ * Rows of stores that do not implement this interface are deleted one after the other
+ * using {@link Constraint#truncate(SimpleStore, String, Constraint)}.
+ * Such a store is seen as a {@link TruncatableStore} once wrapped by a {@link SimpleStoreWrapper}.
+ */
+public interface TruncatableSimpleStore extends SimpleStore {
+
+	/**
+	 * Deletes all rows satisfying the constraint.
+	 * @param c the constraint on the keys of deleted rows ; null means all rows in the table
+	 */
+	void truncate(String table, Constraint c)
+			throws DatabaseNotReachedException;
+}
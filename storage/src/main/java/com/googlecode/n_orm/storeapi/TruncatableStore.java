@@ -0,0 +1,21 @@
+package com.googlecode.n_orm.storeapi;
+
+import com.googlecode.n_orm.DatabaseNotReachedException;
+
+/**
+ * A store able to delete a range of rows in a single request.
+ * Rows of stores that do not implement this interface are deleted one after the other
+ * using {@link Constraint#truncate(Store, MetaInformation, String, Constraint)}.
+ */
+public interface TruncatableStore extends Store {
+
+	/**
+	 * Deletes all elements satisfying the constraint.
+	 * 
+	 * @param c
+	 *            the constraint on the keys of deleted elements ; null means
+	 *            all elements in the table
+	 */
+	public void truncate(MetaInformation meta, String table, Constraint c)
+			throws DatabaseNotReachedException;
+}
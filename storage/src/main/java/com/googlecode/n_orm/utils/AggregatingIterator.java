@@ -14,7 +14,9 @@ import com.googlecode.n_orm.storeapi.Row;
  * An {@link CloseableIterator} composite able to iterate over a set of
  * {@link CloseableIterator}s. Elements are selected from composed iterators
  * so that they are iterated
- * {@link PersistingElement#compareTo(PersistingElement) in an ordered way}.
+ * {@link PersistingElement#compareTo(PersistingElement) in an ordered way},
+ * or in the reverse order in case this iterator is
+ * {@link #AggregatingIterator(boolean) descending}.
  * In case an element with same id is found from different iterators, an
  * {@link IllegalStateException exception} is thrown, unless
  * {@link #merge(Row, CloseableKeyIterator, Row, CloseableKeyIterator)}
@@ -117,7 +119,8 @@ public class AggregatingIterator implements CloseableKeyIterator {
 		/**
 		 * Returns the next element to be iterated if this element is lower
 		 * than parameter. Lower means with a lower key as can be found by
-		 * {@link ResultReadyToGo#getKey()}.
+		 * {@link ResultReadyToGo#getKey()}, or with a greater key in case
+		 * this iterator is {@link AggregatingIterator#isDescending() descending}.
 		 * 
 		 * @param r
 		 *            null or a previously iterated key
@@ -138,6 +141,8 @@ public class AggregatingIterator implements CloseableKeyIterator {
 				return new ResultReadyToGo();
 			} else {
 				int cmp = this.next.getKey().compareTo(r.getKey());
+				if (descending)
+					cmp = -cmp;
 				if (cmp == 0) {
 					try {
 						this.next = AggregatingIterator.this.merge(this.next, this.it, r.getResult(), r.getIteratorStatus().it);
@@ -167,6 +172,11 @@ public class AggregatingIterator implements CloseableKeyIterator {
 		}
 	}
 
+	/**
+	 * Whether composed iterators return rows in descending order.
+	 */
+	private final boolean descending;
+	
 	/**
 	 * The composed iterators.
 	 */
@@ -175,6 +185,27 @@ public class AggregatingIterator implements CloseableKeyIterator {
 	 * Whether iteration has started.
 	 */
 	private boolean started = false;
+	
+	/**
+	 * An aggregating iterator for iterators that return rows in ascending order.
+	 */
+	public AggregatingIterator() {
+		this(false);
+	}
+	
+	/**
+	 * @param descending whether composed iterators return rows in descending order
+	 */
+	public AggregatingIterator(boolean descending) {
+		this.descending = descending;
+	}
+	
+	/**
+	 * Whether composed iterators are expected to return rows in descending order.
+	 */
+	public boolean isDescending() {
+		return descending;
+	}
 
 	/**
 	 * Adds an iterator to the list of iterators to be explored.
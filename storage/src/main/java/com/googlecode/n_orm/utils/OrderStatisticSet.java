@@ -0,0 +1,333 @@
+package com.googlecode.n_orm.utils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * A sorted set of keys able to count keys within a range in logarithmic time.
+ * Keys are kept in a treap (a randomized binary search tree) whose nodes
+ * know the size of their subtree.<br>
+ * This set is not thread-safe.
+ *
+ * @param <K>
+ *            the type of the keys, sorted according to their natural order
+ */
+public class OrderStatisticSet<K extends Comparable<? super K>> {
+
+	private class Node {
+		private final K key;
+		private final int priority;
+		private int size = 1;
+		private Node left = null, right = null;
+
+		private Node(K key) {
+			this.key = key;
+			this.priority = random.nextInt();
+		}
+
+		private void update() {
+			this.size = 1 + size(this.left) + size(this.right);
+		}
+	}
+
+	private final Random random = new Random();
+	private Node root = null;
+
+	private int size(Node n) {
+		return n == null ? 0 : n.size;
+	}
+
+	private Node rotateRight(Node n) {
+		Node l = n.left;
+		n.left = l.right;
+		l.right = n;
+		n.update();
+		l.update();
+		return l;
+	}
+
+	private Node rotateLeft(Node n) {
+		Node r = n.right;
+		n.right = r.left;
+		r.left = n;
+		n.update();
+		r.update();
+		return r;
+	}
+
+	/**
+	 * The number of keys in this set.
+	 */
+	public int size() {
+		return size(this.root);
+	}
+
+	/**
+	 * Whether the given key is in this set.
+	 */
+	public boolean contains(K key) {
+		Node n = this.root;
+		while (n != null) {
+			int cmp = key.compareTo(n.key);
+			if (cmp == 0)
+				return true;
+			n = cmp < 0 ? n.left : n.right;
+		}
+		return false;
+	}
+
+	/**
+	 * Adds a key to this set.
+	 *
+	 * @return true if the key was not already in this set
+	 */
+	public boolean add(K key) {
+		if (key == null)
+			throw new NullPointerException();
+		if (this.contains(key))
+			return false;
+		this.root = this.add(this.root, key);
+		return true;
+	}
+
+	private Node add(Node n, K key) {
+		if (n == null)
+			return new Node(key);
+		if (key.compareTo(n.key) < 0) {
+			n.left = this.add(n.left, key);
+			if (n.left.priority > n.priority)
+				n = this.rotateRight(n);
+		} else {
+			n.right = this.add(n.right, key);
+			if (n.right.priority > n.priority)
+				n = this.rotateLeft(n);
+		}
+		n.update();
+		return n;
+	}
+
+	/**
+	 * Adds sorted keys greater than all keys in this set in linear time: the
+	 * treap for the new keys is built bottom-up, and then merged with this
+	 * set.
+	 *
+	 * @param sortedKeys
+	 *            keys in strictly ascending order
+	 * @throws IllegalArgumentException
+	 *             in case keys are not sorted or not greater than keys in this
+	 *             set ; no key is added then
+	 */
+	public void addAllSorted(List<K> sortedKeys) {
+		K last = null;
+		if (this.root != null) {
+			Node n = this.root;
+			while (n.right != null)
+				n = n.right;
+			last = n.key;
+		}
+		for (K key : sortedKeys) {
+			if (key == null)
+				throw new NullPointerException();
+			if (last != null && key.compareTo(last) <= 0)
+				throw new IllegalArgumentException("Key " + key + " is not greater than " + last);
+			last = key;
+		}
+
+		// Right spine of the tree being built ; a node leaves the spine once its subtree is complete
+		List<Node> spine = new ArrayList<Node>();
+		for (K key : sortedKeys) {
+			Node n = new Node(key), popped = null;
+			while (!spine.isEmpty() && spine.get(spine.size() - 1).priority < n.priority) {
+				popped = spine.remove(spine.size() - 1);
+				popped.update();
+			}
+			n.left = popped;
+			if (!spine.isEmpty())
+				spine.get(spine.size() - 1).right = n;
+			spine.add(n);
+		}
+		for (int i = spine.size() - 1; i >= 0; --i) {
+			spine.get(i).update();
+		}
+		if (!spine.isEmpty())
+			this.root = this.merge(this.root, spine.get(0));
+	}
+
+	/**
+	 * Removes a key from this set.
+	 *
+	 * @return true if the key was in this set
+	 */
+	public boolean remove(K key) {
+		if (key == null)
+			throw new NullPointerException();
+		if (!this.contains(key))
+			return false;
+		this.root = this.remove(this.root, key);
+		return true;
+	}
+
+	private Node remove(Node n, K key) {
+		int cmp = key.compareTo(n.key);
+		if (cmp < 0) {
+			n.left = this.remove(n.left, key);
+		} else if (cmp > 0) {
+			n.right = this.remove(n.right, key);
+		} else if (n.left == null) {
+			return n.right;
+		} else if (n.right == null) {
+			return n.left;
+		} else if (n.left.priority > n.right.priority) {
+			n = this.rotateRight(n);
+			n.right = this.remove(n.right, key);
+		} else {
+			n = this.rotateLeft(n);
+			n.left = this.remove(n.left, key);
+		}
+		n.update();
+		return n;
+	}
+
+	/**
+	 * Removes all keys between two keys, both included, in logarithmic time.
+	 *
+	 * @param fromIncl
+	 *            the lowest key ; null means no lower bound
+	 * @param toIncl
+	 *            the highest key ; null means no higher bound
+	 * @return the number of removed keys
+	 */
+	public int removeRange(K fromIncl, K toIncl) {
+		if (fromIncl != null && toIncl != null && fromIncl.compareTo(toIncl) > 0)
+			return 0;
+		Node lower = null, rest = this.root;
+		if (fromIncl != null) {
+			Node[] parts = this.split(rest, fromIncl, false);
+			lower = parts[0];
+			rest = parts[1];
+		}
+		Node higher = null;
+		if (toIncl != null) {
+			Node[] parts = this.split(rest, toIncl, true);
+			rest = parts[0];
+			higher = parts[1];
+		}
+		this.root = this.merge(lower, higher);
+		return size(rest);
+	}
+
+	/**
+	 * Splits a tree in two trees: keys lower than the given key, and other keys.
+	 *
+	 * @param inclusive
+	 *            whether the given key itself goes to the lower tree
+	 */
+	@SuppressWarnings("unchecked")
+	private Node[] split(Node n, K key, boolean inclusive) {
+		if (n == null)
+			return (Node[]) new OrderStatisticSet.Node[2];
+		int cmp = key.compareTo(n.key);
+		Node[] ret;
+		if (cmp > 0 || (cmp == 0 && inclusive)) {
+			ret = this.split(n.right, key, inclusive);
+			n.right = ret[0];
+			ret[0] = n;
+		} else {
+			ret = this.split(n.left, key, inclusive);
+			n.left = ret[1];
+			ret[1] = n;
+		}
+		n.update();
+		return ret;
+	}
+
+	/**
+	 * Merges two trees, all keys of the first being lower than keys of the second.
+	 */
+	private Node merge(Node lower, Node higher) {
+		if (lower == null)
+			return higher;
+		if (higher == null)
+			return lower;
+		if (lower.priority > higher.priority) {
+			lower.right = this.merge(lower.right, higher);
+			lower.update();
+			return lower;
+		} else {
+			higher.left = this.merge(lower, higher.left);
+			higher.update();
+			return higher;
+		}
+	}
+
+	/**
+	 * Removes all keys from this set.
+	 */
+	public void clear() {
+		this.root = null;
+	}
+
+	/**
+	 * The key with the given rank, i.e. the key preceded by index keys in
+	 * this set.
+	 *
+	 * @throws IndexOutOfBoundsException
+	 *             in case index is negative or not lower than the size of this
+	 *             set
+	 */
+	public K select(int index) {
+		if (index < 0 || index >= this.size())
+			throw new IndexOutOfBoundsException("Index " + index + " out of " + this.size() + " keys");
+		Node n = this.root;
+		while (true) {
+			int left = size(n.left);
+			if (index < left) {
+				n = n.left;
+			} else if (index == left) {
+				return n.key;
+			} else {
+				index -= left + 1;
+				n = n.right;
+			}
+		}
+	}
+
+	/**
+	 * The number of keys lower than the given key.
+	 *
+	 * @param inclusive
+	 *            whether the given key itself is to be counted in case it is
+	 *            in this set
+	 */
+	public int rank(K key, boolean inclusive) {
+		int ret = 0;
+		Node n = this.root;
+		while (n != null) {
+			int cmp = key.compareTo(n.key);
+			if (cmp < 0 || (cmp == 0 && !inclusive)) {
+				n = n.left;
+			} else {
+				ret += size(n.left) + 1;
+				if (cmp == 0)
+					break;
+				n = n.right;
+			}
+		}
+		return ret;
+	}
+
+	/**
+	 * The number of keys between two keys, both included.
+	 *
+	 * @param fromIncl
+	 *            the lowest key ; null means no lower bound
+	 * @param toIncl
+	 *            the highest key ; null means no higher bound
+	 */
+	public int count(K fromIncl, K toIncl) {
+		int to = toIncl == null ? this.size() : this.rank(toIncl, true);
+		int from = fromIncl == null ? 0 : this.rank(fromIncl, false);
+		return Math.max(0, to - from);
+	}
+}
@@ -0,0 +1,153 @@
+package com.googlecode.n_orm.utils;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A hierarchical timer wheel: elements are placed in a slot according to their deadline, where each of the {@link #LEVELS} wheels
+ * has {@link #SLOTS} slots, a slot of a level spanning a whole turn of the level below.
+ * Scheduling an element takes constant time, and advancing the wheel only visits slots for elapsed ticks ;
+ * elements in a slot of a higher level are moved down to lower levels when the lower wheel completes a turn.
+ * Elements whose deadline is beyond the span of the wheel are moved back to the highest level until their deadline comes close enough.<br>
+ * An element is returned by {@link #advance(long)} as soon as the tick for its deadline has elapsed, which might be slightly before its deadline.<br>
+ * This class is not thread-safe.
+ * @param <E> the kind of scheduled elements
+ */
+public class TimerWheel<E> {
+	private static final int SLOT_BITS = 6;
+	static final int SLOTS = 1 << SLOT_BITS;
+	static final int LEVELS = 4;
+	private static final int SLOT_MASK = SLOTS - 1;
+	private static final long SPAN = 1L << (SLOT_BITS * LEVELS);
+
+	private static final class Timer<E> {
+		private final E element;
+		private final long deadline;
+		private Timer<E> next;
+
+		public Timer(E element, long deadline) {
+			this.element = element;
+			this.deadline = deadline;
+		}
+	}
+
+	private final long tick;
+	private final Timer<E>[][] slots;
+
+	/**
+	 * Elements whose tick already elapsed.
+	 */
+	private Timer<E> due = null;
+	private long currentTick;
+	private int size = 0;
+
+	/**
+	 * @param tick the duration of a tick in milliseconds
+	 * @param now the current time in milliseconds
+	 */
+	@SuppressWarnings("unchecked")
+	public TimerWheel(long tick, long now) {
+		if (tick <= 0)
+			throw new IllegalArgumentException("Tick must be strictly positive ; got " + tick);
+		this.tick = tick;
+		this.slots = new Timer[LEVELS][SLOTS];
+		this.currentTick = now / tick;
+	}
+
+	/**
+	 * The number of scheduled elements.
+	 */
+	public int size() {
+		return this.size;
+	}
+
+	/**
+	 * Schedules an element.
+	 * @param deadline the time in milliseconds after which element is to be returned by {@link #advance(long)}
+	 */
+	public void schedule(E element, long deadline) {
+		this.add(new Timer<E>(element, deadline));
+		this.size++;
+	}
+
+	private void add(Timer<E> t) {
+		long delta = t.deadline / this.tick - this.currentTick;
+		if (delta <= 0) {
+			t.next = this.due;
+			this.due = t;
+			return;
+		}
+		long tick = this.currentTick + Math.min(delta, SPAN - 1);
+		int level = 0;
+		while (level < LEVELS - 1 && delta >= 1L << (SLOT_BITS * (level + 1)))
+			level++;
+		int slot = (int)(tick >>> (SLOT_BITS * level)) & SLOT_MASK;
+		t.next = this.slots[level][slot];
+		this.slots[level][slot] = t;
+	}
+
+	/**
+	 * Moves time forward and removes elements whose tick elapsed.
+	 * @param now the current time in milliseconds
+	 * @return removed elements
+	 */
+	public List<E> advance(long now) {
+		long target = now / this.tick;
+		List<E> ret = new ArrayList<E>();
+		if (this.size == 0) {
+			this.currentTick = Math.max(this.currentTick, target);
+			return ret;
+		}
+		while (this.currentTick < target) {
+			this.currentTick++;
+			for (int level = 1; level < LEVELS && (this.currentTick & ((1L << (SLOT_BITS * level)) - 1)) == 0; ++level) {
+				int slot = (int)(this.currentTick >>> (SLOT_BITS * level)) & SLOT_MASK;
+				Timer<E> t = this.slots[level][slot];
+				this.slots[level][slot] = null;
+				while (t != null) {
+					Timer<E> next = t.next;
+					this.add(t);
+					t = next;
+				}
+			}
+			int slot = (int)this.currentTick & SLOT_MASK;
+			this.drain(this.slots[0][slot], ret);
+			this.slots[0][slot] = null;
+		}
+		this.drain(this.due, ret);
+		this.due = null;
+		this.size -= ret.size();
+		return ret;
+	}
+
+	/**
+	 * Elements that {@link #advance(long) advancing} to the given time would remove, without removing them.
+	 * Only visits slots for elapsed ticks, and the slots of higher levels that would be moved down meanwhile.
+	 * @param now the current time in milliseconds
+	 */
+	public List<E> elapsed(long now) {
+		long target = now / this.tick;
+		List<E> ret = new ArrayList<E>();
+		if (this.size == 0)
+			return ret;
+		this.drain(this.due, ret);
+		for (int level = 0; level < LEVELS; ++level) {
+			int shift = SLOT_BITS * level;
+			long from = (this.currentTick >>> shift) + 1, to = Math.min(target >>> shift, from + SLOTS - 1);
+			for (long t = from; t <= to; ++t) {
+				for (Timer<E> timer = this.slots[level][(int)t & SLOT_MASK]; timer != null; timer = timer.next) {
+					if (timer.deadline / this.tick <= target)
+						ret.add(timer.element);
+				}
+			}
+		}
+		return ret;
+	}
+
+	private void drain(Timer<E> t, List<E> to) {
+		while (t != null) {
+			to.add(t.element);
+			t = t.next;
+		}
+	}
+}
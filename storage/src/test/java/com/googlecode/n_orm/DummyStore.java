@@ -121,5 +121,4 @@ public class DummyStore implements Store {
 		// TODO Auto-generated method stub
 		return false;
 	}
-
 }
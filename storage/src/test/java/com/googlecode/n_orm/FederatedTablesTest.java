@@ -1113,6 +1113,50 @@ public class FederatedTablesTest {
 		res.close();
 	}
 
+	@Test
+	public void findAllDescending() {
+		for (int i = 0; i < 100; ++i) {
+			Element elt = new Element();
+			elt.key = "key" + i;
+			int post = i % 4;
+			if (post != 0)
+				elt.post = "post" + post;
+			elt.store();
+		}
+
+		CloseableIterator<Element> res = StorageManagement.findElements()
+				.ofClass(Element.class).withAtMost(1000).elements()
+				.inDescendingOrder().andActivateAllFamilies().iterate();
+		Element oldE = null;
+		for (int i = 0; i < 100; ++i) {
+			assertTrue(res.hasNext());
+			Element newE = res.next();
+			if (oldE != null)
+				assertTrue(oldE.compareTo(newE) > 0);
+			oldE = newE;
+		}
+		assertFalse(res.hasNext());
+		res.close();
+	}
+
+	@Test
+	public void findAllLimitedDescending() {
+		for (int i = 'a'; i < 'z'; ++i) {
+			Element elt = new Element();
+			elt.key = "key" + (char) i;
+			int post = i % 4;
+			if (post != 0)
+				elt.post = "post" + post;
+			elt.store();
+		}
+
+		NavigableSet<Element> res = StorageManagement.findElements()
+				.ofClass(Element.class).withAtMost(10).elements().inDescendingOrder().go();
+		assertEquals(10, res.size());
+		assertEquals("keyy", res.first().key);
+		assertEquals("keyp", res.last().key);
+	}
+
 	@Test
 	public void findAllConstrained() {
 		for (int i = 'a'; i < 'z'; ++i) {
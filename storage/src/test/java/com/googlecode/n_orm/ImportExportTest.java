@@ -135,6 +135,50 @@ public class ImportExportTest {
 		}
 	}
 
+	@Test
+	public void bulkLoad() throws DatabaseNotReachedException {
+		NavigableSet<BookStore> stores = new TreeSet<BookStore>();
+		for (int i = 0; i < 50; ++i) {
+			BookStore bs = new BookStore("bulk" + i);
+			bs.setName("name" + i);
+			stores.add(bs);
+		}
+		StorageManagement.findElements().ofClass(BookStore.class).load(stores.iterator());
+		for (BookStore bs : stores) {
+			assertTrue(bs.isKnownAsExistingInStore());
+		}
+		assertEquals(50, StorageManagement.findElements().ofClass(BookStore.class).count());
+		KeyManagement.getInstance().cleanupKnownPersistingElements();
+		
+		BookStore found = StorageManagement.findElements().ofClass(BookStore.class).withKey("hashcode").setTo("bulk7").andActivateAllFamilies().any();
+		assertNotNull(found);
+		assertEquals("name7", found.getName());
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void bulkLoadUnsorted() throws DatabaseNotReachedException {
+		StorageManagement.findElements().ofClass(BookStore.class).load(Arrays.asList(new BookStore("bulk2"), new BookStore("bulk1")).iterator());
+	}
+
+	@Test
+	public void bulkLoadUnsortedStoresPreviousElements() throws DatabaseNotReachedException {
+		BookStore first = new BookStore("bulk4"), second = new BookStore("bulk3");
+		try {
+			StorageManagement.findElements().ofClass(BookStore.class).load(Arrays.asList(first, second).iterator());
+			fail();
+		} catch (IllegalArgumentException x) {
+		}
+		assertTrue(first.isKnownAsExistingInStore());
+		assertTrue(first.existsInStore());
+		assertFalse(second.isKnownAsExistingInStore());
+		assertFalse(second.existsInStore());
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void bulkLoadWithPersistingSuperclass() throws DatabaseNotReachedException {
+		StorageManagement.loadElements(Novel.class, new TreeSet<Novel>().iterator());
+	}
+
 	@Test
 	public void checkSerializeBook() throws DatabaseNotReachedException,
 			IOException, ClassNotFoundException, InterruptedException, ReadException {
@@ -4,7 +4,9 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -18,6 +20,8 @@ import com.googlecode.n_orm.Key;
 import com.googlecode.n_orm.Persisting;
 import com.googlecode.n_orm.PersistingElement;
 import com.googlecode.n_orm.StorageManagement;
+import com.googlecode.n_orm.query.SearchPage;
+import com.googlecode.n_orm.query.SearchableClassConstraintBuilder;
 import com.googlecode.n_orm.storeapi.Constraint;
 
 
@@ -115,6 +119,75 @@ public class PersistableSearchTest {
 		checkOrder(res);
 	}
 	
+	@Test public void search50SutsWithFirstKeyDescending() throws DatabaseNotReachedException {
+		Set<SUTClass> res = StorageManagement.findElements().ofClass(SUTClass.class).withKey("key1").between(49).and(55).withAtMost(50).elements().inDescendingOrder().go();
+		assertEquals(50, res.size());
+		SUTClass last = null;
+		for (SUTClass sut : res) {
+			assertTrue(49 <= sut.key1 && sut.key1 <= 55);
+			if (last != null)
+				assertTrue(last.compareTo(sut) > 0);
+			last = sut;
+		}
+		//Greatest elements were found
+		assertEquals(55, res.iterator().next().key1);
+		assertEquals(10, res.iterator().next().key2);
+		assertEquals(51, last.key1);
+	}
+	
+	@Test public void searchAnySutDescending() throws DatabaseNotReachedException {
+		SUTClass res = StorageManagement.findElements().ofClass(SUTClass.class).withKey("key1").lessOrEqualsThan(55).withAtMost(1).elements().inDescendingOrder().any();
+		assertEquals(55, res.key1);
+		assertEquals(10, res.key2);
+	}
+	
+	private void checkPages(boolean descending) {
+		List<SUTClass> expected = new ArrayList<SUTClass>(StorageManagement.findElements().ofClass(SUTClass.class).withKey("key1").between(49).and(55).withAtMost(1000).elements().go());
+		assertEquals(77, expected.size());
+		if (descending)
+			Collections.reverse(expected);
+		List<SUTClass> found = new ArrayList<SUTClass>();
+		String token = null;
+		int pages = 0;
+		do {
+			SearchableClassConstraintBuilder<SUTClass> query = StorageManagement.findElements().ofClass(SUTClass.class).withKey("key1").between(49).and(55).withAtMost(20).elements();
+			if (descending)
+				query.inDescendingOrder();
+			SearchPage<SUTClass> page = query.startingAfter(token).page();
+			assertTrue(page.getElements().size() <= 20);
+			found.addAll(page.getElements());
+			token = page.getContinuationToken();
+			pages++;
+		} while (token != null);
+		assertEquals(4, pages);
+		assertEquals(expected, found);
+	}
+	
+	@Test public void pageSuts() throws DatabaseNotReachedException {
+		this.checkPages(false);
+	}
+	
+	@Test public void pageSutsDescending() throws DatabaseNotReachedException {
+		this.checkPages(true);
+	}
+	
+	@Test public void pageSutsExactSize() throws DatabaseNotReachedException {
+		SearchPage<SUTClass> page = StorageManagement.findElements().ofClass(SUTClass.class).withKey("key1").setTo(49).withAtMost(11).elements().page();
+		assertEquals(11, page.getElements().size());
+		assertTrue(page.isLast());
+	}
+	
+	@Test(expected=IllegalArgumentException.class)
+	public void pageSutsWithTokenFromAnotherQuery() throws DatabaseNotReachedException {
+		String token = StorageManagement.findElements().ofClass(SUTClass.class).withKey("key1").between(49).and(55).withAtMost(20).elements().page().getContinuationToken();
+		StorageManagement.findElements().ofClass(SUTClass.class).withKey("key1").between(50).and(55).withAtMost(20).elements().startingAfter(token).page();
+	}
+	
+	@Test(expected=IllegalArgumentException.class)
+	public void pageSutsWithInvalidToken() throws DatabaseNotReachedException {
+		StorageManagement.findElements().ofClass(SUTClass.class).withAtMost(20).elements().startingAfter("not a token");
+	}
+	
 	@Test(timeout=500)//timeout makes the process execute in another thread ; for some reason, cache is not cleaned in this particular case
 	public void search1SutWithFirstKey() throws DatabaseNotReachedException {
 		Set<SUTClass> ress = StorageManagement.findElementsToSet(SUTClass.class, new Constraint(SUTClass.class, null, "key1", 49, 55), 1, (String[])null);
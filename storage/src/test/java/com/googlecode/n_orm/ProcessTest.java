@@ -2,9 +2,12 @@ package com.googlecode.n_orm;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
@@ -205,4 +208,38 @@ public class ProcessTest {
 			assertTrue(executor.awaitTermination(5, TimeUnit.MILLISECONDS));
 		 }
 
+		 @Test public void processRemotely() throws Exception {
+			List<Novel> novels = new ArrayList<Novel>();
+			for (int i = 2; i < 200; ++i) {
+				Novel n = new Novel(bssut, new Date(123456799), new Date(i));
+				n.attribute = i;
+				n.store();
+				novels.add(n);
+			}
+			try {
+				WaitingCallBack cb = new WaitingCallBack();
+				StorageManagement.findElements().ofClass(Novel.class).withAtMost(1000).elements().andActivate().remoteForEach(new InrementNovel(2), cb, 2, 20000);
+				cb.waitProcessCompleted();
+				assertNull(cb.getError());
+				n1.activate();
+				assertEquals(3, n1.attribute);
+				for (Novel n : novels) {
+					n.activate();
+					assertEquals(n.getReceptionDate().getTime() + 2, n.attribute);
+				}
+			} finally {
+				for (Novel n : novels) {
+					n.delete();
+				}
+			}
+		 }
+		 
+		 @Test public void badProcessRemotely() throws Exception {
+			WaitingCallBack cb = new WaitingCallBack();
+			StorageManagement.findElements().ofClass(Novel.class).withAtMost(1000).elements().remoteForEach(new BadProcess(), cb, 2, 20000);
+			cb.waitProcessCompleted();
+			assertTrue(cb.getError() instanceof ProcessException);
+			assertEquals(2, ((ProcessException)cb.getError()).getProblems().size());
+		 }
+
 }
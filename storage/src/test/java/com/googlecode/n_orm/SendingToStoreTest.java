@@ -21,10 +21,11 @@ import org.mockito.MockitoAnnotations;
 import com.googlecode.n_orm.Incrementing.Mode;
 import com.googlecode.n_orm.cf.SetColumnFamily;
 import com.googlecode.n_orm.conversion.ConversionTools;
+import com.googlecode.n_orm.mocked.ElementInFederatedMockedStore;
 import com.googlecode.n_orm.storeapi.Constraint;
 import com.googlecode.n_orm.storeapi.MetaInformation;
 import com.googlecode.n_orm.storeapi.Row.ColumnFamilyData;
-import com.googlecode.n_orm.storeapi.Store;
+import com.googlecode.n_orm.storeapi.TruncatableStore;
 
 public class SendingToStoreTest {
 	private static final String table = "SendingMetaToStoreTest";
@@ -61,7 +62,7 @@ public class SendingToStoreTest {
 	}
 	
 	private Element element;
-	@Mock private Store store;
+	@Mock private TruncatableStore store;
 	
 	@Before
 	public void setupStore() {
@@ -215,6 +216,23 @@ public class SendingToStoreTest {
 		verify(this.store).count(new MetaInformation().forClass(Element.class), table, null);
 	}
 	
+	@Test
+	public void truncate() {
+		Constraint c = mock(Constraint.class);
+		StorageManagement.truncateElements(Element.class, c);
+		verify(this.store).truncate(new MetaInformation().forClass(Element.class), table, c);
+	}
+	
+	@Test(expected=IllegalArgumentException.class)
+	public void truncateWithPersistingSuperclass() {
+		StorageManagement.truncateElements(Novel.class, null);
+	}
+	
+	@Test(expected=IllegalArgumentException.class)
+	public void truncateFederated() {
+		StorageManagement.truncateElements(ElementInFederatedMockedStore.class, null);
+	}
+	
 	@Test
 	public void search() {
 		Constraint c = mock(Constraint.class);
@@ -4,6 +4,7 @@ import static org.junit.Assert.*;
 
 import java.util.Arrays;
 import java.util.HashSet;
+import java.util.concurrent.Future;
 
 import org.junit.After;
 import org.junit.Before;
@@ -634,4 +635,58 @@ public class SimpleStorageTest {
 		assertEquals("toto", sut.privProp);
 		assertTrue(sut.prop2);
 	}
+	
+	@Test
+	public void activateSeveralElements() {
+		SimpleElement other = new SimpleElement("KEY2", new String[]{"KE", "Y2"});
+		other.prop1 = "otherpro1value";
+		other.store();
+		KeyManagement.getInstance().cleanupKnownPersistingElements();
+		Memory.INSTANCE.resetQueries();
+		
+		SimpleElement sut = new SimpleElement("KEY1", new String[]{"KE", "Y2"});
+		other = new SimpleElement("KEY2", new String[]{"KE", "Y2"});
+		SimpleElement unknown = new SimpleElement("guhkguilnu", new String [] {"gbuyikgnui", "yuihju"});
+		hadNoQuery();
+		StorageManagement.activateElements(Arrays.asList(sut, other, unknown));
+		hadAQuery();
+		
+		assertEquals("pro1value", sut.prop1);
+		assertTrue(sut.prop2);
+		assertEquals("otherpro1value", other.prop1);
+		assertTrue(sut.exists());
+		assertTrue(other.exists());
+		assertFalse(unknown.exists());
+		hadNoQuery();
+	}
+	
+	@Test
+	public void asyncOperations() throws Exception {
+		KeyManagement.getInstance().cleanupKnownPersistingElements();
+		SimpleElement stored = new SimpleElement("ASYNCKEY", new String[]{"KE", "Y2"});
+		stored.prop1 = "asyncvalue";
+		Future<Void> storing = stored.storeAsync();
+		assertNull(storing.get());
+		assertTrue(storing.isDone());
+		
+		KeyManagement.getInstance().cleanupKnownPersistingElements();
+		SimpleElement sut = new SimpleElement("ASYNCKEY", new String[]{"KE", "Y2"});
+		SimpleElement other = new SimpleElement("KEY1", new String[]{"KE", "Y2"});
+		SimpleElement unknown = new SimpleElement("guhkguilnu", new String [] {"gbuyikgnui", "yuihju"});
+		Future<Void> sutActivation = sut.activateAsync(), otherActivation = other.activateAsync();
+		Future<Boolean> unknownExists = unknown.existsAsync();
+		sutActivation.get();
+		otherActivation.get();
+		assertEquals("asyncvalue", sut.prop1);
+		assertEquals("pro1value", other.prop1);
+		assertFalse(unknownExists.get());
+		
+		Memory.INSTANCE.resetQueries();
+		Future<Boolean> sutExists = sut.existsAsync();
+		assertTrue(sutExists.isDone());
+		assertTrue(sutExists.get());
+		hadNoQuery();
+		
+		stored.delete();
+	}
 }
@@ -6,6 +6,7 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
@@ -20,10 +21,12 @@ import com.googlecode.n_orm.Key;
 import com.googlecode.n_orm.Persisting;
 import com.googlecode.n_orm.PropertyManagement;
 import com.googlecode.n_orm.conversion.ConversionTools;
+import com.googlecode.n_orm.storeapi.Constraint;
 import com.googlecode.n_orm.storeapi.DefaultColumnFamilyData;
 import com.googlecode.n_orm.storeapi.MetaInformation;
+import com.googlecode.n_orm.storeapi.MultiGetStore;
 import com.googlecode.n_orm.storeapi.Row.ColumnFamilyData;
-import com.googlecode.n_orm.storeapi.Store;
+import com.googlecode.n_orm.storeapi.TruncatableStore;
 
 
 public class CacheStoreTest {
@@ -39,8 +42,9 @@ public class CacheStoreTest {
 	
 	private CachedStore sut;
 	private IMocksControl mocksControl = createControl();
-	private Store mockStore=mocksControl.createMock(Store.class);
-	private ICache mockCache=mocksControl.createMock(com.googlecode.n_orm.cache.read.ICache.class);
+	public static interface TestedStore extends MultiGetStore, TruncatableStore {}
+	private TestedStore mockStore=mocksControl.createMock(TestedStore.class);
+	private TruncatableCache mockCache=mocksControl.createMock(TruncatableCache.class);
 	
 	@Before
 	public void setUp() throws Exception {
@@ -146,6 +150,18 @@ public class CacheStoreTest {
 		verify();
 	}
 	
+	@Test
+	public void testTruncate()throws CacheException{
+		this.checkOrder();
+		MetaInformation meta=new MetaInformation();
+		Constraint c = new Constraint("a", "b");
+		mockCache.delete(meta, "table", c);
+		mockStore.truncate(meta, "table", c);
+		replay();
+		sut.truncate(meta, "table", c);
+		verify();
+	}
+	
 	@Test
 	public void testExists() throws CacheException{
 		this.checkOrder();
@@ -292,6 +308,50 @@ public class CacheStoreTest {
 		
 	}
 	
-	
+	@Test
+	public void testGetSeveralMixedCachedAndNotCached() throws CacheException{
+		Set<String> families = new HashSet<String>();
+		families.add("f1");
+		families.add("f2");
+		Map<String, byte[]> valueCached = new HashMap<String, byte[]>();
+		valueCached.put("Toto", new byte[] {(byte)46});
+		Map<String, byte[]> valueStored = new HashMap<String, byte[]>();
+		valueStored.put("Toto", new byte[] {(byte)-9});
+		
+		Map<String, ColumnFamilyData> returnedValues = new HashMap<String, ColumnFamilyData>();
+
+		//Row in cache
+		ColumnFamilyData cachedValues = new DefaultColumnFamilyData();
+		for (String sf : families) {
+			cachedValues.put(sf, valueCached);
+			expect(mockCache.getFamilyData(null, "table", "idCached", sf)).andReturn(valueCached);
+		}
+		returnedValues.put("idCached", cachedValues);
+		
+		//Row in store
+		ColumnFamilyData storedValues = new DefaultColumnFamilyData();
+		for (String sf : families) {
+			storedValues.put(sf, valueStored);
+			expect(mockCache.getFamilyData(null, "table", "idStored", sf)).andReturn(null);
+			mockCache.insertFamilyData(null, "table", "idStored", sf, valueStored);
+		}
+		returnedValues.put("idStored", storedValues);
+		
+		//Inexisting row
+		for (String sf : families) {
+			expect(mockCache.getFamilyData(null, "table", "idUnknown", sf)).andReturn(null);
+		}
+		
+		//Only rows that are not cached are requested, in a single request
+		Set<String> storedIds = new HashSet<String>();
+		storedIds.add("idStored");
+		storedIds.add("idUnknown");
+		Map<String, ColumnFamilyData> fromStore = new HashMap<String, ColumnFamilyData>();
+		fromStore.put("idStored", storedValues);
+		expect(mockStore.get(null, "table", storedIds, families)).andReturn(fromStore);
+		replay();
+		assertEquals(returnedValues, sut.get(null, "table", Arrays.asList("idCached", "idStored", "idUnknown"), families));
+		verify();
+	}
 
 }
@@ -0,0 +1,95 @@
+package com.googlecode.n_orm.cache.write;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.TreeMap;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.googlecode.n_orm.conversion.ConversionTools;
+import com.googlecode.n_orm.memory.Memory;
+import com.googlecode.n_orm.storeapi.DefaultColumnFamilyData;
+import com.googlecode.n_orm.storeapi.SimpleStoreWrapper;
+import com.googlecode.n_orm.storeapi.Row.ColumnFamilyData;
+
+public class RetentionJournalTest {
+	private static final String table = "RetentionJournalTestTable";
+
+	private File dir;
+
+	@Before
+	public void createDirectory() throws IOException {
+		dir = File.createTempFile("n-orm-journal", "");
+		assertTrue(dir.delete());
+	}
+
+	@After
+	public void deleteDirectory() {
+		if (dir.isDirectory()) {
+			for (File f : dir.listFiles()) {
+				f.delete();
+			}
+			dir.delete();
+		}
+	}
+
+	private static ColumnFamilyData change(String value) {
+		ColumnFamilyData ret = new DefaultColumnFamilyData();
+		ret.put("f", new TreeMap<String, byte[]>());
+		ret.get("f").put("q", ConversionTools.convert(value));
+		return ret;
+	}
+
+	@Test
+	public void deliveredSegmentsRemoved() throws IOException {
+		// Starting a new segment at each sync
+		RetentionJournal sut = new RetentionJournal(dir, false, 1);
+		assertEquals(0, sut.replay(SimpleStoreWrapper.getWrapper(Memory.INSTANCE)));
+		sut.open();
+		
+		long a = sut.acquire();
+		long aSeq = sut.update(table, "a", change("a"), null, null);
+		sut.sync();
+		long b = sut.acquire();
+		long bSeq = sut.update(table, "b", change("b"), null, null);
+		sut.sync();
+		assertEquals(3, sut.getSegments());
+		
+		// b started in a later segment than a
+		sut.delivered(table, "b", bSeq, b);
+		assertEquals(3, sut.getSegments());
+		sut.delivered(table, "a", aSeq, a);
+		sut.sync();
+		assertEquals(1, sut.getSegments());
+		sut.close();
+	}
+
+	@Test
+	public void replayed() throws IOException {
+		RetentionJournal sut = new RetentionJournal(dir, false, 1024);
+		sut.open();
+		long a = sut.acquire();
+		long aSeq = sut.update(table, "a", change("a1"), null, null);
+		sut.delete(table, "b");
+		sut.delivered(table, "a", aSeq, a);
+		sut.acquire();
+		sut.update(table, "a", change("a2"), null, null);
+		sut.update(table, "b", change("b"), null, null);
+		sut.update(table, "c", change("c"), null, null);
+		sut.delete(table, "c");
+		sut.close();
+		
+		Memory store = Memory.INSTANCE;
+		store.reset();
+		RetentionJournal recovered = new RetentionJournal(dir, false, 1024);
+		assertEquals(5, recovered.replay(SimpleStoreWrapper.getWrapper(store)));
+		assertEquals("a2", ConversionTools.convert(String.class, store.get(table, "a", "f", "q")));
+		assertEquals("b", ConversionTools.convert(String.class, store.get(table, "b", "f", "q")));
+		assertFalse(store.exists(table, "c"));
+		assertEquals(0, recovered.getSegments());
+	}
+}
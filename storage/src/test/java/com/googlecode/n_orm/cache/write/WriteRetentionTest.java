@@ -2,12 +2,19 @@ package com.googlecode.n_orm.cache.write;
 
 import static org.junit.Assert.*;
 
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
 import java.lang.Thread.UncaughtExceptionHandler;
 import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeMap;
@@ -30,18 +37,56 @@ import org.mockito.Mockito;
 import com.googlecode.n_orm.DatabaseNotReachedException;
 import com.googlecode.n_orm.Key;
 import com.googlecode.n_orm.Persisting;
+import com.googlecode.n_orm.StoreSelector;
 import com.googlecode.n_orm.Transient;
 import com.googlecode.n_orm.conversion.ConversionTools;
 import com.googlecode.n_orm.memory.Memory;
+import com.googlecode.n_orm.storeapi.CloseableKeyIterator;
+import com.googlecode.n_orm.storeapi.Constraint;
 import com.googlecode.n_orm.storeapi.DefaultColumnFamilyData;
 import com.googlecode.n_orm.storeapi.MetaInformation;
+import com.googlecode.n_orm.storeapi.Row;
 import com.googlecode.n_orm.storeapi.Row.ColumnFamilyData;
 import com.googlecode.n_orm.storeapi.DelegatingStore;
+import com.googlecode.n_orm.storeapi.RowChanges;
 import com.googlecode.n_orm.storeapi.SimpleStoreWrapper;
 import com.googlecode.n_orm.storeapi.Store;
 
 public class WriteRetentionTest {
 	
+	/**
+	 * A store writing to tables with a given prefix, so that different instances do not share data.
+	 */
+	private static class TablePrefixingStore extends DelegatingStore {
+		private final String prefix;
+
+		private TablePrefixingStore(String prefix, Store actualStore) {
+			super(actualStore);
+			this.prefix = prefix;
+		}
+
+		@Override
+		public void delete(MetaInformation meta, String table, String id)
+				throws DatabaseNotReachedException {
+			super.delete(meta, prefix + table, id);
+		}
+
+		@Override
+		public void storeChanges(MetaInformation meta, String table,
+				String id, ColumnFamilyData changed,
+				Map<String, Set<String>> removed,
+				Map<String, Map<String, Number>> increments)
+				throws DatabaseNotReachedException {
+			super.storeChanges(meta, prefix + table, id, changed, removed, increments);
+		}
+
+		@Override
+		public void storeChanges(String table, Collection<RowChanges> rows)
+				throws DatabaseNotReachedException {
+			super.storeChanges(prefix + table, rows);
+		}
+	}
+	
 	private static class SlowWriteDelegatingStore extends DelegatingStore {
 		/** The set of requests being sending */
 		@Transient private Set<String> sending = Collections.synchronizedSet(new HashSet<String>());
@@ -80,6 +125,48 @@ public class WriteRetentionTest {
 		}
 		
 	}
+	/**
+	 * A store rejecting changes for a given row, and slow to store its first change so that other requests are due meanwhile.
+	 */
+	private static class RejectingStore extends DelegatingStore {
+		private final String rejectedId;
+		private volatile boolean first = true;
+
+		private RejectingStore(String rejectedId, Store actualStore) {
+			super(actualStore);
+			this.rejectedId = rejectedId;
+		}
+
+		@Override
+		public void storeChanges(MetaInformation meta, String table,
+				String id, ColumnFamilyData changed,
+				Map<String, Set<String>> removed,
+				Map<String, Map<String, Number>> increments)
+				throws DatabaseNotReachedException {
+			if (rejectedId.equals(id))
+				throw new DatabaseNotReachedException("Rejected row " + id);
+			if (first) {
+				first = false;
+				try {
+					Thread.sleep(500);
+				} catch (InterruptedException x) {
+					assert false;
+				}
+			}
+			super.storeChanges(meta, table, id, changed, removed, increments);
+		}
+
+		@Override
+		public void storeChanges(String table, Collection<RowChanges> rows)
+				throws DatabaseNotReachedException {
+			for (RowChanges row : rows) {
+				if (rejectedId.equals(row.getId()))
+					throw new DatabaseNotReachedException("Rejected row " + row.getId());
+			}
+			super.storeChanges(table, rows);
+		}
+	}
+	
 	private static final String table = "testtable";
 	private static final String rowId = "testrow";
 	private static final String changedCf = "changedCf";
@@ -234,6 +321,36 @@ public class WriteRetentionTest {
 		assertArrayEquals(changedValue1, store.get(null, table, rowId, changedCf, changedKey));
 	}
 	
+	@Test(timeout=10000)
+	public void truncateDropsPendingWrites() throws InterruptedException {
+		WriteRetentionStore sut = sut200;
+		
+		store.storeChanges(null, table, "a", aChange, null, null);
+		sut.storeChanges(null, table, "b", aChange, null, null);
+		sut.storeChanges(null, table, "c", aChange, null, null);
+		sut.storeChanges(null, "othertable", "b", aChange, null, null);
+		sut.truncate(null, table, new Constraint("a", "b"));
+		assertFalse(store.exists(null, table, "a"));
+		Thread.sleep(250);
+		assertFalse(store.exists(null, table, "b"));
+		assertTrue(store.exists(null, table, "c"));
+		assertTrue(store.exists(null, "othertable", "b"));
+	}
+	
+	@Test(timeout=10000)
+	public void truncateWaitsForRequestsBeingSent() throws InterruptedException {
+		WriteRetentionStore sut = sutSlowDS;
+		
+		sut.storeChanges(null, table, "b", aChange, null, null);
+		//Request is due after 50ms, and takes 500ms to be sent
+		Thread.sleep(200);
+		sut.truncate(null, table, new Constraint("a", "b"));
+		assertFalse(store.exists(null, table, "b"));
+		//Request being sent would be stored by now
+		Thread.sleep(500);
+		assertFalse(store.exists(null, table, "b"));
+	}
+	
 	@Test(timeout=10000)
 	public void disableForThread() throws InterruptedException {
 		WriteRetentionStore sut = sut200;
@@ -935,4 +1052,588 @@ public class WriteRetentionTest {
 			WriteRetentionStore.setMaxSenderThreads(originalMaxThreads);
 		}
 	}
+	
+	@Test(expected=IllegalArgumentException.class)
+	public void zeroMaxBatchSizeSetAttempt() {
+		WriteRetentionStore.setMaxBatchSize(0);
+	}
+	
+	@Test(timeout=20000)
+	public void dueRequestsSentInBatch() {
+		int originalMaxThreads = WriteRetentionStore.getMaxSenderThreads();
+		
+		// Only one sender thread so that requests are due while first request is sent
+		WriteRetentionStore.setMaxSenderThreads(1);
+		
+		try {
+			int rows = 100;
+			for (int i = 0; i < rows; ++i) {
+				sutSlowDS.storeChanges(null, table, rowId + i, aChange, null, null);
+			}
+			this.waitForPendingRequests();
+			
+			int q = Memory.INSTANCE.getQueriesAndReset();
+			assertTrue("Sent " + q + " requests for " + rows + " rows", q < rows/10);
+			for (int i = 0; i < rows; ++i) {
+				assertArrayEquals(changedValue1, store.get(null, table, rowId + i, changedCf, changedKey));
+			}
+		} finally {
+			WriteRetentionStore.setMaxSenderThreads(originalMaxThreads);
+		}
+	}
+	
+	@Test(timeout=20000)
+	public void failedBatchSentAlone() {
+		int originalMaxThreads = WriteRetentionStore.getMaxSenderThreads();
+		
+		// Only one sender thread so that requests are due while first request is sent
+		WriteRetentionStore.setMaxSenderThreads(1);
+		
+		try {
+			int rows = 20;
+			String rejected = rowId + (rows/2);
+			WriteRetentionStore sut = WriteRetentionStore.getWriteRetentionStore(50, new RejectingStore(rejected, store));
+			sut.start();
+			for (int i = 0; i < rows; ++i) {
+				sut.storeChanges(null, table, rowId + i, aChange, null, null);
+			}
+			this.waitForPendingRequests();
+			
+			for (int i = 0; i < rows; ++i) {
+				if (rejected.equals(rowId + i))
+					assertFalse(store.exists(null, table, rejected));
+				else
+					assertArrayEquals(changedValue1, store.get(null, table, rowId + i, changedCf, changedKey));
+			}
+		} finally {
+			WriteRetentionStore.setMaxSenderThreads(originalMaxThreads);
+		}
+	}
+	
+	private static WriteRetentionStore getReadYourWritesSut() {
+		WriteRetentionStore ret = WriteRetentionStore.getWriteRetentionStore(300, store, true, 0);
+		ret.start();
+		return ret;
+	}
+	
+	@Test(timeout=10000)
+	public void readYourWritesChange() throws InterruptedException {
+		WriteRetentionStore sut = getReadYourWritesSut();
+		
+		assertFalse(sut.exists(null, table, rowId));
+		sut.storeChanges(null, table, rowId, aChange, null, null);
+		assertFalse(store.exists(null, table, rowId));
+		assertTrue(sut.exists(null, table, rowId));
+		assertTrue(sut.exists(null, table, rowId, changedCf));
+		assertFalse(sut.exists(null, table, rowId, incrementedCf));
+		assertArrayEquals(changedValue1, sut.get(null, table, rowId, changedCf, changedKey));
+		assertArrayEquals(changedValue1, sut.get(null, table, rowId, changedCf).get(changedKey));
+		assertArrayEquals(changedValue1, sut.get(null, table, rowId, Collections.singleton(changedCf)).get(changedCf).get(changedKey));
+		
+		sut.storeChanges(null, table, rowId, anotherChange, null, null);
+		assertArrayEquals(changedValue2, sut.get(null, table, rowId, changedCf, changedKey));
+		this.waitForPendingRequests();
+		assertArrayEquals(changedValue2, store.get(null, table, rowId, changedCf, changedKey));
+		assertArrayEquals(changedValue2, sut.get(null, table, rowId, changedCf, changedKey));
+	}
+	
+	@Test(timeout=10000)
+	public void readYourWritesDelete() throws InterruptedException {
+		WriteRetentionStore sut = getReadYourWritesSut();
+		
+		store.storeChanges(null, table, rowId, aChange, null, null);
+		sut.storeChanges(null, table, rowId, null, aDelete, null);
+		assertNotNull(store.get(null, table, rowId, changedCf, changedKey));
+		assertNull(sut.get(null, table, rowId, changedCf, changedKey));
+		assertFalse(sut.exists(null, table, rowId, changedCf));
+		
+		sut.delete(null, table, rowId);
+		assertTrue(store.exists(null, table, rowId));
+		assertFalse(sut.exists(null, table, rowId));
+		assertNull(sut.get(null, table, rowId, Collections.singleton(changedCf)));
+		
+		sut.storeChanges(null, table, rowId, anotherChange, null, null);
+		assertTrue(sut.exists(null, table, rowId));
+		assertArrayEquals(changedValue2, sut.get(null, table, rowId, changedCf, changedKey));
+	}
+	
+	@Test(timeout=10000)
+	public void readYourWritesIncrement() throws InterruptedException {
+		WriteRetentionStore sut = getReadYourWritesSut();
+		
+		store.storeChanges(null, table, rowId, null, null, anIncrement);
+		sut.storeChanges(null, table, rowId, null, null, anIncrement);
+		sut.storeChanges(null, table, rowId, null, null, anIncrement);
+		assertEquals(1, ConversionTools.convert(long.class, store.get(null, table, rowId, incrementedCf, incrementedKey)).longValue());
+		assertEquals(3, ConversionTools.convert(long.class, sut.get(null, table, rowId, incrementedCf, incrementedKey)).longValue());
+		this.waitForPendingRequests();
+		assertEquals(3, ConversionTools.convert(long.class, store.get(null, table, rowId, incrementedCf, incrementedKey)).longValue());
+	}
+	
+	@Test(timeout=10000)
+	public void readYourWritesScanAndCount() throws InterruptedException {
+		WriteRetentionStore sut = getReadYourWritesSut();
+		
+		store.storeChanges(null, table, "a", aChange, null, null);
+		store.storeChanges(null, table, "b", aChange, null, null);
+		store.storeChanges(null, table, "d", aChange, null, null);
+		sut.delete(null, table, "b");
+		sut.storeChanges(null, table, "c", anotherChange, null, null);
+		sut.storeChanges(null, table, "d", anotherChange, null, null);
+		sut.storeChanges(null, table, "e", anotherChange, null, null);
+		
+		assertEquals(3, store.count(null, table, null));
+		assertEquals(4, sut.count(null, table, null));
+		assertEquals(2, sut.count(null, table, new Constraint("b", "d")));
+		
+		List<String> keys = new ArrayList<String>();
+		List<byte[]> values = new ArrayList<byte[]>();
+		CloseableKeyIterator it = sut.get(null, table, null, 10, Collections.singleton(changedCf));
+		try {
+			while (it.hasNext()) {
+				Row r = it.next();
+				keys.add(r.getKey());
+				values.add(r.getValues().get(changedCf).get(changedKey));
+			}
+		} finally {
+			it.close();
+		}
+		assertEquals(Arrays.asList("a", "c", "d", "e"), keys);
+		assertArrayEquals(changedValue1, values.get(0));
+		assertArrayEquals(changedValue2, values.get(1));
+		assertArrayEquals(changedValue2, values.get(2));
+		assertArrayEquals(changedValue2, values.get(3));
+		
+		keys.clear();
+		it = sut.get(null, table, null, 2, Collections.singleton(changedCf), true);
+		try {
+			while (it.hasNext()) {
+				keys.add(it.next().getKey());
+			}
+		} finally {
+			it.close();
+		}
+		assertEquals(Arrays.asList("e", "d"), keys);
+	}
+	
+	private static List<String> keys(CloseableKeyIterator it) {
+		List<String> ret = new ArrayList<String>();
+		try {
+			while (it.hasNext()) {
+				ret.add(it.next().getKey());
+			}
+		} finally {
+			it.close();
+		}
+		return ret;
+	}
+	
+	@Test(timeout=10000)
+	public void readYourWritesScanAsksForHiddenRowsLazily() {
+		DelegatingStore actual = Mockito.spy(new DelegatingStore(store));
+		WriteRetentionStore sut = WriteRetentionStore.getWriteRetentionStore(300, actual, true, 0);
+		sut.start();
+		for (String key : new String[] {"a", "b", "c", "d", "e", "f"}) {
+			store.storeChanges(null, table, key, aChange, null, null);
+		}
+		sut.delete(null, table, "b");
+		sut.delete(null, table, "c");
+		sut.delete(null, table, "d");
+		sut.storeChanges(null, table, "g", anotherChange, null, null);
+		
+		assertEquals(Arrays.asList("a", "e"), keys(sut.get(null, table, null, 2, null)));
+		Mockito.verify(actual, Mockito.atLeastOnce()).get(Mockito.any(MetaInformation.class), Mockito.eq(table), Mockito.any(Constraint.class), Mockito.eq(2), Mockito.<Set<String>>any(), Mockito.eq(false));
+		Mockito.verify(actual, Mockito.never()).get(Mockito.any(MetaInformation.class), Mockito.eq(table), Mockito.any(Constraint.class), Mockito.eq(6), Mockito.<Set<String>>any(), Mockito.anyBoolean());
+		
+		assertEquals(Arrays.asList("g", "f", "e", "a"), keys(sut.get(null, table, null, 4, null, true)));
+		assertEquals(Arrays.asList("a", "e", "f", "g"), keys(sut.get(null, table, null, 10, null)));
+		assertEquals(Arrays.asList("e", "f"), keys(sut.get(null, table, new Constraint("b", "f"), 10, null)));
+	}
+	
+	@Test(timeout=10000)
+	public void readYourWritesNotShared() {
+		WriteRetentionStore ryw = WriteRetentionStore.getWriteRetentionStore(300, store, true, 0);
+		WriteRetentionStore plain = WriteRetentionStore.getWriteRetentionStore(300, store);
+		assertNotSame(ryw, plain);
+		assertTrue(ryw.isReadYourWrites());
+		assertFalse(plain.isReadYourWrites());
+		assertSame(ryw, WriteRetentionStore.getWriteRetentionStore(300, store, true, 0));
+		assertSame(plain, WriteRetentionStore.getWriteRetentionStore(300, ryw));
+		assertSame(ryw, WriteRetentionStore.getWriteRetentionStore(300, plain, true, 0));
+		
+		plain.start();
+		plain.storeChanges(null, table, rowId, aChange, null, null);
+		assertFalse(plain.exists(null, table, rowId));
+	}
+	
+	@Test(timeout=10000)
+	public void readYourWritesCountOnlyReadsRetainedRowsInRange() {
+		Store actual = Mockito.spy(new TablePrefixingStore("counted", store));
+		WriteRetentionStore sut = WriteRetentionStore.getWriteRetentionStore(300, actual, true, 0);
+		sut.start();
+		sut.storeChanges(null, table, "a", aChange, null, null);
+		sut.storeChanges(null, table, "b", aChange, null, null);
+		sut.storeChanges(null, table, "c", aChange, null, null);
+		sut.storeChanges(null, table, "d", aChange, null, null);
+		sut.storeChanges(null, "othertable", "b", aChange, null, null);
+		
+		assertEquals(2, sut.count(null, table, new Constraint("b", "c")));
+		Mockito.verify(actual, Mockito.times(2)).exists(Mockito.any(MetaInformation.class), Mockito.anyString(), Mockito.anyString());
+		Mockito.verify(actual, Mockito.never()).exists(Mockito.any(MetaInformation.class), Mockito.eq("othertable"), Mockito.anyString());
+	}
+	
+	@Test(timeout=10000)
+	public void pendingBytes() {
+		assertEquals(0, WriteRetentionStore.getPendingBytes());
+		sut200.storeChanges(null, table, rowId, aChange, null, null);
+		long bytes = WriteRetentionStore.getPendingBytes();
+		assertTrue(bytes > changedValue1.length);
+		// Overridden value is released
+		sut200.storeChanges(null, table, rowId, anotherChange, null, null);
+		assertEquals(bytes, WriteRetentionStore.getPendingBytes());
+		assertEquals(1, WriteRetentionStore.getRetainedRequests());
+		this.waitForPendingRequests();
+		assertEquals(0, WriteRetentionStore.getPendingBytes());
+		assertEquals(0, WriteRetentionStore.getRetainedRequests());
+	}
+	
+	@Test(timeout=10000)
+	public void writeThroughUnderPressure() {
+		WriteRetentionStore.setMaxPendingRequests(1);
+		WriteRetentionStore.setBackpressurePolicy(WriteRetentionStore.BackpressurePolicy.WRITE_THROUGH);
+		try {
+			long events = WriteRetentionStore.getBackpressureEvents();
+			sut200.storeChanges(null, table, "a", aChange, null, null);
+			assertEquals(1.0, WriteRetentionStore.getPressure(), 0.0);
+			sut200.storeChanges(null, table, "b", aChange, null, null);
+			assertEquals(events+1, WriteRetentionStore.getBackpressureEvents());
+			assertFalse(store.exists(null, table, "a"));
+			assertTrue(store.exists(null, table, "b"));
+			// Merged with retained request for the same row
+			sut200.storeChanges(null, table, "a", anotherChange, null, null);
+			assertArrayEquals(changedValue2, store.get(null, table, "a", changedCf, changedKey));
+			assertEquals(0, WriteRetentionStore.getRetainedRequests());
+		} finally {
+			WriteRetentionStore.setMaxPendingRequests(0);
+			WriteRetentionStore.setBackpressurePolicy(WriteRetentionStore.BackpressurePolicy.FLUSH);
+		}
+	}
+	
+	@Test(timeout=10000)
+	public void flushUnderPressure() {
+		WriteRetentionStore.setMaxPendingRequests(2);
+		WriteRetentionStore.setBackpressurePolicy(WriteRetentionStore.BackpressurePolicy.FLUSH);
+		try {
+			sut200.storeChanges(null, table, "a", aChange, null, null);
+			sut200.storeChanges(null, table, "b", aChange, null, null);
+			assertEquals(0, store.count(null, table, null));
+			sut200.storeChanges(null, table, "c", aChange, null, null);
+			assertTrue(WriteRetentionStore.getRetainedRequests() < 2);
+			assertTrue(store.count(null, table, null) >= 2);
+			this.waitForPendingRequests();
+			assertEquals(3, store.count(null, table, null));
+		} finally {
+			WriteRetentionStore.setMaxPendingRequests(0);
+		}
+	}
+	
+	@Test(timeout=10000)
+	public void flushUnderPressureStartsWithMostLoadedStore() {
+		WriteRetentionStore other = WriteRetentionStore.getWriteRetentionStore(200, new TablePrefixingStore("lessloaded", store));
+		other.start();
+		WriteRetentionStore.setMaxPendingRequests(2);
+		WriteRetentionStore.setBackpressurePolicy(WriteRetentionStore.BackpressurePolicy.FLUSH);
+		try {
+			sut200.storeChanges(null, table, "a", aChange, null, null);
+			sut200.storeChanges(null, table, "b", aChange, null, null);
+			other.storeChanges(null, table, "c", aChange, null, null);
+			assertEquals(2, store.count(null, table, null));
+			assertEquals(0, store.count(null, "lessloaded" + table, null));
+			assertEquals(1, WriteRetentionStore.getRetainedRequests());
+			this.waitForPendingRequests();
+			assertEquals(1, store.count(null, "lessloaded" + table, null));
+		} finally {
+			WriteRetentionStore.setMaxPendingRequests(0);
+		}
+	}
+	
+	@Test(timeout=10000)
+	public void blockUnderPressure() {
+		WriteRetentionStore.setMaxPendingBytes(1);
+		WriteRetentionStore.setBackpressurePolicy(WriteRetentionStore.BackpressurePolicy.BLOCK);
+		try {
+			sut50.storeChanges(null, table, "a", aChange, null, null);
+			assertFalse(store.exists(null, table, "a"));
+			// Waiting for first request to be sent
+			sut50.storeChanges(null, table, "b", aChange, null, null);
+			assertTrue(store.exists(null, table, "a"));
+		} finally {
+			WriteRetentionStore.setMaxPendingBytes(0);
+			WriteRetentionStore.setBackpressurePolicy(WriteRetentionStore.BackpressurePolicy.FLUSH);
+		}
+	}
+	
+	@Test(timeout=10000, expected=DatabaseNotReachedException.class)
+	public void blockUnderPressureTimeout() {
+		long timeout = WriteRetentionStore.getBackpressureTimeoutMs();
+		WriteRetentionStore.setMaxPendingRequests(1);
+		WriteRetentionStore.setBackpressurePolicy(WriteRetentionStore.BackpressurePolicy.BLOCK);
+		WriteRetentionStore.setBackpressureTimeoutMs(50);
+		try {
+			sut200.storeChanges(null, table, "a", aChange, null, null);
+			sut200.storeChanges(null, table, "b", aChange, null, null);
+		} finally {
+			WriteRetentionStore.setMaxPendingRequests(0);
+			WriteRetentionStore.setBackpressurePolicy(WriteRetentionStore.BackpressurePolicy.FLUSH);
+			WriteRetentionStore.setBackpressureTimeoutMs(timeout);
+		}
+	}
+	
+	@Test(timeout=10000)
+	public void blockUnderPressureMergesWithoutWaiting() {
+		long timeout = WriteRetentionStore.getBackpressureTimeoutMs();
+		WriteRetentionStore.setMaxPendingRequests(1);
+		WriteRetentionStore.setBackpressurePolicy(WriteRetentionStore.BackpressurePolicy.BLOCK);
+		WriteRetentionStore.setBackpressureTimeoutMs(50);
+		try {
+			sut200.storeChanges(null, table, "a", aChange, null, null);
+			sut200.storeChanges(null, table, "a", anotherChange, null, null);
+			assertFalse(store.exists(null, table, "a"));
+			this.waitForPendingRequests();
+			assertArrayEquals(changedValue2, store.get(null, table, "a", changedCf, changedKey));
+		} finally {
+			WriteRetentionStore.setMaxPendingRequests(0);
+			WriteRetentionStore.setBackpressurePolicy(WriteRetentionStore.BackpressurePolicy.FLUSH);
+			WriteRetentionStore.setBackpressureTimeoutMs(timeout);
+		}
+	}
+	
+	@Test(timeout=10000)
+	public void flushUnderPressureSendsInBatch() {
+		WriteRetentionStore sut = WriteRetentionStore.getWriteRetentionStore(1000, new TablePrefixingStore("flushedinbatch", store));
+		sut.start();
+		int rows = 10;
+		for (int i = 0; i < rows; ++i) {
+			sut.storeChanges(null, table, rowId + i, aChange, null, null);
+		}
+		WriteRetentionStore.setMaxPendingRequests(2);
+		WriteRetentionStore.setBackpressurePolicy(WriteRetentionStore.BackpressurePolicy.FLUSH);
+		try {
+			Memory.INSTANCE.getQueriesAndReset();
+			sut.storeChanges(null, table, rowId + rows, aChange, null, null);
+			assertTrue(WriteRetentionStore.getRetainedRequests() < 2);
+			int q = Memory.INSTANCE.getQueriesAndReset();
+			assertTrue("Sent " + q + " requests to flush " + rows + " rows", q < rows/2);
+			assertEquals(rows, store.count(null, "flushedinbatch" + table, null));
+		} finally {
+			WriteRetentionStore.setMaxPendingRequests(0);
+		}
+	}
+	
+	@Test(expected=IllegalArgumentException.class)
+	public void negativeMaxPendingRequestsSetAttempt() {
+		WriteRetentionStore.setMaxPendingRequests(-1);
+	}
+	
+	@Test(expected=IllegalArgumentException.class)
+	public void nullBackpressurePolicySetAttempt() {
+		WriteRetentionStore.setBackpressurePolicy(null);
+	}
+	
+	private static File createDirectory() throws IOException {
+		File ret = File.createTempFile("n-orm-journal", "");
+		assertTrue(ret.delete());
+		assertTrue(ret.mkdirs());
+		return ret;
+	}
+	
+	private static void deleteDirectory(File dir) {
+		for (File f : dir.listFiles()) {
+			if (f.isDirectory())
+				deleteDirectory(f);
+			else
+				f.delete();
+		}
+		dir.delete();
+	}
+	
+	private static File copyDirectory(File dir) throws IOException {
+		File ret = createDirectory();
+		for (File f : dir.listFiles()) {
+			FileInputStream in = new FileInputStream(f);
+			FileOutputStream out = new FileOutputStream(new File(ret, f.getName()));
+			try {
+				byte[] buf = new byte[4096];
+				int read;
+				while ((read = in.read(buf)) >= 0) {
+					out.write(buf, 0, read);
+				}
+			} finally {
+				in.close();
+				out.close();
+			}
+		}
+		return ret;
+	}
+	
+	private static WriteRetentionStore startWithJournal(String prefix, File dir) {
+		WriteRetentionStore ret = WriteRetentionStore.getWriteRetentionStore(200, new TablePrefixingStore(prefix, store));
+		ret.setJournalSyncWrites(false);
+		ret.setJournalDirectory(dir.getAbsolutePath());
+		ret.start();
+		return ret;
+	}
+	
+	@Test(timeout=10000)
+	public void journalReplayed() throws IOException {
+		File dir = createDirectory(), crashed = null, delivered = null;
+		try {
+			WriteRetentionStore sut = startWithJournal("actual", dir);
+			sut.storeChanges(null, table, "a", aChange, null, null);
+			sut.storeChanges(null, table, "b", null, null, anIncrement);
+			sut.storeChanges(null, table, "b", null, null, anIncrement);
+			sut.storeChanges(null, table, "c", aChange, null, null);
+			sut.delete(null, table, "c");
+			assertEquals(0, store.count(null, "actual" + table, null));
+			
+			// State of the journal in case of a crash before sending
+			crashed = copyDirectory(dir);
+			startWithJournal("recovered", crashed);
+			assertArrayEquals(changedValue1, store.get(null, "recovered" + table, "a", changedCf, changedKey));
+			assertEquals(2, ConversionTools.convert(long.class, store.get(null, "recovered" + table, "b", incrementedCf, incrementedKey)).longValue());
+			assertFalse(store.exists(null, "recovered" + table, "c"));
+			
+			this.waitForPendingRequests();
+			assertEquals(2, ConversionTools.convert(long.class, store.get(null, "actual" + table, "b", incrementedCf, incrementedKey)).longValue());
+			
+			// Sent writes are not replayed
+			delivered = copyDirectory(dir);
+			startWithJournal("restarted", delivered);
+			assertEquals(0, store.count(null, "restarted" + table, null));
+		} finally {
+			deleteDirectory(dir);
+			if (crashed != null)
+				deleteDirectory(crashed);
+			if (delivered != null)
+				deleteDirectory(delivered);
+		}
+	}
+	
+	@Test(timeout=10000)
+	public void journalDirectoryChangedAfterStart() throws IOException {
+		File dir = createDirectory();
+		try {
+			WriteRetentionStore sut = startWithJournal("changed", dir);
+			sut.setJournalDirectory(dir.getAbsolutePath());
+			try {
+				sut.setJournalDirectory(null);
+				fail();
+			} catch (IllegalStateException x) {
+			}
+		} finally {
+			deleteDirectory(dir);
+		}
+	}
+	
+	@Persisting(writeRetentionMs=345)
+	public static class JournaledElement {
+		private static final long serialVersionUID = 4128570364236813437L;
+		@Key public String key;
+		public String value;
+	}
+	
+	@Test(timeout=10000)
+	public void journalFromPropertiesForAnnotation() throws IOException {
+		File dir = createDirectory();
+		try {
+			Map<String, Object> props = new TreeMap<String, Object>();
+			props.put(StoreSelector.STORE_DRIVERCLASS_PROPERTY, Memory.class.getName());
+			props.put(StoreSelector.STORE_DRIVERCLASS_SINGLETON_PROPERTY, "INSTANCE");
+			props.put(StoreSelector.STORE_WRITE_RETENTION_JOURNAL, dir.getAbsolutePath());
+			StoreSelector.getInstance().setPropertiesFor(JournaledElement.class, props);
+			
+			WriteRetentionStore sut = (WriteRetentionStore) StoreSelector.getInstance().getStoreFor(JournaledElement.class);
+			assertEquals(345, sut.getWriteRetentionMs());
+			File journal = new File(sut.getJournalDirectory());
+			assertEquals(dir.getAbsoluteFile(), journal.getParentFile().getAbsoluteFile());
+			
+			JournaledElement elt = new JournaledElement();
+			elt.key = "journaled";
+			elt.value = "value";
+			elt.store();
+			String[] segments = journal.list();
+			assertNotNull(segments);
+			assertTrue(segments.length > 0);
+		} finally {
+			this.waitForPendingRequests();
+			deleteDirectory(dir);
+		}
+	}
+	
+	private static WriteRetentionStore getAdaptiveSut(String prefix, long writeRetentionMs, long latencyBudgetMs) {
+		WriteRetentionStore ret = WriteRetentionStore.getWriteRetentionStore(writeRetentionMs, new TablePrefixingStore(prefix, store), false, latencyBudgetMs);
+		ret.start();
+		return ret;
+	}
+	
+	@Test(timeout=20000)
+	public void adaptiveRetentionShrinks() throws InterruptedException {
+		WriteRetentionStore sut = getAdaptiveSut("shrinking", 400, 400);
+		assertEquals(400, sut.getEffectiveWriteRetentionMs());
+		
+		long end = System.currentTimeMillis() + 2000;
+		int i = 0;
+		while (System.currentTimeMillis() < end) {
+			sut.storeChanges(null, table, rowId + (i++ % 5), aChange, null, null);
+			Thread.sleep(2);
+		}
+		
+		assertTrue(sut.getEffectiveWriteRetentionMs() < 400);
+		assertTrue(sut.getAdaptiveHitRatio() > 0.5);
+		assertEquals(400, sut.getWriteRetentionMs());
+		this.waitForPendingRequests();
+		assertArrayEquals(changedValue1, store.get(null, "shrinking" + table, rowId + 0, changedCf, changedKey));
+	}
+	
+	@Test(timeout=20000)
+	public void adaptiveRetentionGrows() throws InterruptedException {
+		WriteRetentionStore sut = getAdaptiveSut("growing", 20, 1000);
+		assertEquals(20, sut.getEffectiveWriteRetentionMs());
+		
+		long end = System.currentTimeMillis() + 1500;
+		while (System.currentTimeMillis() < end) {
+			for (int i = 0; i < 10; ++i) {
+				sut.storeChanges(null, table, rowId + i, aChange, null, null);
+			}
+			Thread.sleep(30);
+		}
+		
+		assertTrue(sut.getEffectiveWriteRetentionMs() > 20);
+		assertTrue(sut.getEffectiveWriteRetentionMs() <= 1000);
+		this.waitForPendingRequests();
+	}
+	
+	@Test
+	public void adaptiveRetentionBounded() {
+		WriteRetentionStore sut = getAdaptiveSut("bounded", 500, 100);
+		assertEquals(100, sut.getEffectiveWriteRetentionMs());
+		WriteRetentionStore fixed = WriteRetentionStore.getWriteRetentionStore(500, sut);
+		assertEquals(500, fixed.getEffectiveWriteRetentionMs());
+	}
+	
+	@Test
+	public void adaptiveNotShared() {
+		WriteRetentionStore adaptive = WriteRetentionStore.getWriteRetentionStore(1234, store, false, 1234);
+		WriteRetentionStore fixed = WriteRetentionStore.getWriteRetentionStore(1234, store);
+		assertNotSame(adaptive, fixed);
+		assertEquals(1234, adaptive.getLatencyBudgetMs());
+		assertEquals(0, fixed.getLatencyBudgetMs());
+		assertSame(adaptive, WriteRetentionStore.getWriteRetentionStore(1234, store, false, 1234));
+		assertSame(fixed, WriteRetentionStore.getWriteRetentionStore(1234, adaptive));
+	}
+	
+	@Test(expected=IllegalArgumentException.class)
+	public void negativeLatencyBudgetAttempt() {
+		WriteRetentionStore.getWriteRetentionStore(1234, store, false, -1);
+	}
 }
@@ -0,0 +1,287 @@
+package com.googlecode.n_orm.memory;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.TreeMap;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.googlecode.n_orm.conversion.ConversionTools;
+import com.googlecode.n_orm.storeapi.CloseableKeyIterator;
+import com.googlecode.n_orm.storeapi.DefaultColumnFamilyData;
+import com.googlecode.n_orm.storeapi.Row.ColumnFamilyData;
+
+public class CapacityTest {
+	private static final String table = "CapacityTestTable";
+	private static final long capacity = 200000;
+
+	private Memory sut;
+	private File dir;
+
+	@Before
+	public void createStore() throws IOException {
+		sut = new Memory();
+		sut.setCapacity(capacity);
+		dir = File.createTempFile("n-orm-overflow", "");
+		assertTrue(dir.delete());
+	}
+
+	@After
+	public void deleteDirectory() {
+		if (dir.isDirectory()) {
+			for (File f : dir.listFiles()) {
+				f.delete();
+			}
+			dir.delete();
+		}
+	}
+
+	private void store(Memory store, String id, String value) {
+		ColumnFamilyData changes = new DefaultColumnFamilyData();
+		TreeMap<String, byte[]> values = new TreeMap<String, byte[]>();
+		values.put("q", ConversionTools.convert(value));
+		changes.put("f", values);
+		store.storeChanges(table, id, changes, null, null);
+	}
+
+	private static String value(int i) {
+		StringBuilder ret = new StringBuilder();
+		while (ret.length() < 1000) {
+			ret.append(i).append('-');
+		}
+		return ret.toString();
+	}
+
+	private String read(Memory store, int i) {
+		byte[] ret = store.get(table, "r" + i, "f", "q");
+		return ret == null ? null : ConversionTools.convert(String.class, ret);
+	}
+
+	@Test
+	public void unbounded() {
+		sut.setCapacity(0);
+		for (int i = 0; i < 1000; ++i) {
+			store(sut, "r" + i, value(i));
+		}
+		assertTrue(sut.getUsedBytes() > 1000 * 1000);
+		assertEquals(1000, sut.count(table, null));
+	}
+
+	@Test
+	public void usedBytes() {
+		assertEquals(0, sut.getUsedBytes());
+		store(sut, "r", value(1));
+		long used = sut.getUsedBytes();
+		assertTrue(used > 1000);
+		store(sut, "r", value(1));
+		assertEquals(used, sut.getUsedBytes());
+		sut.storeChanges(table, "r", null, Collections.singletonMap("f", Collections.singleton("q")), null);
+		assertTrue(sut.getUsedBytes() < used - 1000);
+		sut.delete(table, "r");
+		assertEquals(0, sut.getUsedBytes());
+		store(sut, "r", value(1));
+		sut.reset();
+		assertEquals(0, sut.getUsedBytes());
+	}
+
+	@Test
+	public void dropped() throws InterruptedException {
+		for (int i = 0; i < 500; ++i) {
+			store(sut, "r" + i, value(i));
+			//Keeping first row hot
+			assertEquals(value(0), read(sut, 0));
+			assertTrue(sut.getUsedBytes() <= capacity);
+			//Access times are coarse
+			if (i % 10 == 0)
+				Thread.sleep(20);
+		}
+		long count = sut.count(table, null);
+		assertTrue(count < 500);
+		assertTrue(count > 100);
+		assertEquals(value(0), read(sut, 0));
+		assertEquals(value(499), read(sut, 499));
+		int found = 0;
+		for (int i = 0; i < 500; ++i) {
+			String v = read(sut, i);
+			if (v != null) {
+				assertEquals(value(i), v);
+				found++;
+			}
+		}
+		assertEquals(count, found);
+	}
+
+	@Test
+	public void spilled() {
+		sut.setOverflowDirectory(dir.getAbsolutePath());
+		for (int i = 0; i < 1000; ++i) {
+			store(sut, "r" + i, value(i));
+			assertTrue(sut.getUsedBytes() <= capacity);
+		}
+		assertEquals(1000, sut.count(table, null));
+		assertEquals(1, dir.listFiles().length);
+		assertTrue(dir.listFiles()[0].length() > 0);
+		for (int i = 0; i < 1000; ++i) {
+			assertEquals(value(i), read(sut, i));
+		}
+		CloseableKeyIterator it = sut.get(table, null, 2000, Collections.singleton("f"));
+		try {
+			int n = 0;
+			while (it.hasNext()) {
+				com.googlecode.n_orm.storeapi.Row r = it.next();
+				assertEquals(value(Integer.parseInt(r.getKey().substring(1))), ConversionTools.convert(String.class, r.getValues().get("f").get("q")));
+				n++;
+			}
+			assertEquals(1000, n);
+		} finally {
+			it.close();
+		}
+		store(sut, "r0", "changed");
+		for (int i = 1; i < 1000; ++i) {
+			store(sut, "r" + i, value(i));
+		}
+		assertEquals("changed", read(sut, 0));
+		sut.truncate(table, null);
+		assertEquals(0, sut.count(table, null));
+		//No row is spilled anymore
+		assertEquals(0, dir.listFiles()[0].length());
+	}
+
+	@Test
+	public void onlyRowsInvisibleFromReadSnapshotEvicted() {
+		sut.setCapacity(0);
+		for (int i = 0; i < 300; ++i) {
+			store(sut, "r" + i, value(i));
+		}
+		Memory.ReadSnapshot s = sut.openReadSnapshot();
+		try {
+			sut.setCapacity(capacity);
+			//Rows seen by the snapshot are kept
+			assertEquals(300, sut.count(table, null));
+			for (int i = 300; i < 1000; ++i) {
+				store(sut, "r" + i, value(i));
+			}
+			long count = sut.count(table, null);
+			assertTrue(count >= 300 && count < 1000);
+			for (int i = 0; i < 300; ++i) {
+				assertEquals(value(i), read(sut, i));
+				assertEquals(value(i), ConversionTools.convert(String.class, s.get(table, "r" + i, "f", "q")));
+			}
+			assertNull(s.get(table, "r999", "f", "q"));
+		} finally {
+			s.close();
+		}
+		store(sut, "r1000", value(1000));
+		assertTrue(sut.getUsedBytes() <= capacity);
+	}
+
+	@Test
+	public void overflowSpaceReused() {
+		sut.setOverflowDirectory(dir.getAbsolutePath());
+		for (int i = 0; i < 1000; ++i) {
+			store(sut, "r" + i, value(i));
+		}
+		long size = dir.listFiles()[0].length();
+		//Reading rows back spills other rows
+		for (int pass = 0; pass < 3; ++pass) {
+			for (int i = 0; i < 1000; ++i) {
+				assertEquals(value(i), read(sut, i));
+			}
+		}
+		assertTrue(dir.listFiles()[0].length() < 2 * size);
+	}
+
+	@Test
+	public void droppedNotRecovered() throws IOException {
+		File persistence = File.createTempFile("n-orm-capacity", "");
+		assertTrue(persistence.delete());
+		Memory store = new Memory();
+		store.setPersistenceDirectory(persistence.getAbsolutePath());
+		store.setSyncWrites(false);
+		store.setCapacity(capacity);
+		store.start();
+		try {
+			for (int i = 0; i < 500; ++i) {
+				store(store, "r" + i, value(i));
+			}
+			long count = store.count(table, null);
+			assertTrue(count < 500);
+			store.stopPersistence();
+
+			Memory recovered = new Memory();
+			recovered.setPersistenceDirectory(persistence.getAbsolutePath());
+			recovered.start();
+			try {
+				assertEquals(count, recovered.count(table, null));
+				for (int i = 0; i < 500; ++i) {
+					assertEquals(read(store, i), read(recovered, i));
+				}
+			} finally {
+				recovered.stopPersistence();
+			}
+		} finally {
+			for (File f : persistence.listFiles()) {
+				f.delete();
+			}
+			persistence.delete();
+		}
+	}
+
+	@Test
+	public void spilledPersisted() throws IOException {
+		File persistence = File.createTempFile("n-orm-capacity", "");
+		assertTrue(persistence.delete());
+		Memory store = new Memory();
+		store.setPersistenceDirectory(persistence.getAbsolutePath());
+		store.setSyncWrites(false);
+		store.setCapacity(capacity);
+		store.setOverflowDirectory(dir.getAbsolutePath());
+		store.start();
+		try {
+			for (int i = 0; i < 1000; ++i) {
+				store(store, "r" + i, value(i));
+			}
+			store.snapshot();
+			store.stopPersistence();
+
+			Memory recovered = new Memory();
+			recovered.setPersistenceDirectory(persistence.getAbsolutePath());
+			recovered.setCapacity(capacity);
+			recovered.setOverflowDirectory(dir.getAbsolutePath());
+			recovered.start();
+			try {
+				assertTrue(recovered.getUsedBytes() <= capacity);
+				assertEquals(1000, recovered.count(table, null));
+				for (int i = 0; i < 1000; ++i) {
+					assertEquals(value(i), read(recovered, i));
+				}
+			} finally {
+				recovered.stopPersistence();
+			}
+		} finally {
+			for (File f : persistence.listFiles()) {
+				f.delete();
+			}
+			persistence.delete();
+		}
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void negativeCapacitySetAttempt() {
+		sut.setCapacity(-1);
+	}
+
+	@Test(expected=IllegalStateException.class)
+	public void overflowDirectoryChangedAfterSpilling() {
+		sut.setOverflowDirectory(dir.getAbsolutePath());
+		for (int i = 0; i < 1000; ++i) {
+			store(sut, "r" + i, value(i));
+		}
+		sut.setOverflowDirectory(null);
+	}
+}
@@ -0,0 +1,269 @@
+package com.googlecode.n_orm.memory;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.googlecode.n_orm.DatabaseNotReachedException;
+import com.googlecode.n_orm.conversion.ConversionTools;
+import com.googlecode.n_orm.storeapi.CloseableKeyIterator;
+import com.googlecode.n_orm.storeapi.Constraint;
+import com.googlecode.n_orm.storeapi.DefaultColumnFamilyData;
+import com.googlecode.n_orm.storeapi.Row;
+import com.googlecode.n_orm.storeapi.Row.ColumnFamilyData;
+
+public class LogStructuredStoreTest {
+	private static final String table = "LogStructuredStoreTestTable";
+	private File dir;
+	private LogStructuredStore sut;
+
+	@Before
+	public void createStore() throws IOException {
+		dir = File.createTempFile("n-orm-lsm", "");
+		assertTrue(dir.delete());
+		assertTrue(dir.mkdir());
+		sut = open();
+	}
+
+	private LogStructuredStore open() {
+		LogStructuredStore ret = new LogStructuredStore();
+		ret.setDirectory(dir.getAbsolutePath());
+		ret.setSyncWrites(false);
+		ret.start();
+		return ret;
+	}
+
+	private static void delete(File f) {
+		File[] children = f.listFiles();
+		if (children != null) {
+			for (File c : children) {
+				delete(c);
+			}
+		}
+		f.delete();
+	}
+
+	@After
+	public void deleteStore() {
+		sut.close();
+		delete(dir);
+	}
+
+	private void store(String row, String family, String qualifier, String value) {
+		ColumnFamilyData changes = new DefaultColumnFamilyData();
+		Map<String, byte[]> values = new TreeMap<String, byte[]>();
+		values.put(qualifier, ConversionTools.convert(value));
+		changes.put(family, values);
+		sut.storeChanges(table, row, changes, null, null);
+	}
+
+	private void remove(String row, String family, String qualifier) {
+		Map<String, Set<String>> removed = new HashMap<String, Set<String>>();
+		removed.put(family, new TreeSet<String>(Arrays.asList(qualifier)));
+		sut.storeChanges(table, row, null, removed, null);
+	}
+
+	private void increment(String row, String qualifier, long increment) {
+		Map<String, Number> incrs = new TreeMap<String, Number>();
+		incrs.put(qualifier, increment);
+		Map<String, Map<String, Number>> incremented = new HashMap<String, Map<String, Number>>();
+		incremented.put("i", incrs);
+		sut.storeChanges(table, row, null, null, incremented);
+	}
+
+	private String get(String row, String family, String qualifier) {
+		byte[] ret = sut.get(table, row, family, qualifier);
+		return ret == null ? null : ConversionTools.convert(String.class, ret);
+	}
+
+	@Test
+	public void storeAndGet() {
+		assertFalse(sut.hasTable(table));
+		store("r", "f", "q", "v");
+		assertTrue(sut.hasTable(table));
+		assertTrue(sut.exists(table, "r"));
+		assertTrue(sut.exists(table, "r", "f"));
+		assertFalse(sut.exists(table, "r", "g"));
+		assertFalse(sut.exists(table, "s"));
+		assertEquals("v", get("r", "f", "q"));
+		assertNull(get("r", "f", "q2"));
+		assertNull(sut.get(table, "s", "f"));
+	}
+
+	@Test
+	public void readAcrossSegments() {
+		store("r", "f", "q1", "v1");
+		store("r", "f", "q2", "v2");
+		sut.flush();
+		store("r", "f", "q1", "v1bis");
+		remove("r", "f", "q2");
+		store("r", "f", "q3", "v3");
+		sut.flush();
+		assertEquals(2, sut.getSegments(table));
+		assertEquals("v1bis", get("r", "f", "q1"));
+		assertNull(get("r", "f", "q2"));
+		Map<String, byte[]> values = sut.get(table, "r", "f");
+		assertEquals(new TreeSet<String>(Arrays.asList("q1", "q3")), values.keySet());
+		assertEquals(1, sut.get(table, "r", "f", new Constraint("q2", "q9")).size());
+	}
+
+	@Test
+	public void deletedRowHidesOlderSegments() {
+		store("r", "f", "q1", "v1");
+		sut.flush();
+		sut.delete(table, "r");
+		assertFalse(sut.exists(table, "r"));
+		sut.flush();
+		assertFalse(sut.exists(table, "r"));
+		store("r", "f", "q2", "v2");
+		assertTrue(sut.exists(table, "r"));
+		assertNull(get("r", "f", "q1"));
+		assertEquals("v2", get("r", "f", "q2"));
+		sut.flush();
+		assertNull(get("r", "f", "q1"));
+		assertEquals("v2", get("r", "f", "q2"));
+	}
+
+	@Test
+	public void increments() {
+		increment("r", "c", 3);
+		sut.flush();
+		increment("r", "c", 2);
+		assertEquals(5l, (long)ConversionTools.convert(Long.class, sut.get(table, "r", "i", "c")));
+	}
+
+	@Test
+	public void scans() {
+		for (int i = 0; i < 10; ++i) {
+			store("r" + i, "f", "q", "v" + i);
+			if (i % 3 == 0)
+				sut.flush();
+		}
+		sut.delete(table, "r5");
+		store("r2", "f", "q", "v2bis");
+		assertEquals(9, sut.count(table, null));
+		assertEquals(3, sut.count(table, new Constraint("r3", "r6")));
+
+		Set<String> families = new TreeSet<String>(Arrays.asList("f"));
+		CloseableKeyIterator it = sut.get(table, new Constraint("r1", "r6"), 3, families);
+		try {
+			Row r = it.next();
+			assertEquals("r1", r.getKey());
+			r = it.next();
+			assertEquals("r2", r.getKey());
+			assertEquals("v2bis", ConversionTools.convert(String.class, r.getValues().get("f").get("q")));
+			assertEquals("r3", it.next().getKey());
+			assertFalse(it.hasNext());
+		} finally {
+			it.close();
+		}
+
+		it = sut.get(table, new Constraint("r3", "r7"), 10, null, true);
+		try {
+			assertEquals("r7", it.next().getKey());
+			assertEquals("r6", it.next().getKey());
+			assertEquals("r4", it.next().getKey());
+			assertEquals("r3", it.next().getKey());
+			assertFalse(it.hasNext());
+		} finally {
+			it.close();
+		}
+	}
+
+	@Test
+	public void compaction() {
+		for (int i = 0; i < 5; ++i) {
+			store("r" + i, "f", "q", "v" + i);
+			store("r0", "f", "q", "last" + i);
+			sut.flush();
+		}
+		sut.delete(table, "r1");
+		sut.flush();
+		sut.compact(table);
+		assertEquals(1, sut.getSegments(table));
+		assertEquals("last4", get("r0", "f", "q"));
+		assertFalse(sut.exists(table, "r1"));
+		assertEquals(4, sut.count(table, null));
+	}
+
+	@Test
+	public void backgroundFlushAndCompaction() throws InterruptedException {
+		sut.setMemtableSize(10000);
+		sut.setCompactionThreshold(2);
+		for (int i = 0; i < 2000; ++i) {
+			store(String.format("r%05d", i % 500), "f", "q", "v" + i);
+		}
+		assertEquals(500, sut.count(table, null));
+		for (int i = 1500; i < 2000; ++i) {
+			assertEquals("v" + i, get(String.format("r%05d", i % 500), "f", "q"));
+		}
+		long end = System.currentTimeMillis() + 10000;
+		while (sut.getSegments(table) > 2 && System.currentTimeMillis() < end)
+			Thread.sleep(10);
+		assertTrue(sut.getSegments(table) <= 2);
+		assertEquals(500, sut.count(table, null));
+	}
+
+	@Test
+	public void failedFlushRejectsWritesBeforeLogging() throws IOException {
+		// Segments cannot be written as the table directory is a file
+		File tables = new File(dir, "tables");
+		assertTrue(tables.mkdirs());
+		assertTrue(new File(tables, table).createNewFile());
+		sut.setMemtableSize(100);
+		
+		long applied = 0;
+		boolean rejected = false;
+		for (int i = 0; i < 1000; ++i) {
+			try {
+				increment("r", "c", 1);
+				applied++;
+			} catch (DatabaseNotReachedException x) {
+				rejected = true;
+			}
+		}
+		assertTrue(rejected);
+		assertEquals(applied, (long)ConversionTools.convert(Long.class, sut.get(table, "r", "i", "c")));
+	}
+
+	@Test
+	public void recover() {
+		store("r1", "f", "q", "v1");
+		store("r2", "f", "q", "v2");
+		sut.flush();
+		sut.delete(table, "r1");
+		store("r3", "f", "q", "v3");
+		increment("r3", "c", 7);
+		sut.close();
+
+		sut = open();
+		assertTrue(sut.hasTable(table));
+		assertFalse(sut.exists(table, "r1"));
+		assertEquals("v2", get("r2", "f", "q"));
+		assertEquals("v3", get("r3", "f", "q"));
+		assertEquals(7l, (long)ConversionTools.convert(Long.class, sut.get(table, "r3", "i", "c")));
+		sut.flush();
+		sut.compact();
+		sut.close();
+
+		sut = open();
+		assertEquals(2, sut.count(table, null));
+		assertEquals("v3", get("r3", "f", "q"));
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void zeroMemtableSizeSetAttempt() {
+		sut.setMemtableSize(0);
+	}
+}
@@ -0,0 +1,744 @@
+package com.googlecode.n_orm.memory;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.googlecode.n_orm.conversion.ConversionTools;
+import com.googlecode.n_orm.storeapi.CloseableKeyIterator;
+import com.googlecode.n_orm.storeapi.Constraint;
+import com.googlecode.n_orm.storeapi.DefaultColumnFamilyData;
+import com.googlecode.n_orm.storeapi.MetaInformation;
+import com.googlecode.n_orm.storeapi.Row;
+import com.googlecode.n_orm.storeapi.RowChanges;
+import com.googlecode.n_orm.storeapi.Row.ColumnFamilyData;
+
+public class MemoryTest {
+	private static final String table = "MemoryTestTable";
+	private final Memory sut = Memory.INSTANCE;
+
+	private static Map<String, byte[]> values(String... keysAndValues) {
+		Map<String, byte[]> ret = new TreeMap<String, byte[]>();
+		for (int i = 0; i < keysAndValues.length; i += 2) {
+			ret.put(keysAndValues[i], ConversionTools.convert(keysAndValues[i+1]));
+		}
+		return ret;
+	}
+
+	@Before
+	public void storeRows() {
+		for (String id : new String[] {"r1", "r2", "r3"}) {
+			ColumnFamilyData changes = new DefaultColumnFamilyData();
+			changes.put("f1", values("q1", id + "v1"));
+			changes.put("f2", values("q2", id + "v2", "q3", id + "v3"));
+			changes.put("f3", values("q4", id + "v4"));
+			sut.storeChanges(table, id, changes, null, null);
+		}
+	}
+
+	@After
+	public void deleteRows() {
+		for (String id : new String[] {"r1", "r2", "r3"}) {
+			sut.delete(table, id);
+		}
+	}
+
+	@Test
+	public void scanProjected() {
+		CloseableKeyIterator it = sut.get(table, null, 10, new TreeSet<String>(Arrays.asList("f2", "unknown")));
+		try {
+			for (String id : new String[] {"r1", "r2", "r3"}) {
+				assertTrue(it.hasNext());
+				Row r = it.next();
+				assertEquals(id, r.getKey());
+				ColumnFamilyData vals = r.getValues();
+				assertEquals(new TreeSet<String>(Arrays.asList("f2")), vals.keySet());
+				assertFalse(vals.containsKey("f1"));
+				assertNull(vals.get("unknown"));
+				assertEquals(id + "v3", ConversionTools.convert(String.class, vals.get("f2").get("q3")));
+				assertSame(vals.get("f2"), vals.entrySet().iterator().next().getValue());
+				assertEquals(2, new DefaultColumnFamilyData(vals).get("f2").size());
+			}
+			assertFalse(it.hasNext());
+		} finally {
+			it.close();
+		}
+	}
+
+	@Test
+	public void scanKeysOnly() {
+		CloseableKeyIterator it = sut.get(table, null, 10, null);
+		try {
+			for (String id : new String[] {"r1", "r2", "r3"}) {
+				Row r = it.next();
+				assertEquals(id, r.getKey());
+				assertTrue(r.getValues().isEmpty());
+			}
+			assertFalse(it.hasNext());
+		} finally {
+			it.close();
+		}
+	}
+
+	@Test
+	public void count() {
+		assertEquals(3, sut.count(table, null));
+		assertEquals(2, sut.count(table, new Constraint("r2", null)));
+		assertEquals(2, sut.count(table, new Constraint(null, "r2")));
+		assertEquals(1, sut.count(table, new Constraint("r1a", "r2")));
+		assertEquals(0, sut.count(table, new Constraint("r3a", null)));
+		sut.delete(table, "r2");
+		assertEquals(2, sut.count(table, null));
+		assertEquals(0, sut.count(table, new Constraint("r1a", "r2")));
+		assertEquals(0, sut.count("MemoryTestUnknownTable", null));
+	}
+
+	@Test
+	public void countWhileConcurrentlyChanged() throws Exception {
+		final String ctable = "MemoryTestConcurrentTable";
+		ExecutorService exec = Executors.newFixedThreadPool(4);
+		try {
+			Future<?>[] writers = new Future<?>[4];
+			for (int w = 0; w < writers.length; ++w) {
+				final int writer = w;
+				writers[w] = exec.submit(new Runnable() {
+					
+					@Override
+					public void run() {
+						ColumnFamilyData changes = new DefaultColumnFamilyData();
+						changes.put("f", values("q", "v"));
+						for (int i = 0; i < 500; ++i) {
+							String id = "w" + writer + "r" + i;
+							sut.storeChanges(ctable, id, changes, null, null);
+							if (i % 2 == 1)
+								sut.delete(ctable, id);
+						}
+					}
+				});
+			}
+			for (Future<?> writer : writers) {
+				while (!writer.isDone()) {
+					//At most one row per writer is about to be deleted
+					long c = sut.count(ctable, null);
+					assertTrue(c >= 0 && c <= 1000 + writers.length);
+				}
+				writer.get();
+			}
+			assertEquals(1000, sut.count(ctable, null));
+			assertEquals(250, sut.count(ctable, new Constraint("w1", "w1z")));
+		} finally {
+			exec.shutdown();
+			sut.getTable(ctable, true).clear();
+		}
+		assertEquals(0, sut.count(ctable, null));
+	}
+
+	@Test
+	public void countAfterManyConcurrentChanges() throws Exception {
+		final String ctable = "MemoryTestConcurrentTable";
+		ExecutorService exec = Executors.newFixedThreadPool(4);
+		try {
+			Future<?>[] writers = new Future<?>[4];
+			for (int w = 0; w < writers.length; ++w) {
+				final int writer = w;
+				writers[w] = exec.submit(new Runnable() {
+					
+					@Override
+					public void run() {
+						ColumnFamilyData changes = new DefaultColumnFamilyData();
+						changes.put("f", values("q", "v"));
+						//More changes than a table indexes at once
+						for (int i = 0; i < 5000; ++i) {
+							String id = "w" + writer + "r" + i;
+							sut.storeChanges(ctable, id, changes, null, null);
+							if (i % 2 == 1)
+								sut.delete(ctable, id);
+							if (i % 4 == 3)
+								sut.storeChanges(ctable, id, changes, null, null);
+						}
+					}
+				});
+			}
+			for (Future<?> writer : writers) {
+				writer.get();
+			}
+			assertEquals(15000, sut.count(ctable, null));
+			assertEquals(3750, sut.count(ctable, new Constraint("w1", "w1z")));
+			assertEquals(4, sut.getTable(ctable, false).split(null, null, 4).size());
+		} finally {
+			exec.shutdown();
+			sut.getTable(ctable, true).clear();
+		}
+		assertEquals(0, sut.count(ctable, null));
+	}
+
+	private static File createPersistenceDirectory() throws IOException {
+		File ret = File.createTempFile("n-orm-memory", "");
+		assertTrue(ret.delete());
+		assertTrue(ret.mkdir());
+		return ret;
+	}
+	
+	private static void delete(File dir) {
+		for (File f : dir.listFiles()) {
+			assertTrue(f.delete());
+		}
+		assertTrue(dir.delete());
+	}
+	
+	private static Memory startPersistent(File dir) {
+		Memory ret = new Memory();
+		ret.setPersistenceDirectory(dir.getAbsolutePath());
+		ret.start();
+		assertTrue(ret.isPersistent());
+		return ret;
+	}
+	
+	private static void storeDurableRows(Memory m) {
+		for (String id : new String[] {"r1", "r2", "r3"}) {
+			ColumnFamilyData changes = new DefaultColumnFamilyData();
+			changes.put("f1", values("q1", id + "v1", "q2", id + "v2"));
+			Map<String, Map<String, Number>> increments = new HashMap<String, Map<String,Number>>();
+			increments.put("f2", new TreeMap<String, Number>());
+			increments.get("f2").put("i", 3);
+			m.storeChanges(table, id, changes, null, increments);
+		}
+		Map<String, Set<String>> removed = new HashMap<String, Set<String>>();
+		removed.put("f1", new TreeSet<String>(Arrays.asList("q2")));
+		Map<String, Map<String, Number>> increments = new HashMap<String, Map<String,Number>>();
+		increments.put("f2", new TreeMap<String, Number>());
+		increments.get("f2").put("i", 4);
+		m.storeChanges(table, "r1", null, removed, increments);
+		m.delete(table, "r2");
+	}
+	
+	private static void checkDurableRows(Memory m) {
+		assertEquals(2, m.count(table, null));
+		assertFalse(m.exists(table, "r2"));
+		assertEquals("r1v1", ConversionTools.convert(String.class, m.get(table, "r1", "f1", "q1")));
+		assertNull(m.get(table, "r1", "f1", "q2"));
+		assertEquals("r3v2", ConversionTools.convert(String.class, m.get(table, "r3", "f1", "q2")));
+		assertEquals(7l, ConversionTools.convert(long.class, m.get(table, "r1", "f2", "i")).longValue());
+		assertEquals(3l, ConversionTools.convert(long.class, m.get(table, "r3", "f2", "i")).longValue());
+	}
+	
+	@Test
+	public void prefixTreeIndex() {
+		Memory store = new Memory();
+		store.setTableIndex(Memory.TableIndex.PREFIX_TREE);
+		ColumnFamilyData changes = new DefaultColumnFamilyData();
+		changes.put("f", values("q", "v"));
+		for (String id : new String[] {"a\u0017b\u0017c", "a\u0017b", "a\u0017bb", "a\u0017a", "b"}) {
+			store.storeChanges(table, id, changes, null, null);
+		}
+		store.delete(table, "a\u0017bb");
+		assertTrue(store.exists(table, "a\u0017b\u0017c"));
+		assertFalse(store.exists(table, "a\u0017bb"));
+		assertEquals(3, store.count(table, new Constraint("a\u0017", "a\u0017c")));
+		CloseableKeyIterator it = store.get(table, new Constraint("a\u0017b", "b"), 10, null, true);
+		try {
+			assertEquals("b", it.next().getKey());
+			assertEquals("a\u0017b\u0017c", it.next().getKey());
+			assertEquals("a\u0017b", it.next().getKey());
+			assertFalse(it.hasNext());
+		} finally {
+			it.close();
+		}
+	}
+
+	@Test
+	public void namesShared() {
+		Memory store = new Memory();
+		store.setDictionarySize(3);
+		for (String id : new String[] {"r1", "r2"}) {
+			ColumnFamilyData changes = new DefaultColumnFamilyData();
+			changes.put(new String("f"), values(new String("q1"), id, new String("q2"), id, new String("q3"), id));
+			Map<String, Map<String, Number>> increments = new HashMap<String, Map<String,Number>>();
+			increments.put(new String("f"), new TreeMap<String, Number>());
+			increments.get("f").put(new String("i"), 1);
+			store.storeChanges(table, id, changes, null, increments);
+		}
+		Memory.Table t = store.getTable(table, false);
+		Memory.Table.Row.ColumnFamily f1 = t.getNoCreate("r1").getNoCreate("f"), f2 = t.getNoCreate("r2").getNoCreate("f");
+		assertSame(f1.name, f2.name);
+		assertSame(f1.getNoCreate("q1").qualifier, f2.getNoCreate("q1").qualifier);
+		assertSame(f1.getNoCreate("q2").qualifier, f2.getNoCreate("q2").qualifier);
+		//Dictionary is full
+		assertNotSame(f1.getNoCreate("q3").qualifier, f2.getNoCreate("q3").qualifier);
+		assertNotSame(f1.getNoCreate("i").qualifier, f2.getNoCreate("i").qualifier);
+		assertEquals("r2", ConversionTools.convert(String.class, store.get(table, "r2", "f", "q3")));
+		assertEquals(1l, ConversionTools.convert(long.class, store.get(table, "r2", "f", "i")).longValue());
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void negativeDictionarySizeSetAttempt() {
+		new Memory().setDictionarySize(-1);
+	}
+	
+	@Test
+	public void split() {
+		Memory store = new Memory();
+		for (int i = 0; i < 100; ++i) {
+			store.storeChanges(table, String.format("r%03d", i), null, null, null);
+		}
+		Memory.Table t = store.getTable(table, false);
+		assertEquals(Arrays.asList(null, "r025", "r050", "r075"), t.split(null, null, 4));
+		assertEquals(Arrays.asList("r0095", "r015"), t.split("r0095", "r019", 2));
+		assertEquals(Arrays.asList("r098", "r099"), t.split("r098", null, 4));
+		assertTrue(t.split("s", null, 4).isEmpty());
+	}
+
+	@Test
+	public void truncate() {
+		for (Memory.TableIndex index : Memory.TableIndex.values()) {
+			Memory store = new Memory();
+			store.setTableIndex(index);
+			ColumnFamilyData changes = new DefaultColumnFamilyData();
+			changes.put("f", values("q", "v"));
+			for (int i = 0; i < 100; ++i) {
+				store.storeChanges(table, String.format("r%03d", i), changes, null, null);
+			}
+			store.truncate(table, new Constraint("r010", "r019"));
+			assertEquals(90, store.count(table, null));
+			assertFalse(store.exists(table, "r010"));
+			assertFalse(store.exists(table, "r019"));
+			assertTrue(store.exists(table, "r009"));
+			assertTrue(store.exists(table, "r020"));
+			assertEquals(0, store.count(table, new Constraint("r010", "r019")));
+			store.truncate(table, new Constraint(null, "r005"));
+			assertEquals(84, store.count(table, null));
+			store.storeChanges(table, "r015", changes, null, null);
+			assertEquals("v", ConversionTools.convert(String.class, store.get(table, "r015", "f", "q")));
+			assertEquals(1, store.count(table, new Constraint("r010", "r019")));
+			store.truncate(table, null);
+			assertEquals(0, store.count(table, null));
+			assertFalse(store.exists(table, "r050"));
+		}
+	}
+	
+	@Test
+	public void truncateKeptInReadSnapshot() {
+		Memory store = new Memory();
+		ColumnFamilyData changes = new DefaultColumnFamilyData();
+		changes.put("f", values("q", "v"));
+		for (String id : new String[] {"a", "b", "c"}) {
+			store.storeChanges(table, id, changes, null, null);
+		}
+		Memory.ReadSnapshot s = store.openReadSnapshot();
+		try {
+			store.truncate(table, new Constraint("b", "z"));
+			assertEquals(1, store.count(table, null));
+			assertFalse(store.exists(table, "b"));
+			assertTrue(s.exists(table, "b"));
+			assertTrue(s.exists(table, "c"));
+			store.storeChanges(table, "c", changes, null, null);
+			assertTrue(store.exists(table, "c"));
+			assertEquals(2, store.count(table, null));
+		} finally {
+			s.close();
+		}
+		assertFalse(store.exists(table, "b"));
+		assertEquals(2, store.count(table, null));
+	}
+	
+	@Test
+	public void truncatePersisted() throws IOException {
+		File dir = createPersistenceDirectory();
+		try {
+			Memory m = startPersistent(dir);
+			storeDurableRows(m);
+			m.storeChanges(table, "r4", null, null, null);
+			m.storeChanges(table, "r5", null, null, null);
+			m.truncate(table, new Constraint("r4", null));
+			m.stopPersistence();
+			
+			m = startPersistent(dir);
+			checkDurableRows(m);
+			m.stopPersistence();
+		} finally {
+			delete(dir);
+		}
+	}
+
+	private static List<RowChanges> sortedRows(int from, int to) {
+		List<RowChanges> ret = new ArrayList<RowChanges>();
+		for (int i = from; i < to; ++i) {
+			String id = String.format("r%03d", i);
+			ColumnFamilyData changes = new DefaultColumnFamilyData();
+			changes.put("f", values("q", id + "v"));
+			Map<String, Map<String, Number>> increments = new HashMap<String, Map<String,Number>>();
+			increments.put("i", new TreeMap<String, Number>());
+			increments.get("i").put("c", i + 1);
+			ret.add(new RowChanges(new MetaInformation(), id, changes, null, increments));
+		}
+		return ret;
+	}
+	
+	@Test
+	public void load() {
+		for (Memory.TableIndex index : Memory.TableIndex.values()) {
+			Memory store = new Memory();
+			store.setTableIndex(index);
+			store.load(table, sortedRows(0, 100).iterator());
+			assertEquals(100, store.count(table, null));
+			assertEquals(10, store.count(table, new Constraint("r010", "r019")));
+			assertEquals("r042v", ConversionTools.convert(String.class, store.get(table, "r042", "f", "q")));
+			assertEquals(43l, ConversionTools.convert(long.class, store.get(table, "r042", "i", "c")).longValue());
+			CloseableKeyIterator it = store.get(table, new Constraint("r097", null), 10, null);
+			try {
+				assertEquals("r097", it.next().getKey());
+				assertEquals("r098", it.next().getKey());
+				assertEquals("r099", it.next().getKey());
+				assertFalse(it.hasNext());
+			} finally {
+				it.close();
+			}
+			
+			//Loaded table behaves as any other
+			ColumnFamilyData changes = new DefaultColumnFamilyData();
+			changes.put("f", values("q", "v"));
+			store.storeChanges(table, "r0505", changes, null, null);
+			store.delete(table, "r010");
+			assertEquals(100, store.count(table, null));
+			assertEquals(3, store.count(table, new Constraint("r050", "r051")));
+			
+			//Non-empty table: rows are stored as changes
+			store.load(table, sortedRows(90, 110).iterator());
+			assertEquals(110, store.count(table, null));
+			assertEquals(182l, ConversionTools.convert(long.class, store.get(table, "r090", "i", "c")).longValue());
+			assertEquals(106l, ConversionTools.convert(long.class, store.get(table, "r105", "i", "c")).longValue());
+		}
+	}
+	
+	@Test
+	public void loadUnsorted() {
+		Memory store = new Memory();
+		List<RowChanges> rows = sortedRows(0, 10);
+		rows.add(sortedRows(5, 6).get(0));
+		try {
+			store.load(table, rows.iterator());
+			fail();
+		} catch (IllegalArgumentException x) {
+		}
+		assertEquals(10, store.count(table, null));
+		assertTrue(store.exists(table, "r009"));
+	}
+	
+	@Test(timeout=10000)
+	public void loadNotBlockingWriters() throws Exception {
+		final Memory store = new Memory();
+		final CountDownLatch written = new CountDownLatch(1);
+		final List<RowChanges> rows = sortedRows(0, 10);
+		Thread loader = new Thread() {
+			@Override
+			public void run() {
+				store.load(table, new Iterator<RowChanges>() {
+					private int i = 0;
+					
+					@Override
+					public boolean hasNext() {
+						if (i == 5) {
+							//Rows are still being read while other changes are applied
+							try {
+								written.await();
+							} catch (InterruptedException e) {
+								throw new RuntimeException(e);
+							}
+						}
+						return i < rows.size();
+					}
+					
+					@Override
+					public RowChanges next() {
+						return rows.get(i++);
+					}
+					
+					@Override
+					public void remove() {
+						throw new UnsupportedOperationException();
+					}
+				});
+			}
+		};
+		loader.start();
+		ColumnFamilyData changes = new DefaultColumnFamilyData();
+		changes.put("f", values("q", "v"));
+		store.storeChanges("MemoryTestOtherTable", "r", changes, null, null);
+		store.storeChanges(table, "r005", changes, null, null);
+		written.countDown();
+		loader.join();
+		assertEquals(10, store.count(table, null));
+		assertTrue(store.exists("MemoryTestOtherTable", "r"));
+		//Row created during the load was changed by the load
+		assertEquals("r005v", ConversionTools.convert(String.class, store.get(table, "r005", "f", "q")));
+		assertEquals(6l, ConversionTools.convert(long.class, store.get(table, "r005", "i", "c")).longValue());
+	}
+	
+	@Test
+	public void loadInvisibleToReadSnapshot() {
+		Memory store = new Memory();
+		Memory.ReadSnapshot s = store.openReadSnapshot();
+		try {
+			store.load(table, sortedRows(0, 10).iterator());
+			assertTrue(store.exists(table, "r005"));
+			assertFalse(s.exists(table, "r005"));
+		} finally {
+			s.close();
+		}
+	}
+	
+	@Test
+	public void loadPersisted() throws IOException {
+		File dir = createPersistenceDirectory();
+		try {
+			Memory m = startPersistent(dir);
+			m.load(table, sortedRows(0, 50).iterator());
+			m.stopPersistence();
+			
+			m = startPersistent(dir);
+			assertEquals(50, m.count(table, null));
+			assertEquals("r049v", ConversionTools.convert(String.class, m.get(table, "r049", "f", "q")));
+			assertEquals(8l, ConversionTools.convert(long.class, m.get(table, "r007", "i", "c")).longValue());
+			m.stopPersistence();
+		} finally {
+			delete(dir);
+		}
+	}
+
+	@Test
+	public void persistAndRecover() throws IOException {
+		File dir = createPersistenceDirectory();
+		try {
+			Memory m = startPersistent(dir);
+			storeDurableRows(m);
+			m.stopPersistence();
+			assertFalse(m.isPersistent());
+			
+			m = startPersistent(dir);
+			checkDurableRows(m);
+			//Increments go on from recovered value
+			Map<String, Map<String, Number>> increments = new HashMap<String, Map<String,Number>>();
+			increments.put("f2", new TreeMap<String, Number>());
+			increments.get("f2").put("i", 1);
+			m.storeChanges(table, "r3", null, null, increments);
+			m.stopPersistence();
+			
+			m = startPersistent(dir);
+			assertEquals(4l, ConversionTools.convert(long.class, m.get(table, "r3", "f2", "i")).longValue());
+			m.stopPersistence();
+		} finally {
+			delete(dir);
+		}
+	}
+	
+	@Test
+	public void snapshotAndRecover() throws IOException {
+		File dir = createPersistenceDirectory();
+		try {
+			Memory m = startPersistent(dir);
+			ColumnFamilyData changes = new DefaultColumnFamilyData();
+			changes.put("f1", values("q1", "old"));
+			m.storeChanges("MemoryTestOtherTable", "r", changes, null, null);
+			m.snapshot();
+			storeDurableRows(m);
+			m.reset();
+			storeDurableRows(m);
+			m.snapshot();
+			m.stopPersistence();
+			
+			int snapshots = 0;
+			for (String f : dir.list()) {
+				if (f.startsWith("snapshot-"))
+					snapshots++;
+			}
+			assertEquals(1, snapshots);
+			
+			m = startPersistent(dir);
+			checkDurableRows(m);
+			assertFalse(m.hasTable("MemoryTestOtherTable"));
+			m.stopPersistence();
+		} finally {
+			delete(dir);
+		}
+	}
+	
+	@Test
+	public void recoverFromTornLog() throws IOException {
+		File dir = createPersistenceDirectory();
+		try {
+			Memory m = startPersistent(dir);
+			storeDurableRows(m);
+			m.stopPersistence();
+			
+			File last = null;
+			for (File f : dir.listFiles()) {
+				if (last == null || f.getName().compareTo(last.getName()) > 0)
+					last = f;
+			}
+			long length = last.length();
+			FileOutputStream out = new FileOutputStream(last, true);
+			out.write(new byte[] {0, 0, 0, 100, 1, 2, 3});
+			out.close();
+			
+			m = startPersistent(dir);
+			checkDurableRows(m);
+			assertEquals(length, last.length());
+			m.stopPersistence();
+		} finally {
+			delete(dir);
+		}
+	}
+	
+	@Test
+	public void snapshotInBackground() throws Exception {
+		File dir = createPersistenceDirectory();
+		try {
+			Memory m = new Memory();
+			m.setPersistenceDirectory(dir.getAbsolutePath());
+			m.setSyncWrites(false);
+			m.setSnapshotEvery(10);
+			m.start();
+			for (int i = 0; i < 100; ++i) {
+				ColumnFamilyData changes = new DefaultColumnFamilyData();
+				changes.put("f", values("q", "v" + i));
+				m.storeChanges(table, "r" + i, changes, null, null);
+			}
+			long end = System.currentTimeMillis() + 2000;
+			boolean found = false;
+			while (!found && System.currentTimeMillis() < end) {
+				for (String f : dir.list()) {
+					found |= f.startsWith("snapshot-") && f.endsWith(".snap");
+				}
+				Thread.sleep(10);
+			}
+			assertTrue(found);
+			m.stopPersistence();
+			
+			m = startPersistent(dir);
+			assertEquals(100, m.count(table, null));
+			m.stopPersistence();
+		} finally {
+			delete(dir);
+		}
+	}
+	
+	private static List<String> keys(Memory m) {
+		List<String> ret = new ArrayList<String>();
+		CloseableKeyIterator it = m.get(table, null, Integer.MAX_VALUE, null);
+		try {
+			while (it.hasNext())
+				ret.add(it.next().getKey());
+		} finally {
+			it.close();
+		}
+		return ret;
+	}
+	
+	@Test(timeout=60000)
+	public void truncateWhileWriting() throws Exception {
+		File dir = createPersistenceDirectory();
+		try {
+			final Memory m = new Memory();
+			m.setPersistenceDirectory(dir.getAbsolutePath());
+			m.setSyncWrites(false);
+			m.start();
+			final int rows = 50000;
+			for (int i = 0; i < rows; ++i) {
+				m.storeChanges(table, String.format("r%05d", i), null, null, null);
+			}
+			final CountDownLatch started = new CountDownLatch(1);
+			Thread writer = new Thread() {
+				@Override
+				public void run() {
+					ColumnFamilyData changes = new DefaultColumnFamilyData();
+					changes.put("f", values("q", "v"));
+					for (int i = 0; i < rows; i += 7) {
+						m.storeChanges(table, String.format("r%05d", rows - 1 - i), changes, null, null);
+						started.countDown();
+					}
+				}
+			};
+			writer.start();
+			started.await();
+			m.truncate(table, null);
+			writer.join();
+			
+			//Rows written while truncating are kept if and only if they are kept once the log is replayed
+			List<String> kept = keys(m);
+			assertEquals(kept.size(), m.count(table, null));
+			m.stopPersistence();
+			Memory recovered = startPersistent(dir);
+			assertEquals(kept, keys(recovered));
+			assertEquals(kept.size(), recovered.count(table, null));
+			recovered.stopPersistence();
+		} finally {
+			delete(dir);
+		}
+	}
+	
+	@Test(timeout=20000)
+	public void snapshotWhileWriting() throws Exception {
+		File dir = createPersistenceDirectory();
+		try {
+			final Memory m = new Memory();
+			m.setPersistenceDirectory(dir.getAbsolutePath());
+			m.setSyncWrites(false);
+			m.start();
+			final int increments = 5000;
+			Thread writer = new Thread() {
+				@Override
+				public void run() {
+					Map<String, Map<String, Number>> increment = new HashMap<String, Map<String,Number>>();
+					increment.put("i", new TreeMap<String, Number>());
+					increment.get("i").put("c", 1);
+					for (int i = 0; i < increments; ++i) {
+						m.storeChanges(table, "counter", null, null, increment);
+						ColumnFamilyData changes = new DefaultColumnFamilyData();
+						changes.put("f", values("q", "v" + i));
+						m.storeChanges(table, "r" + (i % 100), changes, null, null);
+					}
+				}
+			};
+			writer.start();
+			while (writer.isAlive()) {
+				m.snapshot();
+			}
+			writer.join();
+			m.snapshot();
+			m.stopPersistence();
+			
+			//Changes written while snapshots were taken are neither lost nor applied twice
+			Memory recovered = startPersistent(dir);
+			assertEquals((long)increments, ConversionTools.convert(long.class, recovered.get(table, "counter", "i", "c")).longValue());
+			assertEquals(101, recovered.count(table, null));
+			assertEquals("v" + (increments-1), ConversionTools.convert(String.class, recovered.get(table, "r" + ((increments-1) % 100), "f", "q")));
+			recovered.stopPersistence();
+		} finally {
+			delete(dir);
+		}
+	}
+	
+	@Test(expected=IllegalArgumentException.class)
+	public void zeroSnapshotEverySetAttempt() {
+		new Memory().setSnapshotEvery(0);
+	}
+}
@@ -0,0 +1,247 @@
+package com.googlecode.n_orm.memory;
+
+import static org.junit.Assert.*;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map.Entry;
+import java.util.NavigableMap;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Test;
+
+public class PrefixTreeMapTest {
+	private final PrefixTreeMap<Integer> sut = new PrefixTreeMap<Integer>();
+
+	private static String randomKey(Random rand) {
+		StringBuilder ret = new StringBuilder();
+		int parts = 1 + rand.nextInt(3);
+		for (int i = 0; i < parts; ++i) {
+			if (i > 0)
+				ret.append('\u0017');
+			int length = rand.nextInt(4);
+			for (int j = 0; j < length; ++j) {
+				ret.append((char)('a' + rand.nextInt(3)));
+			}
+		}
+		return ret.toString();
+	}
+
+	private static <V> List<V> list(Iterator<V> it) {
+		List<V> ret = new ArrayList<V>();
+		while (it.hasNext())
+			ret.add(it.next());
+		return ret;
+	}
+
+	@Test
+	public void basics() {
+		assertTrue(sut.isEmpty());
+		assertNull(sut.put("abc", 1));
+		assertNull(sut.put("ab", 2));
+		assertNull(sut.put("abd", 3));
+		assertNull(sut.put("", 4));
+		assertEquals(Integer.valueOf(1), sut.put("abc", 5));
+		assertEquals(4, sut.size());
+		assertEquals(Integer.valueOf(5), sut.get("abc"));
+		assertNull(sut.get("a"));
+		assertNull(sut.get("abcd"));
+		assertEquals(Integer.valueOf(2), sut.putIfAbsent("ab", 6));
+		assertFalse(sut.replace("ab", 6, 7));
+		assertTrue(sut.replace("ab", 2, 7));
+		assertFalse(sut.remove("ab", 2));
+		assertTrue(sut.remove("ab", 7));
+		assertNull(sut.get("ab"));
+		assertEquals(Integer.valueOf(4), sut.remove(""));
+		assertEquals(2, sut.size());
+		assertEquals("{abc=5, abd=3}", sut.toString());
+		sut.clear();
+		assertTrue(sut.isEmpty());
+		assertNull(sut.get("abc"));
+	}
+
+	@Test
+	public void sameAsTreeMap() {
+		Random rand = new Random(42);
+		TreeMap<String, Integer> expected = new TreeMap<String, Integer>();
+		for (int i = 0; i < 20000; ++i) {
+			String key = randomKey(rand);
+			switch (rand.nextInt(4)) {
+			case 0:
+				assertEquals(expected.remove(key), sut.remove(key));
+				break;
+			case 1:
+				assertEquals(expected.get(key), sut.get(key));
+				break;
+			default:
+				assertEquals(expected.put(key, i), sut.put(key, i));
+			}
+			assertEquals(expected.size(), sut.size());
+			if (i % 100 == 0) {
+				String from = rand.nextBoolean() ? null : randomKey(rand), to = rand.nextBoolean() ? null : randomKey(rand);
+				if (from != null && to != null && from.compareTo(to) > 0) {
+					String tmp = from;
+					from = to;
+					to = tmp;
+				}
+				NavigableMap<String, Integer> range = Memory.subMap(expected, from, to);
+				assertEquals(new ArrayList<Integer>(range.values()), list(sut.values(from, to, false)));
+				assertEquals(new ArrayList<Integer>(range.descendingMap().values()), list(sut.values(from, to, true)));
+			}
+		}
+		assertEquals(new ArrayList<Entry<String, Integer>>(expected.entrySet()), new ArrayList<Entry<String, Integer>>(sut.entrySet()));
+	}
+
+	@Test
+	public void iteratorRemove() {
+		for (String key : new String[] {"a", "ab", "abc", "b"}) {
+			sut.put(key, key.length());
+		}
+		Iterator<Integer> it = sut.values("ab", null, false);
+		assertEquals(Integer.valueOf(2), it.next());
+		it.remove();
+		assertEquals(Integer.valueOf(3), it.next());
+		assertEquals(Integer.valueOf(1), it.next());
+		assertFalse(it.hasNext());
+		assertEquals("{a=1, abc=3, b=1}", sut.toString());
+	}
+
+	@Test
+	public void concurrentReadsAndWrites() throws Exception {
+		ExecutorService exec = Executors.newFixedThreadPool(4);
+		try {
+			List<Future<?>> tasks = new ArrayList<Future<?>>();
+			for (int t = 0; t < 4; ++t) {
+				final int writer = t;
+				tasks.add(exec.submit(new Runnable() {
+					
+					@Override
+					public void run() {
+						for (int i = 0; i < 2000; ++i) {
+							String key = "k\u0017" + (i % 50) + "\u0017" + writer;
+							if (writer % 2 == 0) {
+								sut.put(key, i);
+								if (i % 3 == 0 && i < 1000)
+									sut.remove(key);
+							} else {
+								String last = null;
+								Iterator<Entry<String, Integer>> it = sut.entries("k\u0017", null, false);
+								while (it.hasNext()) {
+									String k = it.next().getKey();
+									assertTrue(last == null || last.compareTo(k) < 0);
+									last = k;
+								}
+							}
+						}
+					}
+				}));
+			}
+			for (Future<?> f : tasks) {
+				f.get();
+			}
+		} finally {
+			exec.shutdown();
+		}
+		for (int i = 0; i < 50; ++i) {
+			assertNotNull(sut.get("k\u0017" + i + "\u0017" + 0));
+		}
+	}
+
+	@Test
+	public void concurrentRemovalsDoNotHideOtherKeys() throws Exception {
+		final List<String> stable = new ArrayList<String>();
+		final List<String> churned = new ArrayList<String>();
+		for (int i = 0; i < 20; ++i) {
+			String prefix = "p" + i + "\u0017";
+			stable.add(prefix + "z");
+			//Removing those keys splits and merges nodes around stable keys
+			churned.add(prefix);
+			churned.add(prefix + "a");
+			churned.add(prefix + "ab");
+			churned.add(prefix + "z\u0017a");
+		}
+		for (String key : stable) {
+			sut.put(key, 0);
+		}
+		ExecutorService exec = Executors.newFixedThreadPool(4);
+		try {
+			List<Future<?>> tasks = new ArrayList<Future<?>>();
+			for (int t = 0; t < 4; ++t) {
+				final int worker = t;
+				tasks.add(exec.submit(new Runnable() {
+					
+					@Override
+					public void run() {
+						Random rand = new Random(worker);
+						for (int i = 0; i < 3000; ++i) {
+							if (worker < 2) {
+								String key = churned.get(rand.nextInt(churned.size()));
+								if (rand.nextBoolean())
+									sut.put(key, i);
+								else
+									sut.remove(key);
+							} else {
+								boolean descending = worker == 3;
+								List<String> seen = new ArrayList<String>();
+								Iterator<Entry<String, Integer>> it = sut.entries(null, null, descending);
+								while (it.hasNext()) {
+									seen.add(it.next().getKey());
+								}
+								for (String key : stable) {
+									assertTrue(key + " missing from " + seen, seen.contains(key));
+								}
+							}
+						}
+					}
+				}));
+			}
+			for (Future<?> f : tasks) {
+				f.get();
+			}
+		} finally {
+			exec.shutdown();
+		}
+	}
+
+	private static Object field(Object o, String name) throws Exception {
+		Field f = o.getClass().getDeclaredField(name);
+		f.setAccessible(true);
+		return f.get(o);
+	}
+
+	@SuppressWarnings("unchecked")
+	private static Entry<String, Integer> bound(String method, Object node, String path) throws Exception {
+		Method m = PrefixTreeMap.class.getDeclaredMethod(method, node.getClass(), StringBuilder.class);
+		m.setAccessible(true);
+		return (Entry<String, Integer>)m.invoke(null, node, new StringBuilder(path));
+	}
+
+	private Object child(char label) throws Exception {
+		Object children = field(field(sut, "root"), "children");
+		int index = new String((char[])field(children, "labels")).indexOf(label);
+		return ((Object[])field(children, "nodes"))[index];
+	}
+
+	@Test
+	public void staleNodeReadAfterRemoval() throws Exception {
+		sut.put("xa", 1);
+		sut.put("xb", 2);
+		sut.put("ya", 3);
+		sut.put("yb", 4);
+		//Readers that already reached nodes x and y
+		Object x = child('x'), y = child('y');
+		//Both nodes are merged with their remaining child, yet keep their removed child
+		sut.remove("xa");
+		sut.remove("yb");
+		assertEquals("xb", bound("first", x, "x").getKey());
+		assertEquals("ya", bound("last", y, "y").getKey());
+		assertEquals("[xb, ya]", list(sut.keySet().iterator()).toString());
+	}
+}
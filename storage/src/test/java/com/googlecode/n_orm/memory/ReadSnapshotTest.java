@@ -0,0 +1,279 @@
+package com.googlecode.n_orm.memory;
+
+import static org.junit.Assert.*;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Test;
+
+import com.googlecode.n_orm.conversion.ConversionTools;
+import com.googlecode.n_orm.storeapi.CloseableKeyIterator;
+import com.googlecode.n_orm.storeapi.Constraint;
+import com.googlecode.n_orm.storeapi.DefaultColumnFamilyData;
+import com.googlecode.n_orm.storeapi.Row;
+import com.googlecode.n_orm.storeapi.Row.ColumnFamilyData;
+
+public class ReadSnapshotTest {
+	private static final String table = "ReadSnapshotTestTable";
+	private final Memory sut = new Memory();
+	private Memory.ReadSnapshot snapshot = null;
+
+	@After
+	public void closeSnapshot() {
+		if (snapshot != null)
+			snapshot.close();
+	}
+
+	private void store(String row, String qualifier, String value) {
+		ColumnFamilyData changes = new DefaultColumnFamilyData();
+		Map<String, byte[]> values = new TreeMap<String, byte[]>();
+		values.put(qualifier, ConversionTools.convert(value));
+		changes.put("f", values);
+		sut.storeChanges(table, row, changes, null, null);
+	}
+
+	private void remove(String row, String qualifier) {
+		Map<String, Set<String>> removed = new HashMap<String, Set<String>>();
+		removed.put("f", new TreeSet<String>(Arrays.asList(qualifier)));
+		sut.storeChanges(table, row, null, removed, null);
+	}
+
+	private void increment(String row, String qualifier, long increment) {
+		Map<String, Number> incrs = new TreeMap<String, Number>();
+		incrs.put(qualifier, increment);
+		Map<String, Map<String, Number>> incremented = new HashMap<String, Map<String, Number>>();
+		incremented.put("i", incrs);
+		sut.storeChanges(table, row, null, null, incremented);
+	}
+
+	private String get(String row, String qualifier) {
+		byte[] ret = snapshot.get(table, row, "f", qualifier);
+		return ret == null ? null : ConversionTools.convert(String.class, ret);
+	}
+
+	@Test
+	public void updatesNotVisible() {
+		store("r", "q", "v1");
+		snapshot = sut.openReadSnapshot();
+		store("r", "q", "v2");
+		store("r", "q", "v3");
+		store("r", "q2", "v");
+		assertEquals("v1", get("r", "q"));
+		assertNull(get("r", "q2"));
+		assertEquals(1, snapshot.get(table, "r", "f").size());
+		assertEquals("v3", ConversionTools.convert(String.class, sut.get(table, "r", "f", "q")));
+	}
+
+	@Test
+	public void removedCellStillVisible() {
+		store("r", "q", "v1");
+		snapshot = sut.openReadSnapshot();
+		remove("r", "q");
+		TombstoneCompactor.compactNow();
+		assertNull(sut.get(table, "r", "f", "q"));
+		assertEquals("v1", get("r", "q"));
+		assertTrue(snapshot.exists(table, "r", "f"));
+	}
+
+	@Test
+	public void deletedRowStillVisible() {
+		store("r", "q", "v1");
+		snapshot = sut.openReadSnapshot();
+		sut.delete(table, "r");
+		assertFalse(sut.exists(table, "r"));
+		assertEquals(0, sut.count(table, null));
+		assertTrue(snapshot.exists(table, "r"));
+		assertEquals("v1", get("r", "q"));
+		assertEquals(1, snapshot.count(table, null));
+	}
+
+	@Test
+	public void recreatedRow() {
+		store("r", "q", "v1");
+		snapshot = sut.openReadSnapshot();
+		sut.delete(table, "r");
+		store("r", "q2", "v2");
+		assertNull(sut.get(table, "r", "f", "q"));
+		assertEquals("v1", get("r", "q"));
+		assertNull(get("r", "q2"));
+		Memory.ReadSnapshot later = sut.openReadSnapshot();
+		try {
+			assertNull(later.get(table, "r", "f", "q"));
+			assertEquals("v2", ConversionTools.convert(String.class, later.get(table, "r", "f", "q2")));
+		} finally {
+			later.close();
+		}
+	}
+
+	@Test
+	public void rowCreatedAfterSnapshot() {
+		snapshot = sut.openReadSnapshot();
+		store("r", "q", "v");
+		assertFalse(snapshot.exists(table, "r"));
+		assertNull(snapshot.get(table, "r", new TreeSet<String>(Arrays.asList("f"))));
+		assertEquals(0, snapshot.count(table, null));
+	}
+
+	@Test
+	public void increments() {
+		increment("r", "c", 3);
+		snapshot = sut.openReadSnapshot();
+		increment("r", "c", 2);
+		increment("r", "d", 1);
+		assertEquals(3l, (long)ConversionTools.convert(Long.class, snapshot.get(table, "r", "i", "c")));
+		assertNull(snapshot.get(table, "r", "i", "d"));
+		assertEquals(5l, (long)ConversionTools.convert(Long.class, sut.get(table, "r", "i", "c")));
+	}
+
+	@Test
+	public void scan() {
+		store("r1", "q", "v1");
+		store("r2", "q", "v2");
+		store("r3", "q", "v3");
+		snapshot = sut.openReadSnapshot();
+		sut.delete(table, "r2");
+		store("r1", "q", "v1bis");
+		store("r4", "q", "v4");
+		CloseableKeyIterator it = snapshot.get(table, new Constraint("r1", "r9"), 10, new TreeSet<String>(Arrays.asList("f")), true);
+		try {
+			Row r = it.next();
+			assertEquals("r3", r.getKey());
+			r = it.next();
+			assertEquals("r2", r.getKey());
+			assertEquals("v2", ConversionTools.convert(String.class, r.getValues().get("f").get("q")));
+			r = it.next();
+			assertEquals("r1", r.getKey());
+			assertEquals("v1", ConversionTools.convert(String.class, r.getValues().get("f").get("q")));
+			assertFalse(it.hasNext());
+		} finally {
+			it.close();
+		}
+		assertEquals(3, snapshot.count(table, null));
+		assertEquals(3, sut.count(table, null));
+	}
+
+	@Test
+	public void versionsCollectedOnClose() {
+		store("r1", "q", "v1");
+		store("r2", "q", "v1");
+		snapshot = sut.openReadSnapshot();
+		store("r1", "q", "v2");
+		sut.delete(table, "r2");
+		assertNotNull(sut.getTable(table, false).getNoCreate("r2"));
+		snapshot.close();
+		assertEquals(0, sut.getOpenReadSnapshots());
+		assertNull(sut.getTable(table, false).getNoCreate("r2"));
+		assertFalse(sut.exists(table, "r2"));
+		assertEquals("v2", ConversionTools.convert(String.class, sut.get(table, "r1", "f", "q")));
+		snapshot = sut.openReadSnapshot();
+		assertEquals("v2", get("r1", "q"));
+	}
+
+	@Test
+	public void versionsKeptForOlderSnapshot() {
+		store("r", "q", "v1");
+		snapshot = sut.openReadSnapshot();
+		store("r", "q", "v2");
+		Memory.ReadSnapshot newer = sut.openReadSnapshot();
+		store("r", "q", "v3");
+		newer.close();
+		assertEquals("v1", get("r", "q"));
+	}
+
+	@Test(timeout=20000)
+	public void changesSeenWholeWhileWriting() throws Exception {
+		Thread[] writers = new Thread[4];
+		for (int w = 0; w < writers.length; ++w) {
+			final String row = "r" + w;
+			writers[w] = new Thread() {
+				@Override
+				public void run() {
+					for (int i = 0; i < 2000; ++i) {
+						ColumnFamilyData changes = new DefaultColumnFamilyData();
+						Map<String, byte[]> values = new TreeMap<String, byte[]>();
+						values.put("q1", ConversionTools.convert(i));
+						values.put("q2", ConversionTools.convert(i));
+						changes.put("f", values);
+						sut.storeChanges(table, row, changes, null, null);
+					}
+				}
+			};
+			writers[w].start();
+		}
+		boolean writing = true;
+		while (writing) {
+			writing = false;
+			for (Thread writer : writers) {
+				writing |= writer.isAlive();
+			}
+			snapshot = sut.openReadSnapshot();
+			for (int w = 0; w < writers.length; ++w) {
+				byte[] q1 = snapshot.get(table, "r" + w, "f", "q1");
+				assertArrayEquals(q1, snapshot.get(table, "r" + w, "f", "q2"));
+				//Later changes are not seen
+				Thread.yield();
+				assertArrayEquals(q1, snapshot.get(table, "r" + w, "f", "q1"));
+			}
+			snapshot.close();
+			snapshot = null;
+		}
+		for (int w = 0; w < writers.length; ++w) {
+			assertEquals(1999, (int)ConversionTools.convert(Integer.class, sut.get(table, "r" + w, "f", "q2")));
+		}
+	}
+
+	@Test(timeout=20000)
+	public void openingWaitsForChangeWithoutSpinning() throws Exception {
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		Assume.assumeTrue(threads.isThreadCpuTimeSupported() && threads.isThreadCpuTimeEnabled());
+		store("r", "q", "v1");
+		Memory.Table.Row row = sut.getRow(table, "r", false);
+		final Memory.ReadSnapshot[] opened = new Memory.ReadSnapshot[1];
+		Thread writer = new Thread() {
+			@Override
+			public void run() {
+				store("r", "q", "v2");
+			}
+		};
+		Thread opener = new Thread() {
+			@Override
+			public void run() {
+				opened[0] = sut.openReadSnapshot();
+			}
+		};
+		long cpu;
+		synchronized (row) {
+			//Change is registered, but blocked while looking for the row
+			writer.start();
+			while (writer.getState() != Thread.State.BLOCKED)
+				Thread.sleep(1);
+			opener.start();
+			Thread.sleep(50);
+			long start = threads.getThreadCpuTime(opener.getId());
+			Thread.sleep(200);
+			cpu = threads.getThreadCpuTime(opener.getId()) - start;
+			assertTrue(opener.isAlive());
+		}
+		writer.join();
+		opener.join();
+		snapshot = opened[0];
+		assertTrue("Opening snapshot used " + cpu / 1000000 + "ms of CPU while waiting", cpu < 50000000L);
+		assertEquals("v2", get("r", "q"));
+	}
+
+	@Test(expected=IllegalStateException.class)
+	public void readClosed() {
+		snapshot = sut.openReadSnapshot();
+		snapshot.close();
+		snapshot.exists(table, "r");
+	}
+}
@@ -0,0 +1,231 @@
+package com.googlecode.n_orm.memory;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.googlecode.n_orm.Key;
+import com.googlecode.n_orm.Persisting;
+import com.googlecode.n_orm.PersistingMixin;
+import com.googlecode.n_orm.StoreSelector;
+import com.googlecode.n_orm.conversion.ConversionTools;
+import com.googlecode.n_orm.storeapi.CloseableKeyIterator;
+import com.googlecode.n_orm.storeapi.Constraint;
+import com.googlecode.n_orm.storeapi.DefaultColumnFamilyData;
+import com.googlecode.n_orm.storeapi.Row.ColumnFamilyData;
+import com.googlecode.n_orm.utils.TimerWheel;
+
+public class TimeToLiveTest {
+	private static final String table = "TimeToLiveTestTable";
+	
+	@Persisting(timeToLiveMs=60000)
+	public static class Session {
+		private static final long serialVersionUID = 1L;
+		@Key public String id;
+	}
+	private Memory sut;
+
+	@Before
+	public void createStore() {
+		sut = new Memory();
+		sut.setTimeToLive(table, 200);
+	}
+
+	private void store(Memory store, String id, String qualifier, String value) {
+		ColumnFamilyData changes = new DefaultColumnFamilyData();
+		TreeMap<String, byte[]> values = new TreeMap<String, byte[]>();
+		values.put(qualifier, ConversionTools.convert(value));
+		changes.put("f", values);
+		store.storeChanges(table, id, changes, null, null);
+	}
+
+	@Test
+	public void expiredRowsAreInvisible() throws InterruptedException {
+		store(sut, "r1", "q", "v");
+		store(sut, "r2", "q", "v");
+		store(sut, "other", "q", "v");
+		sut.storeChanges("TimeToLiveTestOtherTable", "r1", null, null, null);
+		assertTrue(sut.exists(table, "r1"));
+		assertEquals(3, sut.count(table, null));
+		Thread.sleep(300);
+		assertFalse(sut.exists(table, "r1"));
+		assertFalse(sut.exists(table, "r1", "f"));
+		assertNull(sut.get(table, "r1", "f", "q"));
+		assertNull(sut.get(table, "r1", new TreeSet<String>(Arrays.asList("f"))));
+		CloseableKeyIterator it = sut.get(table, null, 10, null);
+		try {
+			assertFalse(it.hasNext());
+		} finally {
+			it.close();
+		}
+		//Not reclaimed yet
+		assertEquals(3, sut.getTable(table, false).count(null, null));
+		assertEquals(0, sut.count(table, null));
+		//Counting does not reclaim
+		assertEquals(3, sut.getTable(table, false).count(null, null));
+		assertTrue(sut.exists("TimeToLiveTestOtherTable", "r1"));
+	}
+
+	@Test
+	public void expiredRowsAreNotCounted() throws InterruptedException {
+		store(sut, "r1", "q", "v");
+		store(sut, "r2", "q", "v");
+		Thread.sleep(300);
+		store(sut, "r3", "q", "v");
+		store(sut, "s", "q", "v");
+		assertEquals(2, sut.count(table, null));
+		assertEquals(1, sut.count(table, new Constraint("r", "r9")));
+		assertEquals(0, sut.count(table, new Constraint("r1", "r2")));
+	}
+
+	@Test
+	public void expiredRowsAreInvisibleFromNewSnapshot() throws InterruptedException {
+		store(sut, "r1", "q", "v");
+		store(sut, "r2", "q", "v");
+		Thread.sleep(300);
+		store(sut, "r3", "q", "v");
+		Memory.ReadSnapshot s = sut.openReadSnapshot();
+		try {
+			assertFalse(s.exists(table, "r1"));
+			assertNull(s.get(table, "r1", "f", "q"));
+			assertEquals(1, s.count(table, null));
+			CloseableKeyIterator it = s.get(table, null, 10, null);
+			try {
+				assertTrue(it.hasNext());
+				assertEquals("r3", it.next().getKey());
+				assertFalse(it.hasNext());
+			} finally {
+				it.close();
+			}
+		} finally {
+			s.close();
+		}
+	}
+
+	@Test
+	public void changesPostponeExpiration() throws InterruptedException {
+		store(sut, "r", "q1", "v1");
+		for (int i = 0; i < 4; ++i) {
+			Thread.sleep(100);
+			store(sut, "r", "q2", "v2");
+		}
+		assertTrue(sut.exists(table, "r"));
+		assertEquals(1, sut.count(table, null));
+		Thread.sleep(300);
+		assertFalse(sut.exists(table, "r"));
+	}
+
+	@Test
+	public void expiredRowIsNotResurrected() throws InterruptedException {
+		store(sut, "r", "q1", "v1");
+		Thread.sleep(300);
+		store(sut, "r", "q2", "v2");
+		assertNull(sut.get(table, "r", "f", "q1"));
+		assertEquals("v2", ConversionTools.convert(String.class, sut.get(table, "r", "f", "q2")));
+	}
+
+	@Test
+	public void reclaimedInBackground() throws InterruptedException {
+		for (int i = 0; i < 100; ++i) {
+			store(sut, "r" + i, "q", "v");
+		}
+		long end = System.currentTimeMillis() + 5000;
+		while (sut.getTable(table, false).count(null, null) > 0 && System.currentTimeMillis() < end)
+			Thread.sleep(50);
+		assertEquals(0, sut.getTable(table, false).count(null, null));
+	}
+
+	@Test
+	public void keptInReadSnapshotUntilReclaimed() throws InterruptedException {
+		store(sut, "r", "q", "v");
+		Memory.ReadSnapshot s = sut.openReadSnapshot();
+		try {
+			Thread.sleep(300);
+			sut.reclaimExpired();
+			assertFalse(sut.exists(table, "r"));
+			assertTrue(s.exists(table, "r"));
+		} finally {
+			s.close();
+		}
+	}
+
+	@Test
+	public void persistedExpiration() throws IOException, InterruptedException {
+		File dir = File.createTempFile("n-orm-ttl", "");
+		assertTrue(dir.delete());
+		Memory store = new Memory();
+		store.setTimeToLive(table, 200);
+		store.setPersistenceDirectory(dir.getAbsolutePath());
+		store.setSyncWrites(false);
+		store.start();
+		store(store, "r1", "q", "v1");
+		store(store, "r2", "q", "v2");
+		Thread.sleep(300);
+		store.reclaimExpired();
+		store(store, "r2", "q2", "v2bis");
+		store.stopPersistence();
+
+		Memory recovered = new Memory();
+		recovered.setTimeToLive(table, 200);
+		recovered.setPersistenceDirectory(dir.getAbsolutePath());
+		recovered.start();
+		try {
+			assertFalse(recovered.exists(table, "r1"));
+			assertNull(recovered.get(table, "r2", "f", "q"));
+			assertEquals("v2bis", ConversionTools.convert(String.class, recovered.get(table, "r2", "f", "q2")));
+			Thread.sleep(300);
+			assertFalse(recovered.exists(table, "r2"));
+		} finally {
+			recovered.stopPersistence();
+			for (File f : dir.listFiles()) {
+				f.delete();
+			}
+			dir.delete();
+		}
+	}
+
+	@Test
+	public void timerWheel() {
+		TimerWheel<Long> wheel = new TimerWheel<Long>(10, 0);
+		TreeSet<Long> pending = new TreeSet<Long>(Arrays.asList(5L, 15L, 640L, 655L, 41000L, 2700000L, 200000000L, 5000000000L));
+		for (long d : pending) {
+			wheel.schedule(d, d);
+		}
+		assertEquals(pending.size(), wheel.size());
+		long now = 0;
+		while (!pending.isEmpty()) {
+			now += now < 1000 ? 7 : now < 3000000 ? 997 : 999999;
+			Set<Long> elapsed = new TreeSet<Long>(wheel.elapsed(now));
+			assertEquals(pending.size(), wheel.size());
+			List<Long> advanced = wheel.advance(now);
+			assertEquals(elapsed, new TreeSet<Long>(advanced));
+			for (long d : advanced) {
+				//Returned as soon as their tick elapsed
+				assertTrue(d / 10 <= now / 10);
+				assertTrue(pending.remove(d));
+			}
+			assertEquals(pending.size(), wheel.size());
+			assertTrue(pending.isEmpty() || pending.first() / 10 > now / 10);
+		}
+	}
+
+	@Test
+	public void timeToLiveFromAnnotation() {
+		StoreSelector.getInstance().getStoreFor(Session.class);
+		assertEquals(60000, Memory.INSTANCE.getTimeToLive(PersistingMixin.getInstance().getTable(Session.class)));
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void negativeTimeToLiveSetAttempt() {
+		sut.setTimeToLive(table, -1);
+	}
+}
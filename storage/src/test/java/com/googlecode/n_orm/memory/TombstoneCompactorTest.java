@@ -0,0 +1,105 @@
+package com.googlecode.n_orm.memory;
+
+import static org.junit.Assert.*;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.googlecode.n_orm.conversion.ConversionTools;
+import com.googlecode.n_orm.storeapi.DefaultColumnFamilyData;
+import com.googlecode.n_orm.storeapi.Row.ColumnFamilyData;
+
+public class TombstoneCompactorTest {
+	private static final String table = "TombstoneCompactorTestTable";
+	private final Memory sut = new Memory();
+
+	@Before
+	public void drain() {
+		TombstoneCompactor.compactNow();
+	}
+
+	private void store(String row, String family, int cells) {
+		ColumnFamilyData changes = new DefaultColumnFamilyData();
+		Map<String, byte[]> values = new TreeMap<String, byte[]>();
+		for (int i = 0; i < cells; ++i) {
+			values.put("q" + i, ConversionTools.convert("v" + i));
+		}
+		changes.put(family, values);
+		sut.storeChanges(table, row, changes, null, null);
+	}
+
+	private void remove(String row, String family, int cells) {
+		Set<String> qualifiers = new TreeSet<String>();
+		for (int i = 0; i < cells; ++i) {
+			qualifiers.add("q" + i);
+		}
+		Map<String, Set<String>> removed = new HashMap<String, Set<String>>();
+		removed.put(family, qualifiers);
+		sut.storeChanges(table, row, null, removed, null);
+	}
+
+	@Test
+	public void compactsDeletedCellsOnce() {
+		store("r", "f1", 100);
+		store("r", "f2", 10);
+		long reclaimed = TombstoneCompactor.getReclaimedCells();
+		remove("r", "f1", 100);
+		remove("r", "f2", 5);
+		//A family registers once whatever the number of deleted cells
+		assertTrue(TombstoneCompactor.getBacklog() <= 2);
+		TombstoneCompactor.compactNow();
+		assertEquals(0, TombstoneCompactor.getBacklog());
+		assertEquals(105, TombstoneCompactor.getReclaimedCells() - reclaimed);
+		assertFalse(sut.exists(table, "r", "f1"));
+		assertEquals(5, sut.get(table, "r", "f2").size());
+		assertEquals(0, TombstoneCompactor.compactNow());
+	}
+
+	@Test
+	public void revivedCellNotReclaimed() {
+		store("r", "f", 1);
+		long reclaimed = TombstoneCompactor.getReclaimedCells();
+		remove("r", "f", 1);
+		store("r", "f", 1);
+		TombstoneCompactor.compactNow();
+		assertEquals(reclaimed, TombstoneCompactor.getReclaimedCells());
+		assertEquals("v0", ConversionTools.convert(String.class, sut.get(table, "r", "f", "q0")));
+	}
+
+	@Test
+	public void storeAfterCompaction() {
+		store("r", "f", 1);
+		remove("r", "f", 1);
+		TombstoneCompactor.compactNow();
+		assertNull(sut.get(table, "r", "f", "q0"));
+		store("r", "f", 1);
+		assertEquals("v0", ConversionTools.convert(String.class, sut.get(table, "r", "f", "q0")));
+	}
+
+	@Test
+	public void compactsInBackground() throws InterruptedException {
+		store("r", "f", 10);
+		long reclaimed = TombstoneCompactor.getReclaimedCells();
+		remove("r", "f", 10);
+		long end = System.currentTimeMillis() + 10 * TombstoneCompactor.getPeriod() + 1000;
+		while (TombstoneCompactor.getReclaimedCells() - reclaimed < 10 && System.currentTimeMillis() < end)
+			Thread.sleep(10);
+		assertEquals(10, TombstoneCompactor.getReclaimedCells() - reclaimed);
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void zeroPeriodSetAttempt() {
+		TombstoneCompactor.setPeriod(0);
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void zeroBatchSizeSetAttempt() {
+		TombstoneCompactor.setBatchSize(0);
+	}
+}
@@ -23,7 +23,6 @@ import com.googlecode.n_orm.Book;
 import com.googlecode.n_orm.BookStore;
 import com.googlecode.n_orm.CloseableIterator;
 import com.googlecode.n_orm.DatabaseNotReachedException;
-import com.googlecode.n_orm.KeyManagement;
 import com.googlecode.n_orm.Novel;
 import com.googlecode.n_orm.PersistingElement;
 import com.googlecode.n_orm.Process;
@@ -49,33 +48,20 @@ public class BasicPerformanceTest {
 	@BeforeClass
 	@AfterClass
 	public static void vacuumDB() throws DatabaseNotReachedException {
-		ExecutorService exec = Executors.newFixedThreadPool(100);
-		for (Class<?> clazz : new Class<?> [] {BookStore.class, Book.class, Novel.class}) {
-			@SuppressWarnings("unchecked")
-			CloseableIterator<? extends PersistingElement> found = StorageManagement.findElements().ofClass((Class<? extends PersistingElement>)clazz).withAtMost(10000).elements().iterate();
-			try {
-				while (found.hasNext()) {
-					final PersistingElement elt = found.next();
-					exec.submit(new Runnable () {
-
-						@Override
-						public void run() {
-							elt.delete();
-						}
-						
-					});
-				}
-			} finally {
-				found.close();
+		// Novels are also stored in the table for books, so they cannot be truncated
+		CloseableIterator<Novel> novels = StorageManagement.findElements().ofClass(Novel.class).withAtMost(10000).elements().iterate();
+		try {
+			while (novels.hasNext()) {
+				novels.next().delete();
 			}
+		} finally {
+			novels.close();
 		}
-		exec.shutdown();
-		try {
-			exec.awaitTermination(10, TimeUnit.SECONDS);
-		} catch (InterruptedException e) {
-			fail(e.getMessage());
+		for (Class<?> clazz : new Class<?> [] {BookStore.class, Book.class}) {
+			@SuppressWarnings("unchecked")
+			Class<? extends PersistingElement> c = (Class<? extends PersistingElement>)clazz;
+			StorageManagement.truncateElements(c, null);
 		}
-		KeyManagement.getInstance().cleanupKnownPersistingElements();
 	}
 	
 	@Before
@@ -0,0 +1,121 @@
+package com.googlecode.n_orm.performance;
+
+import static org.junit.Assert.*;
+
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Logger;
+
+import org.junit.Test;
+
+import com.googlecode.n_orm.memory.Memory;
+import com.googlecode.n_orm.storeapi.DefaultColumnFamilyData;
+import com.googlecode.n_orm.storeapi.Row.ColumnFamilyData;
+
+/**
+ * Compares the heap used by the {@link Memory} store to hold small cells with the heap used by the previous layout,
+ * where each cell had its own map of versions and its own lock, and each row had its own {@link AtomicLong} and a default {@link ConcurrentHashMap}.
+ * Heap usage depends on the garbage collector and on the JVM, so that the bound per cell is loose;
+ * it is meant to catch a regression towards one map and one lock per cell.
+ */
+public class MemoryFootprintTest {
+	private static final Logger logger = Logger.getLogger(MemoryFootprintTest.class.getName());
+	private static final int ROWS = 20000, CELLS_PER_ROW = 10;
+	private static final String TABLE = "MemoryFootprintTable";
+	/**
+	 * Heap used per cell of 8 bytes by the {@link Memory} store is about 150 bytes on a 64 bits JVM with compressed pointers,
+	 * while the previous layout used about 400 bytes.
+	 */
+	private static final double MAX_BYTES_PER_CELL = 256;
+
+	/**
+	 * A replica of a cell in the previous layout.
+	 */
+	private static class LegacyCell {
+		@SuppressWarnings("unused")
+		private final String qualifier;
+		private final NavigableMap<Long, byte[]> value = new ConcurrentSkipListMap<Long, byte[]>();
+		@SuppressWarnings("unused")
+		private final ReentrantReadWriteLock deletionLock = new ReentrantReadWriteLock();
+
+		public LegacyCell(String qualifier, byte[] value, long transaction) {
+			this.qualifier = qualifier;
+			this.value.put(transaction, value);
+		}
+	}
+
+	/**
+	 * A replica of a row in the previous layout.
+	 */
+	private static class LegacyRow {
+		private final ConcurrentMap<String, NavigableMap<String, LegacyCell>> families = new ConcurrentHashMap<String, NavigableMap<String,LegacyCell>>();
+		private final AtomicLong nextTransactionId = new AtomicLong(Long.MIN_VALUE);
+	}
+
+	private static long usedMemory() throws InterruptedException {
+		Runtime rt = Runtime.getRuntime();
+		long ret = Long.MAX_VALUE;
+		for (int i = 0; i < 5; ++i) {
+			System.gc();
+			Thread.sleep(20);
+			ret = Math.min(ret, rt.totalMemory() - rt.freeMemory());
+		}
+		return ret;
+	}
+
+	@Test
+	public void footprint() throws InterruptedException {
+		String[] keys = new String[ROWS];
+		for (int i = 0; i < ROWS; ++i) {
+			keys[i] = String.format("row%08d", i);
+		}
+		String[] qualifiers = new String[CELLS_PER_ROW];
+		for (int i = 0; i < CELLS_PER_ROW; ++i) {
+			qualifiers[i] = "q" + i;
+		}
+
+		Memory compact = Memory.INSTANCE;
+		compact.truncate(TABLE, null);
+		long before = usedMemory();
+		for (String key : keys) {
+			ColumnFamilyData changes = new DefaultColumnFamilyData();
+			Map<String, byte[]> values = new TreeMap<String, byte[]>();
+			for (String qualifier : qualifiers) {
+				values.put(qualifier, new byte[8]);
+			}
+			changes.put("f", values);
+			compact.storeChanges(TABLE, key, changes, null, null);
+		}
+		long compactBytes = usedMemory() - before;
+		assertEquals(ROWS, compact.count(TABLE, null));
+		compact.truncate(TABLE, null);
+
+		before = usedMemory();
+		NavigableMap<String, LegacyRow> legacy = new ConcurrentSkipListMap<String, LegacyRow>();
+		for (String key : keys) {
+			LegacyRow row = new LegacyRow();
+			long transaction = row.nextTransactionId.incrementAndGet();
+			NavigableMap<String, LegacyCell> family = new ConcurrentSkipListMap<String, LegacyCell>();
+			for (String qualifier : qualifiers) {
+				family.put(qualifier, new LegacyCell(qualifier, new byte[8], transaction));
+			}
+			row.families.put("f", family);
+			legacy.put(key, row);
+		}
+		long legacyBytes = usedMemory() - before;
+		assertEquals(ROWS, legacy.size());
+		legacy = null;
+
+		double cells = ROWS * CELLS_PER_ROW;
+		logger.info(String.format("Memory footprint for %d cells of 8 bytes: %.1f bytes per cell ; previous layout: %.1f bytes per cell",
+				ROWS * CELLS_PER_ROW, compactBytes / cells, legacyBytes / cells));
+		assertTrue("Memory footprint is " + compactBytes / cells + " bytes per cell", compactBytes / cells <= MAX_BYTES_PER_CELL);
+		assertTrue("Memory footprint of " + compactBytes + " bytes is not smaller than the " + legacyBytes + " bytes of the previous layout", compactBytes < legacyBytes);
+	}
+}
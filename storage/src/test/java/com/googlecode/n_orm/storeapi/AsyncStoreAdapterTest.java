@@ -0,0 +1,31 @@
+package com.googlecode.n_orm.storeapi;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
+
+import org.junit.Test;
+
+import com.googlecode.n_orm.memory.Memory;
+
+public class AsyncStoreAdapterTest {
+
+	@Test
+	public void oneAdapterPerStore() throws Exception {
+		Store store = SimpleStoreWrapper.getWrapper(Memory.INSTANCE);
+		AsyncStoreAdapter adapter = AsyncStoreAdapter.getAdapter(store);
+		assertSame(adapter, AsyncStoreAdapter.getAdapter(store));
+		assertSame(store, adapter.getStore());
+		Future<Boolean> exists = adapter.exists(null, "AsyncStoreAdapterTestTable", "unknown");
+		assertFalse(exists.get());
+	}
+
+	@Test
+	public void defaultExecutorBounded() {
+		ExecutorService executor = AsyncStoreAdapter.getDefaultExecutor();
+		assertTrue(executor instanceof ThreadPoolExecutor);
+		assertEquals(AsyncStoreAdapter.DEFAULT_MAX_THREADS, ((ThreadPoolExecutor)executor).getMaximumPoolSize());
+	}
+}
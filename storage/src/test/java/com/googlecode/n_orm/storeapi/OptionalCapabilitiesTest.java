@@ -0,0 +1,187 @@
+package com.googlecode.n_orm.storeapi;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.Test;
+import org.mockito.Mockito;
+
+import com.googlecode.n_orm.storeapi.Row.ColumnFamilyData;
+
+/**
+ * Stores that do not implement optional capabilities are still usable through {@link DelegatingStore} and {@link SimpleStoreWrapper}.
+ */
+public class OptionalCapabilitiesTest {
+	private static final Set<String> families = Collections.singleton("fam");
+
+	@Test
+	public void multiGetFallsBackToGetOnDelegatingStore() {
+		Store actual = Mockito.mock(Store.class);
+		ColumnFamilyData data = new DefaultColumnFamilyData();
+		Mockito.when(actual.get(null, "table", "known", families)).thenReturn(data);
+
+		Map<String, ColumnFamilyData> ret = new DelegatingStore(actual).get(null, "table", Arrays.asList("known", "unknown"), families);
+
+		assertEquals(Collections.singletonMap("known", data), ret);
+		Mockito.verify(actual).get(null, "table", "unknown", families);
+	}
+
+	@Test
+	public void multiGetFallsBackToGetOnSimpleStoreWrapper() {
+		SimpleStore actual = Mockito.mock(SimpleStore.class);
+		ColumnFamilyData data = new DefaultColumnFamilyData();
+		Mockito.when(actual.get("table", "known", families)).thenReturn(data);
+
+		Map<String, ColumnFamilyData> ret = SimpleStoreWrapper.getWrapper(actual).get(null, "table", Arrays.asList("known", "unknown"), families);
+
+		assertEquals(Collections.singletonMap("known", data), ret);
+		Mockito.verify(actual).get("table", "unknown", families);
+	}
+
+	@Test
+	public void batchFallsBackToStoreChangesOnDelegatingStore() {
+		Store actual = Mockito.mock(Store.class);
+		ColumnFamilyData changes = new DefaultColumnFamilyData();
+		
+		new DelegatingStore(actual).storeChanges("table", Arrays.asList(new RowChanges(null, "row1", changes, null, null), new RowChanges(null, "row2", changes, null, null)));
+		
+		Mockito.verify(actual).storeChanges(null, "table", "row1", changes, null, null);
+		Mockito.verify(actual).storeChanges(null, "table", "row2", changes, null, null);
+	}
+
+	@Test
+	public void batchFallsBackToStoreChangesOnSimpleStoreWrapper() {
+		SimpleStore actual = Mockito.mock(SimpleStore.class);
+		ColumnFamilyData changes = new DefaultColumnFamilyData();
+		
+		SimpleStoreWrapper.getWrapper(actual).storeChanges("table", Arrays.asList(new RowChanges(null, "row1", changes, null, null), new RowChanges(null, "row2", changes, null, null)));
+		
+		Mockito.verify(actual).storeChanges("table", "row1", changes, null, null);
+		Mockito.verify(actual).storeChanges("table", "row2", changes, null, null);
+	}
+
+	private static CloseableKeyIterator rows(String... keys) {
+		final Iterator<String> it = Arrays.asList(keys).iterator();
+		return new CloseableKeyIterator() {
+			
+			@Override
+			public boolean hasNext() {
+				return it.hasNext();
+			}
+
+			@Override
+			public Row next() {
+				final String key = it.next();
+				return new Row() {
+					
+					@Override
+					public String getKey() {
+						return key;
+					}
+					
+					@Override
+					public ColumnFamilyData getValues() {
+						return new DefaultColumnFamilyData();
+					}
+				};
+			}
+
+			@Override
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+
+			@Override
+			public void close() {
+			}
+		};
+	}
+	
+	private static List<String> keys(CloseableKeyIterator it) {
+		List<String> ret = new ArrayList<String>();
+		try {
+			while (it.hasNext())
+				ret.add(it.next().getKey());
+		} finally {
+			it.close();
+		}
+		return ret;
+	}
+
+	@Test
+	public void reverseScanFallsBackToAscendingGetOnDelegatingStore() {
+		Store actual = Mockito.mock(Store.class);
+		Mockito.when(actual.get(null, "table", null, Integer.MAX_VALUE, families)).thenReturn(rows("a", "b", "c"));
+		
+		assertEquals(Arrays.asList("c", "b"), keys(new DelegatingStore(actual).get(null, "table", null, 2, families, true)));
+	}
+
+	@Test
+	public void reverseScanFallsBackToAscendingGetOnSimpleStoreWrapper() {
+		SimpleStore actual = Mockito.mock(SimpleStore.class);
+		Mockito.when(actual.get("table", null, Integer.MAX_VALUE, families)).thenReturn(rows("a", "b", "c"));
+		
+		assertEquals(Arrays.asList("c", "b"), keys(SimpleStoreWrapper.getWrapper(actual).get(null, "table", null, 2, families, true)));
+	}
+
+	@Test
+	public void ascendingScanOnStoreWithoutReverseScan() {
+		Store actual = Mockito.mock(Store.class);
+		Mockito.when(actual.get(null, "table", null, 2, families)).thenReturn(rows("a", "b"));
+		
+		assertEquals(Arrays.asList("a", "b"), keys(new DelegatingStore(actual).get(null, "table", null, 2, families, false)));
+	}
+
+	@Test
+	public void truncateFallsBackToDeleteOnDelegatingStore() {
+		Store actual = Mockito.mock(Store.class);
+		Constraint c = new Constraint("a", "z");
+		Mockito.when(actual.get(Mockito.<MetaInformation>eq(null), Mockito.eq("table"), Mockito.any(Constraint.class), Mockito.anyInt(), Mockito.<Set<String>>eq(null))).thenReturn(rows("a", "b"), rows());
+		
+		new DelegatingStore(actual).truncate(null, "table", c);
+		
+		Mockito.verify(actual).delete(null, "table", "a");
+		Mockito.verify(actual).delete(null, "table", "b");
+	}
+
+	@Test
+	public void truncateFallsBackToDeleteOnSimpleStoreWrapper() {
+		SimpleStore actual = Mockito.mock(SimpleStore.class);
+		Constraint c = new Constraint("a", "z");
+		Mockito.when(actual.get(Mockito.eq("table"), Mockito.any(Constraint.class), Mockito.anyInt(), Mockito.<Set<String>>eq(null))).thenReturn(rows("a", "b"), rows());
+		
+		SimpleStoreWrapper.getWrapper(actual).truncate(null, "table", c);
+		
+		Mockito.verify(actual).delete("table", "a");
+		Mockito.verify(actual).delete("table", "b");
+	}
+
+	@Test
+	public void loadFallsBackToStoreChangesOnDelegatingStore() {
+		Store actual = Mockito.mock(Store.class);
+		ColumnFamilyData changes = new DefaultColumnFamilyData();
+		
+		new DelegatingStore(actual).load("table", Arrays.asList(new RowChanges(null, "row1", changes, null, null), new RowChanges(null, "row2", changes, null, null)).iterator());
+		
+		Mockito.verify(actual).storeChanges(null, "table", "row1", changes, null, null);
+		Mockito.verify(actual).storeChanges(null, "table", "row2", changes, null, null);
+	}
+
+	@Test
+	public void loadFallsBackToStoreChangesOnSimpleStoreWrapper() {
+		SimpleStore actual = Mockito.mock(SimpleStore.class);
+		ColumnFamilyData changes = new DefaultColumnFamilyData();
+		
+		SimpleStoreWrapper.getWrapper(actual).load("table", Arrays.asList(new RowChanges(null, "row1", changes, null, null), new RowChanges(null, "row2", changes, null, null)).iterator());
+		
+		Mockito.verify(actual).storeChanges("table", "row1", changes, null, null);
+		Mockito.verify(actual).storeChanges("table", "row2", changes, null, null);
+	}
+}
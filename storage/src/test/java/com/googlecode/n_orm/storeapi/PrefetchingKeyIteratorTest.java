@@ -0,0 +1,215 @@
+package com.googlecode.n_orm.storeapi;
+
+import static org.junit.Assert.*;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import org.junit.Test;
+
+import com.googlecode.n_orm.DatabaseNotReachedException;
+
+public class PrefetchingKeyIteratorTest {
+
+	private static class CountingIterator implements CloseableKeyIterator {
+		private final int size;
+		private final int failAt;
+		private volatile int read = 0;
+		private volatile boolean closed = false;
+
+		public CountingIterator(int size, int failAt) {
+			this.size = size;
+			this.failAt = failAt;
+		}
+
+		@Override
+		public boolean hasNext() {
+			assertFalse(closed);
+			return read < size;
+		}
+
+		@Override
+		public Row next() {
+			if (read == failAt)
+				throw new IllegalStateException("failing at " + read);
+			final String key = Integer.toString(read++);
+			return new Row() {
+
+				@Override
+				public ColumnFamilyData getValues() {
+					return new DefaultColumnFamilyData();
+				}
+
+				@Override
+				public String getKey() {
+					return key;
+				}
+			};
+		}
+
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public void close() {
+			closed = true;
+		}
+
+	}
+
+	private static void waitClosed(CountingIterator it) throws InterruptedException {
+		long end = System.currentTimeMillis() + 1000;
+		while (!it.closed && System.currentTimeMillis() < end)
+			Thread.sleep(5);
+		assertTrue(it.closed);
+	}
+
+	@Test
+	public void readAll() throws InterruptedException {
+		CountingIterator it = new CountingIterator(1000, -1);
+		PrefetchingKeyIterator sut = new PrefetchingKeyIterator(it, 7, 3);
+		for (int i = 0; i < 1000; ++i) {
+			assertTrue(sut.hasNext());
+			assertEquals(Integer.toString(i), sut.next().getKey());
+		}
+		assertFalse(sut.hasNext());
+		try {
+			sut.next();
+			fail();
+		} catch (NoSuchElementException x) {
+		}
+		sut.close();
+		waitClosed(it);
+	}
+
+	@Test
+	public void boundedReadAhead() throws InterruptedException {
+		CountingIterator it = new CountingIterator(1000, -1);
+		PrefetchingKeyIterator sut = new PrefetchingKeyIterator(it, 10, 2);
+		assertEquals("0", sut.next().getKey());
+		Thread.sleep(100);
+		//One page being read, two pages in queue, one partially processed
+		assertTrue(it.read <= 40);
+		sut.close();
+		waitClosed(it);
+		assertFalse(sut.hasNext());
+	}
+
+	@Test
+	public void empty() throws InterruptedException {
+		CountingIterator it = new CountingIterator(0, -1);
+		PrefetchingKeyIterator sut = new PrefetchingKeyIterator(it, 10, 2);
+		assertFalse(sut.hasNext());
+		waitClosed(it);
+	}
+
+	@Test
+	public void errorReported() throws InterruptedException {
+		CountingIterator it = new CountingIterator(100, 25);
+		PrefetchingKeyIterator sut = new PrefetchingKeyIterator(it, 10, 2);
+		for (int i = 0; i < 25; ++i) {
+			assertEquals(Integer.toString(i), sut.next().getKey());
+		}
+		try {
+			while (sut.hasNext())
+				sut.next();
+			fail();
+		} catch (IllegalStateException x) {
+			assertEquals("failing at 25", x.getMessage());
+		}
+		waitClosed(it);
+	}
+
+	@Test
+	public void smallLimitNotDecorated() {
+		CountingIterator it = new CountingIterator(10, -1);
+		assertSame(it, PrefetchingKeyIterator.prefetch(it, PrefetchingKeyIterator.getDefaultPageSize()));
+		Iterator<Row> prefetching = PrefetchingKeyIterator.prefetch(it, PrefetchingKeyIterator.getDefaultPageSize()+1);
+		assertTrue(prefetching instanceof PrefetchingKeyIterator);
+		((PrefetchingKeyIterator)prefetching).close();
+	}
+
+	@Test
+	public void saturatedFetchers() throws InterruptedException {
+		int maxThreads = PrefetchingKeyIterator.getMaxFetcherThreads();
+		PrefetchingKeyIterator.setMaxFetcherThreads(1);
+		try {
+			//Letting fetcher threads in excess left by other tests terminate
+			Thread.sleep(100);
+			CountingIterator it1 = new CountingIterator(1000, -1);
+			PrefetchingKeyIterator sut1 = new PrefetchingKeyIterator(it1, 10, 1);
+			//No fetcher thread left: rows are read when asked for
+			CountingIterator it2 = new CountingIterator(100, -1);
+			PrefetchingKeyIterator sut2 = new PrefetchingKeyIterator(it2, 10, 1);
+			assertEquals(0, it2.read);
+			for (int i = 0; i < 100; ++i) {
+				assertEquals(Integer.toString(i), sut2.next().getKey());
+				assertEquals(i+1, it2.read);
+			}
+			assertFalse(sut2.hasNext());
+			assertTrue(it2.closed);
+			
+			//Closing releases the fetcher thread waiting for room
+			sut1.close();
+			waitClosed(it1);
+			assertTrue(it1.read < 1000);
+		} finally {
+			PrefetchingKeyIterator.setMaxFetcherThreads(maxThreads);
+		}
+	}
+
+	@Test
+	public void idleConsumerReleasesFetcher() throws InterruptedException {
+		long maxIdle = PrefetchingKeyIterator.getMaxIdleMs();
+		PrefetchingKeyIterator.setMaxIdleMs(100);
+		try {
+			CountingIterator it = new CountingIterator(1000, -1);
+			PrefetchingKeyIterator sut = new PrefetchingKeyIterator(it, 10, 1);
+			assertEquals("0", sut.next().getKey());
+			Thread.sleep(300);
+			assertTrue(it.closed);
+			//Rows already read are returned before the problem is reported
+			int read = 1;
+			try {
+				while (sut.hasNext()) {
+					assertEquals(Integer.toString(read++), sut.next().getKey());
+				}
+				fail();
+			} catch (DatabaseNotReachedException x) {
+			}
+			assertTrue(read < 1000);
+		} finally {
+			PrefetchingKeyIterator.setMaxIdleMs(maxIdle);
+		}
+	}
+
+	@Test
+	public void unreachableIteratorReleasesFetcher() throws InterruptedException {
+		long maxIdle = PrefetchingKeyIterator.getMaxIdleMs();
+		PrefetchingKeyIterator.setMaxIdleMs(100);
+		try {
+			CountingIterator it = new CountingIterator(1000, -1);
+			new PrefetchingKeyIterator(it, 10, 1);
+			long end = System.currentTimeMillis() + 5000;
+			while (!it.closed && System.currentTimeMillis() < end) {
+				System.gc();
+				Thread.sleep(50);
+			}
+			assertTrue(it.closed);
+		} finally {
+			PrefetchingKeyIterator.setMaxIdleMs(maxIdle);
+		}
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void zeroMaxIdleSetAttempt() {
+		PrefetchingKeyIterator.setMaxIdleMs(0);
+	}
+
+	@Test(expected=IllegalArgumentException.class)
+	public void zeroPageSizeSetAttempt() {
+		PrefetchingKeyIterator.setDefaultPageSize(0);
+	}
+}
@@ -0,0 +1,152 @@
+package com.googlecode.n_orm.utils;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+import org.junit.Test;
+
+public class OrderStatisticSetTest {
+
+	private static String key(int i) {
+		return String.format("k%05d", i);
+	}
+
+	@Test
+	public void empty() {
+		OrderStatisticSet<String> sut = new OrderStatisticSet<String>();
+		assertEquals(0, sut.size());
+		assertEquals(0, sut.count(null, null));
+		assertEquals(0, sut.count("a", "z"));
+		assertFalse(sut.remove("a"));
+	}
+
+	@Test
+	public void sameAsTreeSet() {
+		Random r = new Random(42);
+		OrderStatisticSet<String> sut = new OrderStatisticSet<String>();
+		TreeSet<String> expected = new TreeSet<String>();
+		for (int i = 0; i < 20000; ++i) {
+			String k = key(r.nextInt(2000));
+			if (r.nextInt(3) == 0)
+				assertEquals(expected.remove(k), sut.remove(k));
+			else
+				assertEquals(expected.add(k), sut.add(k));
+
+			if (i % 100 == 0) {
+				assertEquals(expected.size(), sut.size());
+				String from = key(r.nextInt(2000)), to = key(r.nextInt(2000));
+				int expectedCount = from.compareTo(to) > 0 ? 0 : expected.subSet(from, true, to, true).size();
+				assertEquals(expectedCount, sut.count(from, to));
+				assertEquals(expected.headSet(to, true).size(), sut.count(null, to));
+				assertEquals(expected.tailSet(from, true).size(), sut.count(from, null));
+				assertEquals(expected.contains(from), sut.contains(from));
+			}
+		}
+		sut.clear();
+		assertEquals(0, sut.size());
+	}
+
+	@Test
+	public void removeRange() {
+		Random r = new Random(42);
+		OrderStatisticSet<String> sut = new OrderStatisticSet<String>();
+		TreeSet<String> expected = new TreeSet<String>();
+		for (int i = 0; i < 200; ++i) {
+			for (int j = 0; j < 50; ++j) {
+				String k = key(r.nextInt(2000));
+				assertEquals(expected.add(k), sut.add(k));
+			}
+			String from = r.nextInt(10) == 0 ? null : key(r.nextInt(2000)), to = r.nextInt(10) == 0 ? null : key(r.nextInt(2000));
+			SortedSet<String> range;
+			if (from != null && to != null)
+				range = from.compareTo(to) > 0 ? new TreeSet<String>() : expected.subSet(from, true, to, true);
+			else if (from != null)
+				range = expected.tailSet(from, true);
+			else if (to != null)
+				range = expected.headSet(to, true);
+			else
+				range = expected;
+			int removed = range.size();
+			range.clear();
+			assertEquals(removed, sut.removeRange(from, to));
+			assertEquals(expected.size(), sut.size());
+			for (int j = 0; j < 10; ++j) {
+				String k = key(r.nextInt(2000));
+				assertEquals(expected.contains(k), sut.contains(k));
+				assertEquals(expected.headSet(k, true).size(), sut.count(null, k));
+			}
+		}
+	}
+
+	@Test
+	public void addAllSorted() {
+		Random r = new Random(42);
+		OrderStatisticSet<String> sut = new OrderStatisticSet<String>();
+		TreeSet<String> expected = new TreeSet<String>();
+		for (int i = 0; i < 500; i += 2) {
+			sut.add(key(i));
+			expected.add(key(i));
+		}
+		List<String> sorted = new ArrayList<String>();
+		for (int i = 500; i < 3000; ++i) {
+			if (r.nextBoolean())
+				sorted.add(key(i));
+		}
+		sut.addAllSorted(sorted);
+		expected.addAll(sorted);
+		assertEquals(expected.size(), sut.size());
+		for (int j = 0; j < 200; ++j) {
+			String from = key(r.nextInt(3000)), to = key(r.nextInt(3000));
+			int expectedCount = from.compareTo(to) > 0 ? 0 : expected.subSet(from, true, to, true).size();
+			assertEquals(expectedCount, sut.count(from, to));
+			assertEquals(expected.contains(from), sut.contains(from));
+		}
+		for (int i = 0; i < 3000; i += 3) {
+			assertEquals(expected.remove(key(i)), sut.remove(key(i)));
+		}
+		assertEquals(expected.size(), sut.size());
+		assertEquals(expected.headSet(key(1500), true).size(), sut.count(null, key(1500)));
+	}
+
+	@Test
+	public void addAllSortedRejectsUnsorted() {
+		OrderStatisticSet<String> sut = new OrderStatisticSet<String>();
+		sut.add(key(5));
+		for (List<String> keys : Arrays.asList(Arrays.asList(key(7), key(6)), Arrays.asList(key(7), key(7)), Arrays.asList(key(4)), Arrays.asList(key(5)))) {
+			try {
+				sut.addAllSorted(keys);
+				fail("Expected failure for " + keys);
+			} catch (IllegalArgumentException x) {
+			}
+		}
+		assertEquals(1, sut.size());
+		assertFalse(sut.contains(key(7)));
+	}
+
+	@Test
+	public void select() {
+		Random r = new Random(42);
+		OrderStatisticSet<String> sut = new OrderStatisticSet<String>();
+		TreeSet<String> expected = new TreeSet<String>();
+		for (int i = 0; i < 1000; ++i) {
+			String k = key(r.nextInt(2000));
+			sut.add(k);
+			expected.add(k);
+		}
+		int index = 0;
+		for (String k : expected) {
+			assertEquals(k, sut.select(index++));
+		}
+		try {
+			sut.select(expected.size());
+			fail();
+		} catch (IndexOutOfBoundsException x) {
+		}
+	}
+}